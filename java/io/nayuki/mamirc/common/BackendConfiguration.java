@@ -10,6 +10,7 @@ package io.nayuki.mamirc.common;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import io.nayuki.json.Json;
 
 
@@ -22,8 +23,48 @@ public final class BackendConfiguration {
 	/*---- Fields ----*/
 	
 	// Not null. This is an uninterpreted string, and file existence is not checked.
+	// A file for the "sqlite" archive format, or a directory for the "segments" format.
 	public final File connectorDatabaseFile;
 	
+	// Not null. Either "sqlite" or "segments" (see EventStore).
+	public final String connectorArchiveFormat;
+	
+	// In the range [1, 2^30]. The size at which the "segments" format starts a new segment file.
+	public final int connectorSegmentBytes;
+	
+	// One of "none", "monthly", "daily" (only with the "sqlite" format). Whether the Connector's archive is a directory
+	// of time partitions (see PartitionedEventStore) instead of a single file, and the period of each partition.
+	public final String connectorArchivePartitions;
+	
+	// Either "none" or "dictionary" (only with the "sqlite" format). Whether the Connector compresses
+	// newly archived payloads with a dictionary trained on recent traffic (see SqliteEventStore).
+	public final String connectorCompression;
+	
+	// Null if disabled (the default). Which low-value events the Connector's retention engine removes from
+	// the archive once they are old enough, and whether it keeps hourly counts of them (only with "sqlite").
+	public final RetentionPolicy connectorRetention;
+	
+	// Not null. The SQLite journal mode and synchronous setting of the Connector's database, in upper case:
+	// journal mode is one of WAL, PERSIST, TRUNCATE, DELETE; synchronous is one of OFF, NORMAL, FULL, EXTRA.
+	public final String connectorJournalMode;
+	public final String connectorSynchronous;
+	
+	// At least 1. In WAL mode, the Connector checkpoints the database once the write-ahead log reaches
+	// this many bytes, or once its oldest uncheckpointed commit is this many seconds old.
+	public final int connectorCheckpointBytes;
+	public final int connectorCheckpointSeconds;
+	
+	// Null if disabled (the default), otherwise the directory into which the Connector copies its live SQLite archive
+	// (only in WAL mode) when asked by a Processor, and also every this many hours if at least 1 (0 for never).
+	public final File connectorBackupDirectory;
+	public final int connectorBackupIntervalHours;
+	
+	// At least 1, 1, and 0, respectively. The Connector commits a batch of events to the database as soon as it
+	// reaches this many events or payload bytes, or its oldest event has waited this many milliseconds.
+	public final int connectorBatchEvents;
+	public final int connectorBatchBytes;
+	public final int connectorBatchDelayMillis;
+	
 	// In the range [0, 65535].
 	public final int connectorServerPort;
 	
@@ -36,6 +77,41 @@ public final class BackendConfiguration {
 	// Not null.
 	public final String webUiPassword;
 	
+	// At least 0. The number of NIO selector threads that serve IRC server connections,
+	// or 0 to use the traditional model of a reader and a writer thread per connection.
+	public final int connectorSelectorThreads;
+	
+	// Whether blocking worker threads (and the web server's executor) run as virtual threads, which requires Java 21+.
+	public final boolean useVirtualThreads;
+	
+	// At least 1. The maximum number of bytes that a socket writer packs into one write call.
+	public final int writerBatchBytes;
+	
+	// At least 0. How long a socket writer waits for more lines to pack into a partially filled write.
+	public final int writerLingerMillis;
+	
+	// At least 0. Seconds of silence from an IRC server after which the Connector closes the connection
+	// as a dead link, or 0 to disable. Each network profile can override this through the Processor.
+	public final int connectorDeadLinkTimeout;
+	
+	// At least 1. The number of bytes that a socket writer queues in memory before applying its overflow policy.
+	public final int writerQueueBytes;
+	
+	// Not null. The overflow policies for writers to IRC servers and to the Processor, respectively.
+	public final OutputWriterThread.OverflowPolicy serverWriterOverflow;
+	public final OutputWriterThread.OverflowPolicy processorWriterOverflow;
+	
+	// At least 0. The memory budget of each connection's tail of recent events, which an attaching
+	// Processor receives over the socket instead of reading from the database.
+	public final int connectorTailBytes;
+	
+	// At least 1. The number of live events that each attached Processor can fall behind before it is disconnected.
+	public final int processorRingEvents;
+	
+	// Null if disabled (the default). The file of the Processor's full-text search index of archived messages,
+	// which it keeps up to date by tailing the archive (only with the "sqlite" format).
+	public final File processorSearchIndexFile;
+	
 	
 	
 	/*---- Constructor ----*/
@@ -55,6 +131,96 @@ public final class BackendConfiguration {
 		connectorPassword = Utils.toUtf8(Json.getString(data, "connector-password"));
 		webServerPort = Utils.checkPortNumber(Json.getInt(data, "web-server-port"));
 		webUiPassword = Json.getString(data, "web-ui-password");
+		
+		// Optional fields
+		Map<String,Object> root = Json.getMap(data);
+		connectorArchiveFormat = root.containsKey("connector-archive-format") ? Json.getString(data, "connector-archive-format") : "sqlite";
+		if (!connectorArchiveFormat.matches("sqlite|segments"))
+			throw new IllegalArgumentException("Invalid connector archive format: " + connectorArchiveFormat);
+		connectorSegmentBytes = root.containsKey("connector-segment-bytes") ? Json.getInt(data, "connector-segment-bytes") : 1 << 26;
+		if (connectorSegmentBytes < 1 || connectorSegmentBytes > SegmentedEventStore.MAX_SEGMENT_BYTES)
+			throw new IllegalArgumentException("Invalid connector segment size");
+		connectorArchivePartitions = root.containsKey("connector-archive-partitions") ? Json.getString(data, "connector-archive-partitions") : "none";
+		if (!connectorArchivePartitions.matches("none|monthly|daily"))
+			throw new IllegalArgumentException("Invalid connector archive partitions: " + connectorArchivePartitions);
+		if (!connectorArchivePartitions.equals("none") && !connectorArchiveFormat.equals("sqlite"))
+			throw new IllegalArgumentException("Archive partitions require the sqlite archive format");
+		connectorCompression = root.containsKey("connector-compression") ? Json.getString(data, "connector-compression") : "none";
+		if (!connectorCompression.matches("none|dictionary"))
+			throw new IllegalArgumentException("Invalid connector compression: " + connectorCompression);
+		if (connectorCompression.equals("dictionary") && !connectorArchiveFormat.equals("sqlite"))
+			throw new IllegalArgumentException("Dictionary compression requires the sqlite archive format");
+		int retentionDays = root.containsKey("connector-retention-days") ? Json.getInt(data, "connector-retention-days") : 0;
+		if (retentionDays < 0)
+			throw new IllegalArgumentException("Invalid connector retention period");
+		if (retentionDays > 0 && !connectorArchiveFormat.equals("sqlite"))
+			throw new IllegalArgumentException("Archive retention requires the sqlite archive format");
+		connectorRetention = retentionDays == 0 ? null : new RetentionPolicy(retentionDays,
+			root.containsKey("connector-retention-commands") ? Json.getString(data, "connector-retention-commands") : "PING PONG",
+			root.containsKey("connector-retention-action") ? Json.getString(data, "connector-retention-action") : "rollup");
+		connectorJournalMode = (root.containsKey("connector-journal-mode") ? Json.getString(data, "connector-journal-mode") : "wal").toUpperCase();
+		if (!connectorJournalMode.matches("WAL|PERSIST|TRUNCATE|DELETE"))
+			throw new IllegalArgumentException("Invalid connector journal mode: " + connectorJournalMode);
+		connectorSynchronous = (root.containsKey("connector-synchronous") ? Json.getString(data, "connector-synchronous")
+			: connectorJournalMode.equals("WAL") ? "normal" : "full").toUpperCase();
+		if (!connectorSynchronous.matches("OFF|NORMAL|FULL|EXTRA"))
+			throw new IllegalArgumentException("Invalid connector synchronous setting: " + connectorSynchronous);
+		connectorBackupDirectory = root.containsKey("connector-backup-directory") ? new File(Json.getString(data, "connector-backup-directory")) : null;
+		connectorBackupIntervalHours = root.containsKey("connector-backup-interval-hours") ? Json.getInt(data, "connector-backup-interval-hours") : 0;
+		if (connectorBackupIntervalHours < 0)
+			throw new IllegalArgumentException("Invalid connector backup interval");
+		if (connectorBackupDirectory != null && !(connectorArchiveFormat.equals("sqlite") && connectorJournalMode.equals("WAL")))
+			throw new IllegalArgumentException("Archive backup requires the sqlite archive format in WAL mode");
+		connectorCheckpointBytes = root.containsKey("connector-checkpoint-bytes") ? Json.getInt(data, "connector-checkpoint-bytes") : 1 << 22;
+		if (connectorCheckpointBytes < 1)
+			throw new IllegalArgumentException("Invalid connector checkpoint size");
+		connectorCheckpointSeconds = root.containsKey("connector-checkpoint-seconds") ? Json.getInt(data, "connector-checkpoint-seconds") : 60;
+		if (connectorCheckpointSeconds < 1)
+			throw new IllegalArgumentException("Invalid connector checkpoint interval");
+		connectorBatchEvents = root.containsKey("connector-batch-events") ? Json.getInt(data, "connector-batch-events") : 4096;
+		if (connectorBatchEvents < 1)
+			throw new IllegalArgumentException("Invalid connector batch size");
+		connectorBatchBytes = root.containsKey("connector-batch-bytes") ? Json.getInt(data, "connector-batch-bytes") : 1 << 20;
+		if (connectorBatchBytes < 1)
+			throw new IllegalArgumentException("Invalid connector batch byte budget");
+		connectorBatchDelayMillis = root.containsKey("connector-batch-delay-millis") ? Json.getInt(data, "connector-batch-delay-millis") : 1000;
+		if (connectorBatchDelayMillis < 0)
+			throw new IllegalArgumentException("Invalid connector batch delay");
+		String ioModel = root.containsKey("connector-io-model") ? Json.getString(data, "connector-io-model") : "threads";
+		if (ioModel.equals("threads"))
+			connectorSelectorThreads = 0;
+		else if (ioModel.equals("nio"))
+			connectorSelectorThreads = root.containsKey("connector-selector-threads") ? Json.getInt(data, "connector-selector-threads") : 1;
+		else
+			throw new IllegalArgumentException("Invalid connector I/O model: " + ioModel);
+		if (connectorSelectorThreads < 0 || ioModel.equals("nio") && connectorSelectorThreads == 0)
+			throw new IllegalArgumentException("Invalid number of connector selector threads");
+		useVirtualThreads = root.containsKey("virtual-threads") && Json.getBoolean(data, "virtual-threads");
+		writerBatchBytes = root.containsKey("writer-batch-bytes") ? Json.getInt(data, "writer-batch-bytes") : 16384;
+		if (writerBatchBytes < 1)
+			throw new IllegalArgumentException("Invalid writer batch size");
+		writerLingerMillis = root.containsKey("writer-linger-millis") ? Json.getInt(data, "writer-linger-millis") : 0;
+		if (writerLingerMillis < 0)
+			throw new IllegalArgumentException("Invalid writer linger time");
+		connectorDeadLinkTimeout = root.containsKey("connector-dead-link-timeout-seconds") ? Json.getInt(data, "connector-dead-link-timeout-seconds") : 300;
+		if (connectorDeadLinkTimeout < 0)
+			throw new IllegalArgumentException("Invalid dead link timeout");
+		writerQueueBytes = root.containsKey("writer-queue-bytes") ? Json.getInt(data, "writer-queue-bytes") : 1 << 20;
+		if (writerQueueBytes < 1)
+			throw new IllegalArgumentException("Invalid writer queue size");
+		serverWriterOverflow = parseOverflowPolicy(root.containsKey("server-writer-overflow")
+			? Json.getString(data, "server-writer-overflow") : "disconnect");
+		processorWriterOverflow = parseOverflowPolicy(root.containsKey("processor-writer-overflow")
+			? Json.getString(data, "processor-writer-overflow") : "spill");
+		connectorTailBytes = root.containsKey("connector-tail-bytes") ? Json.getInt(data, "connector-tail-bytes") : 262144;
+		if (connectorTailBytes < 0)
+			throw new IllegalArgumentException("Invalid connector tail size");
+		processorRingEvents = root.containsKey("processor-ring-events") ? Json.getInt(data, "processor-ring-events") : 65536;
+		if (processorRingEvents < 1 || processorRingEvents > 1 << 30)
+			throw new IllegalArgumentException("Invalid processor ring size");
+		processorSearchIndexFile = root.containsKey("processor-search-index-file") ? new File(Json.getString(data, "processor-search-index-file")) : null;
+		if (processorSearchIndexFile != null && !connectorArchiveFormat.equals("sqlite"))
+			throw new IllegalArgumentException("The search index requires the sqlite archive format");
 	}
 	
 	
@@ -65,4 +231,17 @@ public final class BackendConfiguration {
 		return connectorPassword.clone();  // Defensive copy
 	}
 	
+	
+	
+	/*---- Helper functions ----*/
+	
+	private static OutputWriterThread.OverflowPolicy parseOverflowPolicy(String s) {
+		switch (s) {
+			case "block":  return OutputWriterThread.OverflowPolicy.BLOCK;
+			case "spill":  return OutputWriterThread.OverflowPolicy.SPILL;
+			case "disconnect":  return OutputWriterThread.OverflowPolicy.DISCONNECT;
+			default:  throw new IllegalArgumentException("Invalid writer overflow policy: " + s);
+		}
+	}
+	
 }
@@ -35,12 +35,19 @@ public final class CleanLine {
 	// Constructs a clean line object based on the given byte array, making a defensive copy iff indicated.
 	// This version is provided to avoid an allocation and copy if the byte array is known to be private.
 	public CleanLine(byte[] arr, boolean copy) {
+		this(arr, copy, true);
+	}
+	
+	
+	private CleanLine(byte[] arr, boolean copy, boolean check) {
 		if (arr == null)
 			throw new NullPointerException();
 		data = copy ? arr.clone() : arr;
-		for (byte b : data) {
-			if (b == '\0' || b == '\r' || b == '\n')
-				throw new IllegalArgumentException("Invalid characters in line");
+		if (check) {
+			for (byte b : data) {
+				if (b == '\0' || b == '\r' || b == '\n')
+					throw new IllegalArgumentException("Invalid characters in line");
+			}
 		}
 	}
 	
@@ -52,6 +59,14 @@ public final class CleanLine {
 	
 	
 	
+	// Returns a clean line object directly over the given byte array, without copying or checking the data.
+	// Only for code in this package that builds the array out of bytes that are already known to be clean.
+	static CleanLine wrapUnchecked(byte[] arr) {
+		return new CleanLine(arr, false, false);
+	}
+	
+	
+	
 	/*---- Methods ----*/
 	
 	// Returns a new copy of the underlying byte array.
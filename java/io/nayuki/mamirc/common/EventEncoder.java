@@ -0,0 +1,105 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+
+/* 
+ * Encodes events into the two formats that the Connector can relay to the Processor:
+ * - Text line: "<connectionId> <sequence> <timestamp> <type> <payload>", with all numbers in decimal.
+ * - Binary frame: int32 connectionId, int32 sequence, int64 timestamp, uint8 type, int32 payload length,
+ *   then the payload bytes; all integers are big-endian (as in java.io.DataOutput), for a 21-byte header.
+ * This is on the hot path for every IRC line, so it avoids String.format() and intermediate buffers:
+ * the output array is allocated once at its exact size, and the payload (already known to be clean)
+ * is copied without being checked again.
+ */
+public final class EventEncoder {
+	
+	// Returns a new array containing the binary frame encoding of the given event.
+	public static byte[] encodeFrame(Event ev) {
+		byte[] payload = ev.line.getDataNoCopy();
+		byte[] result = new byte[FRAME_HEADER_LENGTH + payload.length];
+		writeInt32(ev.connectionId, result, 0);
+		writeInt32(ev.sequence, result, 4);
+		writeInt32((int)(ev.timestamp >>> 32), result, 8);
+		writeInt32((int)ev.timestamp, result, 12);
+		result[16] = (byte)ev.type.ordinal();
+		writeInt32(payload.length, result, 17);
+		System.arraycopy(payload, 0, result, FRAME_HEADER_LENGTH, payload.length);
+		return result;
+	}
+	
+	
+	public static final int FRAME_HEADER_LENGTH = 21;
+	
+	
+	private static void writeInt32(int x, byte[] b, int off) {
+		b[off + 0] = (byte)(x >>> 24);
+		b[off + 1] = (byte)(x >>> 16);
+		b[off + 2] = (byte)(x >>>  8);
+		b[off + 3] = (byte)(x >>>  0);
+	}
+	
+	
+	// Returns a new line containing the text encoding of the given event.
+	public static CleanLine encodeLine(Event ev) {
+		byte[] payload = ev.line.getDataNoCopy();
+		int headerLen = decimalLength(ev.connectionId) + decimalLength(ev.sequence)
+			+ decimalLength(ev.timestamp) + decimalLength(ev.type.ordinal()) + 4;
+		byte[] result = new byte[headerLen + payload.length];
+		int off = 0;
+		off = writeDecimal(ev.connectionId, result, off);
+		result[off] = ' ';
+		off = writeDecimal(ev.sequence, result, off + 1);
+		result[off] = ' ';
+		off = writeDecimal(ev.timestamp, result, off + 1);
+		result[off] = ' ';
+		off = writeDecimal(ev.type.ordinal(), result, off + 1);
+		result[off] = ' ';
+		System.arraycopy(payload, 0, result, off + 1, payload.length);
+		return CleanLine.wrapUnchecked(result);  // Digits, minus signs and spaces are clean
+	}
+	
+	
+	// Returns the number of bytes needed to write the given number in decimal, including any minus sign.
+	static int decimalLength(long x) {
+		int result = x < 0 ? 2 : 1;
+		for (; x <= -10 || x >= 10; x /= 10)
+			result++;
+		return result;
+	}
+	
+	
+	// Writes the given number in decimal into the given array at the given offset,
+	// and returns the offset just past the last written byte. The array must be big enough.
+	static int writeDecimal(long x, byte[] b, int off) {
+		int end = off + decimalLength(x);
+		int i = end;
+		if (x < 0) {
+			b[off] = '-';
+			do {  // Handles Long.MIN_VALUE because each remainder is in [-9, 0]
+				i--;
+				b[i] = (byte)('0' - x % 10);
+				x /= 10;
+			} while (x != 0);
+		} else {
+			do {
+				i--;
+				b[i] = (byte)('0' + x % 10);
+				x /= 10;
+			} while (x != 0);
+		}
+		return end;
+	}
+	
+	
+	
+	// Not instantiable.
+	private EventEncoder() {}
+	
+}
@@ -0,0 +1,68 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+
+public final class EventEncoderTest {
+	
+	@Test public void testDecimal() {
+		long[] cases = {0, 1, 9, 10, 99, 100, 12345, -1, -9, -10, -123456789,
+			Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 999999999999999999L, 1000000000000000000L};
+		for (long x : cases)
+			testDecimal(x);
+		Random rand = new Random();
+		for (int i = 0; i < 10000; i++)
+			testDecimal(rand.nextLong() >> rand.nextInt(64));
+	}
+	
+	
+	private static void testDecimal(long x) {
+		String expect = Long.toString(x);
+		assertEquals(expect.length(), EventEncoder.decimalLength(x));
+		byte[] b = new byte[expect.length() + 2];
+		assertEquals(expect.length() + 1, EventEncoder.writeDecimal(x, b, 1));
+		assertEquals(expect, new String(b, 1, expect.length(), StandardCharsets.US_ASCII));
+	}
+	
+	
+	@Test public void testEncodeLine() {
+		Event ev = new Event(7, 2309, 1449104546870L, Event.Type.RECEIVE, new CleanLine(":Alice PRIVMSG Bob :Can we talk?"));
+		assertEquals("7 2309 1449104546870 1 :Alice PRIVMSG Bob :Can we talk?", EventEncoder.encodeLine(ev).getString());
+		ev = new Event(0, 0, -5, Event.Type.CONNECTION, new CleanLine(""));
+		assertEquals("0 0 -5 0 ", EventEncoder.encodeLine(ev).getString());
+	}
+	
+	
+	@Test public void testEncodeFrame() throws IOException {
+		byte[] payload = Utils.toUtf8(":Alice PRIVMSG Bob :\u00E9t\u00E9");
+		Event ev = new Event(123456, 2309, -1449104546870L, Event.Type.SEND, new CleanLine(payload));
+		byte[] frame = EventEncoder.encodeFrame(ev);
+		assertEquals(EventEncoder.FRAME_HEADER_LENGTH + payload.length, frame.length);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+		assertEquals(123456, in.readInt());
+		assertEquals(2309, in.readInt());
+		assertEquals(-1449104546870L, in.readLong());
+		assertEquals(2, in.readUnsignedByte());
+		assertEquals(payload.length, in.readInt());
+		byte[] actual = new byte[payload.length];
+		in.readFully(actual);
+		assertArrayEquals(payload, actual);
+		assertEquals(-1, in.read());
+	}
+	
+}
@@ -0,0 +1,125 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/* 
+ * A persistent archive of events, which the Connector appends to and the Processor (or a tool) reads from.
+ * There are two formats: "sqlite" (SqliteEventStore, the classic single-table database, or PartitionedEventStore,
+ * a directory of such databases by time period) and "segments" (SegmentedEventStore, append-only log files). Each instance must be used by one thread at a time; the writer
+ * and the readers of an archive each open their own instance, possibly in different processes. At most one
+ * writable instance may be open on an archive at any time.
+ */
+public interface EventStore extends AutoCloseable {
+	
+	// Returns the maximum connection ID in the archive plus 1, or 0 if the archive is empty.
+	public int getNextConnectionId() throws IOException;
+	
+	
+	// Appends the given events and makes them durable before returning. The events of each connection must be given
+	// in ascending sequence order, continuing from the events already in the archive. The instance must be writable.
+	public void append(Event[] events) throws IOException;
+	
+	
+	// Returns the total payload length of the events appended through this instance, as given.
+	public long getAppendedPayloadBytes();
+	
+	
+	// Returns the total payload length of the events appended through this instance, as stored (e.g. compressed).
+	public long getStoredPayloadBytes();
+	
+	
+	// Returns the total time that append() has spent compressing payloads, in nanoseconds.
+	public long getCompressNanos();
+	
+	
+	// Calls the visitor on every event of the given connection whose sequence number is in [start, end),
+	// in ascending sequence order.
+	public void readConnection(int conId, int start, int end, Visitor visitor) throws IOException;
+	
+	
+	// Calls the visitor on every event in the archive. The events of each connection are visited in ascending
+	// sequence order, but the order between connections depends on the format.
+	public void scan(Visitor visitor) throws IOException;
+	
+	
+	// Releases all resources. The instance must not be used afterward.
+	public void close() throws IOException;
+	
+	
+	
+	/*---- Static factories ----*/
+	
+	// Opens the Connector's archive in the format and at the location given by the configuration.
+	// If writable is true, a nonexistent archive is created, and the SQLite settings are applied.
+	public static EventStore open(BackendConfiguration config, boolean writable) throws IOException {
+		File path = config.connectorDatabaseFile;
+		switch (config.connectorArchiveFormat) {
+			case "sqlite": {
+				boolean compress = config.connectorCompression.equals("dictionary");
+				String parts = config.connectorArchivePartitions;
+				if (writable && parts.equals("none"))
+					return new SqliteEventStore(path, true, config.connectorJournalMode, config.connectorSynchronous, compress);
+				else if (writable)
+					return new PartitionedEventStore(path, true, parts, config.connectorJournalMode, config.connectorSynchronous, compress);
+				else if (parts.equals("none"))
+					return new SqliteEventStore(path, false, null, null, false);
+				else
+					return new PartitionedEventStore(path, false, parts, null, null, false);
+			}
+			case "segments":
+				return new SegmentedEventStore(path, writable, config.connectorSegmentBytes);
+			default:
+				throw new AssertionError();
+		}
+	}
+	
+	
+	// Opens the archive of the given format ("sqlite", "sqlite-dictionary", "sqlite-monthly", "sqlite-daily" or
+	// "segments") at the given path, with default settings. If writable is true, a nonexistent archive is created.
+	// The two single-file SQLite formats read the same way, but "sqlite-dictionary" also compresses appended payloads
+	// (see SqliteEventStore). The partitioned formats are a directory of SQLite files (see PartitionedEventStore);
+	// both read any partitioned archive, and only differ in the partitions that appended events go into.
+	public static EventStore open(String format, File path, boolean writable) throws IOException {
+		switch (format) {
+			case "sqlite":
+			case "sqlite-dictionary":
+				if (writable)
+					return new SqliteEventStore(path, true, "WAL", "NORMAL", format.equals("sqlite-dictionary"));
+				else
+					return new SqliteEventStore(path, false, null, null, false);
+			case "sqlite-monthly":
+			case "sqlite-daily": {
+				String period = format.substring(7);
+				if (writable)
+					return new PartitionedEventStore(path, true, period, "WAL", "NORMAL", false);
+				else
+					return new PartitionedEventStore(path, false, period, null, null, false);
+			}
+			case "segments":
+				return new SegmentedEventStore(path, writable, SegmentedEventStore.DEFAULT_SEGMENT_BYTES);
+			default:
+				throw new IllegalArgumentException("Invalid archive format: " + format);
+		}
+	}
+	
+	
+	
+	/*---- Helper interface ----*/
+	
+	public interface Visitor {
+		
+		public void visit(Event ev) throws IOException;
+		
+	}
+	
+}
@@ -0,0 +1,76 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* 
+ * A command-line tool that copies every event from one archive to another, e.g. to move a Connector from
+ * the SQLite format to the segmented format or back. The Connector must not be running on either archive.
+ * The destination must be empty or nonexistent. Usage:
+ *   java io.nayuki.mamirc.common.EventStoreConverter SrcFormat SrcPath DestFormat DestPath
+ * where each format is "sqlite", "sqlite-monthly", "sqlite-daily" (a partitioned archive directory) or "segments".
+ * A destination format of "sqlite-dictionary" creates an SQLite archive with compressed payloads; its first batch
+ * of events is stored raw and trains the first dictionary. A partitioned destination gets every event in the
+ * partition of the current period, because partitions follow the time of appending, not of the events.
+ */
+public final class EventStoreConverter {
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			System.err.println("Usage: java io.nayuki.mamirc.common.EventStoreConverter SrcFormat SrcPath DestFormat DestPath");
+			System.err.println("Each format is sqlite, sqlite-dictionary, sqlite-monthly, sqlite-daily or segments.");
+			System.exit(1);
+			return;
+		}
+		try (EventStore src = EventStore.open(args[0], new File(args[1]), false);
+				EventStore dest = EventStore.open(args[2], new File(args[3]), true)) {
+			long count = convert(src, dest);
+			System.err.println("Copied " + count + " events");
+		}
+	}
+	
+	
+	// Appends every event of the given source to the given destination, which must be empty, and returns the count.
+	public static long convert(EventStore src, final EventStore dest) throws IOException {
+		if (dest.getNextConnectionId() != 0)
+			throw new IllegalArgumentException("Destination archive is not empty");
+		final List<Event> batch = new ArrayList<>();
+		final long[] count = {0};
+		src.scan(new EventStore.Visitor() {
+			public void visit(Event ev) throws IOException {
+				batch.add(ev);
+				if (batch.size() >= BATCH_SIZE)
+					flush();
+			}
+			
+			private void flush() throws IOException {
+				dest.append(batch.toArray(new Event[batch.size()]));
+				count[0] += batch.size();
+				batch.clear();
+			}
+		});
+		dest.append(batch.toArray(new Event[batch.size()]));
+		count[0] += batch.size();
+		return count[0];
+	}
+	
+	
+	private static final int BATCH_SIZE = 10000;  // Events per transaction or forced write
+	
+	
+	
+	// Not instantiable.
+	private EventStoreConverter() {}
+	
+}
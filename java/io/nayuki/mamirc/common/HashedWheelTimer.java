@@ -0,0 +1,294 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+
+/* 
+ * A timer that runs tasks on one background thread, like java.util.Timer, but with O(1) scheduling and cancellation.
+ * Time is divided into ticks, and a circular array of buckets (the wheel) holds the tasks that expire in each tick.
+ * Scheduling appends to a lock-free queue, and cancellation only flips a flag and appends to another queue;
+ * the worker thread moves tasks into and out of the buckets once per tick. This suits many short-lived tasks
+ * (timeouts that are usually cancelled, throttling bursts, connection attempts) better than a binary heap does.
+ * Tasks are run at most one tick late, and a slow task delays everything else (the tick lag shows this).
+ * The worker is a non-daemon platform thread, so a running timer keeps the JVM alive just like java.util.Timer.
+ */
+public final class HashedWheelTimer {
+	
+	/*---- Fields ----*/
+	
+	private final long tickNanos;
+	private final Bucket[] wheel;  // Length is a power of 2; only accessed by the worker thread
+	private final long startTime;  // From System.nanoTime()
+	
+	// Hand-off queues from other threads to the worker thread
+	private final Queue<Task> newTasks;
+	private final Queue<Task> cancelledTasks;
+	
+	private final Thread worker;
+	private volatile boolean stopped;
+	
+	// Statistics
+	private final AtomicInteger pendingTasks;
+	private volatile long lastTickLag;  // In nanoseconds
+	private volatile long maxTickLag;   // In nanoseconds
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Creates and starts a timer with the given thread name and default tick parameters.
+	public HashedWheelTimer(String name) {
+		this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+	
+	
+	// Creates and starts a timer with the given thread name, tick duration (at least 1 ms),
+	// and number of buckets (a power of 2). Tasks due beyond one rotation stay in their bucket for extra rounds.
+	public HashedWheelTimer(String name, int tickMillis, int wheelSize) {
+		if (name == null)
+			throw new NullPointerException();
+		if (tickMillis < 1 || wheelSize < 1 || Integer.bitCount(wheelSize) != 1)
+			throw new IllegalArgumentException();
+		tickNanos = tickMillis * 1000000L;
+		wheel = new Bucket[wheelSize];
+		for (int i = 0; i < wheel.length; i++)
+			wheel[i] = new Bucket();
+		newTasks = new ConcurrentLinkedQueue<>();
+		cancelledTasks = new ConcurrentLinkedQueue<>();
+		pendingTasks = new AtomicInteger();
+		stopped = false;
+		startTime = System.nanoTime();
+		
+		worker = new Thread(name) {
+			public void run() {
+				runWorker();
+			}
+		};
+		worker.setDaemon(false);
+		worker.start();
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Schedules the given task to run once after the given number of milliseconds (at least 0).
+	// A task object can only be scheduled once. Can be called from any thread.
+	public void schedule(Task task, long delay) {
+		schedule(task, delay, 0);
+	}
+	
+	
+	// Schedules the given task to run repeatedly, first after the given delay and then with the given
+	// period between the end of one run and the start of the next (fixed-delay, like java.util.Timer.schedule()).
+	// A period of 0 means to run once. A task object can only be scheduled once. Can be called from any thread.
+	public void schedule(Task task, long delay, long period) {
+		if (task == null)
+			throw new NullPointerException();
+		if (delay < 0 || period < 0)
+			throw new IllegalArgumentException("Negative time");
+		if (stopped)
+			throw new IllegalStateException("Timer already stopped");
+		task.timer = this;  // Before the state change, so that cancel() can see it
+		if (!task.state.compareAndSet(Task.VIRGIN, Task.SCHEDULED))
+			throw new IllegalStateException("Task already scheduled or cancelled");
+		task.deadline = System.nanoTime() - startTime + delay * 1000000;
+		task.period = period * 1000000;
+		pendingTasks.incrementAndGet();
+		newTasks.add(task);
+	}
+	
+	
+	// Stops the worker thread soon, discarding all scheduled tasks. A task that is currently running
+	// is allowed to finish. Can be called from any thread, including from a task, and is idempotent.
+	public void stop() {
+		stopped = true;
+		LockSupport.unpark(worker);
+	}
+	
+	
+	// Returns the number of tasks that are scheduled and not yet finished or cancelled. Repeating tasks count until cancelled.
+	public int getPendingTasks() {
+		return pendingTasks.get();
+	}
+	
+	
+	// Returns how late the most recent tick started, in milliseconds.
+	public long getLastTickLagMillis() {
+		return lastTickLag / 1000000;
+	}
+	
+	
+	// Returns the largest tick lag ever observed, in milliseconds.
+	public long getMaxTickLagMillis() {
+		return maxTickLag / 1000000;
+	}
+	
+	
+	private void runWorker() {
+		for (long tick = 0; ; tick++) {
+			// Sleep until the end of the current tick
+			long tickEnd = startTime + (tick + 1) * tickNanos;
+			while (true) {
+				if (stopped)
+					return;
+				long remain = tickEnd - System.nanoTime();
+				if (remain <= 0) {
+					lastTickLag = -remain;
+					maxTickLag = Math.max(-remain, maxTickLag);
+					break;
+				}
+				LockSupport.parkNanos(this, remain);
+			}
+			
+			// Unlink cancelled tasks so that they can be garbage-collected, then add new tasks to the wheel
+			while (true) {
+				Task task = cancelledTasks.poll();
+				if (task == null)
+					break;
+				if (task.bucket != null)
+					task.bucket.remove(task);
+			}
+			while (true) {
+				Task task = newTasks.poll();
+				if (task == null)
+					break;
+				if (task.state.get() == Task.SCHEDULED)
+					insert(task, tick);
+			}
+			
+			// Run all tasks due in this tick
+			Bucket bucket = wheel[(int)(tick & (wheel.length - 1))];
+			for (Task task = bucket.head; task != null && !stopped; ) {
+				Task next = task.next;
+				if (task.remainingRounds > 0)
+					task.remainingRounds--;
+				else {
+					bucket.remove(task);
+					runTask(task);
+				}
+				task = next;
+			}
+		}
+	}
+	
+	
+	// Puts the given task into the bucket of its deadline, or the current bucket if the deadline has passed.
+	private void insert(Task task, long currentTick) {
+		long dueTick = Math.max(task.deadline / tickNanos, currentTick);
+		task.remainingRounds = (dueTick - currentTick) / wheel.length;
+		wheel[(int)(dueTick & (wheel.length - 1))].add(task);
+	}
+	
+	
+	private void runTask(Task task) {
+		boolean repeat = task.period > 0;
+		if (repeat ? task.state.get() != Task.SCHEDULED : !task.state.compareAndSet(Task.SCHEDULED, Task.EXPIRED))
+			return;  // Cancelled concurrently
+		try {
+			task.run();
+		} catch (Throwable e) {  // Keep the timer alive for the other tasks
+			Utils.logger.log(Level.WARNING, "Uncaught exception in timer task", e);
+		}
+		if (!repeat)
+			pendingTasks.decrementAndGet();
+		else if (task.state.get() == Task.SCHEDULED) {
+			task.deadline = System.nanoTime() - startTime + task.period;
+			newTasks.add(task);  // Inserted at the next tick, so that it never reruns in the current bucket pass
+		}
+	}
+	
+	
+	
+	/*---- Helper definitions ----*/
+	
+	public static final int DEFAULT_TICK_MILLIS = 50;
+	
+	public static final int DEFAULT_WHEEL_SIZE = 512;  // One rotation is 25.6 seconds at the default tick
+	
+	
+	
+	// An action to be run by a HashedWheelTimer. This plays the role of java.util.TimerTask.
+	public static abstract class Task implements Runnable {
+		
+		private final AtomicInteger state = new AtomicInteger(VIRGIN);
+		private HashedWheelTimer timer;  // Set when scheduled
+		
+		// Only accessed by the timer's worker thread after scheduling
+		private long deadline;  // In nanoseconds since the timer's start time
+		private long period;    // In nanoseconds, 0 for a one-shot task
+		private long remainingRounds;
+		private Bucket bucket;
+		private Task prev;
+		private Task next;
+		
+		
+		// Prevents all future runs of this task. Returns true if this prevented at least one run, or false if
+		// the task was never scheduled, already cancelled, or a one-shot task that already started running.
+		// Can be called from any thread, including from the task itself.
+		public final boolean cancel() {
+			if (!state.compareAndSet(SCHEDULED, CANCELLED))
+				return false;
+			timer.pendingTasks.decrementAndGet();
+			timer.cancelledTasks.add(this);
+			return true;
+		}
+		
+		
+		private static final int VIRGIN = 0;
+		private static final int SCHEDULED = 1;
+		private static final int EXPIRED = 2;
+		private static final int CANCELLED = 3;
+		
+	}
+	
+	
+	
+	// A doubly linked list of tasks. Only accessed by the worker thread.
+	private static final class Bucket {
+		
+		public Task head = null;
+		public Task tail = null;
+		
+		
+		public void add(Task task) {
+			task.bucket = this;
+			task.prev = tail;
+			task.next = null;
+			if (tail == null)
+				head = task;
+			else
+				tail.next = task;
+			tail = task;
+		}
+		
+		
+		public void remove(Task task) {
+			if (task.prev == null)
+				head = task.next;
+			else
+				task.prev.next = task.next;
+			if (task.next == null)
+				tail = task.prev;
+			else
+				task.next.prev = task.prev;
+			task.bucket = null;
+			task.prev = null;
+			task.next = null;
+		}
+		
+	}
+	
+}
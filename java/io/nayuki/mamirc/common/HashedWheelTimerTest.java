@@ -0,0 +1,84 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class HashedWheelTimerTest {
+	
+	@Test public void testOrder() throws InterruptedException {
+		// A small wheel, so that some tasks need more than one round
+		HashedWheelTimer timer = new HashedWheelTimer("test", 5, 4);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(4);
+		int[] delays = {120, 0, 45, 13};
+		for (int i = 0; i < delays.length; i++) {
+			final int delay = delays[i];
+			timer.schedule(new HashedWheelTimer.Task() {
+				public void run() {
+					order.add(delay);
+					done.countDown();
+				}
+			}, delay);
+		}
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList(0, 13, 45, 120), order);
+		Assert.assertEquals(0, timer.getPendingTasks());
+		timer.stop();
+	}
+	
+	
+	@Test public void testCancel() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer("test", 5, 8);
+		final CountDownLatch ran = new CountDownLatch(1);
+		HashedWheelTimer.Task task = new HashedWheelTimer.Task() {
+			public void run() {
+				ran.countDown();
+			}
+		};
+		Assert.assertFalse(task.cancel());
+		timer.schedule(task, 50);
+		Assert.assertEquals(1, timer.getPendingTasks());
+		Assert.assertTrue(task.cancel());
+		Assert.assertFalse(task.cancel());
+		Assert.assertEquals(0, timer.getPendingTasks());
+		Assert.assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+		timer.stop();
+	}
+	
+	
+	@Test public void testRepeatAndSelfCancel() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer("test", 5, 8);
+		final int[] count = {0};
+		final CountDownLatch done = new CountDownLatch(1);
+		timer.schedule(new HashedWheelTimer.Task() {
+			public void run() {
+				count[0]++;
+				if (count[0] == 5) {
+					cancel();
+					done.countDown();
+				}
+			}
+		}, 0, 10);
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		Assert.assertEquals(5, count[0]);
+		Assert.assertEquals(0, timer.getPendingTasks());
+		timer.stop();
+	}
+	
+}
@@ -0,0 +1,114 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/* 
+ * Splits lines out of chunks of bytes that are pushed in incrementally, such as from a non-blocking socket channel.
+ * This has the same newline and maximum length semantics as LineReader, except that the end of stream is handled
+ * by the caller: an incomplete line at the end of stream is simply discarded (see doc/connector.markdown).
+ */
+public final class LineFramer {
+	
+	/*---- Fields ----*/
+	
+	private boolean prevWasCr;
+	// Current accumulating line
+	private byte[] lineBuffer;
+	private int lineLength;  // -1 if the current line is too long and is being skipped
+	private final int maxLineLength;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Constructs a line framer with the default maximum line length of 1000 bytes.
+	public LineFramer() {
+		this(1000);
+	}
+	
+	
+	// Constructs a line framer with the given maximum line length in bytes.
+	public LineFramer(int maxLen) {
+		if (maxLen <= 0)
+			throw new IllegalArgumentException("Maximum line length must be positive");
+		prevWasCr = false;
+		lineBuffer = new byte[Math.min(1024, maxLen)];
+		lineLength = 0;
+		maxLineLength = maxLen;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Consumes bytes from the given buffer until a line is completed or the buffer has no more bytes remaining.
+	// Returns the completed line as a new array, or null if more input is needed. Not thread-safe. Each returned
+	// array contains no '\r' or '\n' characters (but may contain '\0'), and has length in the range [0, maxLen].
+	// Lines in the input that exceed maxLen are skipped. Call this repeatedly until it returns null.
+	public byte[] takeLine(ByteBuffer in) {
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (lineLength != -1) {
+				switch (b) {
+					case '\r':
+						prevWasCr = true;
+						return takeCurrentLine();
+					
+					case '\n':
+						if (prevWasCr) {
+							prevWasCr = false;
+							break;
+						} else
+							return takeCurrentLine();
+					
+					default:
+						prevWasCr = false;
+						if (lineLength == maxLineLength)
+							lineLength = -1;  // Poison the current line
+						else {
+							if (lineLength == lineBuffer.length)
+								lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, maxLineLength));
+							lineBuffer[lineLength] = b;
+							lineLength++;
+						}
+						break;
+				}
+				
+			} else {
+				switch (b) {
+					case '\r':
+						lineLength = 0;
+						prevWasCr = true;
+						break;
+					case '\n':
+						lineLength = 0;
+						prevWasCr = false;
+						break;
+					default:
+						// Keep lineLength == -1
+						prevWasCr = false;
+						break;
+				}
+			}
+		}
+		return null;
+	}
+	
+	
+	private byte[] takeCurrentLine() {
+		byte[] result = Arrays.copyOf(lineBuffer, lineLength);
+		lineLength = 0;
+		return result;
+	}
+	
+}
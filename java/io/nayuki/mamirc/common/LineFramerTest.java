@@ -0,0 +1,65 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class LineFramerTest {
+	
+	@Test public void testBlank() {
+		test("");
+	}
+	
+	@Test public void testIncomplete() {
+		test("aa");
+	}
+	
+	@Test public void testOneLine() {
+		test("b\r\n", "b");
+	}
+	
+	@Test public void testAssorted() {
+		test("the\rquick\nbrown\r\nfox\n\njumps\r\n\nover\r\rthelazydog",
+			"the", "quick", "brown", "fox", "", "jumps", "", "over", "");
+	}
+	
+	@Test public void testLfCr() {
+		test("ba\n\rcd\n", "ba", "", "cd");
+	}
+	
+	@Test public void testLongLines() {
+		LineFramer framer = new LineFramer(5);
+		ByteBuffer buf = ByteBuffer.wrap(Utils.toUtf8("a\r12345\r\nxyzabc\n \n7890123\nABCDEF"));
+		Assert.assertArrayEquals(Utils.toUtf8("a"), framer.takeLine(buf));
+		Assert.assertArrayEquals(Utils.toUtf8("12345"), framer.takeLine(buf));
+		Assert.assertArrayEquals(Utils.toUtf8(" "), framer.takeLine(buf));
+		Assert.assertNull(framer.takeLine(buf));
+	}
+	
+	
+	// Feeds the input one byte at a time, so that every split point between chunks is exercised.
+	private static void test(String raw, String... lines) {
+		LineFramer framer = new LineFramer();
+		byte[] b = Utils.toUtf8(raw);
+		int count = 0;
+		for (int i = 0; i < b.length; i++) {
+			byte[] line = framer.takeLine(ByteBuffer.wrap(b, i, 1));
+			if (line != null) {
+				Assert.assertTrue(count < lines.length);
+				Assert.assertArrayEquals(Utils.toUtf8(lines[count]), line);
+				count++;
+			}
+		}
+		Assert.assertEquals(lines.length, count);
+	}
+	
+}
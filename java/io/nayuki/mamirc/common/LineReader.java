@@ -145,6 +145,56 @@ public final class LineReader {
 	}
 	
 	
+	// Returns a stream of all the bytes after the last line returned by readLine(), including bytes that
+	// were already buffered by this reader. This is for switching the protocol from lines to binary data.
+	// If the last line ended with CR, then an immediately following LF is skipped. After this call,
+	// this line reader must not be used anymore. Not thread-safe.
+	public InputStream detachInput() {
+		if (readBuffer == null)
+			throw new IllegalStateException("End of stream already reached");
+		final byte[] buf = Arrays.copyOfRange(readBuffer, readOffset, readLength);
+		final boolean skipLf = prevWasCr;
+		readBuffer = null;
+		lineBuffer = null;
+		return new InputStream() {
+			private int offset = 0;
+			private boolean checkLf = skipLf;
+			
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return n == -1 ? -1 : (b[0] & 0xFF);
+			}
+			
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				while (true) {
+					int n;
+					if (offset < buf.length) {
+						n = Math.min(len, buf.length - offset);
+						System.arraycopy(buf, offset, b, off, n);
+						offset += n;
+					} else {
+						n = input.read(b, off, len);
+						if (n == -1)
+							return -1;
+					}
+					if (checkLf && n > 0) {
+						checkLf = false;
+						if (b[off] == '\n') {
+							System.arraycopy(b, off + 1, b, off, n - 1);
+							n--;
+						}
+					}
+					if (n > 0)
+						return n;
+				}
+			}
+		};
+	}
+	
+	
 	private byte[] takeCurrentLine() {
 		byte[] result = Arrays.copyOf(lineBuffer, lineLength);
 		lineLength = 0;
@@ -9,7 +9,9 @@
 package io.nayuki.mamirc.common;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -73,6 +75,57 @@ public final class LineReaderTest {
 	}
 	
 	
+	@Test public void testDetachInput() throws IOException {
+		String[][] cases = {
+			{"live\r\nabc", "abc"},
+			{"live\r\n\nabc", "\nabc"},
+			{"live\nabc", "abc"},
+			{"live\n\nabc", "\nabc"},
+			{"live\rabc", "abc"},
+			{"live\r", ""},
+		};
+		for (String[] cs : cases) {
+			// A tiny stream buffer size forces some of the bytes to come from the underlying stream
+			for (int split = 0; split <= cs[0].length(); split++) {
+				LineReader reader = new LineReader(new SplitInputStream(Utils.toUtf8(cs[0]), split));
+				Assert.assertArrayEquals(Utils.toUtf8("live"), reader.readLine());
+				InputStream in = reader.detachInput();
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				for (int b = in.read(); b != -1; b = in.read())
+					bout.write(b);
+				Assert.assertEquals(cs[1], Utils.fromUtf8(bout.toByteArray()));
+			}
+		}
+	}
+	
+	
+	// Returns the first 'split' bytes on the first read() call, and the rest on the next call.
+	private static final class SplitInputStream extends InputStream {
+		private final byte[] data;
+		private int split;
+		private int offset = 0;
+		
+		public SplitInputStream(byte[] data, int split) {
+			this.data = data;
+			this.split = split;
+		}
+		
+		public int read() {
+			throw new UnsupportedOperationException();
+		}
+		
+		public int read(byte[] b, int off, int len) {
+			if (offset >= data.length)
+				return -1;
+			int end = offset < split ? split : data.length;
+			int n = Math.min(len, end - offset);
+			System.arraycopy(data, offset, b, off, n);
+			offset += n;
+			return n;
+		}
+	}
+	
+	
 	private static void test(String raw, String... lines) {
 		try {
 			LineReader reader = new LineReader(new ByteArrayInputStream(Utils.toUtf8(raw)));
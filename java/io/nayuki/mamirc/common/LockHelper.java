@@ -28,21 +28,41 @@ import java.util.concurrent.locks.Lock;
  *     try (LockHelper lh = locker.enter()) {
  *         ...
  *     }
+ * 
+ * A LockHelper can optionally measure contention, by accumulating the time spent waiting to acquire the lock
+ * and the time it is held (counting only the outermost enter() of a reentrant lock). Locks taken directly
+ * on the underlying Lock object bypass the measurement.
  */
 public final class LockHelper implements AutoCloseable {
 	
 	/*---- Fields ----*/
 	
 	private final Lock lock;
+	private final boolean measure;
+	
+	// Statistics, only written while holding the lock
+	private int depth;  // Number of nested enter() calls
+	private long holdStart;  // From System.nanoTime()
+	private volatile long acquisitions;
+	private volatile long waitNanos;
+	private volatile long holdNanos;
 	
 	
 	
-	/*---- Constructor ----*/
+	/*---- Constructors ----*/
 	
 	public LockHelper(Lock lock) {
+		this(lock, false);
+	}
+	
+	
+	// If measure is true, then the wait and hold times are accumulated, at the cost of reading the clock twice per use.
+	public LockHelper(Lock lock, boolean measure) {
 		if (lock == null)
 			throw new NullPointerException();
 		this.lock = lock;
+		this.measure = measure;
+		depth = 0;
 	}
 	
 	
@@ -50,13 +70,47 @@ public final class LockHelper implements AutoCloseable {
 	/*---- Methods ----*/
 	
 	public LockHelper enter() {
-		lock.lock();
+		if (!measure)
+			lock.lock();
+		else {
+			long start = System.nanoTime();
+			lock.lock();
+			if (depth == 0) {
+				holdStart = System.nanoTime();
+				waitNanos += holdStart - start;
+				acquisitions++;
+			}
+			depth++;
+		}
 		return this;
 	}
 	
 	
 	public void close() {
+		if (measure) {
+			depth--;
+			if (depth == 0)
+				holdNanos += System.nanoTime() - holdStart;
+		}
 		lock.unlock();
 	}
 	
+	
+	// Returns the number of outermost acquisitions so far, or 0 if not measuring.
+	public long getAcquisitions() {
+		return acquisitions;
+	}
+	
+	
+	// Returns the total time spent waiting to acquire the lock, in nanoseconds, or 0 if not measuring.
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+	
+	
+	// Returns the total time the lock was held (excluding any hold in progress), in nanoseconds, or 0 if not measuring.
+	public long getHoldNanos() {
+		return holdNanos;
+	}
+	
 }
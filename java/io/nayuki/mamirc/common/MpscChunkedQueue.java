@@ -0,0 +1,146 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/* 
+ * An unbounded queue with any number of producer threads and one consumer thread, implemented as a lock-free
+ * linked list of fixed-size array chunks. Positions count up forever: a producer claims the next position from the
+ * tail cursor with one atomic increment, finds (or links) the chunk covering it, and publishes the element into its
+ * slot; the consumer owns the head cursor and reads slots in order until it finds one not yet published. Unlike
+ * RingBuffer, offer() always succeeds, and a chunk is only allocated per CHUNK_SIZE elements. This class does no
+ * blocking; a consumer that wants to sleep arranges its own wakeups using the positions that offer() returns.
+ */
+public final class MpscChunkedQueue<E> {
+	
+	/*---- Fields ----*/
+	
+	private final AtomicLong tail;  // The next position that a producer will claim
+	// A chunk at or before the one covering every position that is not yet claimed. Producers read it before claiming
+	// a position and may set it to the chunk of the position they claimed, so it may lag or even move back a little.
+	private volatile Chunk<E> producerChunk;
+	
+	private Chunk<E> headChunk;  // Covers the head position, or ends just before it; only accessed by the consumer
+	private long head;  // The next position to consume; only accessed by the consumer thread
+	private volatile long consumed;  // Copy of head for other threads
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	public MpscChunkedQueue() {
+		tail = new AtomicLong(0);
+		headChunk = new Chunk<>(0);
+		producerChunk = headChunk;
+		head = 0;
+		consumed = 0;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Appends the given element and returns its position (the number of elements offered before it).
+	// Never blocks and can be called from any thread.
+	public long offer(E elem) {
+		if (elem == null)
+			throw new NullPointerException();
+		Chunk<E> hint = producerChunk;  // Must be read before claiming, so that it can't be past the claimed position
+		long pos = tail.getAndIncrement();
+		Chunk<E> chunk = hint;
+		while (pos >= chunk.base + CHUNK_SIZE) {
+			Chunk<E> next = chunk.next.get();
+			if (next == null) {
+				Chunk<E> temp = new Chunk<>(chunk.base + CHUNK_SIZE);
+				next = chunk.next.compareAndSet(null, temp) ? temp : chunk.next.get();
+			}
+			chunk = next;
+		}
+		if (chunk != hint)
+			producerChunk = chunk;
+		chunk.slots.lazySet((int)(pos - chunk.base), elem);  // Publish to the consumer; release ordering suffices
+		return pos;
+	}
+	
+	
+	// Removes up to len elements in order into the given array starting at the given offset, and returns the count,
+	// without blocking. Stops early at a position that is claimed but not yet published by its producer, even if later
+	// ones are. Must only be called by the consumer thread.
+	public int poll(E[] dest, int off, int len) {
+		if (off < 0 || len < 0 || off > dest.length - len)
+			throw new IndexOutOfBoundsException();
+		int n = 0;
+		while (n < len) {
+			int index = (int)(head - headChunk.base);
+			if (index == CHUNK_SIZE) {
+				Chunk<E> next = headChunk.next.get();
+				if (next == null)
+					break;  // Not yet linked by the producer of the head position
+				headChunk = next;  // The old chunk becomes garbage once no producer refers to it
+				index = 0;
+			}
+			E elem = headChunk.slots.get(index);
+			if (elem == null)
+				break;  // Not yet published
+			headChunk.slots.lazySet(index, null);  // Only for garbage collection
+			dest[off + n] = elem;
+			n++;
+			head++;
+		}
+		if (n > 0)
+			consumed = head;
+		return n;
+	}
+	
+	
+	// Returns the number of positions claimed by producers so far, including ones whose offer() has not yet returned.
+	// Can be called from any thread.
+	public long getOffered() {
+		return tail.get();
+	}
+	
+	
+	// Returns the number of elements removed by the consumer so far. Can be called from any thread.
+	public long getPolled() {
+		return consumed;
+	}
+	
+	
+	// Returns the number of elements claimed by producers but not yet consumed. Can be called from any thread.
+	public long size() {
+		return Math.max(tail.get() - consumed, 0);
+	}
+	
+	
+	static final int CHUNK_SIZE = 1024;
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	private static final class Chunk<E> {
+		
+		public final long base;  // The position of slot 0
+		public final AtomicReferenceArray<E> slots;
+		public final AtomicReference<Chunk<E>> next;
+		
+		
+		public Chunk(long base) {
+			this.base = base;
+			slots = new AtomicReferenceArray<>(CHUNK_SIZE);
+			next = new AtomicReference<>();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,75 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+
+public final class MpscChunkedQueueTest {
+	
+	@Test public void testAcrossChunks() {
+		MpscChunkedQueue<Integer> queue = new MpscChunkedQueue<>();
+		int total = MpscChunkedQueue.CHUNK_SIZE * 3 + 5;
+		for (int i = 0; i < total; i++)
+			assertEquals(i, queue.offer(i));
+		assertEquals(total, queue.size());
+		
+		Integer[] buf = new Integer[100];
+		int next = 0;
+		while (true) {
+			int n = queue.poll(buf, 7, 93);
+			if (n == 0)
+				break;
+			for (int i = 0; i < n; i++, next++)
+				assertEquals(next, (int)buf[7 + i]);
+		}
+		assertEquals(total, next);
+		assertEquals(total, queue.getPolled());
+		assertEquals(0, queue.size());
+		assertEquals(total, queue.offer(-1));
+	}
+	
+	
+	@Test public void testConcurrentProducers() throws InterruptedException {
+		final MpscChunkedQueue<Long> queue = new MpscChunkedQueue<>();
+		final int numThreads = 4;
+		final int perThread = 100000;
+		Thread[] producers = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final long id = i;
+			producers[i] = new Thread() {
+				public void run() {
+					for (long j = 0; j < perThread; j++)
+						queue.offer(id << 32 | j);
+				}
+			};
+			producers[i].start();
+		}
+		
+		long[] next = new long[numThreads];  // Each producer's elements must arrive in order
+		Long[] buf = new Long[16];
+		for (long total = 0; total < (long)numThreads * perThread; ) {
+			int n = queue.poll(buf, 0, buf.length);
+			if (n == 0)
+				Thread.yield();
+			for (int i = 0; i < n; i++) {
+				int id = (int)(buf[i] >>> 32);
+				assertEquals(next[id], buf[i] & 0xFFFFFFFFL);
+				next[id]++;
+			}
+			total += n;
+		}
+		for (Thread th : producers)
+			th.join();
+		assertEquals(0, queue.size());
+		assertEquals((long)numThreads * perThread, queue.getOffered());
+	}
+	
+}
@@ -8,16 +8,30 @@
 
 package io.nayuki.mamirc.common;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /* 
  * A worker thread that receives line objects from other threads, and writes bytes to an output stream until terminated.
  * This class exists because write operations might block with large and varying delay (especially in low-bandwidth or
  * high-loss environments), but the thread that requested the write operation wants to continue processing more data.
+ * All items that are queued by the time the thread wakes up are packed into one buffer and written with a single call
+ * (up to a byte budget per call), so that a burst of lines costs one syscall (and one TLS record) instead of one each.
+ * The queue is bounded by bytes, and what happens when a post would exceed the bound is set by an OverflowPolicy,
+ * so that a slow consumer can be prevented from stalling the threads that post to it.
  */
 public final class OutputWriterThread extends WorkerThread {
 	
@@ -25,20 +39,71 @@ public final class OutputWriterThread extends WorkerThread {
 	
 	private final OutputStream output;
 	private final byte[] newline;
-	private BlockingQueue<CleanLine> queue;
 	
+	// Only accessed by this worker thread. The capacity of the buffer is the byte budget of one write call.
+	private final byte[] buffer;
+	private int bufferLength;
+	private final long lingerNanos;  // How long to wait for more items before writing a partially filled buffer
 	
+	// The queue and all the fields below it are protected by the lock.
+	private final Lock lock;
+	private final Condition notEmpty;
+	private final Condition notFull;
+	private final Queue<Object> queue;  // Each item is a CleanLine (newline appended) or a byte[] (written raw)
+	private long queuedBytes;
+	private OverflowPolicy overflowPolicy;
+	private long maxQueuedBytes;
+	private boolean terminateRequested;
+	private boolean closed;  // Set when this thread stops writing; all items posted afterward are discarded
 	
-	/*---- Constructor ----*/
+	// Only used by the SPILL policy, and null when not spilling. While spilling, every new item is appended to the file
+	// instead of the queue. This preserves the order because the worker empties the queue before reading the file.
+	// Each record is a uint8 kind (0 = raw, 1 = line), an int32 length, and the data.
+	private FileChannel spillFile;
+	private long spillWritePos;
+	private long spillReadPos;
+	private int spillItems;
 	
-	// Can customize the newline sequence as "\n", "\r\n", etc.
+	// Counters for monitoring
+	private long peakQueuedBytes;
+	private long blockedNanos;
+	private long spilledItems;
+	private int overflowCount;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Can customize the newline sequence as "\n", "\r\n", etc. Uses the batching parameters set by setBatching().
 	public OutputWriterThread(OutputStream out, byte[] newline) {
+		this(out, newline, batchBytes, lingerMillis);
+	}
+	
+	
+	// Can customize the newline sequence, the maximum number of bytes per write call (at least 1),
+	// and the number of milliseconds to wait for more lines before writing (at least 0).
+	public OutputWriterThread(OutputStream out, byte[] newline, int batchBytes, int lingerMillis) {
 		super("OutputWriterThread");
 		if (out == null || newline == null)
 			throw new NullPointerException();
+		if (batchBytes < 1 || lingerMillis < 0)
+			throw new IllegalArgumentException();
 		output = out;
 		this.newline = newline.clone();
-		queue = new ArrayBlockingQueue<>(1000);
+		buffer = new byte[batchBytes];
+		bufferLength = 0;
+		lingerNanos = lingerMillis * 1000000L;
+		
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+		queue = new ArrayDeque<>();
+		queuedBytes = 0;
+		overflowPolicy = OverflowPolicy.BLOCK;
+		maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+		terminateRequested = false;
+		closed = false;
+		spillFile = null;
 	}
 	
 	
@@ -47,23 +112,35 @@ public final class OutputWriterThread extends WorkerThread {
 	
 	protected void runInner() throws IOException, InterruptedException {
 		try {
-			byte[] buf = new byte[1024];  // Allocate buffer outside of loop for efficiency
-			while (true) {
-				CleanLine line = queue.take();
-				if (line == TERMINATOR)
-					break;
-				
-				// Ugly logic for merely: output.write(line + newline)
-				byte[] b = line.getDataNoCopy();
-				int totalLen = b.length + newline.length;
-				if (totalLen > buf.length)
-					buf = new byte[totalLen];
-				System.arraycopy(b, 0, buf, 0, b.length);
-				System.arraycopy(newline, 0, buf, b.length, newline.length);
-				output.write(buf, 0, totalLen);
+			List<Object> batch = new ArrayList<>();  // Allocate list outside of loop for efficiency
+			while (takeItems(batch, -1)) {
+				long lingerEnd = System.nanoTime() + lingerNanos;
+				for (int i = 0; ; i++) {
+					if (i == batch.size()) {
+						// Wait briefly for more items to pack into the pending write, if there is one
+						long remain = lingerEnd - System.nanoTime();
+						if (bufferLength == 0 || remain <= 0 || !takeItems(batch, remain) || i == batch.size())
+							break;
+					}
+					Object item = batch.get(i);
+					if (item instanceof byte[])
+						append((byte[])item, false);
+					else
+						append(((CleanLine)item).getDataNoCopy(), true);
+				}
+				flush();
+				batch.clear();
 			}
 		}
 		finally {  // Clean up
+			lock.lock();
+			try {
+				closed = true;
+				discardQueue();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
 			try {
 				output.close();
 			} catch (IOException e) {}
@@ -71,14 +148,138 @@ public final class OutputWriterThread extends WorkerThread {
 	}
 	
 	
+	// Moves all pending items into the given list, waiting up to the given number of nanoseconds
+	// (or indefinitely if negative) for at least one. Returns false if this thread should stop,
+	// which happens after terminate() when every item has been taken, or after a disconnect.
+	private boolean takeItems(List<Object> batch, long timeoutNanos) throws IOException, InterruptedException {
+		FileChannel file;
+		long end;
+		lock.lock();
+		try {
+			while (true) {
+				if (closed)
+					return false;
+				if (!queue.isEmpty()) {
+					batch.addAll(queue);
+					queue.clear();
+					queuedBytes = 0;
+					notFull.signalAll();
+					return true;
+				}
+				if (spillFile != null) {
+					if (spillReadPos < spillWritePos) {
+						file = spillFile;
+						end = spillWritePos;
+						break;
+					}
+					// Caught up with the spill file, so go back to the in-memory queue
+					spillFile.close();
+					spillFile = null;
+					Utils.logger.info(getName() + " finished writing spilled data");
+				}
+				if (terminateRequested)
+					return false;
+				if (timeoutNanos < 0)
+					notEmpty.await();
+				else if (timeoutNanos > 0) {
+					timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+					if (timeoutNanos <= 0 && queue.isEmpty())
+						return true;  // Timed out; only the initial negative value means waiting indefinitely
+				} else
+					return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		// Read spilled records outside the lock, stopping after about one write budget of data
+		long pos = spillReadPos;  // Only this thread changes it
+		int count = 0;
+		ByteBuffer header = ByteBuffer.allocate(5);
+		for (int total = 0; pos < end && total < buffer.length; count++) {
+			header.clear();
+			readFully(file, header, pos);
+			header.flip();
+			boolean isLine = header.get() != 0;
+			byte[] b = new byte[header.getInt()];
+			readFully(file, ByteBuffer.wrap(b), pos + header.capacity());
+			pos += header.capacity() + b.length;
+			total += b.length;
+			batch.add(isLine ? CleanLine.wrapUnchecked(b) : b);
+		}
+		lock.lock();
+		try {
+			spillReadPos = pos;
+			spillItems -= count;
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+	
+	
+	// Adds the given data (and optionally the newline) to the pending write, first writing
+	// the pending data if the budget would be exceeded. Data bigger than the budget is written directly.
+	private void append(byte[] b, boolean addNewline) throws IOException {
+		int totalLen = b.length + (addNewline ? newline.length : 0);
+		if (bufferLength + totalLen > buffer.length)
+			flush();
+		if (totalLen > buffer.length) {
+			output.write(b, 0, b.length);
+			if (addNewline)
+				output.write(newline, 0, newline.length);
+		} else {
+			System.arraycopy(b, 0, buffer, bufferLength, b.length);
+			bufferLength += b.length;
+			if (addNewline) {
+				System.arraycopy(newline, 0, buffer, bufferLength, newline.length);
+				bufferLength += newline.length;
+			}
+		}
+	}
+	
+	
+	private void flush() throws IOException {
+		if (bufferLength > 0) {
+			output.write(buffer, 0, bufferLength);
+			bufferLength = 0;
+		}
+	}
+	
+	
+	// Sets what happens when posting an item would make the queue exceed the given number of bytes (at least 1).
+	// A single item is always accepted into an empty queue, even if it is bigger than the limit. Must be called before start().
+	public void setOverflowPolicy(OverflowPolicy policy, long maxQueuedBytes) {
+		if (policy == null)
+			throw new NullPointerException();
+		if (maxQueuedBytes < 1)
+			throw new IllegalArgumentException();
+		lock.lock();
+		try {
+			overflowPolicy = policy;
+			this.maxQueuedBytes = maxQueuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
 	// Can be called from any thread. Must not be called after terminate().
 	// Caller must never change the values inside the array after it is passed into this method.
 	public void postWrite(CleanLine line) {
 		if (line == null)
 			throw new NullPointerException();
-		try {
-			queue.put(line);
-		} catch (InterruptedException e) {}
+		post(line, line.getDataNoCopy().length + newline.length);
+	}
+	
+	
+	// Writes the given bytes verbatim, without appending a newline. This is for binary framing, so the data can contain
+	// any byte values. Can be called from any thread. Must not be called after terminate(). Caller must never change
+	// the values inside the array after it is passed into this method.
+	public void postWriteRaw(byte[] data) {
+		if (data == null)
+			throw new NullPointerException();
+		post(data, data.length);
 	}
 	
 	
@@ -91,17 +292,228 @@ public final class OutputWriterThread extends WorkerThread {
 	}
 	
 	
+	private void post(Object item, int size) {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			if (spillFile == null && !queue.isEmpty() && queuedBytes + size > maxQueuedBytes) {
+				overflowCount++;
+				switch (overflowPolicy) {
+					case BLOCK: {
+						long start = System.nanoTime();
+						while (!closed && !queue.isEmpty() && queuedBytes + size > maxQueuedBytes)
+							notFull.awaitUninterruptibly();
+						blockedNanos += System.nanoTime() - start;
+						if (closed)
+							return;
+						break;
+					}
+					case SPILL:
+						try {
+							spillFile = FileChannel.open(Files.createTempFile("mamirc-spill", ".tmp"),
+								StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+						} catch (IOException e) {
+							Utils.logger.warning(getName() + " cannot create spill file, disconnecting: " + e);
+							disconnect();
+							return;
+						}
+						spillWritePos = 0;
+						spillReadPos = 0;
+						spillItems = 0;
+						Utils.logger.info(getName() + " queue full, spilling to file");
+						break;
+					case DISCONNECT:
+						Utils.logger.warning(getName() + " queue full, disconnecting slow consumer");
+						disconnect();
+						return;
+					default:
+						throw new AssertionError();
+				}
+			}
+			
+			if (spillFile != null) {
+				try {
+					byte[] b = item instanceof byte[] ? (byte[])item : ((CleanLine)item).getDataNoCopy();
+					ByteBuffer buf = ByteBuffer.allocate(5 + b.length);
+					buf.put((byte)(item instanceof byte[] ? 0 : 1)).putInt(b.length).put(b).flip();
+					while (buf.hasRemaining())
+						spillWritePos += spillFile.write(buf, spillWritePos);
+				} catch (IOException e) {
+					Utils.logger.warning(getName() + " cannot write spill file, disconnecting: " + e);
+					disconnect();
+					return;
+				}
+				spillItems++;
+				spilledItems++;
+				if (spillWritePos > MAX_SPILL_BYTES) {
+					Utils.logger.warning(getName() + " spill file full, disconnecting slow consumer");
+					disconnect();
+					return;
+				}
+			} else {
+				queue.add(item);
+				queuedBytes += size;
+				peakQueuedBytes = Math.max(queuedBytes, peakQueuedBytes);
+			}
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Discards all pending data and closes the output stream on a separate thread (which unblocks this
+	// worker if it is stuck in a write, without making the poster wait). Caller must hold the lock.
+	private void disconnect() {
+		closed = true;
+		discardQueue();
+		notEmpty.signal();
+		notFull.signalAll();
+		Utils.newThread(getName() + " closer", new Runnable() {
+			public void run() {
+				try {
+					output.close();
+				} catch (IOException e) {}
+			}
+		}).start();
+	}
+	
+	
+	// Caller must hold the lock.
+	private void discardQueue() {
+		queue.clear();
+		queuedBytes = 0;
+		if (spillFile != null) {
+			try {
+				spillFile.close();  // Also deletes the file
+			} catch (IOException e) {}
+			spillFile = null;
+			spillItems = 0;
+		}
+	}
+	
+	
 	// Can be called safely from any thread.
 	public void terminate() {
+		lock.lock();
+		try {
+			terminateRequested = true;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	
+	/*---- Statistics getters ----*/
+	
+	// Returns the number of items currently waiting to be written, in memory and in the spill file.
+	public int getQueuedItems() {
+		lock.lock();
+		try {
+			return queue.size() + spillItems;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Returns the number of bytes currently waiting to be written, in memory and in the spill file (including record headers).
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return queuedBytes + (spillFile != null ? spillWritePos - spillReadPos : 0);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Returns the maximum number of bytes ever held in the in-memory queue.
+	public long getPeakQueuedBytes() {
+		lock.lock();
+		try {
+			return peakQueuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Returns the total time that posting threads have spent waiting under the BLOCK policy, in nanoseconds.
+	public long getBlockedNanos() {
+		lock.lock();
 		try {
-			queue.put(TERMINATOR);
-		} catch (InterruptedException e) {}
+			return blockedNanos;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Returns the total number of items ever written to a spill file.
+	public long getSpilledItems() {
+		lock.lock();
+		try {
+			return spilledItems;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Returns the number of times that a post found the queue full and applied the overflow policy.
+	public int getOverflowCount() {
+		lock.lock();
+		try {
+			return overflowCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	
+	/*---- Static batching defaults ----*/
+	
+	private static volatile int batchBytes = 16384;
+	private static volatile int lingerMillis = 0;
+	
+	
+	// Sets the batching parameters for writers constructed afterward without explicit parameters.
+	// This is normally called once at startup, based on the backend configuration.
+	public static void setBatching(int batchBytes, int lingerMillis) {
+		if (batchBytes < 1 || lingerMillis < 0)
+			throw new IllegalArgumentException();
+		OutputWriterThread.batchBytes = batchBytes;
+		OutputWriterThread.lingerMillis = lingerMillis;
 	}
 	
 	
 	
 	/*---- Helper definitions ----*/
 	
-	private static final CleanLine TERMINATOR = new CleanLine("");
+	// What to do when a post would make the queue exceed its byte limit.
+	public enum OverflowPolicy {
+		BLOCK,       // Make the posting thread wait until the worker has taken the queued items
+		SPILL,       // Append to a temporary file until the worker catches up, then return to memory
+		DISCONNECT,  // Discard everything and close the output stream, which ends the connection
+	}
+	
+	
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 1 << 20;
+	
+	private static final long MAX_SPILL_BYTES = 1L << 30;
+	
+	
+	private static void readFully(FileChannel file, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = file.read(buf, pos + buf.position());
+			if (n == -1)
+				throw new EOFException();
+		}
+	}
 	
 }
@@ -0,0 +1,125 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class OutputWriterThreadTest {
+	
+	@Test public void testCoalesce() throws InterruptedException {
+		RecordingOutputStream out = new RecordingOutputStream();
+		OutputWriterThread writer = new OutputWriterThread(out, new byte[]{'\r','\n'}, 1000, 0);
+		// Queue everything before starting, so that the thread sees one burst
+		writer.postWrite("abc");
+		writer.postWrite("");
+		writer.postWriteRaw(new byte[]{0, '\n', 1});
+		writer.postWrite("de");
+		writer.terminate();
+		writer.start();
+		writer.join();
+		Assert.assertEquals(1, out.writes.size());
+		Assert.assertEquals("abc\r\n\r\n\0\n\1de\r\n", out.writes.get(0));
+	}
+	
+	
+	@Test public void testBudget() throws InterruptedException {
+		RecordingOutputStream out = new RecordingOutputStream();
+		OutputWriterThread writer = new OutputWriterThread(out, new byte[]{'\n'}, 8, 0);
+		writer.postWrite("abc");
+		writer.postWrite("def");
+		writer.postWrite("gh");
+		writer.postWrite("0123456789");
+		writer.postWrite("i");
+		writer.terminate();
+		writer.start();
+		writer.join();
+		String[] expect = {"abc\ndef\n", "gh\n", "0123456789", "\n", "i\n"};
+		Assert.assertEquals(expect.length, out.writes.size());
+		for (int i = 0; i < expect.length; i++)
+			Assert.assertEquals(expect[i], out.writes.get(i));
+	}
+	
+	
+	@Test public void testLinger() throws InterruptedException {
+		RecordingOutputStream out = new RecordingOutputStream();
+		OutputWriterThread writer = new OutputWriterThread(out, new byte[]{'\n'}, 1000, 50);
+		writer.start();
+		writer.postWrite("hello");
+		// A lone line must be written once the linger time expires, without any further item
+		for (int i = 0; i < 100 && out.writes.isEmpty(); i++)
+			Thread.sleep(10);
+		Assert.assertEquals(Arrays.asList("hello\n"), out.writes);
+		writer.terminate();
+		writer.join();
+	}
+	
+	
+	@Test public void testSpill() throws InterruptedException {
+		RecordingOutputStream out = new RecordingOutputStream();
+		OutputWriterThread writer = new OutputWriterThread(out, new byte[]{'\n'}, 100, 0);
+		writer.setOverflowPolicy(OutputWriterThread.OverflowPolicy.SPILL, 10);
+		StringBuilder expect = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			writer.postWrite("line" + i);
+			expect.append("line" + i + "\n");
+		}
+		writer.postWriteRaw(new byte[]{'z'});
+		expect.append("z");
+		Assert.assertEquals(1, writer.getOverflowCount());
+		Assert.assertEquals(1001, writer.getQueuedItems());
+		Assert.assertEquals(1000, writer.getSpilledItems());
+		writer.terminate();
+		writer.start();
+		writer.join();
+		StringBuilder actual = new StringBuilder();
+		for (String s : out.writes)
+			actual.append(s);
+		Assert.assertEquals(expect.toString(), actual.toString());
+		Assert.assertEquals(0, writer.getQueuedItems());
+	}
+	
+	
+	@Test public void testDisconnect() throws InterruptedException {
+		RecordingOutputStream out = new RecordingOutputStream();
+		OutputWriterThread writer = new OutputWriterThread(out, new byte[]{'\n'}, 100, 0);
+		writer.setOverflowPolicy(OutputWriterThread.OverflowPolicy.DISCONNECT, 10);
+		writer.postWrite("abcdefgh");
+		Assert.assertEquals(9, writer.getQueuedBytes());
+		writer.postWrite("ij");
+		Assert.assertEquals(1, writer.getOverflowCount());
+		Assert.assertEquals(0, writer.getQueuedItems());
+		writer.postWrite("k");  // Discarded
+		writer.terminate();
+		writer.start();
+		writer.join();
+		Assert.assertEquals(0, out.writes.size());
+	}
+	
+	
+	// Remembers the data of each write call as a separate string.
+	private static final class RecordingOutputStream extends OutputStream {
+		public final List<String> writes = Collections.synchronizedList(new ArrayList<String>());  // Read by the test thread
+		
+		public void write(int b) {
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+		
+		public void write(byte[] b, int off, int len) {
+			writes.add(Utils.fromUtf8(Arrays.copyOfRange(b, off, off + len)));
+		}
+	}
+	
+}
@@ -0,0 +1,391 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+
+/* 
+ * An SQLite event archive split into time partitions: a directory of ordinary archive files (each read and written
+ * by SqliteEventStore) named after the UTC month or day they cover, e.g. "2026-10.sqlite" or "2026-10-16.sqlite",
+ * plus a catalog database "catalog.sqlite" with the range of connection IDs that have events in each partition.
+ * Every append goes to the partition of the current period; when the period changes, the next append rolls over
+ * to a new partition. A connection that spans a rollover has its earlier events in one partition and its later
+ * events in the next, so a read visits every partition whose range contains the connection ID, in name order.
+ * The catalog is committed before the events, so it may overstate a range but never understates one.
+ * A partition file in the directory that is missing from the catalog (e.g. an old single-file archive moved in)
+ * is added to the catalog when the archive is opened writable. See doc/connector.markdown.
+ */
+public final class PartitionedEventStore implements EventStore {
+	
+	/*---- Fields ----*/
+	
+	private final File directory;
+	private final boolean writable;
+	private final String period;  // "monthly" or "daily"
+	private final String journalMode;  // For new partitions; null if read-only
+	private final String synchronous;
+	private final boolean compress;
+	
+	private SQLiteConnection catalog;
+	private List<Partition> partitions;  // In ascending order of name
+	
+	private SqliteEventStore active;  // The writable partition, or null if none is open yet
+	private Partition activePartition;
+	private final Map<String,SqliteEventStore> readers;  // Read-only partitions opened so far
+	
+	// Statistics of partitions that were active before the current one
+	private long closedAppendedPayloadBytes;
+	private long closedStoredPayloadBytes;
+	private long closedCompressNanos;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// Opens the archive in the given directory, with the given period ("monthly" or "daily"). If writable,
+	// the directory and catalog are created if nonexistent, and the SQLite settings and compression flag are
+	// applied to the partitions (see SqliteEventStore); otherwise they must be null and false.
+	public PartitionedEventStore(File dir, boolean writable, String period, String journalMode,
+			String synchronous, boolean compress) throws IOException {
+		if (dir == null || period == null)
+			throw new NullPointerException();
+		if (!period.matches("monthly|daily") || writable != (journalMode != null)
+				|| writable != (synchronous != null) || compress && !writable)
+			throw new IllegalArgumentException();
+		directory = dir;
+		this.writable = writable;
+		this.period = period;
+		this.journalMode = journalMode;
+		this.synchronous = synchronous;
+		this.compress = compress;
+		readers = new HashMap<>();
+		if (writable && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory: " + dir);
+		if (!dir.isDirectory())
+			throw new FileNotFoundException("Not a directory: " + dir);
+		
+		catalog = new SQLiteConnection(new File(dir, CATALOG_NAME));
+		try {
+			catalog.open(writable);
+			catalog.setBusyTimeout(60000);
+			if (writable) {
+				catalog.exec("PRAGMA synchronous = FULL");  // Rarely written, so every commit may as well be durable
+				catalog.exec("CREATE TABLE IF NOT EXISTS partitions("
+					+ "name TEXT PRIMARY KEY, minConnectionId INTEGER NOT NULL, maxConnectionId INTEGER NOT NULL)");
+			}
+			loadCatalog();
+			if (writable)
+				registerUncataloged();
+		} catch (SQLiteException e) {
+			catalog.dispose();
+			throw new IOException(e);
+		}
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Answers from the catalog alone, without touching any partition.
+	public int getNextConnectionId() throws IOException {
+		refreshCatalog();
+		int result = 0;
+		for (Partition p : partitions) {
+			if (p.maxConnectionId != -1)
+				result = Math.max(p.maxConnectionId + 1, result);
+		}
+		return result;
+	}
+	
+	
+	public void append(Event[] events) throws IOException {
+		if (!writable)
+			throw new IllegalStateException("Read-only store");
+		if (events.length == 0)
+			return;
+		try {
+			String name = periodName(System.currentTimeMillis());
+			Partition last = partitions.isEmpty() ? null : partitions.get(partitions.size() - 1);
+			if (last != null && last.name.compareTo(name) > 0)
+				name = last.name;  // The clock went backward; keep appending to the newest partition
+			if (activePartition == null || !activePartition.name.equals(name))
+				rollOver(name);
+			
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (Event ev : events) {
+				min = Math.min(ev.connectionId, min);
+				max = Math.max(ev.connectionId, max);
+			}
+			Partition p = activePartition;
+			if (p.maxConnectionId == -1 || min < p.minConnectionId || max > p.maxConnectionId) {
+				p.minConnectionId = p.maxConnectionId == -1 ? min : Math.min(min, p.minConnectionId);
+				p.maxConnectionId = Math.max(max, p.maxConnectionId);
+				SQLiteStatement update = catalog.prepare("UPDATE partitions SET minConnectionId=?, maxConnectionId=? WHERE name=?");
+				try {
+					update.bind(1, p.minConnectionId);
+					update.bind(2, p.maxConnectionId);
+					update.bind(3, p.name);
+					Utils.stepStatement(update, false);
+				} finally {
+					update.dispose();
+				}
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+		active.append(events);
+	}
+	
+	
+	// Closes the current active partition (if any) and makes the given one active, cataloging it if new.
+	private void rollOver(String name) throws IOException, SQLiteException {
+		if (active != null) {
+			closedAppendedPayloadBytes += active.getAppendedPayloadBytes();
+			closedStoredPayloadBytes += active.getStoredPayloadBytes();
+			closedCompressNanos += active.getCompressNanos();
+			active.close();
+			active = null;
+			activePartition = null;
+		}
+		Partition p = findPartition(name);
+		if (p == null) {
+			p = new Partition(name, -1, -1);
+			SQLiteStatement insert = catalog.prepare("INSERT INTO partitions VALUES(?,-1,-1)");
+			try {
+				insert.bind(1, name);
+				Utils.stepStatement(insert, false);
+			} finally {
+				insert.dispose();
+			}
+			partitions.add(p);
+		}
+		active = new SqliteEventStore(partitionFile(name), true, journalMode, synchronous, compress);
+		activePartition = p;
+	}
+	
+	
+	// Returns the file of the partition currently being appended to, or null if there is none yet.
+	public File getActiveFile() {
+		return activePartition != null ? partitionFile(activePartition.name) : null;
+	}
+	
+	
+	public long getAppendedPayloadBytes() {
+		return closedAppendedPayloadBytes + (active != null ? active.getAppendedPayloadBytes() : 0);
+	}
+	
+	
+	public long getStoredPayloadBytes() {
+		return closedStoredPayloadBytes + (active != null ? active.getStoredPayloadBytes() : 0);
+	}
+	
+	
+	public long getCompressNanos() {
+		return closedCompressNanos + (active != null ? active.getCompressNanos() : 0);
+	}
+	
+	
+	// Opens only the partitions that the catalog lists for the connection ID.
+	public void readConnection(int conId, int start, int end, Visitor visitor) throws IOException {
+		refreshCatalog();
+		for (Partition p : new ArrayList<>(partitions)) {
+			if (p.maxConnectionId != -1 && p.minConnectionId <= conId && conId <= p.maxConnectionId)
+				getPartition(p.name).readConnection(conId, start, end, visitor);
+		}
+	}
+	
+	
+	// Visits the partitions in chronological order, and each one in ascending order of connection ID and then sequence.
+	public void scan(Visitor visitor) throws IOException {
+		refreshCatalog();
+		for (Partition p : new ArrayList<>(partitions)) {
+			if (p.maxConnectionId != -1)
+				getPartition(p.name).scan(visitor);
+		}
+	}
+	
+	
+	// Returns the names of the cataloged partitions, in chronological order.
+	public List<String> getPartitionNames() throws IOException {
+		refreshCatalog();
+		List<String> result = new ArrayList<>();
+		for (Partition p : partitions)
+			result.add(p.name);
+		return result;
+	}
+	
+	
+	public void close() throws IOException {
+		if (active != null) {
+			active.close();
+			active = null;
+		}
+		for (SqliteEventStore st : readers.values())
+			st.close();
+		readers.clear();
+		if (catalog != null) {
+			catalog.dispose();
+			catalog = null;
+		}
+	}
+	
+	
+	private EventStore getPartition(String name) throws IOException {
+		if (activePartition != null && activePartition.name.equals(name))
+			return active;
+		SqliteEventStore result = readers.get(name);
+		if (result == null) {
+			result = new SqliteEventStore(partitionFile(name), false, null, null, false);
+			readers.put(name, result);
+		}
+		return result;
+	}
+	
+	
+	private File partitionFile(String name) {
+		return new File(directory, name + ".sqlite");
+	}
+	
+	
+	private Partition findPartition(String name) {
+		for (Partition p : partitions) {
+			if (p.name.equals(name))
+				return p;
+		}
+		return null;
+	}
+	
+	
+	// Returns the name of the partition that covers the given Unix time in milliseconds.
+	private String periodName(long time) {
+		LocalDate date = Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).toLocalDate();
+		String result = String.format("%04d-%02d", date.getYear(), date.getMonthValue());
+		if (period.equals("daily"))
+			result += String.format("-%02d", date.getDayOfMonth());
+		return result;
+	}
+	
+	
+	/*---- Catalog ----*/
+	
+	// A read-only instance rereads the catalog on each query, because the Connector may have rolled over
+	// or cataloged new connections since; the writable instance is the only writer, so it never needs to.
+	private void refreshCatalog() throws IOException {
+		if (!writable) {
+			try {
+				loadCatalog();
+			} catch (SQLiteException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
+	
+	private void loadCatalog() throws SQLiteException {
+		List<Partition> result = new ArrayList<>();
+		SQLiteStatement query = catalog.prepare("SELECT name, minConnectionId, maxConnectionId FROM partitions ORDER BY name ASC");
+		try {
+			while (query.step())
+				result.add(new Partition(query.columnString(0), query.columnInt(1), query.columnInt(2)));
+		} finally {
+			query.dispose();
+		}
+		partitions = result;
+	}
+	
+	
+	// Catalogs every partition file that the catalog lacks, with its connection ID range.
+	private void registerUncataloged() throws IOException, SQLiteException {
+		for (File file : listPartitionFiles(directory)) {
+			String fileName = file.getName();
+			String name = fileName.substring(0, fileName.length() - 7);
+			if (findPartition(name) != null)
+				continue;
+			int min = -1;
+			int max = -1;
+			SQLiteConnection db = new SQLiteConnection(partitionFile(name));
+			try {
+				db.open(false);
+				SQLiteStatement query = db.prepare("SELECT min(connectionId), max(connectionId) FROM events");
+				Utils.stepStatement(query, true);
+				if (!query.columnNull(0)) {
+					min = query.columnInt(0);
+					max = query.columnInt(1);
+				}
+			} finally {
+				db.dispose();
+			}
+			SQLiteStatement insert = catalog.prepare("INSERT INTO partitions VALUES(?,?,?)");
+			try {
+				insert.bind(1, name);
+				insert.bind(2, min);
+				insert.bind(3, max);
+				Utils.stepStatement(insert, false);
+			} finally {
+				insert.dispose();
+			}
+			Utils.logger.info("Cataloged archive partition " + fileName);
+		}
+		loadCatalog();
+	}
+	
+	
+	// Returns the partition files in the given archive directory in chronological order,
+	// whether or not they are cataloged, or an empty list if the directory doesn't exist.
+	public static List<File> listPartitionFiles(File dir) {
+		List<File> result = new ArrayList<>();
+		String[] names = dir.list();
+		if (names == null)
+			return result;
+		Arrays.sort(names);
+		for (String name : names) {
+			if (name.matches("[0-9]{4}-[0-9]{2}(-[0-9]{2})?\\.sqlite"))
+				result.add(new File(dir, name));
+		}
+		return result;
+	}
+	
+	
+	public static final String CATALOG_NAME = "catalog.sqlite";
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	private static final class Partition {
+		
+		public final String name;
+		public int minConnectionId;  // Both -1 if the partition has no events
+		public int maxConnectionId;
+		
+		
+		public Partition(String name, int min, int max) {
+			this.name = name;
+			minConnectionId = min;
+			maxConnectionId = max;
+		}
+		
+	}
+	
+}
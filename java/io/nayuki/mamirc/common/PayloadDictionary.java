@@ -0,0 +1,183 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/* 
+ * A preset dictionary for compressing event payloads one at a time with DEFLATE in the zlib format (RFC 1950),
+ * as in the SQLite archive's "dictionaries" table (see doc/connector.markdown). IRC lines are too short to compress
+ * well alone, but most of their bytes (prefixes, commands, channel names, nicknames) recur across lines,
+ * so a dictionary of those strings lets each line refer to them. Each instance must be used by one thread at a time.
+ */
+public final class PayloadDictionary {
+	
+	/*---- Fields ----*/
+	
+	public final int id;
+	private final byte[] data;
+	private Deflater deflater;  // Lazily initialized
+	private Inflater inflater;  // Lazily initialized
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	public PayloadDictionary(int id, byte[] data) {
+		if (data == null)
+			throw new NullPointerException();
+		if (data.length > MAX_BYTES)
+			throw new IllegalArgumentException("Dictionary too long");
+		this.id = id;
+		this.data = data.clone();
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns a new copy of the dictionary's bytes.
+	public byte[] getData() {
+		return data.clone();
+	}
+	
+	
+	// Returns the compressed form of the given payload, or null if it would not be shorter than the payload.
+	public byte[] compress(byte[] payload) {
+		if (deflater == null)
+			deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		else
+			deflater.reset();  // Also forgets the dictionary
+		deflater.setDictionary(data);
+		deflater.setInput(payload);
+		deflater.finish();
+		byte[] buf = new byte[payload.length];  // Output that doesn't fit is useless anyway
+		int len = 0;
+		while (!deflater.finished() && len < buf.length)
+			len += deflater.deflate(buf, len, buf.length - len);
+		if (!deflater.finished() || len == payload.length)
+			return null;
+		byte[] result = new byte[len];
+		System.arraycopy(buf, 0, result, 0, len);
+		return result;
+	}
+	
+	
+	// Returns the payload from the given output of compress(), throwing IOException if it is invalid.
+	public byte[] decompress(byte[] compressed) throws IOException {
+		if (inflater == null)
+			inflater = new Inflater();
+		else
+			inflater.reset();
+		inflater.setInput(compressed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+		byte[] buf = new byte[1024];
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				out.write(buf, 0, n);
+				if (n == 0) {
+					if (inflater.needsDictionary())
+						inflater.setDictionary(data);  // Throws if the data was compressed with a different dictionary
+					else if (inflater.needsInput())
+						throw new IOException("Truncated compressed payload");
+				}
+			}
+		} catch (DataFormatException|IllegalArgumentException e) {
+			throw new IOException("Invalid compressed payload", e);
+		}
+		if (inflater.getRemaining() != 0)
+			throw new IOException("Trailing data after compressed payload");
+		return out.toByteArray();
+	}
+	
+	
+	
+	/*---- Static functions ----*/
+	
+	// Builds dictionary bytes of at most maxBytes from the given sample payloads. Every space-delimited
+	// token, and every line's prefix up to its trailing parameter (e.g. ":nick!user@host PRIVMSG #chan :"),
+	// is a candidate string, scored by the bytes it would save: its length times its number of repeats.
+	// The best candidates are kept and put in ascending order of score, because DEFLATE encodes nearer
+	// matches (those at the end of the dictionary) more cheaply.
+	public static byte[] train(List<byte[]> samples, int maxBytes) {
+		if (maxBytes < 0 || maxBytes > MAX_BYTES)
+			throw new IllegalArgumentException();
+		final Map<String,Integer> counts = new HashMap<>();
+		for (byte[] sample : samples) {
+			String line = new String(sample, StandardCharsets.ISO_8859_1);  // Each char is one byte
+			int i = line.indexOf(" :", 1);
+			if (i != -1 && i + 2 <= MAX_CANDIDATE_LENGTH)
+				increment(counts, line.substring(0, i + 2));
+			for (int start = 0; start < line.length(); ) {
+				int end = line.indexOf(' ', start);
+				end = end == -1 ? line.length() : end + 1;  // Include the trailing space
+				if (end - start >= 4 && end - start <= MAX_CANDIDATE_LENGTH)
+					increment(counts, line.substring(start, end));
+				start = end;
+			}
+		}
+		
+		List<String> candidates = new ArrayList<>();
+		for (Map.Entry<String,Integer> entry : counts.entrySet()) {
+			if (entry.getValue() >= 2)
+				candidates.add(entry.getKey());
+		}
+		final Comparator<String> byScore = new Comparator<String>() {
+			public int compare(String x, String y) {
+				int c = Long.compare(score(x), score(y));
+				return c != 0 ? c : x.compareTo(y);  // Deterministic
+			}
+			
+			private long score(String s) {
+				return (long)s.length() * (counts.get(s) - 1);
+			}
+		};
+		Collections.sort(candidates, Collections.reverseOrder(byScore));
+		
+		List<String> chosen = new ArrayList<>();
+		int total = 0;
+		for (String s : candidates) {
+			if (total + s.length() <= maxBytes) {
+				chosen.add(s);
+				total += s.length();
+			}
+		}
+		Collections.reverse(chosen);
+		StringBuilder sb = new StringBuilder(total);
+		for (String s : chosen)
+			sb.append(s);
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	
+	private static void increment(Map<String,Integer> counts, String key) {
+		Integer n = counts.get(key);
+		counts.put(key, n == null ? 1 : n + 1);
+	}
+	
+	
+	// DEFLATE can only refer back 32 KiB, so a longer dictionary would have an unusable beginning.
+	public static final int MAX_BYTES = 32 * 1024;
+	
+	private static final int MAX_CANDIDATE_LENGTH = 200;
+	
+}
@@ -0,0 +1,71 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+
+public final class PayloadDictionaryTest {
+	
+	@Test public void testTrainAndRoundTrip() throws IOException {
+		List<byte[]> samples = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			samples.add(makeLine(i));
+		byte[] data = PayloadDictionary.train(samples, PayloadDictionary.MAX_BYTES);
+		assertTrue(data.length > 0 && data.length <= PayloadDictionary.MAX_BYTES);
+		String text = new String(data, StandardCharsets.ISO_8859_1);
+		assertTrue(text.contains(" PRIVMSG #mamirc :"));
+		
+		PayloadDictionary dict = new PayloadDictionary(0, data);
+		byte[] line = makeLine(5000);
+		byte[] comp = dict.compress(line);
+		assertNotNull(comp);
+		assertTrue(comp.length * 2 < line.length);
+		assertArrayEquals(line, dict.decompress(comp));
+		assertArrayEquals(line, new PayloadDictionary(0, data).decompress(comp));  // Fresh instance
+	}
+	
+	
+	@Test public void testIncompressible() {
+		PayloadDictionary dict = new PayloadDictionary(0, "PING :".getBytes(StandardCharsets.US_ASCII));
+		assertNull(dict.compress(new byte[0]));
+		assertNull(dict.compress("x".getBytes(StandardCharsets.US_ASCII)));
+	}
+	
+	
+	@Test public void testWrongDictionary() {
+		byte[] line = makeLine(1);
+		byte[] comp = new PayloadDictionary(0, line).compress(line);
+		assertNotNull(comp);
+		try {
+			new PayloadDictionary(1, makeLine(2)).decompress(comp);
+			fail();
+		} catch (IOException e) {}  // Pass
+		try {
+			new PayloadDictionary(0, line).decompress(new byte[]{comp[0], comp[1], comp[2]});
+			fail();
+		} catch (IOException e) {}  // Pass
+	}
+	
+	
+	private static byte[] makeLine(int i) {
+		return (":user" + (i % 7) + "!~someone@host.example.net PRIVMSG #mamirc :hello number " + i)
+			.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+}
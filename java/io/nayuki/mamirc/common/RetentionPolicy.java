@@ -0,0 +1,102 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/* 
+ * Says which archived events the Connector's retention engine may remove: received or sent IRC lines whose
+ * command is in a configured set of low-value commands (e.g. PING, PONG, and the numeric replies of MOTD and NAMES),
+ * once they are older than a number of days. Removed events are either counted into per-hour rollups or dropped
+ * outright. Connection events are never removed, so every connection keeps its connect/opened/closed history.
+ * Immutable structure.
+ */
+public final class RetentionPolicy {
+	
+	/*---- Fields ----*/
+	
+	// At least 1. Events are removed once their timestamp is this many days in the past.
+	public final int days;
+	
+	// Not null, not empty. In upper case, e.g. "PING" or "372".
+	public final Set<String> commands;
+	
+	// Whether removed events are counted into the rollups table (true) or dropped without a trace (false).
+	public final boolean rollup;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// Constructs a policy from the given configuration values: a number of days,
+	// a space-separated list of IRC commands, and an action of "rollup" or "drop".
+	public RetentionPolicy(int days, String commands, String action) {
+		if (commands == null || action == null)
+			throw new NullPointerException();
+		if (days < 1)
+			throw new IllegalArgumentException("Invalid retention period");
+		Set<String> cmds = new TreeSet<>();
+		for (String s : commands.trim().split(" +")) {
+			if (!s.matches("[A-Za-z]+|[0-9]{3}"))
+				throw new IllegalArgumentException("Invalid retention command: " + s);
+			cmds.add(s.toUpperCase());
+		}
+		if (!action.matches("rollup|drop"))
+			throw new IllegalArgumentException("Invalid retention action: " + action);
+		this.days = days;
+		this.commands = Collections.unmodifiableSet(cmds);
+		rollup = action.equals("rollup");
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns the command of the given event if it is a removable class, otherwise null.
+	// Ignores the age of the event; the caller compares the timestamp with getCutoff().
+	public String classify(Event.Type type, byte[] line) {
+		if (type == Event.Type.CONNECTION)
+			return null;
+		String cmd = getCommand(line);
+		return cmd != null && commands.contains(cmd) ? cmd : null;
+	}
+	
+	
+	// Returns the Unix time in milliseconds before which events are old enough to remove, given the current time.
+	public long getCutoff(long now) {
+		return now - days * 86400000L;
+	}
+	
+	
+	// Returns the command of the given raw IRC line in upper case (skipping an optional
+	// ":prefix"), or null if the line is malformed. Doesn't need the line to be valid UTF-8.
+	static String getCommand(byte[] line) {
+		int i = 0;
+		if (line.length > 0 && line[0] == ':') {
+			while (i < line.length && line[i] != ' ')
+				i++;
+		}
+		while (i < line.length && line[i] == ' ')
+			i++;
+		int start = i;
+		for (; i < line.length && line[i] != ' '; i++) {
+			byte b = line[i];
+			if (!('A' <= b && b <= 'Z' || 'a' <= b && b <= 'z' || '0' <= b && b <= '9'))
+				return null;
+		}
+		if (i == start)
+			return null;
+		return Utils.fromUtf8(Arrays.copyOfRange(line, start, i)).toUpperCase();
+	}
+	
+}
@@ -0,0 +1,64 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+
+public final class RetentionPolicyTest {
+	
+	@Test public void testGetCommand() {
+		assertEquals("PING", RetentionPolicy.getCommand(Utils.toUtf8("PING :irc.example.com")));
+		assertEquals("PONG", RetentionPolicy.getCommand(Utils.toUtf8(":irc.example.com pong irc.example.com :123")));
+		assertEquals("372", RetentionPolicy.getCommand(Utils.toUtf8(":irc.example.com 372 alice :- Welcome")));
+		assertEquals("PRIVMSG", RetentionPolicy.getCommand(Utils.toUtf8(":a!b@c   PRIVMSG #x :hi")));
+		assertEquals("QUIT", RetentionPolicy.getCommand(Utils.toUtf8("QUIT")));
+		assertNull(RetentionPolicy.getCommand(new byte[0]));
+		assertNull(RetentionPolicy.getCommand(Utils.toUtf8(":irc.example.com")));
+		assertNull(RetentionPolicy.getCommand(Utils.toUtf8(":irc.example.com ")));
+		assertNull(RetentionPolicy.getCommand(Utils.toUtf8("PI\u00C9NG x")));
+	}
+	
+	
+	@Test public void testClassify() {
+		RetentionPolicy pol = new RetentionPolicy(30, " ping PONG  372 ", "rollup");
+		assertEquals(3, pol.commands.size());
+		assertTrue(pol.rollup);
+		assertEquals("PING", pol.classify(Event.Type.RECEIVE, Utils.toUtf8("PING :x")));
+		assertEquals("PONG", pol.classify(Event.Type.SEND, Utils.toUtf8("PONG :x")));
+		assertEquals("372", pol.classify(Event.Type.RECEIVE, Utils.toUtf8(":s 372 a :motd")));
+		assertNull(pol.classify(Event.Type.RECEIVE, Utils.toUtf8(":s 375 a :motd")));
+		assertNull(pol.classify(Event.Type.CONNECTION, Utils.toUtf8("PING")));
+		assertEquals(1000L, pol.getCutoff(1000L + 30 * 86400000L));
+		assertFalse(new RetentionPolicy(1, "PING", "drop").rollup);
+	}
+	
+	
+	@Test public void testInvalid() {
+		String[][] cases = {
+			{"0", "PING", "rollup"},
+			{"1", "", "rollup"},
+			{"1", "PING 37", "rollup"},
+			{"1", "PING,PONG", "rollup"},
+			{"1", "PING", "delete"},
+		};
+		for (String[] cs : cases) {
+			try {
+				new RetentionPolicy(Integer.parseInt(cs[0]), cs[1], cs[2]);
+				fail();
+			} catch (IllegalArgumentException e) {}  // Pass
+		}
+	}
+	
+}
@@ -0,0 +1,151 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/* 
+ * A bounded queue with any number of producer threads and one consumer thread, implemented as a lock-free ring
+ * of slots. Positions count up forever: producers claim the next position from the tail cursor with a CAS, and the
+ * consumer owns the head cursor. Each slot has a sequence number that tells whether it is free for the producer
+ * of its position or filled for the consumer (the bounded queue design by Dmitry Vyukov). offer() never blocks
+ * and fails instead when the ring is full, which lets the producer decide what to do about a slow consumer.
+ */
+public final class RingBuffer<E> {
+	
+	/*---- Fields ----*/
+	
+	private final Object[] elements;
+	// For the slot at index i, holding position p (where p % capacity == i): the sequence equals p if the slot is free
+	// for the producer of position p, or p + 1 if it holds the element of position p for the consumer.
+	private final AtomicLongArray sequences;
+	private final int mask;
+	
+	private final AtomicLong tail;  // The next position that a producer will claim
+	private long head;  // The next position to consume; only accessed by the consumer thread
+	private volatile long consumed;  // Copy of head for other threads
+	
+	private volatile Thread waitingConsumer;  // Not null while the consumer might be parked
+	private volatile boolean closed;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// Creates an empty ring with the given capacity, which must be a power of 2 and at least 2.
+	public RingBuffer(int capacity) {
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of 2");
+		elements = new Object[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+		mask = capacity - 1;
+		tail = new AtomicLong(0);
+		head = 0;
+		consumed = 0;
+		waitingConsumer = null;
+		closed = false;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Appends the given element and returns true, or returns false without blocking if the ring is full.
+	// Can be called from any thread, including after close() (the element is then never consumed).
+	public boolean offer(E elem) {
+		if (elem == null)
+			throw new NullPointerException();
+		while (true) {
+			long pos = tail.get();
+			int index = (int)pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff < 0)
+				return false;  // The slot still holds the element from one lap ago
+			if (diff == 0 && tail.compareAndSet(pos, pos + 1)) {
+				elements[index] = elem;
+				sequences.set(index, pos + 1);  // Publish to the consumer
+				Thread th = waitingConsumer;
+				if (th != null)
+					LockSupport.unpark(th);
+				return true;
+			}
+			// Else another producer claimed this position first, so retry with the next one
+		}
+	}
+	
+	
+	// Removes up to dest.length elements in order into the given array, and returns the count. Blocks until at least
+	// one element is available, or returns 0 if the ring is closed and empty. Must only be called by the consumer thread.
+	public int take(E[] dest) throws InterruptedException {
+		if (dest.length == 0)
+			throw new IllegalArgumentException();
+		while (true) {
+			int n = poll(dest);
+			if (n > 0)
+				return n;
+			if (closed)
+				return poll(dest);  // Elements published just before closing
+			
+			// Announce the wait before checking again, so that a concurrent offer() either is seen or unparks this thread
+			waitingConsumer = Thread.currentThread();
+			if (sequences.get((int)head & mask) != head + 1 && !closed)
+				LockSupport.park(this);
+			waitingConsumer = null;
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+	
+	
+	// Removes up to dest.length elements in order into the given array without blocking, and returns the count.
+	// Must only be called by the consumer thread.
+	@SuppressWarnings("unchecked")
+	public int poll(E[] dest) {
+		int n = 0;
+		while (n < dest.length) {
+			int index = (int)head & mask;
+			if (sequences.get(index) != head + 1)
+				break;  // Not yet published
+			dest[n] = (E)elements[index];
+			n++;
+			elements[index] = null;
+			sequences.set(index, head + elements.length);  // Free for the producer one lap later
+			head++;
+		}
+		if (n > 0)
+			consumed = head;
+		return n;
+	}
+	
+	
+	// Makes the consumer's take() return 0 once the ring is drained. Can be called from any thread, and is idempotent.
+	public void close() {
+		closed = true;
+		Thread th = waitingConsumer;
+		if (th != null)
+			LockSupport.unpark(th);
+	}
+	
+	
+	public int getCapacity() {
+		return elements.length;
+	}
+	
+	
+	// Returns the number of elements claimed by producers but not yet consumed. Can be called from any thread.
+	public int size() {
+		return (int)Math.max(tail.get() - consumed, 0);
+	}
+	
+}
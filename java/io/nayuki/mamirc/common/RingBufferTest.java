@@ -0,0 +1,83 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+
+public final class RingBufferTest {
+	
+	@Test public void testFullAndWrapAround() throws InterruptedException {
+		RingBuffer<Integer> ring = new RingBuffer<>(4);
+		Integer[] buf = new Integer[3];
+		for (int lap = 0; lap < 3; lap++) {
+			for (int i = 0; i < 4; i++)
+				assertTrue(ring.offer(lap * 10 + i));
+			assertFalse(ring.offer(99));
+			assertEquals(4, ring.size());
+			assertEquals(3, ring.take(buf));
+			assertArrayEquals(new Integer[]{lap * 10, lap * 10 + 1, lap * 10 + 2}, buf);
+			assertEquals(1, ring.poll(buf));
+			assertEquals(lap * 10 + 3, (int)buf[0]);
+			assertEquals(0, ring.poll(buf));
+		}
+	}
+	
+	
+	@Test public void testClose() throws InterruptedException {
+		RingBuffer<String> ring = new RingBuffer<>(2);
+		ring.offer("a");
+		ring.close();
+		String[] buf = new String[2];
+		assertEquals(1, ring.take(buf));
+		assertEquals(0, ring.take(buf));
+	}
+	
+	
+	@Test public void testConcurrentProducers() throws InterruptedException {
+		final RingBuffer<Long> ring = new RingBuffer<>(64);
+		final int numThreads = 4;
+		final int perThread = 100000;
+		Thread[] producers = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final long id = i;
+			producers[i] = new Thread() {
+				public void run() {
+					for (long j = 0; j < perThread; ) {
+						if (ring.offer(id << 32 | j))
+							j++;
+						else
+							Thread.yield();
+					}
+				}
+			};
+			producers[i].start();
+		}
+		
+		long[] next = new long[numThreads];  // Each producer's elements must arrive in order
+		Long[] buf = new Long[16];
+		for (long total = 0; total < (long)numThreads * perThread; ) {
+			int n = ring.take(buf);
+			for (int i = 0; i < n; i++) {
+				int id = (int)(buf[i] >>> 32);
+				assertEquals(next[id], buf[i] & 0xFFFFFFFFL);
+				next[id]++;
+			}
+			total += n;
+		}
+		for (Thread th : producers)
+			th.join();
+		assertEquals(0, ring.size());
+	}
+	
+}
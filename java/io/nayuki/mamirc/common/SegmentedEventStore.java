@@ -0,0 +1,416 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32C;
+
+
+/* 
+ * An event archive in a directory of append-only segment files, named "0000000000.seg", "0000000001.seg", etc.
+ * Each segment is a sequence of records: an int32 CRC-32C of the frame, then the event's binary frame (see
+ * EventEncoder). A new segment is started when appending would exceed the size cap. Reads go through read-only
+ * memory maps, so catching up on a connection is a sequential scan instead of B-tree lookups.
+ * 
+ * Each segment has a sparse index, which maps each connection to the sequence numbers and offsets of some of its
+ * records in the segment (its first record, and then one record at least every INDEX_STRIDE bytes), plus its last
+ * sequence number in the segment. A read skips the segments without the connection, and starts scanning each
+ * remaining segment at the indexed record just before the wanted sequence. The index of a full segment is saved
+ * next to it ("0000000000.idx"); the index of the last segment is rebuilt by scanning it when the store is opened.
+ * 
+ * Each append() forces the data to the disk before returning. After a crash, a torn record at the end of the
+ * last segment fails its CRC check, and is ignored (and truncated by the next writable instance).
+ */
+public final class SegmentedEventStore implements EventStore {
+	
+	/*---- Fields ----*/
+	
+	private final File directory;
+	private final boolean writable;
+	private final long segmentBytes;
+	private final List<Segment> segments;  // In ascending order; if writable, then not empty
+	private FileChannel appendChannel;  // For the last segment, or null if read-only
+	private long appendedPayloadBytes;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// Opens the archive in the given directory. If writable, the directory is created if nonexistent, and
+	// new segments are started at the given size; otherwise the directory must exist, and the size is unused.
+	public SegmentedEventStore(File dir, boolean writable, long segmentBytes) throws IOException {
+		if (dir == null)
+			throw new NullPointerException();
+		if (segmentBytes < 1 || segmentBytes > MAX_SEGMENT_BYTES)
+			throw new IllegalArgumentException("Invalid segment size");
+		directory = dir;
+		this.writable = writable;
+		this.segmentBytes = segmentBytes;
+		if (writable && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory: " + dir);
+		if (!dir.isDirectory())
+			throw new FileNotFoundException("Not a directory: " + dir);
+		
+		// Find and load the existing segments
+		segments = new ArrayList<>();
+		String[] names = dir.list();
+		Arrays.sort(names);
+		for (String name : names) {
+			if (name.matches("[0-9]{10}\\.seg"))
+				segments.add(new Segment(Integer.parseInt(name.substring(0, 10))));
+		}
+		for (int i = 0; i < segments.size(); i++) {
+			Segment seg = segments.get(i);
+			if (i == segments.size() - 1)
+				seg.scanIndex(true);
+			else if (!seg.loadIndex())
+				seg.scanIndex(false);
+		}
+		
+		if (writable) {
+			if (segments.isEmpty())
+				segments.add(new Segment(0));
+			Segment last = segments.get(segments.size() - 1);
+			appendChannel = FileChannel.open(last.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			appendChannel.truncate(last.size);  // Discard a torn record, if any
+		}
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	public int getNextConnectionId() {
+		int result = 0;
+		for (Segment seg : segments) {
+			for (int conId : seg.index.keySet())
+				result = Math.max(conId + 1, result);
+		}
+		return result;
+	}
+	
+	
+	public void append(Event[] events) throws IOException {
+		if (!writable)
+			throw new IllegalStateException("Read-only store");
+		Segment seg = segments.get(segments.size() - 1);
+		ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		for (Event ev : events) {
+			byte[] frame = EventEncoder.encodeFrame(ev);
+			appendedPayloadBytes += ev.line.getDataNoCopy().length;
+			long recordLen = 4 + frame.length;
+			if (seg.size + pending.size() > 0 && seg.size + pending.size() + recordLen > segmentBytes) {
+				seg.write(pending);
+				seg = startSegment();
+			}
+			seg.index(ev.connectionId, ev.sequence, seg.size + pending.size());
+			CRC32C crc = new CRC32C();
+			crc.update(frame);
+			int c = (int)crc.getValue();
+			pending.write(new byte[]{(byte)(c >>> 24), (byte)(c >>> 16), (byte)(c >>> 8), (byte)c});
+			pending.write(frame);
+		}
+		seg.write(pending);
+		appendChannel.force(false);
+	}
+	
+	
+	public long getAppendedPayloadBytes() {
+		return appendedPayloadBytes;
+	}
+	
+	
+	public long getStoredPayloadBytes() {
+		return appendedPayloadBytes;  // Never compressed
+	}
+	
+	
+	public long getCompressNanos() {
+		return 0;
+	}
+	
+	
+	// Seals the last segment by forcing it and saving its index, and then creates and returns a new empty segment.
+	private Segment startSegment() throws IOException {
+		Segment last = segments.get(segments.size() - 1);
+		appendChannel.force(false);
+		appendChannel.close();
+		last.saveIndex();
+		Segment result = new Segment(last.number + 1);
+		segments.add(result);
+		appendChannel = FileChannel.open(result.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		return result;
+	}
+	
+	
+	public void readConnection(int conId, int start, int end, Visitor visitor) throws IOException {
+		for (Segment seg : segments) {
+			ConnectionIndex ci = seg.index.get(conId);
+			if (ci == null || ci.lastSequence < start)
+				continue;
+			if (ci.sequences[0] >= end)
+				break;  // Later segments only have higher sequence numbers
+			
+			// Start at the last indexed record at or before the start sequence
+			int i = Arrays.binarySearch(ci.sequences, 0, ci.count, start);
+			if (i < 0)
+				i = Math.max(-i - 2, 0);
+			ByteBuffer map = seg.map();
+			for (long off = ci.offsets[i]; off < seg.size; ) {
+				int recConId = map.getInt((int)off + 4);
+				int seq = map.getInt((int)off + 8);
+				if (recConId == conId) {
+					if (seq >= end)
+						return;
+					if (seq >= start)
+						visitor.visit(decodeRecord(map, (int)off));
+					if (seq == ci.lastSequence)
+						break;
+				}
+				off += recordLength(map, (int)off);
+			}
+		}
+	}
+	
+	
+	// Visits the events in the order they were appended.
+	public void scan(Visitor visitor) throws IOException {
+		for (Segment seg : segments) {
+			ByteBuffer map = seg.map();
+			for (long off = 0; off < seg.size; off += recordLength(map, (int)off))
+				visitor.visit(decodeRecord(map, (int)off));
+		}
+	}
+	
+	
+	public void close() throws IOException {
+		segments.clear();  // The memory maps are released when garbage collected
+		if (appendChannel != null) {
+			appendChannel.close();
+			appendChannel = null;
+		}
+	}
+	
+	
+	
+	/*---- Record format helpers ----*/
+	
+	// Returns the length of the whole record at the given offset, which must be valid.
+	private static int recordLength(ByteBuffer map, int off) {
+		return 4 + EventEncoder.FRAME_HEADER_LENGTH + map.getInt(off + 4 + 17);
+	}
+	
+	
+	// Returns the length of the record at the given offset if it is complete and its CRC matches, otherwise -1.
+	private static int checkRecord(ByteBuffer map, int off) {
+		int limit = map.limit();
+		if (limit - off < 4 + EventEncoder.FRAME_HEADER_LENGTH)
+			return -1;
+		int dataLen = map.getInt(off + 4 + 17);
+		if (dataLen < 0 || dataLen > limit - off - 4 - EventEncoder.FRAME_HEADER_LENGTH)
+			return -1;
+		int frameLen = EventEncoder.FRAME_HEADER_LENGTH + dataLen;
+		CRC32C crc = new CRC32C();
+		crc.update(map.slice(off + 4, frameLen));
+		return (int)crc.getValue() == map.getInt(off) ? 4 + frameLen : -1;
+	}
+	
+	
+	private static Event decodeRecord(ByteBuffer map, int off) {
+		byte[] data = new byte[map.getInt(off + 4 + 17)];
+		map.get(off + 4 + EventEncoder.FRAME_HEADER_LENGTH, data);
+		return new Event(map.getInt(off + 4), map.getInt(off + 8), map.getLong(off + 12),
+			Event.Type.fromOrdinal(map.get(off + 20)), new CleanLine(data, false));
+	}
+	
+	
+	
+	/*---- Helper structures ----*/
+	
+	private final class Segment {
+		
+		public final int number;
+		public final File file;
+		public final File indexFile;
+		public long size;  // Bytes of valid records
+		public final Map<Integer,ConnectionIndex> index;
+		private MappedByteBuffer map;  // Covers at least the valid records, or null if not mapped yet
+		
+		
+		public Segment(int number) {
+			this.number = number;
+			file = new File(directory, String.format("%010d.seg", number));
+			indexFile = new File(directory, String.format("%010d.idx", number));
+			size = 0;
+			index = new HashMap<>();
+			map = null;
+		}
+		
+		
+		// Returns a read-only memory map that covers all the valid records.
+		public ByteBuffer map() throws IOException {
+			if (map == null || map.capacity() < size) {
+				try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				}
+			}
+			return map.duplicate().limit((int)size);
+		}
+		
+		
+		public void index(int conId, int seq, long offset) {
+			ConnectionIndex ci = index.get(conId);
+			if (ci == null) {
+				ci = new ConnectionIndex();
+				index.put(conId, ci);
+			}
+			ci.add(seq, offset);
+		}
+		
+		
+		// Appends the given bytes to this segment's file, which must be the last one.
+		public void write(ByteArrayOutputStream data) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(data.toByteArray());
+			while (buf.hasRemaining())
+				appendChannel.write(buf, size + buf.position());
+			size += data.size();
+			data.reset();
+		}
+		
+		
+		// Sets the size and index by reading and checking every record, up to the first invalid one. In the last
+		// segment, an invalid record is expected after a crash or while the writer is appending.
+		public void scanIndex(boolean isLast) throws IOException {
+			long fileLen = file.length();
+			if (fileLen > Integer.MAX_VALUE)
+				throw new IOException("Segment too large: " + file);
+			size = fileLen;
+			ByteBuffer map = map();
+			int off = 0;
+			while (off < fileLen) {
+				int len = checkRecord(map, off);
+				if (len == -1) {
+					Utils.logger.log(isLast ? Level.FINE : Level.WARNING,
+						"Segment " + file + " has an invalid record at offset " + off + ", ignoring the rest");
+					break;
+				}
+				index(map.getInt(off + 4), map.getInt(off + 8), off);
+				off += len;
+			}
+			size = off;
+		}
+		
+		
+		// Writes the index file (atomically by renaming a temporary file).
+		public void saveIndex() throws IOException {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bout);
+			out.writeLong(size);
+			out.writeInt(index.size());
+			for (Map.Entry<Integer,ConnectionIndex> entry : index.entrySet()) {
+				ConnectionIndex ci = entry.getValue();
+				out.writeInt(entry.getKey());
+				out.writeInt(ci.lastSequence);
+				out.writeInt(ci.count);
+				for (int i = 0; i < ci.count; i++) {
+					out.writeInt(ci.sequences[i]);
+					out.writeLong(ci.offsets[i]);
+				}
+			}
+			CRC32C crc = new CRC32C();
+			crc.update(bout.toByteArray());
+			out.writeInt((int)crc.getValue());
+			File temp = new File(directory, indexFile.getName() + ".tmp");
+			Files.write(temp.toPath(), bout.toByteArray());
+			Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		
+		// Tries to read the index file, and returns whether it exists, is intact and matches the segment file.
+		public boolean loadIndex() throws IOException {
+			if (!indexFile.isFile())
+				return false;
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+			try {
+				CRC32C crc = new CRC32C();
+				crc.update(buf.duplicate().limit(buf.limit() - 4));
+				if ((int)crc.getValue() != buf.getInt(buf.limit() - 4))
+					return false;
+				size = buf.getLong();
+				if (size != file.length())
+					return false;
+				for (int n = buf.getInt(); n > 0; n--) {
+					int conId = buf.getInt();
+					int lastSeq = buf.getInt();
+					for (int count = buf.getInt(); count > 0; count--)
+						index(conId, buf.getInt(), buf.getLong());
+					index.get(conId).lastSequence = lastSeq;
+				}
+				return true;
+			} catch (RuntimeException e) {  // Includes BufferUnderflowException and NullPointerException
+				index.clear();
+				return false;
+			}
+		}
+		
+	}
+	
+	
+	
+	private static final class ConnectionIndex {
+		
+		public int[] sequences = new int[4];
+		public long[] offsets = new long[4];
+		public int count = 0;
+		public int lastSequence;  // Of the last record of the connection in the segment, indexed or not
+		
+		
+		// Notes a record of this connection, which must come after all the ones already noted.
+		public void add(int seq, long offset) {
+			lastSequence = seq;
+			if (count > 0 && offset - offsets[count - 1] < INDEX_STRIDE)
+				return;
+			if (count == sequences.length) {
+				sequences = Arrays.copyOf(sequences, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			sequences[count] = seq;
+			offsets[count] = offset;
+			count++;
+		}
+		
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+	
+	public static final long MAX_SEGMENT_BYTES = 1L << 30;  // Leaves room for one oversized record within a memory map
+	
+	private static final int INDEX_STRIDE = 4096;  // In bytes of segment
+	
+}
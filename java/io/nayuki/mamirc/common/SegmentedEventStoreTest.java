@@ -0,0 +1,95 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+
+public final class SegmentedEventStoreTest {
+	
+	@Test public void testAppendAndRead() throws IOException {
+		File dir = Files.createTempDirectory("mamirc-segments").toFile();
+		try {
+			// Interleave 3 connections over many small segments
+			try (EventStore store = new SegmentedEventStore(dir, true, 2000)) {
+				assertEquals(0, store.getNextConnectionId());
+				for (int seq = 0; seq < 300; seq += 10) {
+					List<Event> batch = new ArrayList<>();
+					for (int i = seq; i < seq + 10; i++) {
+						for (int conId = 3; conId <= 5; conId++)
+							batch.add(TestFixtures.makeEvent(conId, i, 0));
+					}
+					store.append(batch.toArray(new Event[batch.size()]));
+				}
+			}
+			
+			try (EventStore store = new SegmentedEventStore(dir, false, 2000)) {
+				assertEquals(6, store.getNextConnectionId());
+				assertSequences(store, 4, 0, 300, 0, 300);
+				assertSequences(store, 5, 123, 257, 123, 257);
+				assertSequences(store, 3, 295, 1000, 295, 300);
+				assertSequences(store, 9, 0, 10, 0, 0);
+				final int[] count = {0};
+				store.scan(new EventStore.Visitor() {
+					public void visit(Event ev) {
+						count[0]++;
+					}
+				});
+				assertEquals(900, count[0]);
+			}
+		} finally {
+			TestFixtures.deleteDirectory(dir);
+		}
+	}
+	
+	
+	@Test public void testTornRecord() throws IOException {
+		File dir = Files.createTempDirectory("mamirc-segments").toFile();
+		try {
+			try (EventStore store = new SegmentedEventStore(dir, true, 1 << 20)) {
+				store.append(new Event[]{TestFixtures.makeEvent(0, 0, 0), TestFixtures.makeEvent(0, 1, 0), TestFixtures.makeEvent(0, 2, 0)});
+			}
+			File seg = new File(dir, "0000000000.seg");
+			try (RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+				raf.setLength(raf.length() - 3);  // Simulate a crash in the middle of the last record
+			}
+			try (EventStore store = new SegmentedEventStore(dir, true, 1 << 20)) {
+				assertSequences(store, 0, 0, 10, 0, 2);
+				store.append(new Event[]{TestFixtures.makeEvent(0, 2, 0)});
+				assertSequences(store, 0, 0, 10, 0, 3);
+			}
+		} finally {
+			TestFixtures.deleteDirectory(dir);
+		}
+	}
+	
+	
+	// Asserts that reading [start, end) of the given connection yields exactly the sequences [expectStart, expectEnd).
+	private static void assertSequences(EventStore store, final int conId, int start, int end, int expectStart, int expectEnd) throws IOException {
+		final List<Integer> seqs = new ArrayList<>();
+		store.readConnection(conId, start, end, new EventStore.Visitor() {
+			public void visit(Event ev) {
+				assertEquals(conId, ev.connectionId);
+				assertEquals(TestFixtures.makeEvent(conId, ev.sequence, 0).line.getString(), ev.line.getString());
+				seqs.add(ev.sequence);
+			}
+		});
+		assertEquals(expectEnd - expectStart, seqs.size());
+		for (int i = 0; i < seqs.size(); i++)
+			assertEquals(expectStart + i, (int)seqs.get(i));
+	}
+	
+}
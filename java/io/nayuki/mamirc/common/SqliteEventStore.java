@@ -0,0 +1,562 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+
+/* 
+ * An event archive in an SQLite database file with a single table (see doc/connector.markdown), through sqlite4java.
+ * The database connection is confined to the thread that constructs this object. A writable store disables
+ * SQLite's automatic checkpoints in WAL mode, because the Connector checkpoints on a separate thread instead.
+ * If compression is enabled, payloads are stored compressed with a PayloadDictionary trained on the archive's
+ * recent traffic and retrained periodically; each row records which dictionary it needs, and rows that don't
+ * benefit are stored raw. Reads decompress transparently, whether or not this instance compresses.
+ * The retention engine removes old low-value events through a writable instance of its own (see RetentionPolicy).
+ * SQLite exceptions are wrapped in IOException.
+ */
+public final class SqliteEventStore implements EventStore {
+	
+	/*---- Fields ----*/
+	
+	private SQLiteConnection database;
+	private final boolean writable;
+	private SQLiteStatement beginTransaction;
+	private SQLiteStatement commitTransaction;
+	private SQLiteStatement insertEvent;   // One row
+	private SQLiteStatement insertEvents;  // INSERT_ROWS rows
+	private boolean hasDictionaryColumn;  // False for archives created before compression existed, until opened writable
+	private boolean hasRetentionTables;  // Whether compactConnection() has ensured that its tables exist
+	private final Map<Integer,PayloadDictionary> dictionaries = new HashMap<>();  // Cache for decompression
+	
+	// Compression state, only used if compressing
+	private final boolean compress;
+	private PayloadDictionary currentDictionary;  // Null until enough samples have been seen
+	private int nextDictionaryId;
+	private byte[][] samples;  // Ring buffer of the most recent payloads
+	private long sampleCount;  // Ever seen
+	private long eventsSinceTraining;
+	
+	// Statistics of the events appended through this instance
+	private long appendedPayloadBytes;
+	private long storedPayloadBytes;
+	private long compressNanos;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// Opens the database at the given file. If writable, the file and table are created if nonexistent, and the
+	// given journal mode and synchronous setting (SQLite pragma values, e.g. "WAL" and "NORMAL") are applied,
+	// and appended payloads are compressed if compress is true; otherwise both must be null and compress false.
+	public SqliteEventStore(File file, boolean writable, String journalMode, String synchronous, boolean compress) throws IOException {
+		if (file == null)
+			throw new NullPointerException();
+		if (writable != (journalMode != null) || writable != (synchronous != null) || compress && !writable)
+			throw new IllegalArgumentException();
+		this.writable = writable;
+		this.compress = compress;
+		database = new SQLiteConnection(file);
+		try {
+			database.open(writable);
+			database.setBusyTimeout(60000);
+			if (writable) {
+				// Only takes effect in a new file, before switching to WAL (which writes the header) or creating a table
+				database.exec("PRAGMA auto_vacuum = INCREMENTAL");
+				database.exec("PRAGMA journal_mode = " + journalMode);  // Persistent in the file if WAL
+				database.exec("PRAGMA synchronous = " + synchronous);
+				if (journalMode.equals("WAL"))
+					database.exec("PRAGMA wal_autocheckpoint = 0");  // Commits never checkpoint; the Connector's checkpointer does
+				database.exec("CREATE TABLE IF NOT EXISTS events("
+					+ "connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, "
+					+ "type INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY(connectionId, sequence))");
+				if (!hasColumn("events", "dictionary"))
+					database.exec("ALTER TABLE events ADD COLUMN dictionary INTEGER");  // Only changes the schema, not the rows
+				database.exec("CREATE TABLE IF NOT EXISTS dictionaries(id INTEGER PRIMARY KEY, data BLOB NOT NULL)");
+				beginTransaction  = database.prepare("BEGIN TRANSACTION");
+				commitTransaction = database.prepare("COMMIT TRANSACTION");
+				String insert = "INSERT INTO events(connectionId, sequence, timestamp, type, data, dictionary) VALUES";
+				insertEvent = database.prepare(insert + "(?,?,?,?,?,?)");
+				StringBuilder sb = new StringBuilder(insert);
+				for (int i = 0; i < INSERT_ROWS; i++)
+					sb.append(i == 0 ? "" : ",").append("(?,?,?,?,?,?)");
+				insertEvents = database.prepare(sb.toString());
+			}
+			hasDictionaryColumn = hasColumn("events", "dictionary");
+			if (compress)
+				initCompression();
+		} catch (SQLiteException e) {
+			database.dispose();
+			throw new IOException(e);
+		}
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	public int getNextConnectionId() throws IOException {
+		try {
+			SQLiteStatement getMaxConId = database.prepare("SELECT max(connectionId) FROM events");
+			try {
+				Utils.stepStatement(getMaxConId, true);
+				return getMaxConId.columnNull(0) ? 0 : getMaxConId.columnInt(0) + 1;
+			} finally {
+				getMaxConId.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Inserts all the events in one transaction, using multi-row insert statements.
+	public void append(Event[] events) throws IOException {
+		if (!writable)
+			throw new IllegalStateException("Read-only store");
+		PayloadDictionary oldDictionary = currentDictionary;
+		long oldEventsSinceTraining = eventsSinceTraining;
+		try {
+			Utils.stepStatement(beginTransaction, false);
+			if (compress && sampleCount >= MIN_SAMPLE_EVENTS
+					&& (currentDictionary == null || eventsSinceTraining >= RETRAIN_EVENTS))
+				trainDictionary();
+			int i = 0;
+			for (; events.length - i >= INSERT_ROWS; i += INSERT_ROWS) {
+				for (int j = 0; j < INSERT_ROWS; j++)
+					bindEvent(insertEvents, j * 6, events[i + j]);
+				Utils.stepStatement(insertEvents, false);
+			}
+			for (; i < events.length; i++) {
+				bindEvent(insertEvent, 0, events[i]);
+				Utils.stepStatement(insertEvent, false);
+			}
+			Utils.stepStatement(commitTransaction, false);
+		} catch (SQLiteException e) {
+			// A dictionary inserted in the failed transaction is gone, so stop using it
+			currentDictionary = oldDictionary;
+			eventsSinceTraining = oldEventsSinceTraining;
+			throw new IOException(e);
+		}
+	}
+	
+	
+	public long getAppendedPayloadBytes() {
+		return appendedPayloadBytes;
+	}
+	
+	
+	public long getStoredPayloadBytes() {
+		return storedPayloadBytes;
+	}
+	
+	
+	public long getCompressNanos() {
+		return compressNanos;
+	}
+	
+	
+	public void readConnection(int conId, int start, int end, Visitor visitor) throws IOException {
+		query("WHERE connectionId=? AND sequence>=? AND sequence<? ORDER BY sequence ASC",
+			new int[]{conId, start, end}, visitor);
+	}
+	
+	
+	// Visits the events in ascending order of connection ID and then sequence number.
+	public void scan(Visitor visitor) throws IOException {
+		query("ORDER BY connectionId ASC, sequence ASC", new int[0], visitor);
+	}
+	
+	
+	// Visits up to maxEvents events in the order they were inserted, starting after the row with the given ID (0 to start
+	// from the beginning), and returns the row ID of the last event visited, or the given row ID if there were none.
+	// A row ID is never reused while the archive only grows at the end, so the result can be used to tail the archive.
+	// Each call is one short read, so a reader that tails a live archive only briefly holds back the Connector's checkpoints.
+	public long readInserted(long afterRowId, int maxEvents, Visitor visitor) throws IOException {
+		try {
+			SQLiteStatement query = database.prepare("SELECT rowid, connectionId, sequence, timestamp, type, data, "
+				+ (hasDictionaryColumn ? "dictionary" : "NULL") + " FROM events WHERE rowid>? ORDER BY rowid ASC LIMIT ?");
+			try {
+				query.bind(1, afterRowId);
+				query.bind(2, maxEvents);
+				long result = afterRowId;
+				while (query.step()) {
+					result = query.columnLong(0);
+					visitor.visit(new Event(query.columnInt(1), query.columnInt(2), query.columnLong(3),
+						Event.Type.fromOrdinal(query.columnInt(4)), new CleanLine(getPayload(query, 5), false)));
+				}
+				return result;
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	private void query(String clauses, int[] args, Visitor visitor) throws IOException {
+		try {
+			SQLiteStatement query = database.prepare("SELECT connectionId, sequence, timestamp, type, data, "
+				+ (hasDictionaryColumn ? "dictionary" : "NULL") + " FROM events " + clauses);
+			try {
+				for (int i = 0; i < args.length; i++)
+					query.bind(i + 1, args[i]);
+				while (query.step()) {
+					visitor.visit(new Event(query.columnInt(0), query.columnInt(1), query.columnLong(2),
+						Event.Type.fromOrdinal(query.columnInt(3)), new CleanLine(getPayload(query, 4), false)));
+				}
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Returns the decompressed payload in the given column and the dictionary ID in the next column.
+	private byte[] getPayload(SQLiteStatement query, int column) throws SQLiteException, IOException {
+		byte[] data = query.columnBlob(column);
+		if (query.columnNull(column + 1))
+			return data;
+		return getDictionary(query.columnInt(column + 1)).decompress(data);
+	}
+	
+	
+	private PayloadDictionary getDictionary(int id) throws SQLiteException, IOException {
+		PayloadDictionary result = dictionaries.get(id);
+		if (result == null) {  // Rows of the dictionaries table never change, so caching is safe
+			SQLiteStatement query = database.prepare("SELECT data FROM dictionaries WHERE id=?");
+			try {
+				query.bind(1, id);
+				if (!query.step())
+					throw new IOException("Missing dictionary " + id);
+				result = new PayloadDictionary(id, query.columnBlob(0));
+			} finally {
+				query.dispose();
+			}
+			dictionaries.put(id, result);
+		}
+		return result;
+	}
+	
+	
+	/*---- Retention (see RetentionPolicy) ----*/
+	
+	// Returns the lowest connection ID greater than the given one that has events, or -1 if none. Uses the primary key
+	// index to skip over each connection's events, so stepping through all connections costs little even in a big archive.
+	public int getConnectionIdAfter(int conId) throws IOException {
+		try {
+			SQLiteStatement query = database.prepare("SELECT connectionId FROM events WHERE connectionId>? ORDER BY connectionId ASC LIMIT 1");
+			try {
+				query.bind(1, conId);
+				return query.step() ? query.columnInt(0) : -1;
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Examines up to maxEvents events of the given connection older than the given cutoff time, continuing after the last
+	// event examined by previous calls (as recorded in the retention table), and removes the ones that the policy classifies
+	// as low-value, all in one short write transaction. Each removed event is counted into the rollups table (per hour,
+	// event type and command) if the policy says so, and always into the connection's removedEvents in the retention table.
+	// Returns the number of events examined, which is 0 once the connection has no more events older than the cutoff.
+	// The remaining events keep their sequence numbers, so the connection is left with gaps. Must only be
+	// called on a connection that receives no more events, otherwise the caller could miss some of them.
+	public int compactConnection(int conId, RetentionPolicy policy, long cutoff, int maxEvents) throws IOException {
+		if (!writable)
+			throw new IllegalStateException("Read-only store");
+		if (policy == null)
+			throw new NullPointerException();
+		if (maxEvents < 1)
+			throw new IllegalArgumentException();
+		try {
+			if (!hasRetentionTables) {
+				database.exec("CREATE TABLE IF NOT EXISTS retention("
+					+ "connectionId INTEGER PRIMARY KEY, scannedSequence INTEGER NOT NULL, removedEvents INTEGER NOT NULL)");
+				database.exec("CREATE TABLE IF NOT EXISTS rollups(connectionId INTEGER, hour INTEGER, type INTEGER, "
+					+ "command TEXT, count INTEGER NOT NULL, PRIMARY KEY(connectionId, hour, type, command))");
+				hasRetentionTables = true;
+			}
+			int scanned = -1;
+			long removed = 0;
+			SQLiteStatement query = database.prepare("SELECT scannedSequence, removedEvents FROM retention WHERE connectionId=?");
+			try {
+				query.bind(1, conId);
+				if (query.step()) {
+					scanned = query.columnInt(0);
+					removed = query.columnLong(1);
+				}
+			} finally {
+				query.dispose();
+			}
+			
+			// Classify the next events outside of any write transaction, stopping at the first one that is too new.
+			// Only this caller changes these rows, so they are still the same when the transaction starts.
+			int examined = 0;
+			List<Integer> victims = new ArrayList<>();  // Sequence numbers
+			Map<String,Integer> counts = new HashMap<>();  // Key is hour + " " + type + " " + command
+			query = database.prepare("SELECT sequence, timestamp, type, data, " + (hasDictionaryColumn ? "dictionary" : "NULL")
+				+ " FROM events WHERE connectionId=? AND sequence>? ORDER BY sequence ASC LIMIT ?");
+			try {
+				query.bind(1, conId);
+				query.bind(2, scanned);
+				query.bind(3, maxEvents);
+				while (query.step()) {
+					long time = query.columnLong(1);
+					if (time >= cutoff)
+						break;
+					scanned = query.columnInt(0);
+					examined++;
+					Event.Type type = Event.Type.fromOrdinal(query.columnInt(2));
+					String cmd = policy.classify(type, getPayload(query, 3));
+					if (cmd != null) {
+						victims.add(scanned);
+						String key = time / 3600000 + " " + type.ordinal() + " " + cmd;
+						Integer n = counts.get(key);
+						counts.put(key, n == null ? 1 : n + 1);
+					}
+				}
+			} finally {
+				query.dispose();
+			}
+			if (examined == 0)
+				return 0;
+			
+			// Takes the write lock up front, so that the transaction never fails to upgrade from a read lock
+			database.exec("BEGIN IMMEDIATE");
+			try {
+				SQLiteStatement delete = database.prepare("DELETE FROM events WHERE connectionId=? AND sequence=?");
+				try {
+					for (int seq : victims) {
+						delete.bind(1, conId);  // Again each time, because stepStatement() clears the bindings
+						delete.bind(2, seq);
+						Utils.stepStatement(delete, false);
+					}
+				} finally {
+					delete.dispose();
+				}
+				if (policy.rollup) {
+					// INSERT OR IGNORE then UPDATE, because the bundled SQLite predates upsert syntax
+					SQLiteStatement insert = database.prepare("INSERT OR IGNORE INTO rollups VALUES(?,?,?,?,0)");
+					SQLiteStatement update = database.prepare("UPDATE rollups SET count=count+? "
+						+ "WHERE connectionId=? AND hour=? AND type=? AND command=?");
+					try {
+						for (Map.Entry<String,Integer> entry : counts.entrySet()) {
+							String[] parts = entry.getKey().split(" ", 3);
+							insert.bind(1, conId);
+							insert.bind(2, Long.parseLong(parts[0]));
+							insert.bind(3, Integer.parseInt(parts[1]));
+							insert.bind(4, parts[2]);
+							Utils.stepStatement(insert, false);
+							insert.reset();
+							update.bind(1, entry.getValue());
+							update.bind(2, conId);
+							update.bind(3, Long.parseLong(parts[0]));
+							update.bind(4, Integer.parseInt(parts[1]));
+							update.bind(5, parts[2]);
+							Utils.stepStatement(update, false);
+							update.reset();
+						}
+					} finally {
+						insert.dispose();
+						update.dispose();
+					}
+				}
+				SQLiteStatement record = database.prepare("INSERT OR REPLACE INTO retention VALUES(?,?,?)");
+				try {
+					record.bind(1, conId);
+					record.bind(2, scanned);
+					record.bind(3, removed + victims.size());
+					Utils.stepStatement(record, false);
+				} finally {
+					record.dispose();
+				}
+				database.exec("COMMIT TRANSACTION");
+			} catch (SQLiteException e) {
+				if (!database.getAutoCommit())
+					database.exec("ROLLBACK TRANSACTION");
+				throw e;
+			}
+			return examined;
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Returns whether the file is in incremental auto-vacuum mode, which SQLite only allows
+	// to be enabled in a new file or by a full VACUUM (see doc/connector.markdown).
+	public boolean isIncrementalVacuum() throws IOException {
+		try {
+			SQLiteStatement query = database.prepare("PRAGMA auto_vacuum");
+			try {
+				Utils.stepStatement(query, true);
+				return query.columnInt(0) == 2;
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Returns up to the given number of free pages to the file system, in a write transaction of its own,
+	// and returns the number of pages that remain free. Does nothing unless isIncrementalVacuum().
+	public int incrementalVacuum(int maxPages) throws IOException {
+		if (!writable)
+			throw new IllegalStateException("Read-only store");
+		try {
+			SQLiteStatement vacuum = database.prepare("PRAGMA incremental_vacuum(" + maxPages + ")");
+			try {
+				while (vacuum.step()) {}  // Frees one page per step
+			} finally {
+				vacuum.dispose();
+			}
+			SQLiteStatement query = database.prepare("PRAGMA freelist_count");
+			try {
+				Utils.stepStatement(query, true);
+				return query.columnInt(0);
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	public void close() {
+		if (database != null) {
+			database.dispose();  // Automatically disposes its associated statements
+			database = null;
+		}
+	}
+	
+	
+	// Binds the given event to the 6 parameters after the given offset of the given insert statement,
+	// compressing the payload if possible.
+	private void bindEvent(SQLiteStatement insert, int offset, Event ev) throws SQLiteException {
+		if (ev == null)
+			throw new NullPointerException();
+		byte[] payload = ev.line.getDataNoCopy();
+		byte[] data = null;
+		if (compress) {
+			samples[(int)(sampleCount % SAMPLE_EVENTS)] = payload;  // Safe to keep because CleanLine is immutable
+			sampleCount++;
+			eventsSinceTraining++;
+			if (currentDictionary != null) {
+				long start = System.nanoTime();
+				data = currentDictionary.compress(payload);
+				compressNanos += System.nanoTime() - start;
+			}
+		}
+		insert.bind(offset + 1, ev.connectionId);
+		insert.bind(offset + 2, ev.sequence);
+		insert.bind(offset + 3, ev.timestamp);
+		insert.bind(offset + 4, ev.type.ordinal());
+		insert.bind(offset + 5, data != null ? data : payload);
+		if (data != null)
+			insert.bind(offset + 6, currentDictionary.id);
+		else
+			insert.bindNull(offset + 6);
+		appendedPayloadBytes += payload.length;
+		storedPayloadBytes += data != null ? data.length : payload.length;
+	}
+	
+	
+	// Loads the newest dictionary, and seeds the samples with the newest events in the archive.
+	private void initCompression() throws SQLiteException, IOException {
+		samples = new byte[SAMPLE_EVENTS][];
+		SQLiteStatement query = database.prepare("SELECT id FROM dictionaries ORDER BY id DESC LIMIT 1");
+		try {
+			if (query.step()) {
+				currentDictionary = getDictionary(query.columnInt(0));
+				nextDictionaryId = currentDictionary.id + 1;
+			}
+		} finally {
+			query.dispose();
+		}
+		
+		// Insertion order approximates recency; the oldest sample ends up first, as if appended
+		List<byte[]> recent = new ArrayList<>();
+		query = database.prepare("SELECT data, dictionary FROM events ORDER BY rowid DESC LIMIT ?");
+		try {
+			query.bind(1, SAMPLE_EVENTS);
+			while (query.step())
+				recent.add(getPayload(query, 0));
+		} finally {
+			query.dispose();
+		}
+		for (int i = recent.size() - 1; i >= 0; i--)
+			samples[(int)sampleCount++] = recent.get(i);
+	}
+	
+	
+	// Trains a dictionary on the current samples, inserts it as a new version,
+	// and uses it for subsequent payloads. Must be called in a transaction.
+	private void trainDictionary() throws SQLiteException {
+		List<byte[]> list = new ArrayList<>();
+		for (int i = 0; i < Math.min(sampleCount, SAMPLE_EVENTS); i++)
+			list.add(samples[i]);
+		PayloadDictionary dict = new PayloadDictionary(nextDictionaryId, PayloadDictionary.train(list, PayloadDictionary.MAX_BYTES));
+		SQLiteStatement insert = database.prepare("INSERT INTO dictionaries VALUES(?,?)");
+		try {
+			insert.bind(1, dict.id);
+			insert.bind(2, dict.getData());
+			Utils.stepStatement(insert, false);
+		} finally {
+			insert.dispose();
+		}
+		dictionaries.put(dict.id, dict);
+		currentDictionary = dict;
+		nextDictionaryId++;
+		eventsSinceTraining = 0;
+	}
+	
+	
+	private boolean hasColumn(String table, String column) throws SQLiteException {
+		SQLiteStatement query = database.prepare("PRAGMA table_info(" + table + ")");
+		try {
+			while (query.step()) {
+				if (query.columnString(1).equals(column))
+					return true;
+			}
+			return false;
+		} finally {
+			query.dispose();
+		}
+	}
+	
+	
+	// The number of rows in the multi-row insert statement. Beyond a few dozen rows, the time per row
+	// hardly improves, while the statement's 6 parameters per row approach SQLite's default limit of 999.
+	private static final int INSERT_ROWS = 64;
+	
+	// Compression: a dictionary is first trained once this many payloads have been seen, on the most
+	// recent SAMPLE_EVENTS of them, and is replaced by a newly trained one after every RETRAIN_EVENTS.
+	private static final int MIN_SAMPLE_EVENTS = 1024;
+	private static final int SAMPLE_EVENTS = 8192;
+	private static final long RETRAIN_EVENTS = 1 << 20;
+	
+}
@@ -0,0 +1,134 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+
+public final class SqliteEventStoreTest {
+	
+	@Test public void testIncrementalVacuum() throws IOException {
+		for (String journalMode : new String[]{"WAL", "PERSIST"}) {
+			File file = File.createTempFile("mamirc-sqlite", ".sqlite");
+			try {
+				try (SqliteEventStore store = new SqliteEventStore(file, true, journalMode, "NORMAL", false)) {
+					assertTrue(journalMode, store.isIncrementalVacuum());
+				}
+			} finally {
+				TestFixtures.deleteDatabase(file);
+			}
+		}
+	}
+	
+	
+	@Test public void testCompactConnection() throws IOException, SQLiteException {
+		File file = File.createTempFile("mamirc-sqlite", ".sqlite");
+		try (SqliteEventStore store = new SqliteEventStore(file, true, "WAL", "NORMAL", false)) {
+			// Connection 0 has a PING on every third sequence, connection 1 has none
+			List<Event> batch = new ArrayList<>();
+			for (int seq = 0; seq < 600; seq++) {
+				for (int conId = 0; conId < 2; conId++)
+					batch.add(makeEvent(conId, seq));
+			}
+			store.append(batch.toArray(new Event[batch.size()]));
+			
+			RetentionPolicy policy = new RetentionPolicy(1, "PING", "rollup");
+			long cutoff = makeEvent(0, 400).timestamp;
+			assertEquals(250, store.compactConnection(0, policy, cutoff, 250));
+			assertRetention(file, 0, 249, 83);  // Sequences 3, 6, ..., 249
+			assertEquals(150, store.compactConnection(0, policy, cutoff, 250));  // Resumes after 249 and stops at the cutoff
+			assertRetention(file, 0, 399, 133);
+			assertEquals(0, store.compactConnection(0, policy, cutoff, 250));
+			assertEquals(400, store.compactConnection(1, policy, cutoff, 1000));
+			assertRetention(file, 1, 399, 0);
+			
+			// Every removed event is really gone, and nothing else is
+			for (int conId = 0; conId < 2; conId++) {
+				final List<Integer> seqs = new ArrayList<>();
+				store.readConnection(conId, 0, 1000, new EventStore.Visitor() {
+					public void visit(Event ev) {
+						seqs.add(ev.sequence);
+					}
+				});
+				List<Integer> expect = new ArrayList<>();
+				for (int seq = 0; seq < 600; seq++) {
+					if (!(conId == 0 && isPing(seq) && seq < 400))
+						expect.add(seq);
+				}
+				assertEquals(expect, seqs);
+			}
+			
+			// Rollups per hour of the removed events, where each hour has 60 sequences
+			SQLiteConnection db = new SQLiteConnection(file);
+			try {
+				db.open(false);
+				SQLiteStatement query = db.prepare("SELECT connectionId, hour, type, command, count FROM rollups ORDER BY hour ASC");
+				int hour = 0;
+				while (query.step()) {
+					assertEquals(0, query.columnInt(0));
+					assertEquals(hour, query.columnLong(1));
+					assertEquals(Event.Type.RECEIVE.ordinal(), query.columnInt(2));
+					assertEquals("PING", query.columnString(3));
+					int count = 0;
+					for (int seq = hour * 60; seq < Math.min(hour * 60 + 60, 400); seq++) {
+						if (isPing(seq))
+							count++;
+					}
+					assertEquals(count, query.columnInt(4));
+					hour++;
+				}
+				assertEquals(7, hour);
+			} finally {
+				db.dispose();
+			}
+			
+			assertTrue(store.isIncrementalVacuum());
+			assertEquals(0, store.incrementalVacuum(1 << 20));
+		} finally {
+			TestFixtures.deleteDatabase(file);
+		}
+	}
+	
+	
+	private static Event makeEvent(int conId, int seq) {
+		String line = conId == 0 && isPing(seq) ? "PING :irc.example.com" : "PRIVMSG #test :message " + seq;
+		return new Event(conId, seq, 60000L * seq, seq == 0 ? Event.Type.CONNECTION : Event.Type.RECEIVE, new CleanLine(line));
+	}
+	
+	
+	private static boolean isPing(int seq) {
+		return seq > 0 && seq % 3 == 0;
+	}
+	
+	
+	// Asserts the row of the given connection in the retention table, through a separate read-only connection.
+	private static void assertRetention(File file, int conId, int scannedSequence, long removedEvents) throws SQLiteException {
+		SQLiteConnection db = new SQLiteConnection(file);
+		try {
+			db.open(false);
+			SQLiteStatement query = db.prepare("SELECT scannedSequence, removedEvents FROM retention WHERE connectionId=?");
+			query.bind(1, conId);
+			assertTrue(query.step());
+			assertEquals(scannedSequence, query.columnInt(0));
+			assertEquals(removedEvents, query.columnLong(1));
+		} finally {
+			db.dispose();
+		}
+	}
+	
+}
@@ -0,0 +1,47 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.File;
+
+
+/* 
+ * Helpers shared by the tests of the event stores and of the tools that read and write them.
+ */
+public final class TestFixtures {
+	
+	// Returns a received line for the given connection and sequence number, one second apart per sequence number,
+	// followed by the given number of '.' characters to make it longer (and compressible).
+	public static Event makeEvent(int conId, int seq, int padding) {
+		StringBuilder sb = new StringBuilder("PRIVMSG #test :message ").append(seq).append(" of connection ").append(conId);
+		for (int i = 0; i < padding; i++)
+			sb.append('.');
+		return new Event(conId, seq, 1000L * seq, Event.Type.RECEIVE, new CleanLine(sb.toString()));
+	}
+	
+	
+	// Deletes the given temporary directory, which must only contain files.
+	public static void deleteDirectory(File dir) {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+	
+	
+	// Deletes the given temporary SQLite database file along with its write-ahead log and shared memory files.
+	public static void deleteDatabase(File file) {
+		for (String suffix : new String[]{"", "-wal", "-shm"})
+			new File(file.getPath() + suffix).delete();
+	}
+	
+	
+	// Not instantiable.
+	private TestFixtures() {}
+	
+}
@@ -11,7 +11,11 @@ package io.nayuki.mamirc.common;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.almworks.sqlite4java.SQLiteException;
@@ -64,6 +68,77 @@ public final class Utils {
 	}
 	
 	
+	// Whether new worker threads and executors should use virtual threads (Java 21+). Set once at startup.
+	private static volatile boolean useVirtualThreads = false;
+	
+	
+	// Enables or disables virtual threads for subsequently created workers. If enabling is requested
+	// but the Java runtime does not support virtual threads, then a warning is logged and nothing changes.
+	public static void setUseVirtualThreads(boolean enable) {
+		if (enable && VirtualThreadSupport.OF_VIRTUAL == null) {
+			logger.warning("Virtual threads requested but not supported by this Java runtime; using platform threads");
+			return;
+		}
+		useVirtualThreads = enable;
+	}
+	
+	
+	// Returns a new unstarted thread with the given name that runs the given task,
+	// which is a virtual thread if enabled by setUseVirtualThreads(), otherwise a platform thread.
+	public static Thread newThread(String name, Runnable task) {
+		if (name == null || task == null)
+			throw new NullPointerException();
+		if (!useVirtualThreads)
+			return new Thread(task, name);
+		try {
+			Object builder = VirtualThreadSupport.OF_VIRTUAL.invoke(null);
+			builder = VirtualThreadSupport.NAME.invoke(builder, name);
+			return (Thread)VirtualThreadSupport.UNSTARTED.invoke(builder, task);
+		} catch (IllegalAccessException|InvocationTargetException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	
+	// Returns a new executor that starts one virtual thread per task if enabled
+	// by setUseVirtualThreads(), otherwise a fixed pool of the given number of platform threads.
+	public static ExecutorService newExecutor(int numPlatformThreads) {
+		if (!useVirtualThreads)
+			return Executors.newFixedThreadPool(numPlatformThreads);
+		try {
+			return (ExecutorService)VirtualThreadSupport.NEW_EXECUTOR.invoke(null);
+		} catch (IllegalAccessException|InvocationTargetException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	
+	// Looks up the virtual thread API reflectively, so that this code still compiles and runs on older Java versions.
+	private static final class VirtualThreadSupport {
+		public static final Method OF_VIRTUAL;    // Null if not supported
+		public static final Method NAME;
+		public static final Method UNSTARTED;
+		public static final Method NEW_EXECUTOR;
+		static {
+			Method ofVirtual = null, name = null, unstarted = null, newExecutor = null;
+			try {
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builderClass.getMethod("name", String.class);
+				unstarted = builderClass.getMethod("unstarted", Runnable.class);
+				newExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				ofVirtual.invoke(null);  // Throws if virtual threads are a disabled preview feature
+			} catch (ReflectiveOperationException e) {
+				ofVirtual = null;
+			}
+			OF_VIRTUAL = ofVirtual;
+			NAME = name;
+			UNSTARTED = unstarted;
+			NEW_EXECUTOR = newExecutor;
+		}
+	}
+	
+	
 	// Logger for events and debugging.
 	public static final Logger logger = Logger.getLogger("io.nayuki.mamirc");
 	
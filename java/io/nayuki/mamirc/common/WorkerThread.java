@@ -9,19 +9,37 @@
 package io.nayuki.mamirc.common;
 
 import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 
 
 /* 
- * A base class for worker threads that includes logging calls for debugging.
+ * A base class for worker threads that includes logging calls for debugging. The worker runs on a platform
+ * thread by default, or on a virtual thread if enabled by Utils.setUseVirtualThreads() before construction.
+ * (This class wraps a thread instead of extending Thread, because virtual threads cannot be subclassed.)
  */
-public abstract class WorkerThread extends Thread {
+public abstract class WorkerThread implements Runnable {
 	
-	/*---- Constructor ----*/
+	/*---- Fields ----*/
+	
+	private final Thread thread;
+	
+	
+	
+	/*---- Constructors ----*/
 	
 	// Constructs a worker thread with the given thread name (not null).
 	public WorkerThread(String name) {
-		super(name);
+		this(name, true);
+	}
+	
+	
+	// Constructs a worker thread with the given thread name (not null). If allowVirtual is false, then a platform
+	// thread is always used; this is meant for workers that spend most of their time in native code or selectors.
+	protected WorkerThread(String name, boolean allowVirtual) {
+		if (name == null)
+			throw new NullPointerException();
+		thread = allowVirtual ? Utils.newThread(name, this) : new Thread(this, name);
 		Utils.logger.fine(getClassName() + " created: id=" + getId());
 	}
 	
@@ -53,6 +71,40 @@ public abstract class WorkerThread extends Thread {
 	protected abstract void runInner() throws Throwable;
 	
 	
+	// Starts executing run() on the underlying thread. Must be called at most once.
+	public void start() {
+		thread.start();
+	}
+	
+	
+	// Blocks until the underlying thread finishes.
+	public void join() throws InterruptedException {
+		thread.join();
+	}
+	
+	
+	// Makes the underlying thread return from LockSupport.park(), or not block on its next call.
+	// Can be called from any thread; has no effect before start().
+	protected final void unpark() {
+		LockSupport.unpark(thread);
+	}
+	
+	
+	public String getName() {
+		return thread.getName();
+	}
+	
+	
+	public void setName(String name) {
+		thread.setName(name);
+	}
+	
+	
+	public long getId() {
+		return thread.getId();
+	}
+	
+	
 	// Returns the concrete class name of this object, without the package.
 	private String getClassName() {
 		return getClass().getSimpleName();
@@ -0,0 +1,152 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+
+/* 
+ * Resolves IRC server hostnames to all of their addresses, for connection racing (see HappyEyeballs).
+ * Results are cached for a short time, so that a mass reconnect (e.g. after the connector's own network
+ * link recovers) makes one lookup per hostname instead of one per connection. Concurrent lookups of the
+ * same hostname share a single resolver call, while lookups of different hostnames run in parallel
+ * on the callers' threads. Failures are cached for a shorter time than successes.
+ */
+final class AddressResolver {
+	
+	/*---- Methods ----*/
+	
+	// Returns all the addresses of the given hostname (or IP address literal), ordered for connection racing
+	// by interleave(). Blocks while a lookup is in progress. Can be called from any thread.
+	public static InetAddress[] resolve(String hostname) throws IOException {
+		if (hostname == null)
+			throw new NullPointerException();
+		String key = hostname.toLowerCase();
+		while (true) {
+			Entry entry = cache.get(key);
+			if (entry == null) {
+				Entry newEntry = new Entry();
+				entry = cache.putIfAbsent(key, newEntry);
+				if (entry == null) {  // This thread does the lookup
+					if (cache.size() > MAX_ENTRIES)
+						removeExpired();
+					entry = newEntry;
+					entry.lookup(hostname);
+				}
+			}
+			
+			try {
+				entry.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while resolving " + hostname);
+			}
+			if (entry.isExpired()) {  // Stale; remove it and look up again
+				cache.remove(key, entry);
+				continue;
+			}
+			if (entry.addresses == null)
+				throw new UnknownHostException(hostname);
+			return entry.addresses.clone();
+		}
+	}
+	
+	
+	// Returns a new array with the given addresses reordered as in RFC 8305 section 4: the families alternate,
+	// starting with the family of the first address, and otherwise the original (preference) order is kept.
+	static InetAddress[] interleave(InetAddress[] addrs) {
+		if (addrs.length == 0)
+			return new InetAddress[0];
+		List<InetAddress> first = new ArrayList<>();
+		List<InetAddress> second = new ArrayList<>();
+		boolean firstIsV6 = addrs[0] instanceof Inet6Address;
+		for (InetAddress addr : addrs)
+			((addr instanceof Inet6Address) == firstIsV6 ? first : second).add(addr);
+		InetAddress[] result = new InetAddress[addrs.length];
+		for (int i = 0, j = 0, k = 0; k < result.length; ) {
+			if (i < first.size()) {
+				result[k] = first.get(i);
+				i++;
+				k++;
+			}
+			if (j < second.size()) {
+				result[k] = second.get(j);
+				j++;
+				k++;
+			}
+		}
+		return result;
+	}
+	
+	
+	private static void removeExpired() {
+		Iterator<Entry> iter = cache.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().isExpired())
+				iter.remove();
+		}
+	}
+	
+	
+	
+	/*---- Helper definitions ----*/
+	
+	private static final Map<String,Entry> cache = new ConcurrentHashMap<>();
+	
+	private static final int MAX_ENTRIES = 1000;  // Only a soft limit on the number of cached hostnames
+	
+	private static final long SUCCESS_TTL = 60000;  // In milliseconds
+	private static final long FAILURE_TTL = 10000;  // In milliseconds
+	
+	
+	// One cached lookup result, which is still pending while the latch is not yet counted down.
+	private static final class Entry {
+		
+		public final CountDownLatch done = new CountDownLatch(1);
+		// These fields are written before the latch is released, and never change afterward
+		public InetAddress[] addresses;  // Null if the lookup failed
+		private long expiry;  // From System.nanoTime()
+		
+		
+		public void lookup(String hostname) {
+			try {
+				addresses = interleave(InetAddress.getAllByName(hostname));
+				expiry = System.nanoTime() + SUCCESS_TTL * 1000000;
+			} catch (UnknownHostException e) {
+				addresses = null;
+				expiry = System.nanoTime() + FAILURE_TTL * 1000000;
+			} finally {
+				done.countDown();
+			}
+		}
+		
+		
+		// Must only be called after the latch is released.
+		public boolean isExpired() {
+			return done.getCount() == 0 && System.nanoTime() - expiry > 0;
+		}
+		
+	}
+	
+	
+	
+	// Not instantiable.
+	private AddressResolver() {}
+	
+}
@@ -0,0 +1,55 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.Test;
+
+
+public final class AddressResolverTest {
+	
+	@Test public void testInterleave() throws Exception {
+		InetAddress a4 = InetAddress.getByName("192.0.2.1");
+		InetAddress b4 = InetAddress.getByName("192.0.2.2");
+		InetAddress c4 = InetAddress.getByName("192.0.2.3");
+		InetAddress a6 = InetAddress.getByName("2001:db8::1");
+		InetAddress b6 = InetAddress.getByName("2001:db8::2");
+		assertArrayEquals(new InetAddress[]{a6, a4, b6, b4, c4},
+			AddressResolver.interleave(new InetAddress[]{a6, b6, a4, b4, c4}));
+		assertArrayEquals(new InetAddress[]{a4, a6, b4, b6, c4},
+			AddressResolver.interleave(new InetAddress[]{a4, b4, c4, a6, b6}));
+		assertArrayEquals(new InetAddress[]{a4, b4},
+			AddressResolver.interleave(new InetAddress[]{a4, b4}));
+		assertArrayEquals(new InetAddress[0], AddressResolver.interleave(new InetAddress[0]));
+	}
+	
+	
+	@Test public void testResolveLiteral() throws Exception {
+		InetAddress[] addrs = AddressResolver.resolve("127.0.0.1");
+		assertArrayEquals(new InetAddress[]{InetAddress.getByName("127.0.0.1")}, addrs);
+		addrs[0] = null;  // The cached array must not be exposed
+		assertEquals(InetAddress.getByName("127.0.0.1"), AddressResolver.resolve("127.0.0.1")[0]);
+	}
+	
+	
+	@Test public void testRaceSkipsRefusedAddress() throws Exception {
+		InetAddress good = InetAddress.getByName("127.0.0.1");
+		try (ServerSocket server = new ServerSocket(0, 1, good)) {
+			InetAddress bad = InetAddress.getByName("127.0.0.2");  // Loopback, but nothing listens there
+			try (Socket sock = HappyEyeballs.connect(new InetAddress[]{bad, good}, server.getLocalPort(), 10000)) {
+				assertEquals(good, sock.getInetAddress());
+			}
+		}
+	}
+	
+}
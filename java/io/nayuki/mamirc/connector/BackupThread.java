@@ -0,0 +1,360 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import com.almworks.sqlite4java.SQLiteBackup;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.PartitionedEventStore;
+import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.common.WorkerThread;
+
+
+/* 
+ * A worker thread that copies the Connector's SQLite archive (every partition of it and the catalog, if partitioned)
+ * into the backup directory while the DatabaseLoggerThread keeps committing, using its own database connections.
+ * Each file is copied with SQLite's online backup API a few pages per step, with a pause after each step, all within
+ * one read transaction on the file. In WAL mode that read never blocks the logger's commits, and because its snapshot
+ * cannot change, the copy never restarts and is consistent as of its start (on its own, the backup API restarts
+ * whenever another connection writes between steps, so it would never finish under steady traffic). Each copy is
+ * written to a temporary file, which replaces the previous backup of the file once complete. A manifest in the
+ * backup directory records the version of each copied file (its highest row ID, events removed by retention, and
+ * page count), so a later run skips the files that haven't changed, such as finished partitions. A backup runs when
+ * a Processor asks for one and every configured interval. An error fails the backup, but not this worker.
+ */
+final class BackupThread extends WorkerThread {
+	
+	/*---- Fields ----*/
+	
+	private final BackendConfiguration config;
+	private final DatabaseLoggerThread databaseLogger;
+	private final File directory;  // Null if this worker is never started
+	private final long intervalMillis;  // 0 if only on request
+	private volatile boolean requested;
+	private volatile boolean running;
+	
+	// Statistics, written by this worker and readable by any thread; the "last" ones are of the last successful backup
+	private volatile long backups;
+	private volatile long failures;
+	private volatile long lastMillis;
+	private volatile long lastBytes;  // Of the copied files only
+	private volatile int lastFilesCopied;
+	private volatile int lastFilesSkipped;
+	private volatile long lastCommitNanos;      // Mean commit time of the logger during the backup, 0 if no commits
+	private volatile long baselineCommitNanos;  // Mean commit time of the logger before the backup, 0 if no commits
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// This constructor performs no I/O. It must only be started if the configuration has a backup directory.
+	public BackupThread(BackendConfiguration config, DatabaseLoggerThread databaseLogger) {
+		super("BackupThread", false);  // Every SQLite call is native code, which would pin a virtual thread
+		if (config == null || databaseLogger == null)
+			throw new NullPointerException();
+		this.config = config;
+		this.databaseLogger = databaseLogger;
+		directory = config.connectorBackupDirectory;
+		intervalMillis = TimeUnit.HOURS.toMillis(config.connectorBackupIntervalHours);
+		requested = false;
+		running = false;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	protected void runInner() throws InterruptedException {
+		if (directory == null)
+			throw new IllegalStateException();
+		long next = intervalMillis > 0 ? System.currentTimeMillis() + START_DELAY : Long.MAX_VALUE;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (requested || now >= next) {
+				running = true;
+				requested = false;
+				if (now >= next)
+					next = now + intervalMillis;
+				try {
+					runBackup();
+				} finally {
+					running = false;
+				}
+			} else if (next == Long.MAX_VALUE)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(next - now));
+		}
+	}
+	
+	
+	// Asks this worker to start a backup soon, and returns a status line for the requester: "backup-started",
+	// "backup-running" (already requested or running), or "backup-disabled". Can be called from any thread.
+	public String request() {
+		if (directory == null)
+			return "backup-disabled";
+		if (running || requested)
+			return "backup-running";
+		requested = true;
+		unpark();
+		return "backup-started";
+	}
+	
+	
+	private void runBackup() throws InterruptedException {
+		Utils.logger.info("Archive backup starting: " + directory);
+		long start = System.nanoTime();
+		long commitNanos = databaseLogger.getTotalCommitNanos();
+		long commits = databaseLogger.getBatchesWritten();
+		long bytes = 0;
+		int copied = 0;
+		int skipped = 0;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Cannot create directory: " + directory);
+			Map<String,String> manifest = readManifest();
+			List<File> files = new ArrayList<>();
+			if (config.connectorArchivePartitions.equals("none"))
+				files.add(config.connectorDatabaseFile);
+			else {
+				// The catalog is copied after the partitions, so that its ranges cover their events (it is updated
+				// before the events are committed), and then any partition that the logger rolled over to meanwhile
+				List<File> partitions = PartitionedEventStore.listPartitionFiles(config.connectorDatabaseFile);
+				files.addAll(partitions);
+				files.add(new File(config.connectorDatabaseFile, PartitionedEventStore.CATALOG_NAME));
+				for (File file : PartitionedEventStore.listPartitionFiles(config.connectorDatabaseFile)) {
+					if (!partitions.contains(file))
+						files.add(file);
+				}
+			}
+			for (File file : files) {
+				if (!file.isFile())
+					continue;  // The logger hasn't created it yet
+				long n = copyFile(file, manifest);
+				if (n == -1)
+					skipped++;
+				else {
+					copied++;
+					bytes += n;
+				}
+			}
+		} catch (IOException e) {
+			failures++;
+			Utils.logger.log(Level.WARNING, "Archive backup failed", e);
+			return;
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		long backupCommits = databaseLogger.getBatchesWritten() - commits;
+		lastCommitNanos = backupCommits > 0 ? (databaseLogger.getTotalCommitNanos() - commitNanos) / backupCommits : 0;
+		baselineCommitNanos = commits > 0 ? commitNanos / commits : 0;
+		lastMillis = elapsed / 1000000;
+		lastBytes = bytes;
+		lastFilesCopied = copied;
+		lastFilesSkipped = skipped;
+		backups++;
+		Utils.logger.info(String.format("Archive backup finished in %d ms: %d files copied (%d KiB, %d KiB/s), %d unchanged; "
+			+ "mean commit time %d us during the backup, %d us before", lastMillis, copied, bytes >>> 10,
+			getLastBytesPerSecond() >>> 10, skipped, lastCommitNanos / 1000, baselineCommitNanos / 1000));
+	}
+	
+	
+	// Copies the given database file into the backup directory under the same name, unless the manifest says that the
+	// backup already has this version of it, and records the new version. Returns the number of bytes copied, or -1.
+	private long copyFile(File file, Map<String,String> manifest) throws IOException, InterruptedException {
+		String name = file.getName();
+		File dest = new File(directory, name);
+		File temp = new File(directory, name + ".tmp");
+		if (dest.getCanonicalFile().equals(file.getCanonicalFile()))
+			throw new IOException("Backup directory contains the archive: " + directory);
+		SQLiteConnection database = new SQLiteConnection(file);
+		SQLiteBackup backup = null;
+		try {
+			database.open(false);
+			database.setBusyTimeout(60000);
+			database.exec("BEGIN TRANSACTION");
+			String version = getVersion(database);  // Its reads start the snapshot that the copy is taken from
+			if (version != null && version.equals(manifest.get(name)) && dest.isFile()) {
+				database.exec("COMMIT TRANSACTION");
+				return -1;
+			}
+			SQLiteStatement query = database.prepare("PRAGMA page_size");
+			Utils.stepStatement(query, true);
+			long pageSize = query.columnLong(0);
+			query.dispose();
+			
+			if (temp.exists() && !temp.delete())  // Left over from a crash
+				throw new IOException("Cannot delete file: " + temp);
+			backup = database.initializeBackup(temp);
+			while (true) {
+				backup.backupStep(STEP_PAGES);
+				if (backup.isFinished())
+					break;
+				Thread.sleep(STEP_PAUSE);
+			}
+			long result = backup.getPageCount() * pageSize;
+			backup.dispose();  // Also closes the copy
+			backup = null;
+			database.exec("COMMIT TRANSACTION");
+			
+			Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (version != null)
+				manifest.put(name, version);
+			else
+				manifest.remove(name);
+			writeManifest(manifest);  // After every file, so that an interrupted backup keeps its progress
+			return result;
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		} finally {
+			if (backup != null)
+				backup.dispose();
+			database.dispose();  // Automatically ends the read transaction if still open
+			temp.delete();
+		}
+	}
+	
+	
+	// Returns a string that changes whenever events are added to or removed from the given archive file, or null if
+	// it is not an archive file (i.e. the catalog, which is small and always copied). Must be in a read transaction.
+	private static String getVersion(SQLiteConnection database) throws SQLiteException {
+		if (!hasTable(database, "events"))
+			return null;
+		SQLiteStatement query = database.prepare("SELECT max(rowid) FROM events");
+		Utils.stepStatement(query, true);
+		String result = query.columnNull(0) ? "-1" : Long.toString(query.columnLong(0));
+		query.dispose();
+		if (hasTable(database, "retention")) {
+			query = database.prepare("SELECT total(removedEvents) FROM retention");
+			Utils.stepStatement(query, true);
+			result += " " + query.columnLong(0);
+			query.dispose();
+		}
+		query = database.prepare("PRAGMA page_count");  // Changes when retention vacuums the file
+		Utils.stepStatement(query, true);
+		result += " " + query.columnLong(0);
+		query.dispose();
+		return result;
+	}
+	
+	
+	private static boolean hasTable(SQLiteConnection database, String name) throws SQLiteException {
+		SQLiteStatement query = database.prepare("SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?");
+		query.bind(1, name);
+		Utils.stepStatement(query, true);
+		boolean result = query.columnInt(0) > 0;
+		query.dispose();
+		return result;
+	}
+	
+	
+	// The manifest is a text file of lines "<file name> <version>", and is absent before the first backup.
+	private Map<String,String> readManifest() throws IOException {
+		Map<String,String> result = new TreeMap<>();
+		File file = new File(directory, MANIFEST_NAME);
+		if (file.isFile()) {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				String[] parts = line.split(" ", 2);
+				if (parts.length == 2)
+					result.put(parts[0], parts[1]);
+			}
+		}
+		return result;
+	}
+	
+	
+	private void writeManifest(Map<String,String> manifest) throws IOException {
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String,String> entry : manifest.entrySet())
+			lines.add(entry.getKey() + " " + entry.getValue());
+		File temp = new File(directory, MANIFEST_NAME + ".tmp");
+		Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+		Files.move(temp.toPath(), new File(directory, MANIFEST_NAME).toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	private static final String MANIFEST_NAME = "backup-manifest.txt";
+	private static final int START_DELAY = 60 * 1000;  // In milliseconds, before the first scheduled backup
+	
+	// Each step copies this many pages (4 MiB of 4 KiB pages) and then pauses, which bounds the I/O
+	// bandwidth that the backup takes from the logger; the read transaction itself never blocks it.
+	private static final int STEP_PAGES = 1024;
+	private static final int STEP_PAUSE = 20;  // In milliseconds
+	
+	
+	
+	/*---- Statistics getters, which can be called from any thread ----*/
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	
+	public long getBackups() {
+		return backups;
+	}
+	
+	
+	public long getFailures() {
+		return failures;
+	}
+	
+	
+	public long getLastMillis() {
+		return lastMillis;
+	}
+	
+	
+	public long getLastBytes() {
+		return lastBytes;
+	}
+	
+	
+	// Including the pauses between steps.
+	public long getLastBytesPerSecond() {
+		long millis = lastMillis;
+		return millis > 0 ? lastBytes * 1000 / millis : 0;
+	}
+	
+	
+	public int getLastFilesCopied() {
+		return lastFilesCopied;
+	}
+	
+	
+	public int getLastFilesSkipped() {
+		return lastFilesSkipped;
+	}
+	
+	
+	public long getLastCommitNanos() {
+		return lastCommitNanos;
+	}
+	
+	
+	public long getBaselineCommitNanos() {
+		return baselineCommitNanos;
+	}
+	
+}
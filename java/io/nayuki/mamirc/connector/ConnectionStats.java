@@ -0,0 +1,57 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+
+/* 
+ * Traffic counters for one IRC server connection, registered in JMX as "io.nayuki.mamirc:type=Connection,id=<connectionId>"
+ * while the connection is active. The fields are only written by MamircConnector while holding the connection's lock,
+ * but they are volatile so that JMX clients and the "stats" action can read them from any thread without locking.
+ */
+final class ConnectionStats implements ConnectionStatsMBean {
+	
+	public volatile long linesReceived = 0;
+	public volatile long bytesReceived = 0;
+	public volatile long linesSent = 0;
+	public volatile long bytesSent = 0;
+	public volatile long eventsPosted = 0;
+	public volatile ServerConnection connection = null;  // Set when the connection is opened
+	
+	
+	public long getLinesReceived() {
+		return linesReceived;
+	}
+	
+	
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+	
+	
+	public long getLinesSent() {
+		return linesSent;
+	}
+	
+	
+	public long getBytesSent() {
+		return bytesSent;
+	}
+	
+	
+	public long getEventsPosted() {
+		return eventsPosted;
+	}
+	
+	
+	public long getWriteQueueBytes() {
+		ServerConnection con = connection;
+		return con != null ? con.getQueuedBytes() : 0;
+	}
+	
+}
@@ -0,0 +1,29 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+
+/* 
+ * The JMX management interface of ConnectionStats. All counters start at 0 when the connection is created.
+ */
+public interface ConnectionStatsMBean {
+	
+	public long getLinesReceived();
+	
+	public long getBytesReceived();  // Excluding line terminators
+	
+	public long getLinesSent();  // Including keepalive probes
+	
+	public long getBytesSent();  // Excluding line terminators
+	
+	public long getEventsPosted();
+	
+	public long getWriteQueueBytes();
+	
+}
@@ -0,0 +1,367 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import io.nayuki.mamirc.common.HashedWheelTimer;
+import io.nayuki.mamirc.common.LockHelper;
+import io.nayuki.mamirc.common.OutputWriterThread;
+
+
+/* 
+ * Global counters of the Connector, registered in JMX as "io.nayuki.mamirc:type=Connector". No getter takes the
+ * Connector's global lock or any connection lock, so polling never stalls event processing.
+ */
+final class ConnectorStats implements ConnectorStatsMBean {
+	
+	/*---- Fields ----*/
+	
+	private final MamircConnector master;
+	private final DatabaseLoggerThread databaseLogger;
+	private final DatabaseCheckpointerThread checkpointer;
+	private final RetentionThread retention;
+	private final BackupThread backup;
+	private final LockHelper globalLock;
+	private final HashedWheelTimer timer;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	public ConnectorStats(MamircConnector master, DatabaseLoggerThread databaseLogger,
+			DatabaseCheckpointerThread checkpointer, RetentionThread retention, BackupThread backup, LockHelper globalLock, HashedWheelTimer timer) {
+		if (master == null || databaseLogger == null || checkpointer == null || retention == null
+				|| backup == null || globalLock == null || timer == null)
+			throw new NullPointerException();
+		this.master = master;
+		this.databaseLogger = databaseLogger;
+		this.checkpointer = checkpointer;
+		this.retention = retention;
+		this.backup = backup;
+		this.globalLock = globalLock;
+		this.timer = timer;
+	}
+	
+	
+	
+	/*---- Connections ----*/
+	
+	public int getActiveConnections() {
+		return master.getActiveConnectionCount();
+	}
+	
+	
+	
+	/*---- DatabaseLoggerThread ----*/
+	
+	public int getDatabaseQueueLength() {
+		return databaseLogger.getQueueLength();
+	}
+	
+	
+	public long getDatabaseBatchesWritten() {
+		return databaseLogger.getBatchesWritten();
+	}
+	
+	
+	public long getDatabaseEventsWritten() {
+		return databaseLogger.getCommittedEvents();
+	}
+	
+	
+	public int getDatabaseLastBatchSize() {
+		return databaseLogger.getLastBatchSize();
+	}
+	
+	
+	public int getDatabaseMaxBatchSize() {
+		return databaseLogger.getMaxBatchSize();
+	}
+	
+	
+	public long getDatabaseLastCommitMicros() {
+		return databaseLogger.getLastCommitNanos() / 1000;
+	}
+	
+	
+	public long getDatabaseMaxCommitMicros() {
+		return databaseLogger.getMaxCommitNanos() / 1000;
+	}
+	
+	
+	public long getDatabaseTotalCommitMillis() {
+		return databaseLogger.getTotalCommitNanos() / 1000000;
+	}
+	
+	
+	public long getDatabaseForcedFlushes() {
+		return databaseLogger.getForcedFlushes();
+	}
+	
+	
+	public long getDatabasePayloadBytes() {
+		return databaseLogger.getPayloadBytes();
+	}
+	
+	
+	public long getDatabaseStoredPayloadBytes() {
+		return databaseLogger.getStoredPayloadBytes();
+	}
+	
+	
+	public double getDatabaseCompressionRatio() {
+		long stored = databaseLogger.getStoredPayloadBytes();
+		return stored == 0 ? 1 : (double)databaseLogger.getPayloadBytes() / stored;
+	}
+	
+	
+	public long getDatabaseTotalCompressMillis() {
+		return databaseLogger.getCompressNanos() / 1000000;
+	}
+	
+	
+	public long[] getDatabaseBatchSizeHistogram() {
+		return databaseLogger.getBatchSizeHistogram();
+	}
+	
+	
+	public long[] getDatabaseCommitMicrosHistogram() {
+		return databaseLogger.getCommitMicrosHistogram();
+	}
+	
+	
+	
+	/*---- DatabaseCheckpointerThread ----*/
+	
+	public long getDatabaseWalBytes() {
+		return checkpointer.getWalBytes();
+	}
+	
+	
+	public long getDatabaseCheckpoints() {
+		return checkpointer.getCheckpoints();
+	}
+	
+	
+	public long getDatabaseCheckpointTruncations() {
+		return checkpointer.getTruncations();
+	}
+	
+	
+	public long getDatabaseIncompleteCheckpoints() {
+		return checkpointer.getIncompleteCheckpoints();
+	}
+	
+	
+	public long getDatabaseFailedCheckpoints() {
+		return checkpointer.getFailedCheckpoints();
+	}
+	
+	
+	public long getDatabaseLastCheckpointMicros() {
+		return checkpointer.getLastCheckpointNanos() / 1000;
+	}
+	
+	
+	public long getDatabaseMaxCheckpointMicros() {
+		return checkpointer.getMaxCheckpointNanos() / 1000;
+	}
+	
+	
+	public long getDatabaseTotalCheckpointMillis() {
+		return checkpointer.getTotalCheckpointNanos() / 1000000;
+	}
+	
+	
+	
+	/*---- RetentionThread ----*/
+	
+	public long getRetentionPasses() {
+		return retention.getPasses();
+	}
+	
+	
+	public long getRetentionBatches() {
+		return retention.getBatches();
+	}
+	
+	
+	public long getRetentionEventsExamined() {
+		return retention.getEventsExamined();
+	}
+	
+	
+	public long getRetentionMaxBatchMicros() {
+		return retention.getMaxBatchNanos() / 1000;
+	}
+	
+	
+	public long getRetentionFreePages() {
+		return retention.getFreePages();
+	}
+	
+	
+	
+	/*---- BackupThread ----*/
+	
+	public boolean getBackupRunning() {
+		return backup.isRunning();
+	}
+	
+	
+	public long getBackups() {
+		return backup.getBackups();
+	}
+	
+	
+	public long getBackupFailures() {
+		return backup.getFailures();
+	}
+	
+	
+	public long getLastBackupMillis() {
+		return backup.getLastMillis();
+	}
+	
+	
+	public long getLastBackupBytes() {
+		return backup.getLastBytes();
+	}
+	
+	
+	public long getLastBackupBytesPerSecond() {
+		return backup.getLastBytesPerSecond();
+	}
+	
+	
+	public int getLastBackupFilesCopied() {
+		return backup.getLastFilesCopied();
+	}
+	
+	
+	public int getLastBackupFilesSkipped() {
+		return backup.getLastFilesSkipped();
+	}
+	
+	
+	public long getLastBackupCommitMicros() {
+		return backup.getLastCommitNanos() / 1000;
+	}
+	
+	
+	public long getLastBackupBaselineCommitMicros() {
+		return backup.getBaselineCommitNanos() / 1000;
+	}
+	
+	
+	
+	/*---- Attached processors ----*/
+	
+	public int getAttachedProcessors() {
+		return master.getSubscribers().length;
+	}
+	
+	
+	public long getProcessorRingBacklog() {
+		long result = 0;
+		for (ProcessorSubscriber sub : master.getSubscribers())
+			result += sub.getRingSize();
+		return result;
+	}
+	
+	
+	
+	/*---- OutputWriterThread to the controlling Processor ----*/
+	
+	public int getProcessorWriterQueuedItems() {
+		OutputWriterThread writer = master.getProcessorWriter();
+		return writer != null ? writer.getQueuedItems() : 0;
+	}
+	
+	
+	public long getProcessorWriterQueuedBytes() {
+		OutputWriterThread writer = master.getProcessorWriter();
+		return writer != null ? writer.getQueuedBytes() : 0;
+	}
+	
+	
+	public long getProcessorWriterPeakQueuedBytes() {
+		OutputWriterThread writer = master.getProcessorWriter();
+		return writer != null ? writer.getPeakQueuedBytes() : 0;
+	}
+	
+	
+	public long getProcessorWriterBlockedMillis() {
+		OutputWriterThread writer = master.getProcessorWriter();
+		return writer != null ? writer.getBlockedNanos() / 1000000 : 0;
+	}
+	
+	
+	public long getProcessorWriterSpilledItems() {
+		OutputWriterThread writer = master.getProcessorWriter();
+		return writer != null ? writer.getSpilledItems() : 0;
+	}
+	
+	
+	public int getProcessorWriterOverflows() {
+		OutputWriterThread writer = master.getProcessorWriter();
+		return writer != null ? writer.getOverflowCount() : 0;
+	}
+	
+	
+	
+	/*---- Global lock ----*/
+	
+	public long getGlobalLockAcquisitions() {
+		return globalLock.getAcquisitions();
+	}
+	
+	
+	public long getGlobalLockWaitMicros() {
+		return globalLock.getWaitNanos() / 1000;
+	}
+	
+	
+	public long getGlobalLockHoldMicros() {
+		return globalLock.getHoldNanos() / 1000;
+	}
+	
+	
+	
+	/*---- Timer and TLS ----*/
+	
+	public int getTimerPendingTasks() {
+		return timer.getPendingTasks();
+	}
+	
+	
+	public long getTimerLastTickLagMillis() {
+		return timer.getLastTickLagMillis();
+	}
+	
+	
+	public long getTimerMaxTickLagMillis() {
+		return timer.getMaxTickLagMillis();
+	}
+	
+	
+	public long getTlsHandshakes() {
+		return TlsSupport.getHandshakeCount();
+	}
+	
+	
+	public long getTlsResumedHandshakes() {
+		return TlsSupport.getResumedCount();
+	}
+	
+	
+	public long getTlsHandshakeMillis() {
+		return TlsSupport.getTotalHandshakeMillis();
+	}
+	
+}
@@ -0,0 +1,158 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+
+/* 
+ * The JMX management interface of ConnectorStats. All counters are cumulative since the Connector started,
+ * except the ones described as current, last or peak values.
+ */
+public interface ConnectorStatsMBean {
+	
+	/*---- Connections ----*/
+	
+	public int getActiveConnections();  // Current
+	
+	
+	/*---- DatabaseLoggerThread ----*/
+	
+	public int getDatabaseQueueLength();  // Current, in events posted but not yet committed
+	
+	public long getDatabaseBatchesWritten();
+	
+	public long getDatabaseEventsWritten();
+	
+	public int getDatabaseLastBatchSize();
+	
+	public int getDatabaseMaxBatchSize();
+	
+	public long getDatabaseLastCommitMicros();  // One transaction, from begin to commit
+	
+	public long getDatabaseMaxCommitMicros();
+	
+	public long getDatabaseTotalCommitMillis();
+	
+	public long getDatabaseForcedFlushes();  // Batches committed without the latency target, e.g. for attaching processors
+	
+	public long getDatabasePayloadBytes();  // Of the committed events, before compression
+	
+	public long getDatabaseStoredPayloadBytes();  // After compression; equal to the above if connector-compression is none
+	
+	public double getDatabaseCompressionRatio();  // Payload bytes divided by stored payload bytes
+	
+	public long getDatabaseTotalCompressMillis();  // Included in the commit times
+	
+	// Element 0 counts the value 0, and element i >= 1 counts the values in [2^(i-1), 2^i), except that
+	// the last element also counts all larger values
+	public long[] getDatabaseBatchSizeHistogram();  // In events
+	
+	public long[] getDatabaseCommitMicrosHistogram();
+	
+	
+	/*---- DatabaseCheckpointerThread (all zero unless in WAL mode) ----*/
+	
+	public long getDatabaseWalBytes();  // Current size of the write-ahead log file
+	
+	public long getDatabaseCheckpoints();
+	
+	public long getDatabaseCheckpointTruncations();  // Checkpoints that also shrank the log file
+	
+	public long getDatabaseIncompleteCheckpoints();  // Checkpoints that could not copy the whole log because of readers
+	
+	public long getDatabaseFailedCheckpoints();  // Checkpoints that failed with an error and were retried later
+	
+	public long getDatabaseLastCheckpointMicros();
+	
+	public long getDatabaseMaxCheckpointMicros();
+	
+	public long getDatabaseTotalCheckpointMillis();
+	
+	
+	/*---- RetentionThread (all zero unless connector-retention-days is set) ----*/
+	
+	public long getRetentionPasses();  // Over the whole archive
+	
+	public long getRetentionBatches();  // Transactions, each examining a bounded number of events
+	
+	public long getRetentionEventsExamined();
+	
+	public long getRetentionMaxBatchMicros();  // Peak, including the classifying reads before the transaction
+	
+	public long getRetentionFreePages();  // Current, in the file last vacuumed
+	
+	
+	/*---- BackupThread (all zero unless connector-backup-directory is set) ----*/
+	
+	public boolean getBackupRunning();  // Current
+	
+	public long getBackups();  // Successful ones
+	
+	public long getBackupFailures();
+	
+	public long getLastBackupMillis();  // Of the last successful backup, like the following values
+	
+	public long getLastBackupBytes();  // Copied, excluding unchanged files
+	
+	public long getLastBackupBytesPerSecond();
+	
+	public int getLastBackupFilesCopied();
+	
+	public int getLastBackupFilesSkipped();  // Unchanged since the previous backup
+	
+	public long getLastBackupCommitMicros();  // Mean database commit time while the backup ran, to compare with:
+	
+	public long getLastBackupBaselineCommitMicros();  // Mean database commit time before the backup started
+	
+	
+	/*---- Attached processors ----*/
+	
+	public int getAttachedProcessors();  // Current, including read-only subscribers
+	
+	public long getProcessorRingBacklog();  // Current, in events summed over all subscribers
+	
+	
+	/*---- OutputWriterThread to the controlling Processor (all 0 if none is attached) ----*/
+	
+	public int getProcessorWriterQueuedItems();  // Current
+	
+	public long getProcessorWriterQueuedBytes();  // Current
+	
+	public long getProcessorWriterPeakQueuedBytes();
+	
+	public long getProcessorWriterBlockedMillis();
+	
+	public long getProcessorWriterSpilledItems();
+	
+	public int getProcessorWriterOverflows();
+	
+	
+	/*---- Global lock ----*/
+	
+	public long getGlobalLockAcquisitions();
+	
+	public long getGlobalLockWaitMicros();
+	
+	public long getGlobalLockHoldMicros();
+	
+	
+	/*---- Timer and TLS ----*/
+	
+	public int getTimerPendingTasks();  // Current
+	
+	public long getTimerLastTickLagMillis();
+	
+	public long getTimerMaxTickLagMillis();
+	
+	public long getTlsHandshakes();
+	
+	public long getTlsResumedHandshakes();
+	
+	public long getTlsHandshakeMillis();
+	
+}
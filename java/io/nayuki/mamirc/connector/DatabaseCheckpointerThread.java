@@ -0,0 +1,248 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.LockHelper;
+import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.common.WorkerThread;
+
+
+/* 
+ * A worker thread that checkpoints the Connector's database when it is in WAL journal mode, using its own
+ * database connection. The DatabaseLoggerThread disables SQLite's automatic checkpoints, so that no commit
+ * ever pays for one, and notifies this worker after each commit instead. This worker runs a passive checkpoint
+ * (which never waits for the writer or readers) once the write-ahead log reaches a size threshold or the
+ * oldest uncheckpointed commit reaches an age threshold. After a passive checkpoint that copied the whole log,
+ * a truncating checkpoint shrinks the log file back to zero bytes if it has grown past the size threshold;
+ * because the log is already copied, this only blocks inserts for a moment. If the archive is partitioned, each
+ * commit names the partition's file, and this worker switches to a new file when the logger rolls over to it.
+ * A failed checkpoint is logged and retried after a delay on a new connection, because the logger never
+ * checkpoints by itself and the log would otherwise grow without bound.
+ */
+final class DatabaseCheckpointerThread extends WorkerThread {
+	
+	/*---- Fields ----*/
+	
+	private File databaseFile;  // Of the latest commit; protected by the lock
+	private volatile File walFile;  // Of databaseFile
+	private final long thresholdBytes;  // At least 1
+	private final long intervalNanos;   // At least 1
+	
+	private final ReentrantLock lock;
+	private final LockHelper locker;
+	// await() by this worker; signal() upon each commit.
+	private final Condition condCommitted;
+	private long firstCommitTime;  // From System.nanoTime(), valid only if pending is true; protected by the lock
+	private boolean pending;  // Whether the log may have commits that are not checkpointed; protected by the lock
+	
+	// Statistics, written by this worker and readable by any thread
+	private volatile long checkpoints;   // Passive ones
+	private volatile long truncations;   // Truncating ones
+	private volatile long incompleteCheckpoints;  // Passive ones that could not copy the whole log because of readers
+	private volatile long failedCheckpoints;  // Attempts that threw an SQLiteException
+	private volatile long lastCheckpointNanos;
+	private volatile long maxCheckpointNanos;
+	private volatile long totalCheckpointNanos;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// This constructor performs no I/O. The database must be in WAL mode when this thread starts,
+	// unless the archive is partitioned, in which case the file is only a placeholder until the first commit.
+	public DatabaseCheckpointerThread(File file, long thresholdBytes, int intervalSeconds) {
+		super("DatabaseCheckpointerThread", false);  // Every SQLite call is native code, which would pin a virtual thread
+		if (file == null)
+			throw new NullPointerException();
+		if (thresholdBytes < 1 || intervalSeconds < 1)
+			throw new IllegalArgumentException();
+		databaseFile = file;
+		walFile = new File(file.getPath() + "-wal");
+		this.thresholdBytes = thresholdBytes;
+		intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+		
+		lock = new ReentrantLock();
+		locker = new LockHelper(lock);
+		condCommitted = lock.newCondition();
+		pending = false;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	protected void runInner() throws InterruptedException {
+		SQLiteConnection database = null;
+		File current = null;  // The file that the database connection is open on
+		SQLiteStatement passive  = null;
+		SQLiteStatement truncate = null;
+		try {
+			while (true) {
+				// Wait until the log is big enough or old enough
+				File target;
+				try (LockHelper lh = locker.enter()) {
+					while (true) {
+						if (pending) {
+							long remain = firstCommitTime + intervalNanos - System.nanoTime();
+							if (remain <= 0 || walFile.length() >= thresholdBytes)
+								break;
+							condCommitted.awaitNanos(remain);
+						} else
+							condCommitted.await();
+					}
+					pending = false;  // A commit from now on is not necessarily covered by this checkpoint
+					target = databaseFile;
+				}
+				
+				long start;
+				boolean complete;
+				try {
+					// Closing the connection to a partition that the logger has rolled away from lets
+					// SQLite checkpoint its log one last time and delete it, as the last connection
+					if (!target.equals(current)) {
+						if (database != null)
+							database.dispose();
+						current = null;
+						database = new SQLiteConnection(target);
+						database.open(false);
+						database.setBusyTimeout(0);  // Never wait for the writer or readers; try again later instead
+						passive  = database.prepare("PRAGMA wal_checkpoint(PASSIVE)");
+						truncate = database.prepare("PRAGMA wal_checkpoint(TRUNCATE)");
+						current = target;
+					}
+					
+					start = System.nanoTime();
+					Utils.stepStatement(passive, true);
+					complete = passive.columnInt(0) == 0 && passive.columnInt(1) == passive.columnInt(2);
+					passive.reset();
+					if (complete && walFile.length() >= thresholdBytes) {
+						Utils.stepStatement(truncate, true);
+						truncate.reset();
+						truncations++;
+					}
+				} catch (SQLiteException e) {
+					// Start over with a new connection, which also discards any statement left mid-step
+					failedCheckpoints++;
+					Utils.logger.log(Level.WARNING, "Database checkpoint error; retrying in "
+						+ ERROR_RETRY_DELAY / 1000 + " seconds", e);
+					if (database != null)
+						database.dispose();
+					database = null;
+					current = null;
+					try (LockHelper lh = locker.enter()) {
+						setPending();
+					}
+					Thread.sleep(ERROR_RETRY_DELAY);
+					continue;
+				}
+				long elapsed = System.nanoTime() - start;
+				
+				checkpoints++;
+				lastCheckpointNanos = elapsed;
+				maxCheckpointNanos = Math.max(elapsed, maxCheckpointNanos);
+				totalCheckpointNanos += elapsed;
+				if (!complete) {  // Some reader still uses an old snapshot, so retry later
+					incompleteCheckpoints++;
+					try (LockHelper lh = locker.enter()) {
+						setPending();  // Retry on whichever file the logger is committing to by then
+					}
+					Thread.sleep(INCOMPLETE_RETRY_DELAY);
+				}
+				if (Utils.logger.isLoggable(Level.FINEST))
+					Utils.logger.finest("Database checkpoint: complete=" + complete + ", micros=" + elapsed / 1000);
+			}
+		}
+		finally {
+			if (database != null)
+				database.dispose();  // Automatically disposes its associated statements
+		}
+	}
+	
+	
+	// Tells this worker that a transaction was committed to the given database file.
+	// Should only be called by DatabaseLoggerThread.
+	public void committed(File file) {
+		if (file == null)
+			throw new NullPointerException();
+		try (LockHelper lh = locker.enter()) {
+			if (!file.equals(databaseFile)) {
+				databaseFile = file;
+				walFile = new File(file.getPath() + "-wal");
+			}
+			setPending();
+			condCommitted.signal();  // To check the log size
+		}
+	}
+	
+	
+	// Must be called while holding the lock.
+	private void setPending() {
+		if (!pending) {
+			pending = true;
+			firstCommitTime = System.nanoTime();
+		}
+	}
+	
+	
+	private static final int INCOMPLETE_RETRY_DELAY = 1000;  // In milliseconds
+	private static final int ERROR_RETRY_DELAY = 10000;  // In milliseconds
+	
+	
+	
+	/*---- Statistics getters, which can be called from any thread ----*/
+	
+	// Returns the current size of the write-ahead log file, or 0 if it does not exist.
+	public long getWalBytes() {
+		return walFile.length();
+	}
+	
+	
+	public long getCheckpoints() {
+		return checkpoints;
+	}
+	
+	
+	public long getTruncations() {
+		return truncations;
+	}
+	
+	
+	public long getIncompleteCheckpoints() {
+		return incompleteCheckpoints;
+	}
+	
+	
+	public long getFailedCheckpoints() {
+		return failedCheckpoints;
+	}
+	
+	
+	public long getLastCheckpointNanos() {
+		return lastCheckpointNanos;
+	}
+	
+	
+	public long getMaxCheckpointNanos() {
+		return maxCheckpointNanos;
+	}
+	
+	
+	public long getTotalCheckpointNanos() {
+		return totalCheckpointNanos;
+	}
+	
+}
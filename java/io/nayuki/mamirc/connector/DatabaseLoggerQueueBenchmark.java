@@ -0,0 +1,221 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.MpscChunkedQueue;
+
+
+/* 
+ * Compares the two ways that DatabaseLoggerThread has received events from posting threads, without any database I/O:
+ * "locked" is the former hand-off (every post takes a ReentrantLock, appends to an ArrayList and signals a condition,
+ * and the consumer copies the list out with toArray), and "lockfree" is the current one (MpscChunkedQueue, where
+ * a post only unparks the consumer if it announced that it is idle). Each round runs the given number of posting
+ * threads against one consumer that drains batches of up to 4096 events, and reports the posting throughput.
+ * Usage: java io/nayuki/mamirc/connector/DatabaseLoggerQueueBenchmark [MillisPerRound]
+ */
+public final class DatabaseLoggerQueueBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		final int duration = args.length >= 1 ? Integer.parseInt(args[0]) : 3000;
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		System.out.println("threads  locked events/s  lockfree events/s");
+		for (int numThreads = 1; numThreads <= maxThreads * 2; numThreads *= 2) {
+			double locked   = runRound(new LockedHandoff(), numThreads, duration);
+			double lockfree = runRound(new LockFreeHandoff(), numThreads, duration);
+			System.out.printf("%7d  %15.0f  %17.0f%n", numThreads, locked, lockfree);
+		}
+	}
+	
+	
+	// Runs the given number of posting threads and one consumer thread for the given number of milliseconds,
+	// and returns the number of events posted per second. Checks that the consumer received every event.
+	private static double runRound(final Handoff handoff, int numThreads, final int duration) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong posted = new AtomicLong();
+		Thread consumer = new Thread() {
+			public void run() {
+				handoff.consume();
+			}
+		};
+		consumer.start();
+		
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int conId = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					int seq = 0;
+					long end = System.currentTimeMillis() + duration;
+					while (System.currentTimeMillis() < end) {
+						for (int j = 0; j < 100; j++, seq++)
+							handoff.post(new Event(conId, seq, 0, Event.Type.RECEIVE, LINE));
+					}
+					posted.addAndGet(seq);
+				}
+			};
+			threads[i].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread th : threads)
+			th.join();
+		long elapsed = System.nanoTime() - startTime;
+		handoff.finish();
+		consumer.join();
+		if (handoff.consumed != posted.get())
+			throw new AssertionError("Lost events");
+		return posted.get() * 1.0e9 / elapsed;
+	}
+	
+	
+	private static final CleanLine LINE = new CleanLine(":Alice!alice@example.com PRIVMSG #benchmark :The quick brown fox jumps over the lazy dog");
+	
+	private static final int BATCH_EVENTS = 4096;
+	
+	
+	
+	/*---- Hand-off implementations ----*/
+	
+	private static abstract class Handoff {
+		
+		public volatile long consumed;  // Written by the consumer, read after it finishes
+		
+		public abstract void post(Event ev);
+		
+		// Runs on the consumer thread until finish() is called and everything is consumed.
+		public abstract void consume();
+		
+		public abstract void finish();
+		
+	}
+	
+	
+	
+	private static final class LockedHandoff extends Handoff {
+		
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition condAll = lock.newCondition();
+		private final ArrayList<Event> queue = new ArrayList<>();
+		private boolean finished = false;
+		
+		
+		public void post(Event ev) {
+			lock.lock();
+			try {
+				queue.add(ev);
+				condAll.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		
+		public void consume() {
+			long count = 0;
+			lock.lock();
+			try {
+				while (true) {
+					while (queue.isEmpty() && !finished)
+						condAll.awaitUninterruptibly();
+					if (queue.isEmpty())
+						break;
+					Event[] events = queue.toArray(new Event[queue.size()]);
+					queue.clear();
+					lock.unlock();
+					count += events.length;  // A real consumer would write the batch here
+					lock.lock();
+				}
+			} finally {
+				lock.unlock();
+			}
+			consumed = count;
+		}
+		
+		
+		public void finish() {
+			lock.lock();
+			try {
+				finished = true;
+				condAll.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+	}
+	
+	
+	
+	private static final class LockFreeHandoff extends Handoff {
+		
+		private final MpscChunkedQueue<Event> queue = new MpscChunkedQueue<>();
+		private volatile long wakePosition = Long.MAX_VALUE;
+		private volatile Thread consumerThread;
+		private volatile boolean finished = false;
+		
+		
+		public void post(Event ev) {
+			if (queue.offer(ev) >= wakePosition) {
+				wakePosition = Long.MAX_VALUE;  // So that later posts don't unpark again before the consumer runs
+				LockSupport.unpark(consumerThread);
+			}
+		}
+		
+		
+		public void consume() {
+			consumerThread = Thread.currentThread();
+			Event[] batch = new Event[BATCH_EVENTS];
+			long count = 0;
+			while (true) {
+				int n = queue.poll(batch, 0, batch.length);
+				if (n > 0) {
+					count += n;  // A real consumer would write the batch here
+					continue;
+				}
+				if (finished && queue.getPolled() == queue.getOffered())
+					break;
+				wakePosition = queue.getPolled();
+				if (queue.getOffered() <= wakePosition && !finished)
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+				else
+					Thread.yield();  // A producer claimed a position but hasn't published it yet
+				wakePosition = Long.MAX_VALUE;
+			}
+			consumed = count;
+		}
+		
+		
+		public void finish() {
+			finished = true;
+			Thread th = consumerThread;
+			if (th != null)
+				LockSupport.unpark(th);
+		}
+		
+	}
+	
+	
+	// Not instantiable.
+	private DatabaseLoggerQueueBenchmark() {}
+	
+}
@@ -8,232 +8,428 @@
 
 package io.nayuki.mamirc.connector;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
-import com.almworks.sqlite4java.SQLiteConnection;
-import com.almworks.sqlite4java.SQLiteException;
-import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventStore;
 import io.nayuki.mamirc.common.LockHelper;
+import io.nayuki.mamirc.common.MpscChunkedQueue;
+import io.nayuki.mamirc.common.PartitionedEventStore;
 import io.nayuki.mamirc.common.Utils;
 import io.nayuki.mamirc.common.WorkerThread;
 
 
 /* 
- * A worker thread that receives event objects from the master and writes them to an SQLite database.
- * Additional functionality provided:
- * - Implements delays to cluster writes together and avoid writing too frequently
- * - Can synchronously flush queued events so that other readers can see the data
+ * A worker thread that receives event objects from the master and appends them to the archive (see EventStore).
+ * Posting threads hand events over through a lock-free queue and never take a lock; a posting thread only unparks
+ * this worker when the worker has announced that it is idle or that the event completes its batch. The lock
+ * protects just the durability waiters and the flush and terminate requests. Additional functionality provided:
+ * - Groups events into one transaction until the batch reaches an event count or byte budget, or its oldest event
+ *   reaches a latency target, whichever comes first
+ * - Publishes a durable commit watermark per connection, and completes futures when events become durable
+ * - Can synchronously flush queued events before the application terminates
  */
 final class DatabaseLoggerThread extends WorkerThread {
 	
 	/*---- Fields ----*/
 	
-	// The mutex that protects all shared data accesses.
+	// Hand-off from posting threads to this worker
+	private final MpscChunkedQueue<Event> queue;
+	private final AtomicLong postedBytes;  // Total payload length of the events ever posted
+	// This worker sets these before parking: posting the event at queue position wakePosition or later, or making
+	// postedBytes reach wakeBytes, unparks it. Long.MAX_VALUE means no wakeup is needed.
+	private volatile long wakePosition;
+	private volatile long wakeBytes;
+	
+	// The batch being gathered; only accessed by this worker thread
+	private Event[] batch;  // Length at least batchEvents, grown if more events are waiting
+	private int batchSize;
+	private long batchPayloadBytes;
+	private long batchStartTime;  // From System.nanoTime(), when the first event in the batch was taken from the queue
+	private long drainedBytes;  // Total payload length of the events ever taken from the queue
+	
+	// The mutex that protects the waiters and the writing of the request flags.
 	private final ReentrantLock lock;
 	// The preferred convenient way to use the lock.
 	private final LockHelper locker;
-	// await() by this worker; signal() upon {queue non-empty OR flush request's rising edge}.
-	private final Condition condAll;
-	// await() by this worker thread; signal() upon flush request's rising edge.
-	private final Condition condUrgent;
-	// await() by caller of flushQueue(); signal() by this worker when all queue items at time
-	// of flushQueue() call have been written and committed to database. No new items can be
-	// added while flushQueue() blocks because the MamircConnector's global state is blocked.
+	// await() by caller of flushQueue(); signalAll() by this worker after each commit.
 	private final Condition condFlushed;
+	private volatile boolean flushRequested;  // Whether to commit the queue without waiting for the latency target
+	private volatile boolean terminateRequested;
+	private List<DurabilityWaiter> waiters;  // From awaitDurable(), not yet completed
 	
-	// Shared mutable state protected by the monitor
-	private ArrayList<Event> queue;
-	private boolean flushRequested;
-	private boolean terminateRequested;
+	// The durable commit watermark of each connection that has any committed events in this run: every event of
+	// the connection whose sequence number is less than the value is committed. Only written by this worker.
+	private final Map<Integer,Integer> durableSequences;
 	
 	// Database-related variables
-	private final File databaseFile;
-	private SQLiteConnection database;
-	private SQLiteStatement beginTransaction;
-	private SQLiteStatement commitTransaction;
-	private SQLiteStatement insertEvent;
+	private final BackendConfiguration config;  // For opening the archive
+	private final DatabaseCheckpointerThread checkpointer;  // Null unless SQLite in WAL mode
+	private boolean initialized;
+	private EventStore store;  // Only accessed by this worker thread
+	
+	// Batching limits, from the backend configuration
+	private final int batchEvents;  // At least 1
+	private final long batchBytes;  // At least 1
+	private final long batchDelayNanos;  // At least 0
+	
+	// Statistics, written by this worker and readable by any thread
+	private volatile long batchesWritten;
+	private volatile long eventsWritten;  // Committed events, which are the first ones posted (the queue is first-in first-out)
+	private volatile int lastBatchSize;
+	private volatile int maxBatchSize;
+	private volatile long lastCommitNanos;  // Time from beginning the transaction to finishing the commit
+	private volatile long maxCommitNanos;
+	private volatile long totalCommitNanos;
+	private volatile long forcedFlushes;  // Batches committed early because of flushQueue() or awaitDurable()
+	private volatile long payloadBytes;  // Committed payloads, as given and as stored (e.g. compressed)
+	private volatile long storedPayloadBytes;
+	private volatile long compressNanos;  // Included in the commit times
+	private final PowerOfTwoHistogram batchSizes = new PowerOfTwoHistogram(BATCH_SIZE_BUCKETS);  // In events
+	private final PowerOfTwoHistogram commitMicros = new PowerOfTwoHistogram(COMMIT_MICROS_BUCKETS);
 	
 	
 	/*---- Constructor ----*/
 	
-	// 'file' must be an existing file or a non-existent path, but not a directory.
+	// Uses the archive format and location, SQLite settings and batching limits from the given configuration. The
+	// checkpointer must be null unless the archive is SQLite in WAL mode, in which case it must not be null.
 	// This constructor initializes variables and objects but performs no I/O.
-	public DatabaseLoggerThread(File file) {
-		super("DatabaseLoggerThread");
-		if (file == null)
+	public DatabaseLoggerThread(BackendConfiguration config, DatabaseCheckpointerThread checkpointer) {
+		super("DatabaseLoggerThread", false);  // Every SQLite call is native code, which would pin a virtual thread
+		if (config == null)
 			throw new NullPointerException();
-		databaseFile = file;
+		if (needsCheckpointer(config) != (checkpointer != null))
+			throw new IllegalArgumentException("Checkpointer is needed exactly for SQLite in WAL mode");
+		this.config = config;
+		this.checkpointer = checkpointer;
+		initialized = false;
+		batchEvents = config.connectorBatchEvents;
+		batchBytes = config.connectorBatchBytes;
+		batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.connectorBatchDelayMillis);
+		
+		queue = new MpscChunkedQueue<>();
+		postedBytes = new AtomicLong(0);
+		wakePosition = Long.MAX_VALUE;
+		wakeBytes = Long.MAX_VALUE;
+		batch = new Event[batchEvents];
+		batchSize = 0;
+		drainedBytes = 0;
 		
 		lock = new ReentrantLock();
 		locker = new LockHelper(lock);
-		condAll     = lock.newCondition();
-		condUrgent  = lock.newCondition();
 		condFlushed = lock.newCondition();
-		
-		queue = new ArrayList<>();
 		flushRequested = false;
 		terminateRequested = false;
+		waiters = new ArrayList<>();
+		durableSequences = new ConcurrentHashMap<>();
 	}
 	
 	
 	/*---- Methods ----*/
 	
-	// Initializes a database file if nonexistent, or reads from an existing one;
+	// Initializes the archive if nonexistent, or reads from an existing one;
 	// then this method returns the first suitable connection ID for the connector to use.
 	// This method should be called one time before Thread.start() is called.
-	public int initAndGetNextConnectionId() throws SQLiteException {
-		if (database != null)
+	public int initAndGetNextConnectionId() throws IOException {
+		if (initialized)
 			throw new IllegalStateException("Cannot call initAndGetNextConnectionId() again");
-		
-		// Initialize table
-		database = new SQLiteConnection(databaseFile);
-		try {
-			database.open(true);
-			database.exec("PRAGMA journal_mode = PERSIST");
-			database.exec("CREATE TABLE IF NOT EXISTS events("
-				+ "connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, "
-				+ "type INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY(connectionId, sequence))");
-			
-			// Get current highest connection ID
-			SQLiteStatement getMaxConId = database.prepare("SELECT max(connectionId) FROM events");
-			Utils.stepStatement(getMaxConId, true);
-			if (getMaxConId.columnNull(0))
-				return 0;
-			else
-				return getMaxConId.columnInt(0) + 1;
-		} finally {
-			database.dispose();  // Automatically disposes its associated statements
+		try (EventStore st = EventStore.open(config, true)) {
+			initialized = true;
+			return st.getNextConnectionId();
 		}
-		// Although we don't use the 'database' object anymore, we keep a reference
-		// to it so that we can check the correct sequencing of method calls.
+		// The store is reopened on the worker thread, because an SQLite connection is confined to one thread
 	}
 	
 	
 	protected void runInner() throws InterruptedException {
-		if (database == null)
+		if (!initialized)
 			throw new IllegalStateException("Need to call initAndGetNextConnectionId() first");
 		
-		// Initialize database state and statements
-		database = new SQLiteConnection(databaseFile);
 		try {
-			database.open(false);
-			database.setBusyTimeout(60000);
-			beginTransaction  = database.prepare("BEGIN TRANSACTION");
-			commitTransaction = database.prepare("COMMIT TRANSACTION");
-			insertEvent       = database.prepare("INSERT INTO events VALUES(?,?,?,?,?)");
+			store = EventStore.open(config, true);
+			if (checkpointer != null)
+				checkpointer.start();
 			
 			// Process incoming event objects
-			lock.lock();
-			while (!queue.isEmpty() || !terminateRequested)
-				processBatchOfEvents();
+			while (processBatchOfEvents()) {}
 			// Lock is still held while cleaning up and terminating
 		}
-		catch (SQLiteException e) {
+		catch (IOException e) {
 			Utils.logger.log(Level.SEVERE, "Database error", e);
 		}
 		finally {
-			database.dispose();  // Automatically disposes its associated statements
+			if (store != null) {
+				try {
+					store.close();
+				} catch (IOException e) {}
+			}
 			Utils.logger.info("MamIRC Connector application terminating");
 			System.exit(1);  // The one and only way to terminate a MamircConnector process
 		}
 	}
 	
 	
-	private static final int WRITE_DELAY = 10000;  // In milliseconds
+	// Whether the given configuration's archive needs a DatabaseCheckpointerThread.
+	public static boolean needsCheckpointer(BackendConfiguration config) {
+		return config.connectorArchiveFormat.equals("sqlite") && config.connectorJournalMode.equals("WAL");
+	}
+	
 	
-	// Must hold 'lock' before and after the method call.
-	private void processBatchOfEvents() throws SQLiteException, InterruptedException {
+	// Waits for events or a request, then commits one batch. Returns true normally, or false after committing
+	// the last events upon termination, in which case the lock is held. Must not hold the lock before the call.
+	private boolean processBatchOfEvents() throws IOException, InterruptedException {
 		// Wait for something to do
-		if (!lock.isHeldByCurrentThread())
-			throw new AssertionError();
-		while (queue.isEmpty() && !flushRequested && !terminateRequested)
-			condAll.await();
+		while (true) {
+			drainQueue();
+			if (batchSize > 0 || flushRequested || terminateRequested)
+				break;
+			awaitPosted(queue.getPolled(), Long.MAX_VALUE, -1);  // Any event
+		}
 		if (Utils.logger.isLoggable(Level.FINEST)) {
 			Utils.logger.finest(String.format(
-				"Database thread awoke: queue.size()=%d, flushRequested=%b, terminateRequested=%b",
-				queue.size(), flushRequested, terminateRequested));
+				"Database thread awoke: batchSize=%d, flushRequested=%b, terminateRequested=%b",
+				batchSize, flushRequested, terminateRequested));
 		}
 		
-		if (flushRequested || terminateRequested) {
-			// Drain the queue straightforwardly
-			Utils.stepStatement(beginTransaction, false);
-			for (Event ev : queue)
-				insertEventIntoDb(ev);
-			queue.clear();
-			Utils.stepStatement(commitTransaction, false);
+		boolean terminating = terminateRequested;
+		if (terminating) {
+			// Commit everything posted so far, including events whose posting is still finishing
+			long target = queue.getOffered();
+			while (queue.getPolled() < target) {
+				if (drainQueue() == 0)
+					Thread.yield();
+			}
+			writeBatch(takeBatch());
 			Utils.logger.finest("Wrote all pending events to database");
-			flushRequested = false;
-			condFlushed.signal();
 			
 		} else {
-			// Wait to gather a burst of messages
-			condUrgent.await(WRITE_DELAY, TimeUnit.MILLISECONDS);
-			
-			// Drain the queue without blocking on I/O
-			Event[] events = queue.toArray(new Event[queue.size()]);
-			queue.clear();
+			// Gather a burst of events until the batch is full or its oldest event reaches the latency target,
+			// unless someone is waiting for durability
+			while (!flushRequested && !terminateRequested && batchSize < batchEvents && batchPayloadBytes < batchBytes) {
+				long remain = batchStartTime + batchDelayNanos - System.nanoTime();
+				if (remain <= 0)
+					break;
+				// Wake up for the event that fills the batch, or for the bytes that reach the byte budget
+				awaitPosted(queue.getPolled() + (batchEvents - batchSize) - 1, drainedBytes + (batchBytes - batchPayloadBytes), remain);
+				drainQueue();
+			}
+			flushRequested = false;  // Any request from now on needs another batch
+			drainQueue();
 			
-			// Do all database I/O while allowing other threads to post events.
-			// Note: Queue is empty and lock is dropped, but the data is not committed yet!
-			// Thus flushQueue() cannot simply check for an empty queue and
-			// return without explicit acknowledgement from this worker thread.
-			lock.unlock();
-			try {
-				Utils.stepStatement(beginTransaction, false);
-				for (Event ev : events)
-					insertEventIntoDb(ev);
-				Utils.stepStatement(commitTransaction, false);
-				Utils.logger.finest("Wrote events to database: count=" + events.length);
-			} finally {
-				lock.lock();
+			// Do all database I/O while other threads keep posting events.
+			// Note: The data is not committed yet! Thus waiters are only completed after the watermarks advance.
+			Event[] events = takeBatch();
+			writeBatch(events);
+			Utils.logger.finest("Wrote events to database: count=" + events.length);
+		}
+		
+		// Complete the waiters whose events are now durable
+		lock.lock();
+		for (Iterator<DurabilityWaiter> iter = waiters.iterator(); iter.hasNext(); ) {
+			DurabilityWaiter w = iter.next();
+			if (w.sequence <= getDurableSequence(w.connectionId)) {
+				iter.remove();
+				w.future.complete(null);
 			}
 		}
+		if (!waiters.isEmpty())
+			flushRequested = true;  // Their events didn't fit in this batch
+		condFlushed.signalAll();
+		if (terminating)
+			return false;
+		lock.unlock();
+		return true;
 	}
 	
 	
-	// Requires the database and statement to be initialized already.
-	private void insertEventIntoDb(Event ev) throws SQLiteException {
-		if (ev == null)
-			throw new NullPointerException();
-		insertEvent.bind(1, ev.connectionId);
-		insertEvent.bind(2, ev.sequence);
-		insertEvent.bind(3, ev.timestamp);
-		insertEvent.bind(4, ev.type.ordinal());
-		insertEvent.bind(5, ev.line.getDataNoCopy());
-		Utils.stepStatement(insertEvent, false);
+	// Moves all available events from the queue into the batch, and returns the count. Like the former ArrayList queue,
+	// the batch can exceed batchEvents, so that a backlog built up during a slow commit goes into the next one.
+	// Only called by this worker.
+	private int drainQueue() {
+		int start = batchSize;
+		while (true) {
+			if (batchSize == batch.length) {
+				if (queue.size() == 0)
+					break;
+				batch = Arrays.copyOf(batch, batch.length * 2);
+			}
+			int n = queue.poll(batch, batchSize, batch.length - batchSize);
+			if (n == 0)
+				break;
+			long bytes = 0;
+			for (int i = batchSize; i < batchSize + n; i++)
+				bytes += batch[i].line.getDataNoCopy().length;
+			batchSize += n;
+			batchPayloadBytes += bytes;
+			drainedBytes += bytes;
+		}
+		if (start == 0 && batchSize > 0)
+			batchStartTime = System.nanoTime();
+		return batchSize - start;
+	}
+	
+	
+	// Returns the batch's events in an array of the exact length, and empties the batch. A full batch array,
+	// as is usual under load, is handed over without copying. Only called by this worker.
+	private Event[] takeBatch() {
+		Event[] result;
+		if (batchSize == batch.length) {
+			result = batch;
+			batch = new Event[batchEvents];
+		} else {
+			result = Arrays.copyOf(batch, batchSize);
+			Arrays.fill(batch, 0, batchSize, null);
+		}
+		batchSize = 0;
+		batchPayloadBytes = 0;
+		return result;
 	}
 	
 	
-	// Adds an event to the queue. This method is thread-safe. It should only be called
-	// from a thread currently executing in the MamircConnector object's context.
+	// Parks this worker until the event at the given queue position is posted, the given total of posted bytes
+	// is reached, a flush or termination is requested, or the given number of nanoseconds elapses (unless negative).
+	// May return early. Only called by this worker.
+	private void awaitPosted(long position, long bytes, long nanos) throws InterruptedException {
+		wakePosition = position;
+		wakeBytes = bytes;
+		// Check after announcing, so that a concurrent postEvent() or request is either seen here or unparks this thread
+		if (queue.getOffered() <= position && postedBytes.get() < bytes && !flushRequested && !terminateRequested) {
+			if (nanos < 0)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, nanos);
+		}
+		wakePosition = Long.MAX_VALUE;
+		wakeBytes = Long.MAX_VALUE;
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+	
+	
+	// Appends and commits the given events as one batch (unless there are none), and then
+	// advances the durable watermarks and the statistics. Only called by this worker thread.
+	private void writeBatch(Event[] events) throws IOException {
+		if (events.length == 0)
+			return;
+		long start = System.nanoTime();
+		store.append(events);
+		recordBatch(events.length, System.nanoTime() - start);
+		payloadBytes = store.getAppendedPayloadBytes();
+		storedPayloadBytes = store.getStoredPayloadBytes();
+		compressNanos = store.getCompressNanos();
+		if (checkpointer != null)
+			checkpointer.committed(store instanceof PartitionedEventStore
+				? ((PartitionedEventStore)store).getActiveFile() : config.connectorDatabaseFile);
+		
+		// Each connection's events are queued in sequence order, so the last one in the batch is the highest
+		Map<Integer,Integer> watermarks = new HashMap<>();
+		for (Event ev : events)
+			watermarks.put(ev.connectionId, ev.sequence + 1);
+		durableSequences.putAll(watermarks);
+	}
+	
+	
+	// Updates the statistics after committing the given number of events. Only called by this worker thread.
+	private void recordBatch(int size, long nanos) {
+		batchesWritten++;
+		eventsWritten += size;
+		lastBatchSize = size;
+		maxBatchSize = Math.max(size, maxBatchSize);
+		lastCommitNanos = nanos;
+		maxCommitNanos = Math.max(nanos, maxCommitNanos);
+		totalCommitNanos += nanos;
+		batchSizes.record(size);
+		commitMicros.record(nanos / 1000);
+	}
+	
+	
+	
+	
+	// Adds an event to the queue. This method is thread-safe and lock-free. It should only be called from a thread
+	// currently executing in the MamircConnector object's context, holding the event's connection lock.
 	public void postEvent(Event ev) {
 		if (ev == null)
 			throw new NullPointerException();
+		long pos = queue.offer(ev);
+		long bytes = postedBytes.addAndGet(ev.line.getDataNoCopy().length);
+		if (pos >= wakePosition || bytes >= wakeBytes) {
+			// Unpark only once, not on every post until the worker gets to run; the worker
+			// gets the permit after these writes, so it cannot miss a wakeup because of them
+			wakePosition = Long.MAX_VALUE;
+			wakeBytes = Long.MAX_VALUE;
+			unpark();
+		}
+	}
+	
+	
+	// Returns the number of events committed to the database so far. Can be called from any thread without blocking.
+	public long getCommittedEvents() {
+		return eventsWritten;
+	}
+	
+	
+	// Returns the durable commit watermark of the given connection: every event of the connection whose
+	// sequence number is less than the result is committed. Can be called from any thread without blocking.
+	public int getDurableSequence(int conId) {
+		Integer result = durableSequences.get(conId);
+		return result != null ? result : 0;
+	}
+	
+	
+	// Returns a future that completes once every event of the given connection whose sequence number is less than
+	// the given one is committed. If they are not all committed yet, this worker commits its queue without waiting
+	// for the usual write delay. The caller must have already posted all those events. This method never blocks on
+	// database I/O and can be called from any thread. The future is completed on this worker thread while it holds
+	// its lock, so any dependent action should be quick or use the asynchronous variants of CompletableFuture.
+	public CompletableFuture<Void> awaitDurable(int conId, int seq) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
 		try (LockHelper lh = locker.enter()) {
-			queue.add(ev);
-			condAll.signal();
+			// The worker advances the watermark before taking the lock to complete waiters, so either the watermark
+			// is seen here or the waiter is seen by the worker
+			if (seq <= getDurableSequence(conId))
+				result.complete(null);
+			else {
+				waiters.add(new DurabilityWaiter(conId, seq, result));
+				requestFlush();
+			}
 		}
+		return result;
 	}
 	
 	
 	// Requests this worker thread to write and commit all queued events to the database, and blocks
-	// the caller thread until the flush finishes. Should only be called from MamircConnector.
+	// the caller thread until the flush finishes. Should only be called by terminate().
 	public void flushQueue() {
 		try (LockHelper lh = locker.enter()) {
-			if (flushRequested)
-				throw new IllegalStateException();
+			long target = queue.getOffered();
+			while (eventsWritten < target) {
+				requestFlush();  // Again after each batch, because a batch holds at most batchEvents
+				condFlushed.awaitUninterruptibly();
+			}
+		}
+	}
+	
+	
+	// Makes the worker commit its queue without waiting for the write delay. Must hold the lock.
+	private void requestFlush() {
+		if (!flushRequested) {
+			forcedFlushes++;
 			flushRequested = true;
-			condAll.signal();
-			condUrgent.signal();
-			do condFlushed.awaitUninterruptibly();
-			while (flushRequested);
-			if (!queue.isEmpty())
-				throw new AssertionError();
+			unpark();
 		}
 	}
 	
@@ -243,8 +439,103 @@ final class DatabaseLoggerThread extends WorkerThread {
 	public void terminate() {
 		try (LockHelper lh = locker.enter()) {
 			terminateRequested = true;
+			unpark();
 			flushQueue();
 		}
 	}
 	
+	
+	
+	/*---- Statistics getters, which can be called from any thread ----*/
+	
+	// Returns the number of events posted but not yet committed.
+	public int getQueueLength() {
+		return (int)Math.min(Math.max(queue.getOffered() - eventsWritten, 0), Integer.MAX_VALUE);
+	}
+	
+	
+	public long getBatchesWritten() {
+		return batchesWritten;
+	}
+	
+	
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+	
+	
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+	
+	
+	public long getLastCommitNanos() {
+		return lastCommitNanos;
+	}
+	
+	
+	public long getMaxCommitNanos() {
+		return maxCommitNanos;
+	}
+	
+	
+	public long getTotalCommitNanos() {
+		return totalCommitNanos;
+	}
+	
+	
+	public long getForcedFlushes() {
+		return forcedFlushes;
+	}
+	
+	
+	public long getPayloadBytes() {
+		return payloadBytes;
+	}
+	
+	
+	public long getStoredPayloadBytes() {
+		return storedPayloadBytes;
+	}
+	
+	
+	public long getCompressNanos() {
+		return compressNanos;
+	}
+	
+	
+	// Bucket i >= 1 counts the batches of [2^(i-1), 2^i) events (see PowerOfTwoHistogram).
+	public long[] getBatchSizeHistogram() {
+		return batchSizes.getCounts();
+	}
+	
+	
+	// Bucket i >= 1 counts the commits that took [2^(i-1), 2^i) microseconds (see PowerOfTwoHistogram).
+	public long[] getCommitMicrosHistogram() {
+		return commitMicros.getCounts();
+	}
+	
+	
+	private static final int BATCH_SIZE_BUCKETS = 21;  // Up to 2^19 events, then overflow
+	private static final int COMMIT_MICROS_BUCKETS = 27;  // Up to 2^25 microseconds (about 34 s), then overflow
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	private static final class DurabilityWaiter {
+		
+		public final int connectionId;
+		public final int sequence;  // Exclusive upper bound on the sequence numbers that must be durable
+		public final CompletableFuture<Void> future;
+		
+		
+		public DurabilityWaiter(int conId, int seq, CompletableFuture<Void> future) {
+			connectionId = conId;
+			sequence = seq;
+			this.future = future;
+		}
+		
+	}
+	
 }
@@ -0,0 +1,519 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventStore;
+
+
+/* 
+ * A command-line tool that streams the events of an archive into a compact binary stream file, or a stream back
+ * into an archive, e.g. to migrate an archive or to cut a test fixture out of production data. The Connector must
+ * not be running on the archive being imported into, which must be empty or nonexistent. Usage:
+ *   java io.nayuki.mamirc.connector.EventStreamTool export Format ArchivePath StreamFile [Options]
+ *   java io.nayuki.mamirc.connector.EventStreamTool import StreamFile Format ArchivePath [Options]
+ * where the format is "sqlite", "sqlite-dictionary", "sqlite-monthly", "sqlite-daily" (a partitioned archive
+ * directory with its catalog, where an import goes into the partition of the current period) or "segments" (see
+ * EventStore.open()), a stream file of "-" means standard output or input, and the options are:
+ *   --compress           Compress each block of the exported stream with zlib.
+ *   --threads N          Compress or decompress blocks on N threads (default: the number of processors).
+ *   --connections A-B    Only the events of connection IDs A to B inclusive (or just A).
+ *   --since T, --until T Only the events with timestamps in [since, until), each given in Unix milliseconds or
+ *                        in ISO 8601 (e.g. 2026-10-01T00:00:00Z).
+ * The stream is read and written in large sequential buffers, events are encoded and decoded in blocks of about
+ * 1 MiB that are compressed and decompressed independently on a thread pool (while keeping their order), and each
+ * imported block is appended in one batch, e.g. one transaction of multi-row inserts. Exporting a connection range
+ * reads only those connections (by primary key or index) instead of scanning the whole archive.
+ * 
+ * The stream format is the 8 bytes "MamIRCes", then a sequence of blocks, then a varint 0. Each block is a varint
+ * event count (at least 1), a byte method (0 = stored, 1 = zlib), a varint raw length, a varint stored length, and
+ * the stored bytes. The raw bytes are the block's events, each encoded as the varints zigzag(connectionId minus the
+ * previous event's), zigzag(sequence minus the previous event's plus 1), zigzag(timestamp minus the previous event's),
+ * then a type byte, a varint data length and the data. The "previous event" before a block's first event is
+ * connection 0, sequence -1, timestamp 0, so that each block decodes on its own. Varints are unsigned LEB128.
+ */
+public final class EventStreamTool {
+	
+	/*---- Main program ----*/
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4 || !args[0].matches("export|import")) {
+			System.err.println("Usage: java io.nayuki.mamirc.connector.EventStreamTool export Format ArchivePath StreamFile [Options]");
+			System.err.println("       java io.nayuki.mamirc.connector.EventStreamTool import StreamFile Format ArchivePath [Options]");
+			System.err.println("Options: --compress, --threads N, --connections A-B, --since T, --until T");
+			System.exit(1);
+			return;
+		}
+		boolean export = args[0].equals("export");
+		
+		// Parse options
+		Filter filter = new Filter();
+		boolean compress = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 4; i < args.length; i++) {
+			String opt = args[i];
+			if (opt.equals("--compress") && export)
+				compress = true;
+			else if (i + 1 < args.length && opt.matches("--threads|--connections|--since|--until")) {
+				String val = args[++i];
+				if (opt.equals("--threads"))
+					threads = Integer.parseInt(val);
+				else if (opt.equals("--connections")) {
+					String[] parts = val.split("-", 2);
+					filter.minConnectionId = Integer.parseInt(parts[0]);
+					filter.maxConnectionId = parts.length == 2 ? Integer.parseInt(parts[1]) : filter.minConnectionId;
+				} else if (opt.equals("--since"))
+					filter.since = parseTime(val);
+				else
+					filter.until = parseTime(val);
+			} else
+				throw new IllegalArgumentException("Invalid option: " + opt);
+		}
+		if (threads < 1 || filter.minConnectionId < 0 || filter.maxConnectionId < filter.minConnectionId)
+			throw new IllegalArgumentException("Invalid option value");
+		
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Stats stats;
+			if (export) {
+				try (EventStore src = EventStore.open(args[1], new File(args[2]), false);
+						OutputStream out = args[3].equals("-") ? System.out : new FileOutputStream(args[3])) {
+					OutputStream bout = new BufferedOutputStream(out, IO_BUFFER_SIZE);
+					stats = exportEvents(src, bout, filter, compress, executor);
+					bout.flush();
+				}
+			} else {
+				try (InputStream in = args[1].equals("-") ? System.in : new FileInputStream(args[1]);
+						EventStore dest = EventStore.open(args[2], new File(args[3]), true)) {
+					stats = importEvents(new BufferedInputStream(in, IO_BUFFER_SIZE), dest, filter, executor);
+				}
+			}
+			long millis = Math.max((System.nanoTime() - start) / 1000000, 1);
+			System.err.printf("%s %d events in %d blocks (%d KiB raw, %d KiB stored) in %d ms (%d KiB/s raw)%n",
+				export ? "Exported" : "Imported", stats.events, stats.blocks, stats.rawBytes >>> 10,
+				stats.storedBytes >>> 10, millis, stats.rawBytes * 1000 / millis >>> 10);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	
+	private static long parseTime(String s) {
+		if (s.matches("-?[0-9]+"))
+			return Long.parseLong(s);
+		try {
+			return Instant.parse(s).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid time: " + s);
+		}
+	}
+	
+	
+	
+	/*---- Export ----*/
+	
+	// Writes the header, the events of the given archive that the filter accepts, and the end marker
+	// to the given stream (which is not flushed), compressing blocks on the given executor if requested.
+	static Stats exportEvents(EventStore src, OutputStream out, final Filter filter, boolean compress, ExecutorService executor) throws IOException {
+		out.write(MAGIC);
+		final BlockWriter writer = new BlockWriter(out, compress, executor);
+		EventStore.Visitor visitor = new EventStore.Visitor() {
+			public void visit(Event ev) throws IOException {
+				if (filter.accepts(ev))
+					writer.add(ev);
+			}
+		};
+		if (filter.minConnectionId > 0 || filter.maxConnectionId < Integer.MAX_VALUE) {
+			int end = Math.min(filter.maxConnectionId, src.getNextConnectionId() - 1);
+			for (int conId = filter.minConnectionId; conId <= end; conId++)
+				src.readConnection(conId, 0, Integer.MAX_VALUE, visitor);
+		} else
+			src.scan(visitor);
+		writer.finish();
+		writeVarint(0, out);
+		return writer.stats;
+	}
+	
+	
+	
+	private static final class BlockWriter {
+		
+		private final OutputStream out;
+		private final boolean compress;
+		private final ExecutorService executor;
+		private final Queue<Future<byte[]>> pending;  // Encoded blocks not yet written, in order
+		private List<Event> events;  // Of the current block
+		private long eventBytes;     // Estimated raw length of the current block
+		public final Stats stats;
+		
+		
+		public BlockWriter(OutputStream out, boolean compress, ExecutorService executor) {
+			this.out = out;
+			this.compress = compress;
+			this.executor = executor;
+			pending = new ArrayDeque<>();
+			events = new ArrayList<>();
+			stats = new Stats();
+		}
+		
+		
+		public void add(Event ev) throws IOException {
+			events.add(ev);
+			eventBytes += ev.line.getDataNoCopy().length + 16;
+			if (eventBytes >= BLOCK_BYTES)
+				submit();
+		}
+		
+		
+		public void finish() throws IOException {
+			if (!events.isEmpty())
+				submit();
+			while (!pending.isEmpty())
+				writeBlock(getResult(pending.remove()));
+		}
+		
+		
+		// Encodes and compresses the current block on the executor, and writes out
+		// the oldest blocks once enough are in flight to keep every thread busy.
+		private void submit() throws IOException {
+			final List<Event> evs = events;
+			pending.add(executor.submit(new Callable<byte[]>() {
+				public byte[] call() {
+					return encodeBlock(evs, compress);
+				}
+			}));
+			stats.events += evs.size();
+			events = new ArrayList<>();
+			eventBytes = 0;
+			while (pending.size() > MAX_PENDING_BLOCKS)
+				writeBlock(getResult(pending.remove()));
+		}
+		
+		
+		private void writeBlock(byte[] block) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(block);
+			readVarint(buf);  // Event count
+			buf.get();  // Method
+			stats.rawBytes += readVarint(buf);
+			stats.storedBytes += readVarint(buf);
+			stats.blocks++;
+			out.write(block);
+		}
+		
+	}
+	
+	
+	// Returns the complete block (header and stored bytes) of the given events, which must not be empty.
+	static byte[] encodeBlock(List<Event> events, boolean compress) {
+		byte[] raw = encodeEvents(events);
+		byte[] stored = raw;
+		int method = 0;
+		if (compress) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream bout = new ByteArrayOutputStream(raw.length / 2);
+			byte[] buf = new byte[65536];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				bout.write(buf, 0, n);
+			}
+			deflater.end();
+			if (bout.size() < raw.length) {  // Otherwise store the block raw
+				stored = bout.toByteArray();
+				method = 1;
+			}
+		}
+		ByteArrayOutputStream result = new ByteArrayOutputStream(stored.length + 20);
+		writeVarint(events.size(), result);
+		result.write(method);
+		writeVarint(raw.length, result);
+		writeVarint(stored.length, result);
+		result.write(stored, 0, stored.length);
+		return result.toByteArray();
+	}
+	
+	
+	static byte[] encodeEvents(List<Event> events) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int prevConId = 0;
+		int prevSeq = -1;
+		long prevTime = 0;
+		for (Event ev : events) {
+			writeVarint(zigzag((long)ev.connectionId - prevConId), out);
+			writeVarint(zigzag((long)ev.sequence - prevSeq - 1), out);
+			writeVarint(zigzag(ev.timestamp - prevTime), out);
+			out.write(ev.type.ordinal());
+			byte[] data = ev.line.getDataNoCopy();
+			writeVarint(data.length, out);
+			out.write(data, 0, data.length);
+			prevConId = ev.connectionId;
+			prevSeq = ev.sequence;
+			prevTime = ev.timestamp;
+		}
+		return out.toByteArray();
+	}
+	
+	
+	
+	/*---- Import ----*/
+	
+	// Reads a whole stream and appends the events that the filter accepts to the given archive, which must be empty,
+	// one batch per block, decompressing and decoding blocks on the given executor.
+	static Stats importEvents(InputStream in, EventStore dest, Filter filter, ExecutorService executor) throws IOException {
+		if (dest.getNextConnectionId() != 0)
+			throw new IllegalArgumentException("Destination archive is not empty");
+		DataInputStream din = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		din.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not an event stream");
+		
+		Stats stats = new Stats();
+		Queue<Future<List<Event>>> pending = new ArrayDeque<>();
+		while (true) {
+			// Read the next block, if any
+			final int count = checkLength(readVarint(din));
+			if (count > 0) {
+				final int method = din.read();
+				final int rawLen = checkLength(readVarint(din));
+				int storedLen = checkLength(readVarint(din));
+				if (method != 0 && method != 1 || method == 0 && storedLen != rawLen || count > rawLen / MIN_EVENT_BYTES)
+					throw new IOException("Malformed event stream");
+				final byte[] stored = new byte[storedLen];
+				din.readFully(stored);
+				stats.blocks++;
+				stats.rawBytes += rawLen;
+				stats.storedBytes += storedLen;
+				pending.add(executor.submit(new Callable<List<Event>>() {
+					public List<Event> call() throws IOException {
+						return decodeEvents(method == 1 ? inflate(stored, rawLen) : stored, count);
+					}
+				}));
+			}
+			
+			// Append the oldest decoded blocks once enough are in flight, or all of them at the end
+			while (pending.size() > (count > 0 ? MAX_PENDING_BLOCKS : 0)) {
+				List<Event> batch = new ArrayList<>();
+				for (Event ev : getResult(pending.remove())) {
+					if (filter.accepts(ev))
+						batch.add(ev);
+				}
+				if (!batch.isEmpty())
+					dest.append(batch.toArray(new Event[batch.size()]));
+				stats.events += batch.size();
+			}
+			if (count == 0)
+				return stats;
+		}
+	}
+	
+	
+	private static byte[] inflate(byte[] stored, int rawLen) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(stored);
+			byte[] result = new byte[rawLen + 1];  // One extra byte to detect excess output
+			int n = 0;
+			while (!inflater.finished()) {
+				if (inflater.needsInput() || inflater.needsDictionary() || n == result.length)
+					throw new IOException("Malformed event stream");
+				n += inflater.inflate(result, n, result.length - n);
+			}
+			if (n != rawLen || inflater.getRemaining() > 0)
+				throw new IOException("Malformed event stream");
+			return Arrays.copyOf(result, rawLen);
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed event stream", e);
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	
+	// Decodes exactly the given number of events from the given raw block.
+	static List<Event> decodeEvents(byte[] raw, int count) throws IOException {
+		if (count > raw.length / MIN_EVENT_BYTES)  // Before sizing the list by the count
+			throw new IOException("Malformed event stream");
+		ByteBuffer buf = ByteBuffer.wrap(raw);
+		List<Event> result = new ArrayList<>(count);
+		long conId = 0;
+		long seq = -1;
+		long time = 0;
+		try {
+			for (int i = 0; i < count; i++) {
+				conId += unzigzag(readVarint(buf));
+				seq += unzigzag(readVarint(buf)) + 1;
+				time += unzigzag(readVarint(buf));
+				int type = buf.get();
+				int len = checkLength(readVarint(buf));
+				if (conId < 0 || conId > Integer.MAX_VALUE || seq < 0 || seq > Integer.MAX_VALUE || type < 0 || type > 2 || len > buf.remaining())
+					throw new IOException("Malformed event stream");
+				byte[] data = new byte[len];
+				buf.get(data);
+				result.add(new Event((int)conId, (int)seq, time, Event.Type.fromOrdinal(type), new CleanLine(data, false)));
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Malformed event stream", e);
+		} catch (IllegalArgumentException e) {  // From CleanLine
+			throw new IOException("Malformed event stream", e);
+		}
+		if (buf.hasRemaining())
+			throw new IOException("Malformed event stream");
+		return result;
+	}
+	
+	
+	
+	/*---- Helper definitions ----*/
+	
+	// Selects events by connection ID range (inclusive) and timestamp range (half-open). By default, accepts all.
+	static final class Filter {
+		
+		public int minConnectionId = 0;
+		public int maxConnectionId = Integer.MAX_VALUE;
+		public long since = Long.MIN_VALUE;
+		public long until = Long.MAX_VALUE;
+		
+		
+		public boolean accepts(Event ev) {
+			return minConnectionId <= ev.connectionId && ev.connectionId <= maxConnectionId
+				&& since <= ev.timestamp && ev.timestamp < until;
+		}
+		
+	}
+	
+	
+	static final class Stats {
+		public long events;  // Exported, or imported after filtering
+		public long blocks;
+		public long rawBytes;
+		public long storedBytes;
+	}
+	
+	
+	static void writeVarint(long x, OutputStream out) {
+		try {
+			while ((x & ~0x7FL) != 0) {
+				out.write((int)x & 0x7F | 0x80);
+				x >>>= 7;
+			}
+			out.write((int)x);
+		} catch (IOException e) {
+			throw new AssertionError(e);  // Only called on ByteArrayOutputStream
+		}
+	}
+	
+	
+	static long readVarint(ByteBuffer buf) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get();
+			result |= (long)(b & 0x7F) << shift;
+			if (b >= 0)
+				return result;
+		}
+		throw new IOException("Malformed event stream");
+	}
+	
+	
+	private static long readVarint(InputStream in) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException();
+			result |= (long)(b & 0x7F) << shift;
+			if (b < 0x80)
+				return result;
+		}
+		throw new IOException("Malformed event stream");
+	}
+	
+	
+	private static long zigzag(long x) {
+		return x << 1 ^ x >> 63;
+	}
+	
+	
+	private static long unzigzag(long x) {
+		return x >>> 1 ^ -(x & 1);
+	}
+	
+	
+	// Rejects lengths that are negative or too large for one block, so that a corrupt stream cannot exhaust memory.
+	private static int checkLength(long x) throws IOException {
+		if (x < 0 || x > MAX_BLOCK_BYTES)
+			throw new IOException("Malformed event stream");
+		return (int)x;
+	}
+	
+	
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else
+				throw new RuntimeException(cause);
+		}
+	}
+	
+	
+	private static final byte[] MAGIC = {'M', 'a', 'm', 'I', 'R', 'C', 'e', 's'};
+	
+	private static final int BLOCK_BYTES = 1 << 20;  // Approximate raw length of each block when exporting
+	private static final int MAX_BLOCK_BYTES = 1 << 28;  // When importing
+	private static final int MIN_EVENT_BYTES = 5;  // 4 varints and the type byte
+	private static final int MAX_PENDING_BLOCKS = 2 * Runtime.getRuntime().availableProcessors();
+	private static final int IO_BUFFER_SIZE = 1 << 20;
+	
+	
+	
+	// Not instantiable.
+	private EventStreamTool() {}
+	
+}
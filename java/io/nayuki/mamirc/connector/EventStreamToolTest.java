@@ -0,0 +1,151 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventStore;
+import io.nayuki.mamirc.common.SegmentedEventStore;
+import io.nayuki.mamirc.common.TestFixtures;
+
+
+public final class EventStreamToolTest {
+	
+	@Test public void testVarint() throws IOException {
+		long[] cases = {0, 1, 127, 128, 300, 1L << 35, Long.MAX_VALUE, -1};
+		for (long x : cases) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			EventStreamTool.writeVarint(x, out);
+			ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+			assertEquals(x, EventStreamTool.readVarint(buf));
+			assertEquals(0, buf.remaining());
+		}
+	}
+	
+	
+	@Test public void testEncodeDecode() throws IOException {
+		List<Event> events = Arrays.asList(
+			new Event(7, 0, 1449104543985L, Event.Type.CONNECTION, new CleanLine("connect irc.example.com 6697 true Example")),
+			new Event(7, 1, 1449104543990L, Event.Type.RECEIVE, new CleanLine(":Alice PRIVMSG #London :Hello, world!")),
+			new Event(2, 9, 1449104543000L, Event.Type.SEND, new CleanLine("")),
+			new Event(Integer.MAX_VALUE, Integer.MAX_VALUE, -5, Event.Type.SEND, new CleanLine("PONG :x")));
+		byte[] raw = EventStreamTool.encodeEvents(events);
+		List<Event> decoded = EventStreamTool.decodeEvents(raw, events.size());
+		assertEquals(events.size(), decoded.size());
+		for (int i = 0; i < events.size(); i++)
+			assertEventEquals(events.get(i), decoded.get(i));
+		
+		// Truncated or excess data
+		try {
+			EventStreamTool.decodeEvents(Arrays.copyOf(raw, raw.length - 1), events.size());
+			fail();
+		} catch (IOException e) {}  // Pass
+		try {
+			EventStreamTool.decodeEvents(raw, events.size() - 1);
+			fail();
+		} catch (IOException e) {}  // Pass
+		try {
+			EventStreamTool.decodeEvents(raw, 1 << 28);  // More events than the block could hold
+			fail();
+		} catch (IOException e) {}  // Pass
+	}
+	
+	
+	@Test public void testExportImport() throws IOException {
+		File srcDir = Files.createTempDirectory("mamirc-stream").toFile();
+		File destDir = Files.createTempDirectory("mamirc-stream").toFile();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			// Enough events for several blocks
+			try (EventStore store = new SegmentedEventStore(srcDir, true, 1 << 24)) {
+				List<Event> batch = new ArrayList<>();
+				for (int seq = 0; seq < 4000; seq++) {
+					for (int conId = 0; conId < 5; conId++)
+						batch.add(TestFixtures.makeEvent(conId, seq, 200));
+				}
+				store.append(batch.toArray(new Event[batch.size()]));
+			}
+			
+			for (boolean compress : new boolean[]{false, true}) {
+				EventStreamTool.Filter filter = new EventStreamTool.Filter();
+				filter.minConnectionId = 1;
+				filter.maxConnectionId = 3;
+				filter.since = 1000L * 100;
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				EventStreamTool.Stats stats;
+				try (EventStore src = new SegmentedEventStore(srcDir, false, 1 << 24)) {
+					stats = EventStreamTool.exportEvents(src, out, filter, compress, executor);
+				}
+				assertEquals(3 * 3900, stats.events);
+				assertTrue(stats.blocks > 1);
+				assertEquals(compress, stats.storedBytes < stats.rawBytes);
+				
+				// Import only one of the exported connections
+				for (File f : destDir.listFiles())
+					f.delete();
+				EventStreamTool.Filter oneFilter = new EventStreamTool.Filter();
+				oneFilter.minConnectionId = 2;
+				oneFilter.maxConnectionId = 2;
+				try (EventStore dest = new SegmentedEventStore(destDir, true, 1 << 24)) {
+					stats = EventStreamTool.importEvents(new ByteArrayInputStream(out.toByteArray()), dest, oneFilter, executor);
+				}
+				assertEquals(3900, stats.events);
+				try (EventStore dest = new SegmentedEventStore(destDir, false, 1 << 24)) {
+					assertEquals(3, dest.getNextConnectionId());
+					final int[] next = {100};
+					dest.scan(new EventStore.Visitor() {
+						public void visit(Event ev) {
+							assertEventEquals(TestFixtures.makeEvent(2, next[0], 200), ev);
+							next[0]++;
+						}
+					});
+					assertEquals(4000, next[0]);
+				}
+				
+				// A truncated stream is rejected
+				byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+				for (File f : destDir.listFiles())
+					f.delete();
+				try (EventStore dest = new SegmentedEventStore(destDir, true, 1 << 24)) {
+					EventStreamTool.importEvents(new ByteArrayInputStream(truncated), dest, new EventStreamTool.Filter(), executor);
+					fail();
+				} catch (IOException e) {}  // Pass
+			}
+		} finally {
+			executor.shutdown();
+			TestFixtures.deleteDirectory(srcDir);
+			TestFixtures.deleteDirectory(destDir);
+		}
+	}
+	
+	
+	private static void assertEventEquals(Event expect, Event actual) {
+		assertEquals(expect.connectionId, actual.connectionId);
+		assertEquals(expect.sequence, actual.sequence);
+		assertEquals(expect.timestamp, actual.timestamp);
+		assertEquals(expect.type, actual.type);
+		assertEquals(expect.line.getString(), actual.line.getString());
+	}
+	
+}
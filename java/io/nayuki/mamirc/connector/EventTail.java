@@ -0,0 +1,98 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.util.List;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * The most recent events of one connection, kept in memory within a byte budget, so that an attaching Processor can
+ * receive them over the socket instead of from the database. Only the events before the tail (which were evicted
+ * to stay within the budget) need to be read from the database, once they are durable.
+ * Not thread-safe; MamircConnector accesses each tail only while holding its connection's lock.
+ */
+final class EventTail {
+	
+	/*---- Fields ----*/
+	
+	private final long budget;  // In estimated bytes, at least 0
+	private Event[] events;  // A circular buffer of events in sequence order
+	private int start;  // Index of the oldest event
+	private int size;
+	private long bytes;  // Estimated memory usage of the current events
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	public EventTail(long budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException();
+		this.budget = budget;
+		events = new Event[16];
+		start = 0;
+		size = 0;
+		bytes = 0;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Appends the given event, and then evicts the oldest events until the tail fits in its budget.
+	public void add(Event ev) {
+		if (size == events.length) {  // Grow
+			Event[] newEvents = new Event[events.length * 2];
+			for (int i = 0; i < size; i++)
+				newEvents[i] = events[(start + i) % events.length];
+			events = newEvents;
+			start = 0;
+		}
+		events[(start + size) % events.length] = ev;
+		size++;
+		bytes += estimateSize(ev);
+		
+		while (size > 0 && bytes > budget) {  // Evict
+			bytes -= estimateSize(events[start]);
+			events[start] = null;
+			start = (start + 1) % events.length;
+			size--;
+		}
+	}
+	
+	
+	// Returns the sequence number of the oldest event in the tail, or the given next sequence number if empty.
+	public int getStartSequence(int nextSequence) {
+		return size > 0 ? events[start].sequence : nextSequence;
+	}
+	
+	
+	public long getBytes() {
+		return bytes;
+	}
+	
+	
+	// Appends every event in the tail, in order, to the given list. The events are immutable,
+	// so the caller can encode them after releasing the connection's lock.
+	public void copyTo(List<Event> dest) {
+		for (int i = 0; i < size; i++)
+			dest.add(events[(start + i) % events.length]);
+	}
+	
+	
+	// Returns the approximate memory usage of the given event, including object headers.
+	private static long estimateSize(Event ev) {
+		return ev.line.getDataNoCopy().length + ENTRY_OVERHEAD;
+	}
+	
+	
+	private static final int ENTRY_OVERHEAD = 80;
+	
+}
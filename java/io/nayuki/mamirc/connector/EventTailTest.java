@@ -0,0 +1,44 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+
+
+public final class EventTailTest {
+	
+	@Test public void testEviction() {
+		EventTail tail = new EventTail(3 * (10 + 80));
+		assertEquals(0, tail.getStartSequence(0));
+		for (int i = 0; i < 40; i++) {
+			tail.add(new Event(1, i, 0, Event.Type.RECEIVE, new CleanLine("0123456789")));
+			assertEquals(Math.max(i - 2, 0), tail.getStartSequence(i + 1));
+			assertEquals(Math.min(i + 1, 3) * 90, tail.getBytes());
+		}
+		List<Event> events = new ArrayList<>();
+		tail.copyTo(events);
+		assertEquals(3, events.size());
+		for (int i = 0; i < events.size(); i++)
+			assertEquals(37 + i, events.get(i).sequence);
+	}
+	
+	
+	@Test public void testZeroBudget() {
+		EventTail tail = new EventTail(0);
+		tail.add(new Event(7, 0, 0, Event.Type.SEND, new CleanLine("x")));
+		assertEquals(1, tail.getStartSequence(1));
+		assertEquals(0, tail.getBytes());
+	}
+	
+}
@@ -0,0 +1,130 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * Connects a blocking socket by racing staggered attempts to a server's addresses, as in RFC 8305 ("Happy Eyeballs").
+ * Attempts are started in the given order, the next one after ATTEMPT_DELAY or as soon as the previous one fails,
+ * and the first attempt to succeed wins while the rest are closed. Thus a dead address costs a quarter second
+ * instead of the whole connection timeout. ServerSelectorThread implements the same algorithm with its own channels.
+ */
+final class HappyEyeballs {
+	
+	// Returns a socket connected to one of the given addresses (which should be ordered by AddressResolver) at the
+	// given port. Throws the last attempt's exception if all fail, or SocketTimeoutException if the given number of
+	// milliseconds (more than 0) passes first. Each attempt runs on its own short-lived thread.
+	public static Socket connect(final InetAddress[] addrs, final int port, final int timeout) throws IOException {
+		if (addrs.length == 0)
+			throw new IllegalArgumentException("No addresses");
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Timeout must be positive");
+		if (addrs.length == 1) {  // Fast path, no race
+			Socket sock = new Socket();
+			try {
+				sock.connect(new InetSocketAddress(addrs[0], port), timeout);
+			} catch (IOException e) {
+				sock.close();
+				throw e;
+			}
+			return sock;
+		}
+		
+		final BlockingQueue<Object> results = new LinkedBlockingQueue<>();  // Each element is a Socket or an IOException
+		final Socket[] sockets = new Socket[addrs.length];  // Protected by its own monitor
+		final boolean[] abandoned = {false};  // Protected by the sockets array's monitor
+		Socket winner = null;
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		try {
+			int started = 0;
+			int finished = 0;
+			IOException lastError = null;
+			while (true) {
+				if (started < addrs.length) {
+					final int index = started;
+					Utils.newThread("HappyEyeballs attempt " + addrs[index].getHostAddress(), new Runnable() {
+						public void run() {
+							Socket sock = new Socket();
+							synchronized(sockets) {
+								if (abandoned[0])
+									return;
+								sockets[index] = sock;
+							}
+							try {
+								sock.connect(new InetSocketAddress(addrs[index], port), timeout);
+								results.add(sock);
+							} catch (IOException e) {
+								try {
+									sock.close();
+								} catch (IOException ee) {}
+								results.add(e);
+							}
+						}
+					}).start();
+					started++;
+				}
+				
+				long remain = (deadline - System.nanoTime()) / 1000000;
+				if (remain <= 0)
+					throw new SocketTimeoutException("Connection timed out");
+				Object result;
+				try {
+					result = results.poll(started < addrs.length ? Math.min(ATTEMPT_DELAY, remain) : remain, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (result == null)
+					continue;  // Start the next attempt, or time out
+				finished++;
+				if (result instanceof Socket) {
+					winner = (Socket)result;
+					return winner;
+				}
+				lastError = (IOException)result;
+				Utils.logger.fine("Connection attempt failed: " + lastError);
+				if (finished == addrs.length)
+					throw lastError;
+			}
+		} finally {  // Close every attempt except the winner
+			synchronized(sockets) {
+				abandoned[0] = true;
+				for (Socket sock : sockets) {
+					if (sock != null && sock != winner) {
+						try {
+							sock.close();
+						} catch (IOException e) {}
+					}
+				}
+			}
+		}
+	}
+	
+	
+	// The delay before starting the next connection attempt if the current one has not finished, in milliseconds.
+	// RFC 8305 recommends 250 ms.
+	public static final int ATTEMPT_DELAY = 250;
+	
+	
+	
+	// Not instantiable.
+	private HappyEyeballs() {}
+	
+}
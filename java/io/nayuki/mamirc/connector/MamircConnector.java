@@ -8,28 +8,39 @@
 
 package io.nayuki.mamirc.connector;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import com.almworks.sqlite4java.SQLiteException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventEncoder;
+import io.nayuki.mamirc.common.HashedWheelTimer;
+import io.nayuki.mamirc.common.LockHelper;
 import io.nayuki.mamirc.common.OutputWriterThread;
 import io.nayuki.mamirc.common.Utils;
 
@@ -44,7 +55,7 @@ public final class MamircConnector {
 	
 	// Performs some configuration, creates the MamircConnector object
 	// which launches worker threads, and then the main thread returns.
-	public static void main(String[] args) throws IOException, SQLiteException {
+	public static void main(String[] args) throws IOException {
 		// Check the argument count
 		if (args.length != 1) {
 			System.err.println("Usage: java io/nayuki/mamirc/connector/MamircConnector BackendConfig.json");
@@ -88,6 +99,8 @@ public final class MamircConnector {
 		File configFile = new File(args[0]);
 		BackendConfiguration config = new BackendConfiguration(configFile);
 		Utils.logger.info("Configuration file parsed: " + configFile.getCanonicalPath());
+		Utils.setUseVirtualThreads(config.useVirtualThreads);
+		OutputWriterThread.setBatching(config.writerBatchBytes, config.writerLingerMillis);
 		new MamircConnector(config);
 	}
 	
@@ -95,18 +108,41 @@ public final class MamircConnector {
 	
 	/*---- Fields ----*/
 	
-	// Connections to remote IRC servers, which need the mutex when accessed
-	private final Map<Integer,ConnectionInfo> serverConnections;  // Contents are mutable
-	private int nextConnectionId;
-	
-	// Ephemeral threads, which need the mutex when accessed
-	private ProcessorReaderThread processorReader;
-	private OutputWriterThread processorWriter;
+	// The global mutex, which protects processor attachment and connection creation. This is a ReentrantLock rather
+	// than the object's monitor, so that virtual worker threads blocking on it do not pin their carrier threads.
+	// Per-connection event sequencing is protected by each ConnectionInfo's own lock instead, so that a burst
+	// on one connection does not serialize the others. Lock ordering: the global lock before any connection
+	// lock, and connection locks in ascending ID order (only taken together by lockAllConnections()).
+	private final Lock lock;
+	private final LockHelper locker;
+	
+	// Connections to remote IRC servers. The map is concurrent; see ConnectionInfo for its contents.
+	private final Map<Integer,ConnectionInfo> serverConnections;
+	private int nextConnectionId;  // Needs the global mutex
+	
+	// Ephemeral threads, which need the global mutex and all connection locks to be changed, but either one to be read.
+	// The controlling processor is the only one whose commands are obeyed; every attached processor
+	// (including the controlling one) has a subscriber that receives all live events.
+	private volatile ProcessorReaderThread processorReader;  // The controlling processor, or null
+	private volatile OutputWriterThread processorWriter;     // The controlling processor's writer, or null
+	private volatile ProcessorSubscriber[] subscribers;      // Copy-on-write, never null
 	
 	// Singleton threads, which are always safe to access without synchronization
 	private final DatabaseLoggerThread databaseLogger;
+	private final DatabaseCheckpointerThread checkpointer;  // Only started by the logger for SQLite in WAL mode, but always usable for statistics
+	private final RetentionThread retention;  // Only started if the archive has a retention policy, but always usable for statistics
+	private final BackupThread backup;  // Only started if a backup directory is configured, but always usable
 	private final ProcessorListenerThread processorListener;
-	final Timer timer;  // Shared timer usable by any MamircConnector component
+	private final ServerSelectorThread[] serverSelectors;  // Empty if using a thread pair per server connection
+	final HashedWheelTimer timer;  // Shared timer usable by any MamircConnector component
+	
+	// Immutable settings for the queues of socket writers, from the backend configuration
+	final int writerQueueBytes;
+	final OutputWriterThread.OverflowPolicy serverWriterOverflow;
+	final OutputWriterThread.OverflowPolicy processorWriterOverflow;
+	private final int defaultDeadLinkTimeout;  // In seconds, 0 if disabled
+	final int processorRingEvents;
+	private final int tailBytes;  // The memory budget of each connection's EventTail
 	
 	
 	
@@ -114,30 +150,58 @@ public final class MamircConnector {
 	
 	// This constructor performs as much work as possible on the
 	// caller's thread. Then it launches a bunch of worker threads.
-	public MamircConnector(BackendConfiguration config) throws IOException, SQLiteException {
+	public MamircConnector(BackendConfiguration config) throws IOException {
+		lock = new ReentrantLock();
+		locker = new LockHelper(lock, true);  // Measured for the global lock statistics
+		writerQueueBytes = config.writerQueueBytes;
+		serverWriterOverflow = config.serverWriterOverflow;
+		processorWriterOverflow = config.processorWriterOverflow;
+		defaultDeadLinkTimeout = config.connectorDeadLinkTimeout;
+		processorRingEvents = config.processorRingEvents;
+		tailBytes = config.connectorTailBytes;
+		
 		// Initialize database writer and get next connection ID
-		databaseLogger = new DatabaseLoggerThread(config.connectorDatabaseFile);
+		checkpointer = new DatabaseCheckpointerThread(config.connectorDatabaseFile,
+			config.connectorCheckpointBytes, config.connectorCheckpointSeconds);
+		databaseLogger = new DatabaseLoggerThread(config, DatabaseLoggerThread.needsCheckpointer(config) ? checkpointer : null);
 		nextConnectionId = databaseLogger.initAndGetNextConnectionId();
+		retention = new RetentionThread(this, config);
+		backup = new BackupThread(config, databaseLogger);
 		Utils.logger.info("Database file opened: " + config.connectorDatabaseFile.getCanonicalPath());
 		
 		// Create socket to listen for an incoming processor
 		processorListener = new ProcessorListenerThread(this, config.connectorServerPort, config.getConnectorPassword());
 		Utils.logger.info("Listening on port " + config.connectorServerPort);
 		
+		// Create selectors for the NIO connection model, if configured
+		serverSelectors = new ServerSelectorThread[config.connectorSelectorThreads];
+		for (int i = 0; i < serverSelectors.length; i++)
+			serverSelectors[i] = new ServerSelectorThread(this, i);
+		Utils.logger.info(serverSelectors.length == 0 ? "Using thread-per-connection I/O model"
+			: "Using NIO model with " + serverSelectors.length + " selector threads");
+		
 		// Initialize other mutable fields, if no fatal exceptions were thrown above
-		serverConnections = new HashMap<>();
+		serverConnections = new ConcurrentHashMap<>();
 		processorReader = null;
 		processorWriter = null;
+		subscribers = new ProcessorSubscriber[0];
 		
 		// Launch the worker threads
 		databaseLogger.start();
+		if (config.connectorRetention != null)
+			retention.start();
+		if (config.connectorBackupDirectory != null)
+			backup.start();
 		processorListener.start();
-		timer = new Timer();
-		timer.schedule(new TimerTask() {
+		for (ServerSelectorThread th : serverSelectors)
+			th.start();
+		timer = new HashedWheelTimer("MamircConnector.timer");
+		timer.schedule(new HashedWheelTimer.Task() {
 			public void run() {
-				pingConnections();
+				checkKeepalives();
 			}
-		}, 0, PING_INTERVAL);
+		}, 0, KEEPALIVE_CHECK_INTERVAL);
+		registerMBean(new ConnectorStats(this, databaseLogger, checkpointer, retention, backup, locker, timer), "type=Connector");
 		Utils.logger.info("Connector ready");
 	}
 	
@@ -145,152 +209,357 @@ public final class MamircConnector {
 	
 	/*---- Methods for accessing/updating global state ----*/
 	
-	// Should only be called from ProcessorReaderThread or MamircConnector.attachProcessor().
-	synchronized void listConnectionsToProcessor(OutputWriterThread writer) {
+	// Should only be called from ProcessorReaderThread.
+	void listConnectionsToProcessor(OutputWriterThread writer) {
 		if (writer == null)
 			throw new NullPointerException();
-		// Dump current connection IDs and sequences to the Processor
-		databaseLogger.flushQueue();
-		writer.postWrite("active-connections");
-		Map<Integer,ConnectionInfo> temp = new TreeMap<>(serverConnections);  // Force ascending sort
-		for (Map.Entry<Integer,ConnectionInfo> entry : temp.entrySet())
-			writer.postWrite(entry.getKey() + " " + entry.getValue().nextSequence);
-		writer.postWrite("end-list");
+		ConnectionListing listing;
+		try (LockHelper lh = locker.enter()) {
+			List<ConnectionInfo> infos = lockAllConnections();
+			try {
+				listing = new ConnectionListing(infos, false);
+			} finally {
+				unlockAll(infos);
+			}
+		}
+		listing.writeTo(writer);
 	}
 	
 	
+	// Dumps the attributes of all the Connector's MBeans (see ConnectorStats and ConnectionStats) to the given writer,
+	// as lines of "<key properties> <attribute> <value>" between "stats" and "end-stats". Takes no locks of this object.
 	// Should only be called from ProcessorReaderThread.
-	synchronized void attachProcessor(ProcessorReaderThread reader, OutputWriterThread writer) {
-		if (reader == null || writer == null)
+	void dumpStatsToProcessor(OutputWriterThread writer) {
+		writer.postWrite("stats");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (ObjectName name : new TreeSet<>(server.queryNames(new ObjectName(JMX_DOMAIN + ":*"), null))) {
+				try {
+					for (MBeanAttributeInfo attr : server.getMBeanInfo(name).getAttributes()) {
+						Object val = server.getAttribute(name, attr.getName());
+						if (val instanceof long[])  // A histogram, written as comma-separated counts without spaces
+							val = Arrays.toString((long[])val).replace(" ", "").replace("[", "").replace("]", "");
+						writer.postWrite(name.getKeyPropertyListString() + " " + attr.getName() + " " + val);
+					}
+				} catch (JMException e) {}  // The connection closed while iterating
+			}
+		} catch (JMException e) {
+			throw new AssertionError(e);
+		}
+		writer.postWrite("end-stats");
+	}
+	
+	
+	// Should only be called from ProcessorReaderThread, with a subscriber that is not started yet; this method starts it.
+	// If controlling is true, then the existing controlling processor (if any) is kicked out; otherwise the new processor
+	// only receives events. The withTail flag selects whether recent events are sent from memory (see ConnectionListing).
+	void attachProcessor(ProcessorReaderThread reader, ProcessorSubscriber sub, boolean controlling, boolean withTail) {
+		if (reader == null || sub == null)
 			throw new NullPointerException();
-		// Kick out existing processor, and set fields
-		if (processorReader != null)
-			processorReader.terminate();  // Asynchronous termination
-		processorReader = reader;
-		processorWriter = writer;
-		Utils.logger.info("Processor attached");
-		listConnectionsToProcessor(writer);
-		processorWriter.postWrite("live-events");
-	}
-	
-	
-	// Should only be called from ProcessorReaderThread. Caller is responsible for its own termination.
-	synchronized void detachProcessor(ProcessorReaderThread reader) {
-		if (reader == processorReader) {
-			processorReader = null;
-			processorWriter = null;
+		ConnectionListing listing;
+		try (LockHelper lh = locker.enter()) {
+			// Freeze every connection, so that each event is either before the listed sequence
+			// (and thus in the listing) or at/after it (and thus published to the new subscriber)
+			List<ConnectionInfo> infos = lockAllConnections();
+			try {
+				// Kick out existing controlling processor, and set fields
+				if (controlling) {
+					if (processorReader != null) {
+						processorReader.terminate();  // Asynchronous termination
+						removeSubscriber(processorReader);
+					}
+					processorReader = reader;
+					processorWriter = sub.getWriter();
+				}
+				Utils.logger.info("Processor attached" + (controlling ? "" : " as read-only subscriber")
+					+ (sub.binary ? " with binary framing" : "") + ", total " + (subscribers.length + 1));
+				listing = new ConnectionListing(infos, withTail);
+				ProcessorSubscriber[] newSubs = Arrays.copyOf(subscribers, subscribers.length + 1);
+				newSubs[newSubs.length - 1] = sub;
+				subscribers = newSubs;
+			} finally {
+				unlockAll(infos);
+			}
 		}
-		// Else ignore
+		
+		// Without holding any lock, wait for the listed events to be durable and send the listing. Meanwhile,
+		// new events accumulate in the subscriber's ring, which is only relayed after the listing.
+		listing.writeTo(sub.getWriter());
+		sub.getWriter().postWrite(sub.binary ? "live-events binary" : "live-events");
+		sub.start();
+	}
+	
+	
+	// Should only be called from ProcessorReaderThread. Caller is responsible for its own termination,
+	// including shutting down its subscriber.
+	void detachProcessor(ProcessorReaderThread reader) {
+		try (LockHelper lh = locker.enter()) {
+			List<ConnectionInfo> infos = lockAllConnections();
+			try {
+				removeSubscriber(reader);
+				if (reader == processorReader) {
+					processorReader = null;
+					processorWriter = null;
+				}
+			} finally {
+				unlockAll(infos);
+			}
+		}
+	}
+	
+	
+	// Removes the given processor's subscriber, if present. Must hold the global lock and all connection locks.
+	private void removeSubscriber(ProcessorReaderThread reader) {
+		List<ProcessorSubscriber> newSubs = new ArrayList<>();
+		for (ProcessorSubscriber sub : subscribers) {
+			if (sub.reader != reader)
+				newSubs.add(sub);
+		}
+		subscribers = newSubs.toArray(new ProcessorSubscriber[newSubs.size()]);
 	}
 	
 	
 	// Should only be called from ProcessorReaderThread. Hostname and metadata must not contain '\0', '\r', or '\n'.
-	synchronized void connectServer(String hostname, int port, boolean useSsl, String metadata, ProcessorReaderThread reader) {
+	void connectServer(String hostname, int port, boolean useSsl, String metadata, ProcessorReaderThread reader) {
 		if (reader != processorReader)
 			return;
-		ConnectionInfo info = new ConnectionInfo(nextConnectionId);
-		nextConnectionId++;
 		String str = "connect " + hostname + " " + port + " " + (useSsl ? "ssl" : "nossl") + " " + metadata;
-		postEvent(info, Event.Type.CONNECTION, new CleanLine(str));
-		serverConnections.put(info.connectionId, info);
-		new ServerReaderThread(this, info.connectionId, hostname, port, useSsl).start();
+		int conId = createConnection(new CleanLine(str));
+		// The I/O is started outside of the global lock, since it only calls back into per-connection methods
+		if (serverSelectors.length > 0)
+			serverSelectors[conId % serverSelectors.length].connect(conId, hostname, port, useSsl);
+		else
+			new ServerReaderThread(this, conId, hostname, port, useSsl).start();
+	}
+	
+	
+	// Allocates a new connection ID, logs the given "connect" line as its first event, and returns the ID.
+	// Should only be called from connectServer() and the benchmark.
+	int createConnection(CleanLine connectLine) {
+		try (LockHelper lh = locker.enter()) {
+			ConnectionInfo info = new ConnectionInfo(nextConnectionId, tailBytes);
+			nextConnectionId++;
+			try (LockHelper lh1 = info.locker.enter()) {
+				postEvent(info, Event.Type.CONNECTION, connectLine);
+				serverConnections.put(info.connectionId, info);
+			}
+			registerMBean(info.stats, "type=Connection,id=" + info.connectionId);
+			return info.connectionId;
+		}
 	}
 	
 	
 	// Should only be called from ProcessorReaderThread.
-	synchronized void disconnectServer(int conId, ProcessorReaderThread reader) {
+	void disconnectServer(int conId, ProcessorReaderThread reader) {
 		if (reader != processorReader)
 			return;
 		ConnectionInfo info = serverConnections.get(conId);
-		if (info == null)
+		if (info == null) {
 			Utils.logger.info("Connection " + conId + " does not exist");
-		else {
+			return;
+		}
+		try (LockHelper lh = info.locker.enter()) {
+			if (info.closed)
+				return;
 			postEvent(info, Event.Type.CONNECTION, new CleanLine("disconnect"));
-			info.reader.terminate();
+			info.connection.terminate();
 		}
 	}
 	
 	
-	// Should only be called from ServerReaderThread.
-	synchronized void connectionOpened(int conId, InetAddress addr, ServerReaderThread reader, OutputWriterThread writer) {
-		if (addr == null || reader == null || writer == null)
+	// Should only be called from ServerReaderThread or ServerSelectorThread.
+	void connectionOpened(int conId, InetAddress addr, ServerConnection con) {
+		if (addr == null || con == null)
 			throw new NullPointerException();
-		if (conId < 0 || conId >= nextConnectionId)
-			throw new AssertionError();
-		if (!serverConnections.containsKey(conId))
-			throw new IllegalStateException("Connection ID does not exist: " + conId);
+		ConnectionInfo info = getConnection(conId);
+		try (LockHelper lh = info.locker.enter()) {
+			postEvent(info, Event.Type.CONNECTION, new CleanLine("opened " + addr.getHostAddress()));
+			info.connection = con;
+			info.stats.connection = con;
+			info.lastReadTime = info.lastWriteTime = monotonicMillis();
+			info.deadLinkTimeout = defaultDeadLinkTimeout;
+			con.configureKeepalive(info.deadLinkTimeout);
+		}
+	}
+	
+	
+	// Should only be called from ProcessorReaderThread. Sets the number of seconds of silence from the server after which
+	// the connection is assumed dead and closed, or 0 to disable detection. This overrides the backend configuration.
+	void setDeadLinkTimeout(int conId, int seconds, ProcessorReaderThread reader) {
+		if (seconds < 0)
+			throw new IllegalArgumentException();
+		if (reader != processorReader)
+			return;
 		ConnectionInfo info = serverConnections.get(conId);
-		postEvent(info, Event.Type.CONNECTION, new CleanLine("opened " + addr.getHostAddress()));
-		info.reader = reader;
-		info.writer = writer;
+		if (info == null) {
+			Utils.logger.info("Connection " + conId + " does not exist");
+			return;
+		}
+		try (LockHelper lh = info.locker.enter()) {
+			if (info.closed || info.connection == null)
+				return;
+			info.deadLinkTimeout = seconds;
+			info.connection.configureKeepalive(seconds);
+		}
 	}
 	
 	
-	// Should only be called from ServerReaderThread.
-	synchronized void connectionClosed(int conId) {
-		ConnectionInfo info = serverConnections.remove(conId);
-		if (info == null)
-			throw new IllegalStateException("Connection ID does not exist: " + conId);
-		postEvent(info, Event.Type.CONNECTION, new CleanLine("closed"));
+	// Should only be called from ServerReaderThread or ServerSelectorThread.
+	void connectionClosed(int conId) {
+		ConnectionInfo info = getConnection(conId);
+		try (LockHelper lh = info.locker.enter()) {
+			postEvent(info, Event.Type.CONNECTION, new CleanLine("closed"));
+			info.closed = true;
+			serverConnections.remove(conId);
+		}
+		unregisterMBean("type=Connection,id=" + conId);
 	}
 	
 	
-	// Should only be called from ServerReaderThread.
-	synchronized void receiveMessage(int conId, CleanLine line) {
+	// Should only be called from ServerReaderThread or ServerSelectorThread.
+	void receiveMessage(int conId, CleanLine line) {
 		if (line == null)
 			throw new NullPointerException();
-		ConnectionInfo info = serverConnections.get(conId);
-		if (info == null)
-			throw new IllegalStateException("Connection ID does not exist: " + conId);
-		postEvent(info, Event.Type.RECEIVE, line);
-		byte[] pong = makePongIfPing(line.getDataNoCopy());
-		if (pong != null)
-			sendMessage(conId, new CleanLine(pong, false), processorReader);
+		ConnectionInfo info = getConnection(conId);
+		try (LockHelper lh = info.locker.enter()) {
+			info.lastReadTime = monotonicMillis();
+			info.probeOutstanding = false;
+			info.stats.linesReceived++;
+			info.stats.bytesReceived += line.getDataNoCopy().length;
+			if (isKeepalivePong(line.getDataNoCopy()))
+				return;  // Reply to our own unlogged probe
+			postEvent(info, Event.Type.RECEIVE, line);
+			byte[] pong = makePongIfPing(line.getDataNoCopy());
+			if (pong != null)
+				sendToServer(info, new CleanLine(pong, false));
+		}
 	}
 	
 	
-	// Should only be called from ProcessorReaderThread or receiveMessage(). 'reader' can be null.
-	synchronized void sendMessage(int conId, CleanLine line, ProcessorReaderThread reader) {
+	// Should only be called from ProcessorReaderThread.
+	void sendMessage(int conId, CleanLine line, ProcessorReaderThread reader) {
 		if (line == null)
 			throw new NullPointerException();
 		if (reader != processorReader)
 			return;
 		ConnectionInfo info = serverConnections.get(conId);
-		if (info != null) {
-			if (info.writer != null) {
-				postEvent(info, Event.Type.SEND, line);
-				info.writer.postWrite(line);
-			} else
-				Utils.logger.info("Connection " + conId + " not fully established yet");
-		} else
+		if (info == null) {
 			Utils.logger.info("Connection " + conId + " does not exist");
+			return;
+		}
+		try (LockHelper lh = info.locker.enter()) {
+			if (!info.closed)
+				sendToServer(info, line);
+		}
 	}
 	
 	
 	// Should only be called from ProcessorReaderThread or ProcessorListenerThread.
-	synchronized void terminateConnector(String reason) {
-		Utils.logger.info("Application termination requested: " + reason);
-		// The DatabaseLoggerThread is solely responsible for terminating the entire application
-		databaseLogger.terminate();
-		throw new AssertionError("Unreachable");
+	void terminateConnector(String reason) {
+		try (LockHelper lh = locker.enter()) {
+			Utils.logger.info("Application termination requested: " + reason);
+			lockAllConnections();  // Never unlocked, so that no more events are posted during the final flush
+			// The DatabaseLoggerThread is solely responsible for terminating the entire application
+			databaseLogger.terminate();
+			throw new AssertionError("Unreachable");
+		}
 	}
 	
 	
-	// Logs the event to the database, and relays another copy to the currently attached processor.
-	// Must only be called from one of the synchronized methods above.
-	private void postEvent(ConnectionInfo info, Event.Type type, CleanLine line) {
-		Event ev = new Event(info.connectionId, info.nextSequence++, type, line);
-		if (processorWriter != null) {
-			try {
-				ByteArrayOutputStream bout = new ByteArrayOutputStream(line.getDataNoCopy().length + 40);
-				bout.write(Utils.toUtf8(String.format("%d %d %d %d ", ev.connectionId, ev.sequence, ev.timestamp, ev.type.ordinal())));
-				bout.write(line.getDataNoCopy());
-				processorWriter.postWrite(new CleanLine(bout.toByteArray(), false));
-			} catch (IOException e) {
-				throw new AssertionError(e);
+	// Returns the connection with the given ID, or throws an exception if it does not exist.
+	private ConnectionInfo getConnection(int conId) {
+		ConnectionInfo info = serverConnections.get(conId);
+		if (info == null)
+			throw new IllegalStateException("Connection ID does not exist: " + conId);
+		return info;
+	}
+	
+	
+	// Logs and writes the given line to the server. Must hold the connection's lock.
+	private void sendToServer(ConnectionInfo info, CleanLine line) {
+		if (info.connection != null) {
+			postEvent(info, Event.Type.SEND, line);
+			writeToServer(info, line, monotonicMillis());
+		} else
+			Utils.logger.info("Connection " + info.connectionId + " not fully established yet");
+	}
+	
+	
+	// Writes the given line to the server without logging it, and updates the statistics.
+	// Must hold the connection's lock, and the connection must be open.
+	private static void writeToServer(ConnectionInfo info, CleanLine line, long now) {
+		info.connection.postWrite(line);
+		info.lastWriteTime = now;
+		info.stats.linesSent++;
+		info.stats.bytesSent += line.getDataNoCopy().length;
+	}
+	
+	
+	// Returns the number of connections that are currently open or being opened. Can be called from any thread.
+	int getActiveConnectionCount() {
+		return serverConnections.size();
+	}
+	
+	
+	// Asks for a backup of the archive (see BackupThread), and returns a status line for the requester.
+	// Takes no locks. Should only be called from ProcessorReaderThread.
+	String requestBackup() {
+		String result = backup.request();
+		Utils.logger.info("Archive backup requested by Processor: " + result);
+		return result;
+	}
+	
+	
+	// Returns whether the given connection is currently open or being opened. Can be called from any thread.
+	boolean isConnectionActive(int conId) {
+		return serverConnections.containsKey(conId);
+	}
+	
+	
+	// Returns the writer to the controlling processor, or null if none. Can be called from any thread.
+	OutputWriterThread getProcessorWriter() {
+		return processorWriter;
+	}
+	
+	
+	// Returns the subscribers of all attached processors. Can be called from any thread.
+	ProcessorSubscriber[] getSubscribers() {
+		return subscribers;
+	}
+	
+	
+	// Locks every currently active connection in ascending ID order, and returns them in that order.
+	// Connections that closed while waiting are unlocked and excluded. Must hold the global lock,
+	// which guarantees that no connection is created until the caller calls unlockAll().
+	private List<ConnectionInfo> lockAllConnections() {
+		List<ConnectionInfo> result = new ArrayList<>(new TreeMap<>(serverConnections).values());  // Force ascending sort
+		for (Iterator<ConnectionInfo> iter = result.iterator(); iter.hasNext(); ) {
+			ConnectionInfo info = iter.next();
+			info.locker.enter();
+			if (info.closed) {
+				info.locker.close();
+				iter.remove();
 			}
 		}
+		return result;
+	}
+	
+	
+	private static void unlockAll(List<ConnectionInfo> infos) {
+		for (ConnectionInfo info : infos)
+			info.locker.close();
+	}
+	
+	
+	// Logs the event to the database, and publishes it to every attached processor's subscriber without blocking.
+	// Must hold the given connection's lock, which makes the sequence numbers and relay order consistent.
+	private void postEvent(ConnectionInfo info, Event.Type type, CleanLine line) {
+		Event ev = new Event(info.connectionId, info.nextSequence++, type, line);
+		info.stats.eventsPosted++;
+		for (ProcessorSubscriber sub : subscribers)  // The subscribers and the archive share the payload array without copying
+			sub.publish(ev);
 		databaseLogger.postEvent(ev);
+		info.tail.add(ev);
 		if (type == Event.Type.CONNECTION && Utils.logger.isLoggable(Level.FINER))
 			Utils.logger.finer(ev.toString());
 		else if (Utils.logger.isLoggable(Level.FINEST))
@@ -298,27 +567,79 @@ public final class MamircConnector {
 	}
 	
 	
-	// Scans all currently active connections and sends a ping to each one. If a connection is bad, this write
-	// soon causes the socket read() to throw an IOException, due to a reset packet or lack of acknowledgement.
-	// This write is necessary because without it, the read() might keep silently blocking for minutes or hours
-	// on a bad connection, depending on how the underlying platform handles socket keepalives.
-	// Note that these pings are not logged to the database or relayed to the processor.
+	// Scans all currently active connections, and probes only the ones that have been idle:
+	// - If nothing was received for the dead link timeout, the connection is closed.
+	// - If nothing was received for half that time, a real IRC PING is sent, whose PONG reply proves that the link is alive.
+	// - If nothing was sent or received for BLANK_LINE_INTERVAL, a blank line is sent. If the link is bad, this write soon
+	//   causes the socket read() to throw an IOException, due to a reset packet or lack of acknowledgement. It also keeps
+	//   NAT and firewall mappings alive. From surveying ~5 different IRC servers, it appears that sending a blank line is
+	//   always safely ignored. (However, some servers give an error response to a whitespace-only line.)
+	// Note that these probes (and the PONG replies) are not logged to the database or relayed to the processor.
 	// This method should only be called from the timer thread.
-	private synchronized void pingConnections() {
-		// From surveying ~5 different IRC servers, it appears that sending a blank line is always safely ignored.
-		// (However, some servers give an error response to a whitespace-only line consisting of one or more spaces.)
-		// This pseudo-ping is more lightweight than sending a real IRC PING command, and justifies the lack of logging.
-		if (Utils.logger.isLoggable(Level.FINEST))
-			Utils.logger.finest("Sending blank line to " + serverConnections.size() + " IRC server connections");
+	private void checkKeepalives() {
+		long now = monotonicMillis();
+		int probed = 0;
 		for (ConnectionInfo info : serverConnections.values()) {
-			if (info.writer != null)
-				info.writer.postWrite(BLANK_LINE);
+			try (LockHelper lh = info.locker.enter()) {
+				if (info.connection == null || info.closed)
+					continue;
+				long readIdle = now - info.lastReadTime;
+				long deadLinkMillis = info.deadLinkTimeout * 1000L;
+				if (deadLinkMillis > 0 && readIdle >= deadLinkMillis) {
+					Utils.logger.info("Connection " + info.connectionId + " silent for " + readIdle / 1000 + " s, closing dead link");
+					info.connection.terminate();
+				} else if (deadLinkMillis > 0 && readIdle >= deadLinkMillis / 2 && !info.probeOutstanding) {
+					writeToServer(info, KEEPALIVE_PING, now);
+					info.probeOutstanding = true;
+					probed++;
+				} else if (now - Math.max(info.lastReadTime, info.lastWriteTime) >= BLANK_LINE_INTERVAL) {
+					writeToServer(info, BLANK_LINE, now);
+					probed++;
+				}
+			}
 		}
+		if (probed > 0 && Utils.logger.isLoggable(Level.FINEST))
+			Utils.logger.finest("Sent keepalive probes to " + probed + " of " + serverConnections.size() + " IRC server connections");
 	}
 	
 	private static final CleanLine BLANK_LINE = new CleanLine("");
 	
-	private static final int PING_INTERVAL = 20000;  // In milliseconds
+	private static final String KEEPALIVE_TOKEN = "mamirc-keepalive";
+	
+	private static final byte[] KEEPALIVE_TOKEN_BYTES = Utils.toUtf8(KEEPALIVE_TOKEN);
+	
+	private static final CleanLine KEEPALIVE_PING = new CleanLine("PING :" + KEEPALIVE_TOKEN);
+	
+	private static final int KEEPALIVE_CHECK_INTERVAL = 5000;  // In milliseconds
+	
+	private static final int BLANK_LINE_INTERVAL = 20000;  // In milliseconds
+	
+	
+	// Registers the given MBean in the platform MBean server under the given key properties in JMX_DOMAIN.
+	// Failure only logs a warning (e.g. if another Connector in the same JVM already took the name).
+	private static void registerMBean(Object mbean, String keyProperties) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(JMX_DOMAIN + ":" + keyProperties));
+		} catch (JMException e) {
+			Utils.logger.warning("Unable to register MBean " + keyProperties + ": " + e);
+		}
+	}
+	
+	
+	private static void unregisterMBean(String keyProperties) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(JMX_DOMAIN + ":" + keyProperties));
+		} catch (JMException e) {}  // Not registered
+	}
+	
+	
+	private static final String JMX_DOMAIN = "io.nayuki.mamirc";
+	
+	
+	// Returns a timestamp in milliseconds that is unaffected by changes to the wall clock.
+	private static long monotonicMillis() {
+		return System.nanoTime() / 1000000;
+	}
 	
 	
 	// If the given line is an IRC PING command, then this returns a new byte array containing an appropriate PONG response.
@@ -346,24 +667,117 @@ public final class MamircConnector {
 	}
 	
 	
+	// Tests whether the given line is an IRC PONG command whose last parameter is KEEPALIVE_TOKEN,
+	// which is the reply to the probe sent by checkKeepalives(). Safely ignores lines with illegal IRC syntax.
+	static boolean isKeepalivePong(byte[] line) {
+		// Skip prefix, if any
+		int i = 0;
+		if (line.length >= 1 && line[i] == ':') {
+			i++;
+			while (i < line.length && line[i] != ' ')
+				i++;
+			while (i < line.length && line[i] == ' ')
+				i++;
+		}
+		
+		// Check for "PONG " case-insensitively, then check that the line ends with the token as a separate parameter
+		if (!(line.length - i >= 5 && (line[i + 0] & 0xDF) == 'P' && (line[i + 1] & 0xDF) == 'O' && (line[i + 2] & 0xDF) == 'N' && (line[i + 3] & 0xDF) == 'G'
+				&& line[i + 4] == ' '))
+			return false;
+		int start = line.length - KEEPALIVE_TOKEN_BYTES.length;
+		if (start < i + 5 || !(line[start - 1] == ' ' || line[start - 1] == ':' && line[start - 2] == ' '))
+			return false;
+		for (int j = 0; j < KEEPALIVE_TOKEN_BYTES.length; j++) {
+			if (line[start + j] != KEEPALIVE_TOKEN_BYTES[j])
+				return false;
+		}
+		return true;
+	}
+	
+	
+	
+	/*---- Helper structures ----*/
+	
+	// A snapshot of the active connections' IDs and sequences for a Processor, taken while every connection is frozen,
+	// and written later without holding any lock. The Processor reads the events before the listed sequences from the
+	// database, so writeTo() first waits for them to be durable (see DatabaseLoggerThread.awaitDurable()), which only
+	// forces an early commit if any of them is still queued.
+	// - Without the tail, each line is "<connectionId> <nextSequence>", and every event of the connection must be durable.
+	// - With the tail, each line also has the sequence of the connection's first event in its EventTail, and
+	//   the tails' events follow the list as text event lines, ending with "end-tail". Only the events before
+	//   the tails need to be durable.
+	private final class ConnectionListing {
+		
+		private final List<String> lines;
+		private final List<Event> tailEvents;  // Null if without the tail
+		private final CompletableFuture<Void> durable;
+		
+		
+		// Must hold the global lock and the locks of all the given connections (which must be ascending).
+		public ConnectionListing(List<ConnectionInfo> infos, boolean withTail) {
+			lines = new ArrayList<>();
+			tailEvents = withTail ? new ArrayList<Event>() : null;
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			for (ConnectionInfo info : infos) {
+				String line = info.connectionId + " " + info.nextSequence;
+				int durableSeq = info.nextSequence;
+				if (withTail) {
+					durableSeq = info.tail.getStartSequence(info.nextSequence);
+					line += " " + durableSeq;
+					info.tail.copyTo(tailEvents);
+				}
+				lines.add(line);
+				futures.add(databaseLogger.awaitDurable(info.connectionId, durableSeq));
+			}
+			durable = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+		}
+		
+		
+		// Blocks until the listed events are durable, and then posts the listing. Should not hold any lock.
+		public void writeTo(OutputWriterThread writer) {
+			durable.join();  // The database logger never completes a future exceptionally
+			writer.postWrite("active-connections");
+			for (String line : lines)
+				writer.postWrite(line);
+			writer.postWrite("end-list");
+			if (tailEvents != null) {
+				for (Event ev : tailEvents)
+					writer.postWrite(EventEncoder.encodeLine(ev));
+				writer.postWrite("end-tail");
+			}
+		}
+		
+	}
+	
 	
-	/*---- Helper structure ----*/
 	
+	// All mutable fields need this connection's lock when accessed.
 	private static final class ConnectionInfo {
 		
-		public final int connectionId;     // Non-negative
-		public int nextSequence;           // Non-negative
-		public ServerReaderThread reader;  // Initially null, but non-null after connectionOpened() is called
-		public OutputWriterThread writer;  // Initially null, but non-null after connectionOpened() is called
+		public final int connectionId;        // Non-negative
+		public final LockHelper locker;       // Wraps a ReentrantLock
+		public int nextSequence;              // Non-negative
+		public ServerConnection connection;   // Initially null, but non-null after connectionOpened() is called
+		public boolean closed;                // Set by connectionClosed(), after which no more events are posted
+		public long lastReadTime;             // From monotonicMillis(), set when opened and on each received line
+		public long lastWriteTime;            // From monotonicMillis(), set when opened and on each sent line or probe
+		public int deadLinkTimeout;           // In seconds, 0 if disabled
+		public boolean probeOutstanding;      // Whether a keepalive PING was sent and nothing was received since
+		public final ConnectionStats stats;   // Counters, written under this connection's lock
+		public final EventTail tail;          // Recent events, for attaching processors
 		
 		
-		public ConnectionInfo(int conId) {
+		public ConnectionInfo(int conId, int tailBytes) {
 			if (conId < 0)
 				throw new IllegalArgumentException("Connection ID must be positive");
 			connectionId = conId;
+			locker = new LockHelper(new ReentrantLock());
 			nextSequence = 0;
-			reader = null;
-			writer = null;
+			connection = null;
+			closed = false;
+			probeOutstanding = false;
+			stats = new ConnectionStats();
+			tail = new EventTail(tailBytes);
 		}
 		
 	}
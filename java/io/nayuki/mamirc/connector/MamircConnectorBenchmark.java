@@ -0,0 +1,109 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * Measures how the connector's ingest path scales when many connections receive lines at the same time.
+ * Each worker thread owns one fake connection and feeds it lines through MamircConnector.receiveMessage(),
+ * which includes sequencing, PING handling and posting to the real DatabaseLoggerThread (writing to a
+ * temporary SQLite file). With per-connection locking, throughput should grow with the number of cores.
+ * Usage: java io/nayuki/mamirc/connector/MamircConnectorBenchmark [MillisPerRound]
+ */
+public final class MamircConnectorBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		final int duration = args.length >= 1 ? Integer.parseInt(args[0]) : 3000;
+		MamircConnector master = new MamircConnector(makeTemporaryConfig());
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		System.out.println("threads  lines/s  lines/s/thread");
+		for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+			long count = runRound(master, numThreads, duration);
+			double rate = count * 1000.0 / duration;
+			System.out.printf("%7d  %7.0f  %14.0f%n", numThreads, rate, rate / numThreads);
+		}
+		System.exit(0);
+	}
+	
+	
+	// Runs the given number of threads concurrently, each on its own new connection,
+	// for the given number of milliseconds. Returns the total number of lines received.
+	private static long runRound(final MamircConnector master, int numThreads, final int duration) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong total = new AtomicLong();
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int conId = master.createConnection(new CleanLine("connect benchmark.invalid 6667 nossl Benchmark"));
+			master.connectionOpened(conId, InetAddress.getLoopbackAddress(), NULL_CONNECTION);
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long count = 0;
+					long end = System.currentTimeMillis() + duration;
+					while (System.currentTimeMillis() < end) {
+						for (int j = 0; j < 100; j++, count++)
+							master.receiveMessage(conId, (count & 1023) == 0 ? PING_LINE : MESSAGE_LINE);
+					}
+					master.connectionClosed(conId);
+					total.addAndGet(count);
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread th : threads)
+			th.join();
+		return total.get();
+	}
+	
+	
+	private static BackendConfiguration makeTemporaryConfig() throws IOException {
+		File dbFile = File.createTempFile("mamirc-benchmark", ".sqlite");
+		dbFile.deleteOnExit();
+		File configFile = File.createTempFile("mamirc-benchmark", ".json");
+		configFile.deleteOnExit();
+		String json = "{\"data-type\": \"mamirc-backend-config\", "
+			+ "\"connector-server-port\": 0, \"connector-password\": \"\", "
+			+ "\"connector-database-file\": \"" + dbFile.getAbsolutePath().replace("\\", "\\\\") + "\", "
+			+ "\"web-server-port\": 0, \"web-ui-password\": \"\"}";
+		try (OutputStream out = new FileOutputStream(configFile)) {
+			out.write(Utils.toUtf8(json));
+		}
+		return new BackendConfiguration(configFile);
+	}
+	
+	
+	private static final CleanLine MESSAGE_LINE = new CleanLine(":Alice!alice@example.com PRIVMSG #benchmark :The quick brown fox jumps over the lazy dog");
+	
+	private static final CleanLine PING_LINE = new CleanLine("PING :benchmark.invalid");
+	
+	// Discards everything written to it, such as PONG replies and keepalive blank lines.
+	private static final ServerConnection NULL_CONNECTION = new ServerConnection() {
+		public void postWrite(CleanLine line) {}
+		public void configureKeepalive(int deadLinkSeconds) {}
+		public long getQueuedBytes() { return 0; }
+		public void terminate() {}
+	};
+	
+}
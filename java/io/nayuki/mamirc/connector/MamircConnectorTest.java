@@ -44,6 +44,33 @@ public final class MamircConnectorTest {
 	}
 	
 	
+	@Test public void testIsKeepalivePong() {
+		String[] yes = {
+			"PONG :mamirc-keepalive",
+			"PONG mamirc-keepalive",
+			":irc.example.com PONG irc.example.com :mamirc-keepalive",
+			":irc.example.com PONG irc.example.com mamirc-keepalive",
+			"pong :mamirc-keepalive",
+		};
+		String[] no = {
+			"",
+			"PONG",
+			"PONG ",
+			"PING :mamirc-keepalive",
+			"PONG :xmamirc-keepalive",
+			"PONG :mamirc-keepalivex",
+			"PONG :mamirc-keepalive ",
+			"PONGmamirc-keepalive",
+			":mamirc-keepalive",
+			":irc.example.com PRIVMSG #chan :PONG :mamirc-keepalive",
+		};
+		for (String s : yes)
+			assertTrue(MamircConnector.isKeepalivePong(Utils.toUtf8(s)));
+		for (String s : no)
+			assertTrue(!MamircConnector.isKeepalivePong(Utils.toUtf8(s)));
+	}
+	
+	
 	private static String makePong(String s) {
 		byte[] b = MamircConnector.makePongIfPing(Utils.toUtf8(s));
 		if (b == null)
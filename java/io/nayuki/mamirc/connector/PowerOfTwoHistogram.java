@@ -0,0 +1,54 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/* 
+ * Counts non-negative values in buckets with power-of-2 boundaries: bucket 0 counts the value 0, bucket i
+ * (for 1 <= i < numBuckets - 1) counts the values in [2^(i-1), 2^i), and the last bucket counts everything
+ * from 2^(numBuckets-2) upward. Recording and reading are lock-free and can be done from any thread.
+ */
+final class PowerOfTwoHistogram {
+	
+	/*---- Fields ----*/
+	
+	private final AtomicLongArray counts;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	public PowerOfTwoHistogram(int numBuckets) {
+		if (numBuckets < 1 || numBuckets > 65)
+			throw new IllegalArgumentException();
+		counts = new AtomicLongArray(numBuckets);
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	public void record(long value) {
+		if (value < 0)
+			throw new IllegalArgumentException();
+		counts.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(value), counts.length() - 1));
+	}
+	
+	
+	// Returns a new array of the current counts, indexed by bucket.
+	public long[] getCounts() {
+		long[] result = new long[counts.length()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = counts.get(i);
+		return result;
+	}
+	
+}
@@ -0,0 +1,25 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+
+public final class PowerOfTwoHistogramTest {
+	
+	@Test public void testBuckets() {
+		PowerOfTwoHistogram hist = new PowerOfTwoHistogram(5);
+		long[] values = {0, 1, 2, 3, 4, 7, 8, 15, 16, 1000, Long.MAX_VALUE};
+		for (long x : values)
+			hist.record(x);
+		assertArrayEquals(new long[]{1, 1, 2, 2, 5}, hist.getCounts());
+	}
+	
+}
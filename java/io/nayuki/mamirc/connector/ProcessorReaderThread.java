@@ -11,8 +11,8 @@ package io.nayuki.mamirc.connector;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Arrays;
-import java.util.TimerTask;
 import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.HashedWheelTimer;
 import io.nayuki.mamirc.common.LineReader;
 import io.nayuki.mamirc.common.OutputWriterThread;
 import io.nayuki.mamirc.common.Utils;
@@ -26,15 +26,40 @@ import io.nayuki.mamirc.common.WorkerThread;
  * - Explicitly terminates the connection if the correct password is not received within a few seconds
  * - Creates and terminates a writer thread for the socket
  * 
- * These and only these line formats are allowed coming from the processor:
+ * After the password line, the processor sends one action line:
+ * - "list-connections", which dumps the active connections and then closes.
+ * - "stats", which dumps the Connector's counters (the same as its JMX MBeans) and then closes.
+ * - "backup", which asks the Connector to back up its archive (see BackupThread), replies with one line
+ *   ("backup-started", "backup-running" if one is already requested or running, or "backup-disabled"
+ *   if no backup directory is configured), and then closes.
+ * - "attach", which attaches the processor and relays live events as text lines.
+ * - "attach binary", which is the same except that live events are relayed as binary frames
+ *   (see EventEncoder), and the "live-events" line becomes "live-events binary".
+ *   Old Connectors do not recognize this action and simply close the connection.
+ * - "subscribe" or "subscribe binary", which is the same as "attach" or "attach binary" respectively,
+ *   except that the processor is a read-only subscriber: it does not kick out the controlling processor
+ *   (the one that attached last), and all its command lines are ignored.
+ * - Any of the four actions above followed by " tail" (e.g. "attach binary tail"), which makes the Connector send
+ *   recent events from memory instead of committing them for the processor to read from the database. Each line of
+ *   the list becomes "<connectionId> <nextSequence> <tailSequence>", and "end-list" is followed by the events
+ *   from each tail sequence onward (as text event lines, in order per connection) and then "end-tail".
+ * Each attached processor has its own ProcessorSubscriber with a bounded event ring; a processor that
+ * falls too far behind is disconnected, without delaying the other processors.
+ * 
+ * After attaching, these and only these line formats are allowed coming from the controlling processor:
  * - "connect <hostname> <port> <useSsl> <metadata>"
  *   where hostname is in UTF-8, port is an integer in [0,65535], useSsl is true/false;
  *   metadata is in UTF-8 and can contain spaces.
  * - "disconnect <connectionId>"
  *   where connectionId is a non-negative integer.
+ * - "keepalive <connectionId> <seconds>"
+ *   where connectionId is a non-negative integer, and seconds is a non-negative integer that sets
+ *   the dead link timeout of the connection (0 disables it), overriding the backend configuration.
  * - "send <connectionId> <payload>"
  *   where connectionId is a non-negative integer,
  *   and payload is a byte sequence (not necessarily UTF-8).
+ * - "backup"
+ *   which requests a backup of the archive, like the "backup" action but without any reply.
  * - "terminate"
  *   which requests the Connector to shut down cleanly.
  * Notes:
@@ -51,6 +76,7 @@ final class ProcessorReaderThread extends WorkerThread {
 	private final MamircConnector master;
 	private final Socket socket;
 	private final byte[] password;
+	private volatile boolean controlling;  // Set after reading the action line
 	
 	
 	
@@ -64,6 +90,7 @@ final class ProcessorReaderThread extends WorkerThread {
 		this.master = master;
 		socket = sock;
 		this.password = password;
+		controlling = false;
 	}
 	
 	
@@ -72,7 +99,7 @@ final class ProcessorReaderThread extends WorkerThread {
 	
 	protected void runInner() throws IOException, InterruptedException {
 		// Set up the authentication timeout
-		TimerTask killer = new TimerTask() {
+		HashedWheelTimer.Task killer = new HashedWheelTimer.Task() {
 			public void run() {
 				terminate();
 				Utils.logger.warning("Processor connection request timeout");
@@ -81,6 +108,7 @@ final class ProcessorReaderThread extends WorkerThread {
 		master.timer.schedule(killer, AUTHENTICATION_TIMEOUT);
 		
 		OutputWriterThread writer = null;
+		ProcessorSubscriber subscriber = null;
 		try {
 			// Read password line
 			LineReader reader = new LineReader(socket.getInputStream());
@@ -94,6 +122,7 @@ final class ProcessorReaderThread extends WorkerThread {
 			// Launch writer thread
 			writer = new OutputWriterThread(socket.getOutputStream(), new byte[]{'\r','\n'});
 			writer.setName("OutputWriterThread : " + this.getName());
+			writer.setOverflowPolicy(master.processorWriterOverflow, master.writerQueueBytes);
 			writer.start();
 			
 			// Read action line
@@ -101,9 +130,15 @@ final class ProcessorReaderThread extends WorkerThread {
 			killer.cancel();  // Killer is no longer needed, now that we know whether the processor stays or leaves
 			if (actionLine.equals("list-connections")) {
 				master.listConnectionsToProcessor(writer);
-			} else if (actionLine.equals("attach")) {
+			} else if (actionLine.equals("stats")) {
+				master.dumpStatsToProcessor(writer);
+			} else if (actionLine.equals("backup")) {
+				writer.postWrite(master.requestBackup());
+			} else if (actionLine.matches("(attach|subscribe)( binary)?( tail)?")) {
+				controlling = actionLine.startsWith("attach");
+				subscriber = new ProcessorSubscriber(this, writer, actionLine.contains(" binary"), master.processorRingEvents);
 				try {
-					master.attachProcessor(this, writer);
+					master.attachProcessor(this, subscriber, controlling, actionLine.endsWith(" tail"));
 					while (true) {  // Process input lines
 						byte[] line = reader.readLine();
 						if (line == LineReader.BLANK_EOF || line == null)
@@ -119,6 +154,10 @@ final class ProcessorReaderThread extends WorkerThread {
 		}
 		finally {  // Clean up the connection
 			killer.cancel();
+			if (subscriber != null) {  // Relays the remaining published events before the writer ends
+				subscriber.shutdown();
+				subscriber.join();
+			}
 			if (writer != null) {
 				writer.terminate();  // This reader is exclusively responsible for terminating the writer
 				writer.join();
@@ -131,6 +170,10 @@ final class ProcessorReaderThread extends WorkerThread {
 	private void handleLine(byte[] line) {
 		Utils.logger.finest("Received command from Processor connection");
 		String lineStr = Utils.fromUtf8(line);
+		if (!controlling) {
+			Utils.logger.warning("Ignoring command from read-only Processor subscriber: " + lineStr);
+			return;
+		}
 		String[] parts = lineStr.split(" ", 5);  // At most 5 parts in the current format
 		String cmd = parts[0];
 		
@@ -146,6 +189,12 @@ final class ProcessorReaderThread extends WorkerThread {
 			} else if (cmd.equals("disconnect") && parts.length == 2) {
 				master.disconnectServer(Integer.parseInt(parts[1]), this);
 				
+			} else if (cmd.equals("keepalive") && parts.length == 3) {
+				master.setDeadLinkTimeout(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), this);
+				
+			} else if (cmd.equals("backup") && parts.length == 1) {
+				master.requestBackup();
+				
 			} else if (cmd.equals("send") && parts.length >= 3) {
 				byte[] payload = Arrays.copyOfRange(line, cmd.length() + parts[1].length() + 2, line.length);
 				master.sendMessage(Integer.parseInt(parts[1]), new CleanLine(payload, false), this);
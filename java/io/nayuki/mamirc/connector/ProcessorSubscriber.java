@@ -0,0 +1,106 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventEncoder;
+import io.nayuki.mamirc.common.OutputWriterThread;
+import io.nayuki.mamirc.common.RingBuffer;
+import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.common.WorkerThread;
+
+
+/* 
+ * A worker thread that relays the live event stream to one attached Processor (either the controlling one or
+ * a read-only subscriber). MamircConnector publishes each event into this subscriber's own bounded ring without
+ * blocking; this worker encodes the events (as text lines or binary frames) and posts them to the Processor's
+ * writer. If the ring fills up because the Processor reads too slowly, the subscriber is disconnected, so that
+ * it never delays the other subscribers or the database logger. A disconnected Processor can catch up from
+ * the database after reattaching.
+ */
+final class ProcessorSubscriber extends WorkerThread {
+	
+	/*---- Fields ----*/
+	
+	public final ProcessorReaderThread reader;
+	private final OutputWriterThread writer;
+	public final boolean binary;  // Whether live events are relayed as binary frames instead of text lines
+	private final RingBuffer<Event> ring;
+	private volatile boolean overrun;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// The ring capacity is rounded up to a power of 2. The writer must be started already. Events can be
+	// published before this thread is started (by MamircConnector.attachProcessor()), and wait in the ring.
+	public ProcessorSubscriber(ProcessorReaderThread reader, OutputWriterThread writer, boolean binary, int ringCapacity) {
+		super("ProcessorSubscriber : " + reader.getName());
+		if (writer == null)
+			throw new NullPointerException();
+		if (ringCapacity < 1 || ringCapacity > 1 << 30)
+			throw new IllegalArgumentException("Invalid ring capacity");
+		this.reader = reader;
+		this.writer = writer;
+		this.binary = binary;
+		ring = new RingBuffer<>(Math.max(Integer.highestOneBit(ringCapacity - 1) << 1, 2));
+		overrun = false;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	protected void runInner() throws InterruptedException {
+		Event[] batch = new Event[256];
+		while (true) {
+			int n = ring.take(batch);
+			if (n == 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (binary)
+					writer.postWriteRaw(EventEncoder.encodeFrame(batch[i]));
+				else
+					writer.postWrite(EventEncoder.encodeLine(batch[i]));
+				batch[i] = null;
+			}
+		}
+	}
+	
+	
+	// Queues the given event for relaying, without blocking. If the ring is full, this subscriber's connection
+	// is closed instead. Should only be called from MamircConnector while holding the event's connection lock.
+	public void publish(Event ev) {
+		if (!ring.offer(ev) && !overrun) {
+			overrun = true;
+			Utils.logger.warning(getName() + " fell " + ring.getCapacity() + " events behind, disconnecting");
+			reader.terminate();
+		}
+	}
+	
+	
+	// Returns the writer to this subscriber's Processor, for lines that are not events.
+	public OutputWriterThread getWriter() {
+		return writer;
+	}
+	
+	
+	// Returns the number of published events not yet posted to the writer. Can be called from any thread.
+	public int getRingSize() {
+		return ring.size();
+	}
+	
+	
+	// Makes this worker finish relaying the published events and then end. Can be called from any thread.
+	// The caller should join() this worker before terminating the writer.
+	public void shutdown() {
+		ring.close();
+	}
+	
+}
@@ -0,0 +1,169 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.PartitionedEventStore;
+import io.nayuki.mamirc.common.RetentionPolicy;
+import io.nayuki.mamirc.common.SqliteEventStore;
+import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.common.WorkerThread;
+
+
+/* 
+ * A worker thread that applies the configured RetentionPolicy to the Connector's SQLite archive (every partition
+ * of it, if partitioned), using its own database connection. Once per pass interval, it visits every connection that
+ * is not active in this Connector, and compacts its events older than the cutoff a small batch at a time: each batch
+ * is classified without holding the database's write lock, then removed in one short transaction, after which this
+ * worker returns some freed pages to the file system with an incremental vacuum and pauses, so that the
+ * DatabaseLoggerThread never waits long for the write lock. Because only inactive connections are compacted,
+ * the Processor never replays a connection with gaps in it (it only replays active ones), and a connection's
+ * events never change while they are being compacted. Progress is recorded in the archive, so each pass only
+ * examines the events that became old enough since the previous pass. A database error disables retention.
+ */
+final class RetentionThread extends WorkerThread {
+	
+	/*---- Fields ----*/
+	
+	private final MamircConnector master;
+	private final BackendConfiguration config;
+	private final RetentionPolicy policy;  // Null if this worker is never started
+	private boolean vacuumWarned;
+	
+	// Statistics, written by this worker and readable by any thread
+	private volatile long passes;
+	private volatile long batches;   // Transactions that removed events or recorded progress
+	private volatile long eventsExamined;
+	private volatile long maxBatchNanos;  // Including the classifying reads before the transaction
+	private volatile long freePages;  // Of the last file vacuumed
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// This constructor performs no I/O. It must only be started if the configuration has a retention policy.
+	public RetentionThread(MamircConnector master, BackendConfiguration config) {
+		super("RetentionThread", false);  // Every SQLite call is native code, which would pin a virtual thread
+		if (master == null || config == null)
+			throw new NullPointerException();
+		this.master = master;
+		this.config = config;
+		policy = config.connectorRetention;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	protected void runInner() throws InterruptedException {
+		if (policy == null)
+			throw new IllegalStateException();
+		Thread.sleep(START_DELAY);  // Let the Connector reconnect to servers first
+		try {
+			while (true) {
+				long start = System.nanoTime();
+				for (File file : getArchiveFiles())
+					compactFile(file);
+				passes++;
+				Utils.logger.fine("Archive retention pass finished in " + (System.nanoTime() - start) / 1000000 + " ms");
+				Thread.sleep(PASS_INTERVAL);
+			}
+		} catch (IOException e) {
+			Utils.logger.log(Level.WARNING, "Archive retention error; retention is disabled", e);
+		}
+	}
+	
+	
+	private List<File> getArchiveFiles() {
+		if (config.connectorArchivePartitions.equals("none"))
+			return Collections.singletonList(config.connectorDatabaseFile);
+		else
+			return PartitionedEventStore.listPartitionFiles(config.connectorDatabaseFile);
+	}
+	
+	
+	private void compactFile(File file) throws IOException, InterruptedException {
+		if (!file.isFile())
+			return;  // The logger hasn't created it yet
+		SqliteEventStore store = new SqliteEventStore(file, true, config.connectorJournalMode, config.connectorSynchronous, false);
+		try {
+			boolean vacuum = store.isIncrementalVacuum();
+			if (!vacuum && !vacuumWarned) {
+				Utils.logger.info("Archive " + file + " is not in incremental auto-vacuum mode, so space freed by retention "
+					+ "is only reused by later events; see doc/connector.markdown to convert it");
+				vacuumWarned = true;
+			}
+			long cutoff = policy.getCutoff(System.currentTimeMillis());
+			for (int conId = store.getConnectionIdAfter(-1); conId != -1; conId = store.getConnectionIdAfter(conId)) {
+				if (master.isConnectionActive(conId))
+					continue;
+				while (true) {
+					long start = System.nanoTime();
+					int n = store.compactConnection(conId, policy, cutoff, BATCH_EVENTS);
+					if (n == 0)
+						break;
+					maxBatchNanos = Math.max(System.nanoTime() - start, maxBatchNanos);
+					batches++;
+					eventsExamined += n;
+					if (vacuum)
+						freePages = store.incrementalVacuum(VACUUM_PAGES);
+					Thread.sleep(BATCH_PAUSE);
+				}
+			}
+			// Return the rest of the freed space, still in small steps
+			while (vacuum && (freePages = store.incrementalVacuum(VACUUM_PAGES)) > 0)
+				Thread.sleep(BATCH_PAUSE);
+		} finally {
+			store.close();
+		}
+	}
+	
+	
+	private static final int START_DELAY = 60 * 1000;  // In milliseconds
+	private static final int PASS_INTERVAL = 60 * 60 * 1000;  // In milliseconds
+	
+	// Each transaction examines at most this many events, which bounds how long it holds the write lock.
+	private static final int BATCH_EVENTS = 1000;
+	private static final int BATCH_PAUSE = 50;  // In milliseconds, after each transaction
+	private static final int VACUUM_PAGES = 256;
+	
+	
+	
+	/*---- Statistics getters, which can be called from any thread ----*/
+	
+	public long getPasses() {
+		return passes;
+	}
+	
+	
+	public long getBatches() {
+		return batches;
+	}
+	
+	
+	public long getEventsExamined() {
+		return eventsExamined;
+	}
+	
+	
+	public long getMaxBatchNanos() {
+		return maxBatchNanos;
+	}
+	
+	
+	public long getFreePages() {
+		return freePages;
+	}
+	
+}
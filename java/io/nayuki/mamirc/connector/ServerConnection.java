@@ -0,0 +1,38 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import io.nayuki.mamirc.common.CleanLine;
+
+
+/* 
+ * A handle to one established connection to an IRC server, as seen by MamircConnector. The I/O behind it is
+ * either a pair of blocking worker threads (ServerReaderThread) or a shared selector loop (ServerSelectorThread).
+ */
+interface ServerConnection {
+	
+	// Queues the given line to be written to the server followed by CR+LF. Can be called from any thread.
+	// Must not be called after terminate(). Caller must never change the values inside the line's array.
+	public void postWrite(CleanLine line);
+	
+	
+	// Enables kernel TCP keepalive, tuned to notice a dead link after about the given number of seconds
+	// (or the system defaults if 0) where supported. Can be called from any thread; errors are ignored.
+	public void configureKeepalive(int deadLinkSeconds);
+	
+	
+	// Returns the number of bytes of lines posted but not yet written to the socket. Can be called from any thread.
+	public long getQueuedBytes();
+	
+	
+	// Closes the socket immediately, and causes MamircConnector.connectionClosed() to be called very soon.
+	// Can be called from any thread, and is idempotent.
+	public void terminate();
+	
+}
@@ -9,16 +9,7 @@
 package io.nayuki.mamirc.connector;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.LineReader;
 import io.nayuki.mamirc.common.OutputWriterThread;
@@ -29,11 +20,11 @@ import io.nayuki.mamirc.common.WorkerThread;
 /* 
  * A worker thread that connects to an IRC server, reads lines, and relays them back to the master.
  * Additional functionality provided:
- * - Creates new socket, relays socket opened/closed events
+ * - Creates new socket (racing all of the server's addresses), relays socket opened/closed events
  * - Creates and terminates a writer thread
- * - Handles SSL functionality
+ * - Handles SSL functionality (through TlsSupport, which resumes sessions on reconnects)
  */
-final class ServerReaderThread extends WorkerThread {
+final class ServerReaderThread extends WorkerThread implements ServerConnection {
 	
 	/*---- Fields ----*/
 	
@@ -46,6 +37,8 @@ final class ServerReaderThread extends WorkerThread {
 	private final boolean useSsl;
 	// My state
 	private volatile Socket socket;
+	private volatile Socket rawSocket;  // The TCP socket under the SSL layer, if any
+	private OutputWriterThread writer;
 	
 	
 	
@@ -65,6 +58,8 @@ final class ServerReaderThread extends WorkerThread {
 		this.port = port;
 		this.useSsl = useSsl;
 		socket = null;
+		rawSocket = null;
+		writer = null;
 	}
 	
 	
@@ -72,19 +67,19 @@ final class ServerReaderThread extends WorkerThread {
 	/*---- Methods ----*/
 	
 	protected void runInner() throws IOException, InterruptedException {
-		socket = new Socket();
-		OutputWriterThread writer = null;
 		try {
 			// Create socket connection
-			socket.connect(new InetSocketAddress(hostname, port), CONNECTION_TIMEOUT);
+			socket = HappyEyeballs.connect(AddressResolver.resolve(hostname), port, CONNECTION_TIMEOUT);
+			rawSocket = socket;
 			if (useSsl)
-				socket = SsfHolder.SSL_SOCKET_FACTORY.createSocket(socket, hostname, port, true);
+				socket = TlsSupport.handshake(socket, hostname, port, CONNECTION_TIMEOUT);
 			
 			// Successfully connected; make a writer worker thread
 			writer = new OutputWriterThread(socket.getOutputStream(), new byte[]{'\r','\n'});  // IRC protocol mandates the use of CR+LF
 			writer.setName("OutputWriterThread : " + this.getName());
+			writer.setOverflowPolicy(master.serverWriterOverflow, master.writerQueueBytes);
 			writer.start();
-			master.connectionOpened(connectionId, socket.getInetAddress(), this, writer);
+			master.connectionOpened(connectionId, socket.getInetAddress(), this);
 			
 			// Repeatedly read and relay lines until connection ends
 			LineReader reader = new LineReader(socket.getInputStream());
@@ -103,7 +98,8 @@ final class ServerReaderThread extends WorkerThread {
 		}
 		finally {  // Clean up the connection
 			master.connectionClosed(connectionId);
-			terminate();
+			if (socket != null)  // Null if resolving or connecting failed
+				terminate();
 			socket = null;
 			if (writer != null) {
 				writer.terminate();  // This reader is exclusively responsible for terminating the writer
@@ -113,6 +109,24 @@ final class ServerReaderThread extends WorkerThread {
 	}
 	
 	
+	// Can be called from any thread, but only after this worker has called master.connectionOpened().
+	public void postWrite(CleanLine line) {
+		writer.postWrite(line);
+	}
+	
+	
+	// Can be called from any thread, but only after this worker has called master.connectionOpened().
+	public void configureKeepalive(int deadLinkSeconds) {
+		SocketKeepalive.configure(rawSocket, deadLinkSeconds);
+	}
+	
+	
+	// Can be called from any thread, but only after this worker has called master.connectionOpened().
+	public long getQueuedBytes() {
+		return writer.getQueuedBytes();
+	}
+	
+	
 	// Aborts the current read operation (if any), closes the socket immediately, and causes the ServerReaderThread
 	// and OutputWriterThread to terminate cleanly very soon. Can be called from any thread, and is idempotent.
 	// However, this method must not be called if this worker has not called master.connectionOpened().
@@ -127,35 +141,4 @@ final class ServerReaderThread extends WorkerThread {
 	
 	private static final int CONNECTION_TIMEOUT = 30000;  // In milliseconds
 	
-	
-	
-	/*---- Helper definitions ----*/
-	
-	// This class provides a singleton object that is initialized only if needed,
-	// using the initialization-on-demand holder design pattern.
-	private static final class SsfHolder {
-		public static final SSLSocketFactory SSL_SOCKET_FACTORY;  // Singleton
-		static {
-			SSLSocketFactory result = null;
-			try {
-				// From "How to bypass SSL security check": https://code.google.com/p/misc-utils/wiki/JavaHttpsUrl
-				TrustManager[] trustAllCerts = {
-					new X509TrustManager() {  // A trust manager that does not validate certificate chains
-						public void checkClientTrusted(X509Certificate[] chain, String authType) {}
-						public void checkServerTrusted(X509Certificate[] chain, String authType) {}
-						public X509Certificate[] getAcceptedIssuers() { return null; }
-					}
-				};
-				SSLContext sslContext = SSLContext.getInstance("SSL");
-				sslContext.init(null, trustAllCerts, new SecureRandom());  // Install the all-trusting trust manager
-				result = sslContext.getSocketFactory();  // Create factory with our all-trusting manager
-			} catch (KeyManagementException e) {
-				e.printStackTrace();
-			} catch (NoSuchAlgorithmException e) {
-				e.printStackTrace();
-			}
-			SSL_SOCKET_FACTORY = result;
-		}
-	}
-	
 }
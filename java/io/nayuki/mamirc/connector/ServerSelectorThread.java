@@ -0,0 +1,578 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.HashedWheelTimer;
+import io.nayuki.mamirc.common.LineFramer;
+import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.common.WorkerThread;
+
+
+/* 
+ * A worker thread that runs one NIO selector loop, which connects, reads, frames lines and writes for any number
+ * of IRC server connections. This is the alternative to one ServerReaderThread plus one OutputWriterThread per
+ * connection, and is selected by the "connector-io-model" setting in the backend configuration.
+ * Additional functionality provided:
+ * - Relays socket opened/closed events and received lines to the master, just like ServerReaderThread
+ * - Races staggered connection attempts to all of the server's addresses, like HappyEyeballs does
+ * - Never blocks on a slow server; a connection whose write queue exceeds the configured
+ *   number of bytes is closed instead (like the "disconnect" writer overflow policy)
+ * - Handles SSL connections with a non-blocking SSLEngine from TlsSupport, whose delegated
+ *   tasks (mainly certificate processing) run inline on this thread
+ */
+final class ServerSelectorThread extends WorkerThread {
+	
+	/*---- Fields ----*/
+	
+	private final MamircConnector master;
+	private final Selector selector;
+	// Actions submitted by other threads, to be run on this thread after the next wakeup.
+	private final Queue<Runnable> pendingTasks;
+	// Only used by this thread; the data is copied out by LineFramer before the buffer is reused.
+	private final ByteBuffer readBuffer;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// The selector is opened on the caller's thread, to make the caller deal with an I/O exception immediately.
+	public ServerSelectorThread(MamircConnector master, int index) throws IOException {
+		super("ServerSelectorThread " + index, false);
+		if (master == null)
+			throw new NullPointerException();
+		this.master = master;
+		selector = Selector.open();
+		pendingTasks = new ConcurrentLinkedQueue<>();
+		readBuffer = ByteBuffer.allocate(16384);
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	protected void runInner() throws IOException {
+		while (true) {
+			selector.select();
+			while (true) {
+				Runnable task = pendingTasks.poll();
+				if (task == null)
+					break;
+				task.run();
+			}
+			
+			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				Connection con = (Connection)key.attachment();
+				try {
+					if (key.isValid() && key.isConnectable())
+						con.handleConnect(key);
+					if (key.isValid() && key.isReadable())
+						con.handleRead();
+					if (key.isValid() && key.isWritable())
+						con.handleWrite();
+				} catch (IOException e) {  // A very normal occurrence
+					Utils.logger.fine("Connection " + con.connectionId + " I/O exception: " + e);
+					con.close();
+				}
+			}
+		}
+	}
+	
+	
+	// Starts connecting to the given IRC server in the background. Returns immediately without performing I/O.
+	// Can be called from any thread. MamircConnector.connectionClosed() is eventually called exactly once,
+	// even if the hostname cannot be resolved or the connection attempt fails.
+	public void connect(int conId, final String hostname, final int port, boolean useSsl) {
+		if (hostname == null)
+			throw new NullPointerException();
+		Utils.checkPortNumber(port);
+		final Connection con = new Connection(conId, port, useSsl ? TlsSupport.createEngine(hostname, port) : null);
+		RESOLVER.execute(new Runnable() {
+			public void run() {
+				// Name resolution blocks, so it must not happen on the selector thread
+				InetAddress[] addrs;
+				try {
+					addrs = AddressResolver.resolve(hostname);
+				} catch (IOException e) {
+					Utils.logger.fine("Connection " + con.connectionId + " failed: " + e);
+					addrs = null;
+				}
+				final InetAddress[] result = addrs;
+				submit(new Runnable() {
+					public void run() {
+						con.start(result);
+					}
+				});
+			}
+		});
+	}
+	
+	
+	// Runs the given action on this selector thread soon. Can be called from any thread.
+	private void submit(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+	
+	
+	
+	/*---- Helper definitions ----*/
+	
+	// The handle for one connection, owned by this selector thread.
+	private final class Connection implements ServerConnection {
+		
+		public final int connectionId;
+		private final int port;
+		// These fields are only accessed by the selector thread
+		private SocketChannel channel;  // Null until an attempt wins the connection race
+		private SelectionKey key;
+		private InetAddress[] addresses;
+		private int nextAttempt;  // Index into addresses
+		private final List<SelectionKey> attempts;  // Connection attempts in progress
+		private HashedWheelTimer.Task attemptTimer;
+		private final LineFramer framer;
+		private HashedWheelTimer.Task connectTimeout;  // Also covers the TLS handshake
+		private boolean closed;
+		// These fields are shared with posting threads, and are protected by this object's monitor
+		private final Queue<ByteBuffer> writeQueue;
+		private long queuedBytes;
+		private boolean writeRequested;
+		private boolean closeRequested;
+		// TLS state, only used if the engine is not null, and only accessed by the selector thread
+		// (except that tlsReady is read under this object's monitor). Buffers are kept in write mode.
+		private final SSLEngine engine;
+		private ByteBuffer netIn;   // Received ciphertext not yet unwrapped
+		private ByteBuffer appIn;   // Unwrapped plaintext not yet split into lines
+		private ByteBuffer netOut;  // Wrapped ciphertext not yet written to the socket
+		private long handshakeStart;
+		private boolean fullHandshake;
+		private boolean tlsReady;  // Whether the initial handshake has finished, so that application data can be sent
+		
+		
+		// The engine is null for a plaintext connection.
+		public Connection(int conId, int port, SSLEngine engine) {
+			connectionId = conId;
+			this.port = port;
+			channel = null;
+			attempts = new ArrayList<>();
+			framer = new LineFramer();
+			closed = false;
+			writeQueue = new ArrayDeque<>();
+			queuedBytes = 0;
+			writeRequested = false;
+			closeRequested = false;
+			this.engine = engine;
+			if (engine != null) {
+				netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+				netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				fullHandshake = false;
+				tlsReady = false;
+			}
+		}
+		
+		
+		// Must only be called on the selector thread. The addresses are null if the hostname could not be resolved.
+		void start(InetAddress[] addrs) {
+			if (addrs == null || addrs.length == 0) {
+				close();
+				return;
+			}
+			addresses = addrs;
+			nextAttempt = 0;
+			connectTimeout = new HashedWheelTimer.Task() {
+				public void run() {
+					terminate();
+				}
+			};
+			master.timer.schedule(connectTimeout, CONNECTION_TIMEOUT);
+			startNextAttempt();
+		}
+		
+		
+		// Starts a connection attempt to the next address that can be tried, and schedules the attempt after it
+		// (RFC 8305). Closes this connection if no attempts are left. Must only be called on the selector thread.
+		private void startNextAttempt() {
+			if (closed || channel != null)
+				return;
+			if (attemptTimer != null)
+				attemptTimer.cancel();
+			while (nextAttempt < addresses.length) {
+				InetAddress addr = addresses[nextAttempt];
+				nextAttempt++;
+				SocketChannel ch = null;
+				SelectionKey k;
+				boolean connected;
+				try {
+					ch = SocketChannel.open();
+					ch.configureBlocking(false);
+					k = ch.register(selector, SelectionKey.OP_CONNECT, this);
+					attempts.add(k);
+					connected = ch.connect(new InetSocketAddress(addr, port));
+				} catch (IOException e) {
+					Utils.logger.fine("Connection " + connectionId + " attempt to " + addr.getHostAddress() + " failed: " + e);
+					if (ch != null) {
+						attempts.remove(ch.keyFor(selector));
+						closeQuietly(ch);
+					}
+					continue;
+				}
+				
+				if (connected) {  // Rare, but possible for local addresses
+					try {
+						handleConnect(k);
+					} catch (IOException e) {
+						Utils.logger.fine("Connection " + connectionId + " I/O exception: " + e);
+						close();
+					}
+				} else if (nextAttempt < addresses.length) {
+					attemptTimer = new HashedWheelTimer.Task() {
+						public void run() {
+							submit(new Runnable() {
+								public void run() {
+									startNextAttempt();
+								}
+							});
+						}
+					};
+					master.timer.schedule(attemptTimer, HappyEyeballs.ATTEMPT_DELAY);
+				}
+				return;
+			}
+			if (attempts.isEmpty())
+				close();
+		}
+		
+		
+		void handleConnect(SelectionKey k) throws IOException {
+			SocketChannel ch = (SocketChannel)k.channel();
+			try {
+				if (!ch.finishConnect())
+					return;
+			} catch (IOException e) {  // This attempt failed; start the next one right away
+				Utils.logger.fine("Connection " + connectionId + " attempt failed: " + e);
+				attempts.remove(k);
+				closeQuietly(ch);
+				startNextAttempt();
+				return;
+			}
+			
+			// This attempt won the race
+			if (attemptTimer != null)
+				attemptTimer.cancel();
+			for (SelectionKey other : attempts) {
+				if (other != k)
+					closeQuietly(other.channel());
+			}
+			attempts.clear();
+			channel = ch;
+			key = k;
+			key.interestOps(SelectionKey.OP_READ);
+			master.connectionOpened(connectionId, ((InetSocketAddress)channel.getRemoteAddress()).getAddress(), this);
+			if (engine == null) {
+				connectTimeout.cancel();
+				updateInterest();
+			} else {
+				handshakeStart = System.nanoTime();
+				engine.beginHandshake();
+				handleWrite();  // Sends the ClientHello
+			}
+		}
+		
+		
+		void handleRead() throws IOException {
+			if (engine == null) {
+				readBuffer.clear();
+				int n = channel.read(readBuffer);
+				if (n == -1) {  // Any incomplete line at the end of stream is discarded
+					close();
+					return;
+				}
+				readBuffer.flip();
+				takeLines(readBuffer);
+				return;
+			}
+			
+			if (channel.read(netIn) == -1) {
+				close();
+				return;
+			}
+			netIn.flip();
+			boolean grow = false;
+			try {
+				while (netIn.hasRemaining() && !closed) {
+					SSLEngineResult res = engine.unwrap(netIn, appIn);
+					SSLEngineResult.Status status = res.getStatus();
+					if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+						continue;
+					} else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+						grow = netIn.limit() == netIn.capacity();  // Record bigger than the buffer
+						break;
+					} else if (status == SSLEngineResult.Status.CLOSED) {
+						close();
+						return;
+					}
+					handleHandshakeStatus(res.getHandshakeStatus());
+					if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+						handleWrite();  // Reply before unwrapping the rest
+					else if (res.bytesConsumed() == 0 && res.bytesProduced() == 0 && res.getHandshakeStatus() != HandshakeStatus.NEED_TASK)
+						break;
+				}
+			} finally {
+				netIn.compact();
+			}
+			if (grow)
+				netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+			if (closed)
+				return;
+			appIn.flip();
+			takeLines(appIn);
+			appIn.compact();
+			handleWrite();  // The handshake might need to send something, or might have just finished
+		}
+		
+		
+		// Relays all complete lines in the given buffer of plaintext to the master.
+		private void takeLines(ByteBuffer buf) {
+			while (true) {
+				byte[] line = framer.takeLine(buf);
+				if (line == null)
+					break;
+				boolean valid = true;
+				for (byte b : line)
+					valid &= b != '\0';
+				if (valid)  // Ignore lines containing NUL character, disallowed by IRC RFC 1459
+					master.receiveMessage(connectionId, new CleanLine(line, false));
+				else
+					Utils.logger.info("Received invalid line from IRC server, containing NUL byte");
+			}
+		}
+		
+		
+		// Writes as much as the socket accepts, using one gathering write (or one TLS wrap of all
+		// the queued lines) per step, and then updates the interest in writability.
+		void handleWrite() throws IOException {
+			if (engine == null) {
+				synchronized(this) {
+					ByteBuffer[] bufs = writeQueue.toArray(new ByteBuffer[writeQueue.size()]);
+					channel.write(bufs);
+					removeWrittenBuffers();
+				}
+				updateInterest();
+				return;
+			}
+			
+			while (!closed) {
+				// Flush pending ciphertext first
+				netOut.flip();
+				try {
+					channel.write(netOut);
+					if (netOut.hasRemaining())
+						break;  // Socket buffer is full
+				} finally {
+					netOut.compact();
+				}
+				
+				// Produce more ciphertext from handshake messages or queued lines, if possible
+				SSLEngineResult res;
+				if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+					res = engine.wrap(EMPTY_BUFFER, netOut);
+				else {
+					synchronized(this) {
+						if (!tlsReady || writeQueue.isEmpty())
+							break;
+						res = engine.wrap(writeQueue.toArray(new ByteBuffer[writeQueue.size()]), netOut);
+						removeWrittenBuffers();
+					}
+				}
+				if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+					close();
+					return;
+				} else if (res.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+					netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+				handleHandshakeStatus(res.getHandshakeStatus());
+			}
+			if (!closed)
+				updateInterest();
+		}
+		
+		
+		// Must hold this object's monitor.
+		private void removeWrittenBuffers() {
+			while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining())
+				queuedBytes -= writeQueue.remove().capacity();
+		}
+		
+		
+		// Runs delegated tasks if needed, and finishes the handshake if it just completed.
+		private void handleHandshakeStatus(HandshakeStatus status) {
+			if (status == HandshakeStatus.NEED_TASK) {
+				fullHandshake |= TlsSupport.runDelegatedTasks(engine);
+				status = engine.getHandshakeStatus();
+			}
+			if (status == HandshakeStatus.FINISHED && !tlsReady) {
+				connectTimeout.cancel();
+				TlsSupport.recordHandshake(engine.getPeerHost(), engine.getPeerPort(), System.nanoTime() - handshakeStart, fullHandshake);
+				synchronized(this) {
+					tlsReady = true;
+				}
+			}
+		}
+		
+		
+		// Selects writability if there is anything that handleWrite() could write now.
+		private void updateInterest() {
+			boolean wantWrite;
+			synchronized(this) {
+				if (engine == null)
+					wantWrite = !writeQueue.isEmpty();
+				else
+					wantWrite = netOut.position() > 0 || engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP
+						|| tlsReady && !writeQueue.isEmpty();
+				writeRequested = wantWrite;
+			}
+			key.interestOps(SelectionKey.OP_READ | (wantWrite ? SelectionKey.OP_WRITE : 0));
+		}
+		
+		
+		public void configureKeepalive(int deadLinkSeconds) {
+			SocketKeepalive.configure(channel, deadLinkSeconds);
+		}
+		
+		
+		public void postWrite(CleanLine line) {
+			byte[] b = line.getDataNoCopy();
+			ByteBuffer buf = ByteBuffer.allocate(b.length + 2);
+			buf.put(b).put((byte)'\r').put((byte)'\n').flip();
+			synchronized(this) {
+				if (closeRequested)
+					return;
+				if (!writeQueue.isEmpty() && queuedBytes + buf.capacity() > master.writerQueueBytes) {
+					Utils.logger.warning("Connection " + connectionId + " write queue overflow, disconnecting");
+					terminate();
+					return;
+				}
+				writeQueue.add(buf);
+				queuedBytes += buf.capacity();
+				if (writeRequested || engine != null && !tlsReady)
+					return;  // The end of the handshake selects writability if needed
+				writeRequested = true;
+			}
+			submit(new Runnable() {
+				public void run() {
+					try {
+						if (!closed && channel != null)
+							key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					} catch (IllegalStateException e) {}  // Includes CancelledKeyException
+				}
+			});
+		}
+		
+		
+		public synchronized long getQueuedBytes() {
+			return queuedBytes;
+		}
+		
+		
+		public void terminate() {
+			synchronized(this) {
+				if (closeRequested)
+					return;
+				closeRequested = true;
+			}
+			submit(new Runnable() {
+				public void run() {
+					close();
+				}
+			});
+		}
+		
+		
+		// Must only be called on the selector thread. Idempotent.
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			synchronized(this) {
+				closeRequested = true;
+				writeQueue.clear();
+				queuedBytes = 0;
+			}
+			if (connectTimeout != null)
+				connectTimeout.cancel();
+			if (attemptTimer != null)
+				attemptTimer.cancel();
+			for (SelectionKey k : attempts)
+				closeQuietly(k.channel());
+			attempts.clear();
+			if (channel != null)
+				closeQuietly(channel);  // Also cancels the key
+			master.connectionClosed(connectionId);
+		}
+		
+	}
+	
+	
+	private static void closeQuietly(Channel ch) {
+		try {
+			ch.close();
+		} catch (IOException e) {}
+	}
+	
+	
+	// Returns a new buffer in write mode with the contents of the given buffer (in write mode)
+	// and at least the given amount of free space.
+	private static ByteBuffer enlarge(ByteBuffer buf, int minFree) {
+		ByteBuffer result = ByteBuffer.allocate(buf.position() + Math.max(minFree, buf.capacity()));
+		buf.flip();
+		result.put(buf);
+		return result;
+	}
+	
+	
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+	
+	
+	private static final int CONNECTION_TIMEOUT = 30000;  // In milliseconds
+	
+	
+	// Shared by all selector threads. Threads are created on demand and die after being idle for a minute.
+	private static final ExecutorService RESOLVER = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread th = new Thread(r, "ServerSelectorThread resolver");
+			th.setDaemon(true);
+			return th;
+		}
+	});
+	
+}
@@ -0,0 +1,123 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.Set;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * Turns on kernel TCP keepalive for IRC server sockets, and where the platform supports it (jdk.net.ExtendedSocketOptions,
+ * Java 11+ on Linux and macOS), tunes the probe timings so that a dead link is noticed after roughly a given number of
+ * seconds of silence: the first probe is sent after half that time, then 3 more probes at intervals of a sixth.
+ * Everything is looked up reflectively, so this still compiles and runs on older Java versions.
+ */
+final class SocketKeepalive {
+	
+	// Configures the given socket, ignoring errors. A timeout of 0 leaves the keepalive timings at the system defaults.
+	public static void configure(Socket sock, int deadLinkSeconds) {
+		try {
+			sock.setKeepAlive(true);
+			if (deadLinkSeconds == 0 || OPTIONS == null || SOCKET_SET_OPTION == null)
+				return;
+			Set<?> supported = (Set<?>)SOCKET_SUPPORTED_OPTIONS.invoke(sock);
+			int[] values = timings(deadLinkSeconds);
+			for (int i = 0; i < OPTIONS.length; i++) {
+				if (supported.contains(OPTIONS[i]))
+					SOCKET_SET_OPTION.invoke(sock, OPTIONS[i], values[i]);
+			}
+		} catch (IOException|IllegalAccessException e) {
+			Utils.logger.fine("Cannot configure TCP keepalive: " + e);
+		} catch (InvocationTargetException e) {
+			Utils.logger.fine("Cannot configure TCP keepalive: " + e.getCause());
+		}
+	}
+	
+	
+	// Configures the given channel, ignoring errors. A timeout of 0 leaves the keepalive timings at the system defaults.
+	public static void configure(NetworkChannel chan, int deadLinkSeconds) {
+		try {
+			chan.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+			if (deadLinkSeconds == 0 || OPTIONS == null)
+				return;
+			Set<SocketOption<?>> supported = chan.supportedOptions();
+			int[] values = timings(deadLinkSeconds);
+			for (int i = 0; i < OPTIONS.length; i++) {
+				if (supported.contains(OPTIONS[i]))
+					setIntOption(chan, OPTIONS[i], values[i]);
+			}
+		} catch (IOException|UnsupportedOperationException e) {
+			Utils.logger.fine("Cannot configure TCP keepalive: " + e);
+		}
+	}
+	
+	
+	// Returns {idle, interval, count} for the given dead link timeout in seconds.
+	static int[] timings(int deadLinkSeconds) {
+		if (deadLinkSeconds <= 0)
+			throw new IllegalArgumentException();
+		return new int[]{Math.max(deadLinkSeconds / 2, 1), Math.max(deadLinkSeconds / 6, 1), 3};
+	}
+	
+	
+	
+	/*---- Reflective lookups ----*/
+	
+	// TCP_KEEPIDLE, TCP_KEEPINTERVAL, TCP_KEEPCOUNT (in the same order as timings()); null if not supported
+	private static final SocketOption<?>[] OPTIONS;
+	
+	// Socket.setOption() and supportedOptions() exist since Java 9; null if not supported
+	private static final Method SOCKET_SET_OPTION;
+	private static final Method SOCKET_SUPPORTED_OPTIONS;
+	
+	static {
+		SocketOption<?>[] options;
+		try {
+			Class<?> clazz = Class.forName("jdk.net.ExtendedSocketOptions");
+			options = new SocketOption<?>[]{
+				(SocketOption<?>)clazz.getField("TCP_KEEPIDLE"    ).get(null),
+				(SocketOption<?>)clazz.getField("TCP_KEEPINTERVAL").get(null),
+				(SocketOption<?>)clazz.getField("TCP_KEEPCOUNT"   ).get(null),
+			};
+		} catch (ReflectiveOperationException e) {
+			options = null;
+		}
+		OPTIONS = options;
+		
+		Method setOption = null, supportedOptions = null;
+		try {
+			setOption = Socket.class.getMethod("setOption", SocketOption.class, Object.class);
+			supportedOptions = Socket.class.getMethod("supportedOptions");
+		} catch (NoSuchMethodException e) {
+			setOption = null;
+		}
+		SOCKET_SET_OPTION = setOption;
+		SOCKET_SUPPORTED_OPTIONS = supportedOptions;
+	}
+	
+	
+	// Works around the wildcard type of the options array; all three options take an Integer.
+	@SuppressWarnings("unchecked")
+	private static void setIntOption(NetworkChannel chan, SocketOption<?> opt, int value) throws IOException {
+		chan.setOption((SocketOption<Integer>)opt, value);
+	}
+	
+	
+	
+	// Not instantiable.
+	private SocketKeepalive() {}
+	
+}
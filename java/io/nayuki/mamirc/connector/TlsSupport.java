@@ -0,0 +1,162 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * The TLS layer shared by all IRC server connections, for both the blocking socket path and the non-blocking
+ * SSLEngine path. There is one SSLContext, whose client session cache is keyed by the peer's host:port (this is
+ * why every socket and engine is created with the hostname and port), so that reconnecting to the same server
+ * can resume the previous session with an abbreviated handshake instead of a full one.
+ * A handshake is counted as full if it called the trust manager to check the server's certificate chain;
+ * resumed handshakes skip that step. Handshake counts and times are kept for monitoring.
+ */
+final class TlsSupport {
+	
+	/*---- Connection setup ----*/
+	
+	// Layers TLS over the given connected socket and performs the handshake, which is bounded by the given timeout in
+	// milliseconds (0 means infinite). Returns a new socket that closes the underlying one when closed.
+	public static SSLSocket handshake(Socket raw, String hostname, int port, int timeout) throws IOException {
+		SSLSocket sock = (SSLSocket)CONTEXT.getSocketFactory().createSocket(raw, hostname, port, true);
+		int oldTimeout = raw.getSoTimeout();
+		raw.setSoTimeout(timeout);
+		long start = System.nanoTime();
+		certificateChecked.set(false);
+		sock.startHandshake();
+		recordHandshake(hostname, port, System.nanoTime() - start, certificateChecked.get());
+		raw.setSoTimeout(oldTimeout);
+		return sock;
+	}
+	
+	
+	// Returns a new engine in client mode for the given server. The caller drives the handshake,
+	// runs delegated tasks through runDelegatedTasks(), and calls recordHandshake() when it finishes.
+	public static SSLEngine createEngine(String hostname, int port) {
+		SSLEngine engine = CONTEXT.createSSLEngine(hostname, port);
+		engine.setUseClientMode(true);
+		return engine;
+	}
+	
+	
+	// Runs all pending delegated tasks of the given engine on the current thread, and returns
+	// whether any of them checked a certificate chain (which means the handshake is a full one).
+	public static boolean runDelegatedTasks(SSLEngine engine) {
+		certificateChecked.set(false);
+		while (true) {
+			Runnable task = engine.getDelegatedTask();
+			if (task == null)
+				break;
+			task.run();
+		}
+		return certificateChecked.get();
+	}
+	
+	
+	// Updates the statistics with a completed handshake, which took the given number of nanoseconds.
+	public static void recordHandshake(String hostname, int port, long nanos, boolean full) {
+		handshakeCount.incrementAndGet();
+		if (!full)
+			resumedCount.incrementAndGet();
+		handshakeNanos.addAndGet(nanos);
+		if (Utils.logger.isLoggable(Level.FINE))
+			Utils.logger.fine("TLS handshake with " + hostname + ":" + port + " took " + nanos / 1000000 + " ms (" + (full ? "full" : "resumed") + ")");
+	}
+	
+	
+	
+	/*---- Statistics ----*/
+	
+	private static final AtomicLong handshakeCount = new AtomicLong();
+	private static final AtomicLong resumedCount = new AtomicLong();
+	private static final AtomicLong handshakeNanos = new AtomicLong();
+	
+	
+	public static long getHandshakeCount() {
+		return handshakeCount.get();
+	}
+	
+	
+	public static long getResumedCount() {
+		return resumedCount.get();
+	}
+	
+	
+	// Returns the total time spent in completed handshakes, in milliseconds.
+	public static long getTotalHandshakeMillis() {
+		return handshakeNanos.get() / 1000000;
+	}
+	
+	
+	
+	/*---- Helper definitions ----*/
+	
+	// Set by the trust manager when it is called on the current thread.
+	private static final ThreadLocal<Boolean> certificateChecked = new ThreadLocal<Boolean>() {
+		protected Boolean initialValue() {
+			return false;
+		}
+	};
+	
+	
+	private static final int SESSION_CACHE_SIZE = 1000;  // Number of host:port entries
+	
+	private static final int SESSION_TIMEOUT = 86400;  // In seconds
+	
+	
+	private static final SSLContext CONTEXT;  // Singleton
+	
+	static {
+		SSLContext result = null;
+		try {
+			// From "How to bypass SSL security check": https://code.google.com/p/misc-utils/wiki/JavaHttpsUrl
+			TrustManager[] trustAllCerts = {
+				new X509TrustManager() {  // A trust manager that does not validate certificate chains
+					public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+					public void checkServerTrusted(X509Certificate[] chain, String authType) {
+						certificateChecked.set(true);
+					}
+					public X509Certificate[] getAcceptedIssuers() { return null; }
+				}
+			};
+			result = SSLContext.getInstance("SSL");
+			result.init(null, trustAllCerts, new SecureRandom());  // Install the all-trusting trust manager
+			SSLSessionContext sessions = result.getClientSessionContext();
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT);
+		} catch (KeyManagementException e) {
+			e.printStackTrace();
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		CONTEXT = result;
+	}
+	
+	
+	
+	// Not instantiable.
+	private TlsSupport() {}
+	
+}
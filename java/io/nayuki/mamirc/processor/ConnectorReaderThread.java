@@ -8,19 +8,22 @@
 
 package io.nayuki.mamirc.processor;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import com.almworks.sqlite4java.SQLiteConnection;
-import com.almworks.sqlite4java.SQLiteException;
-import com.almworks.sqlite4java.SQLiteStatement;
 import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventStore;
 import io.nayuki.mamirc.common.LineReader;
 import io.nayuki.mamirc.common.OutputWriterThread;
 import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.common.WorkerThread;
 
 
 /* 
@@ -28,10 +31,11 @@ import io.nayuki.mamirc.common.Utils;
  * Additional functionality:
  * - Authenticates with the connector
  * - Parses the list of current active connections
- * - Reads database to catch up on all past events in the active connections
+ * - Catches up on all past events in the active connections, reading the older ones from the database
+ *   and receiving the recent ones from the Connector's in-memory tails
  * - Creates and terminates a writer thread for the socket
  */
-final class ConnectorReaderThread extends Thread {
+final class ConnectorReaderThread extends WorkerThread {
 	
 	/*---- Fields ----*/
 	
@@ -39,6 +43,7 @@ final class ConnectorReaderThread extends Thread {
 	private final BackendConfiguration configuration;
 	private Socket socket;
 	private OutputWriterThread writer;
+	private boolean binaryFraming;  // Set by init() according to the Connector's reply
 	
 	
 	/*---- Constructor ----*/
@@ -51,34 +56,30 @@ final class ConnectorReaderThread extends Thread {
 		configuration = config;
 		socket = null;
 		writer = null;
+		binaryFraming = false;
 	}
 	
 	
 	/*---- Methods ----*/
 	
-	public void run() {
+	protected void runInner() {
 		try {
 			// Connect to connector, read and process archived events
 			LineReader reader = init();
 			
 			// Process real-time events
+			if (binaryFraming) {
+				readFrames(new DataInputStream(new BufferedInputStream(reader.detachInput())));
+				return;
+			}
 			while (true) {
-				String line = readStringLine(reader);
-				if (line == null)
+				byte[] line = reader.readLine();
+				if (line == LineReader.BLANK_EOF || line == null)
 					break;
-				String[] parts = line.split(" ", 5);
-				Event ev = new Event(
-					Integer.parseInt(parts[0]),
-					Integer.parseInt(parts[1]),
-					Long.parseLong(parts[2]),
-					Event.Type.fromOrdinal(Integer.parseInt(parts[3])),
-					new CleanLine(parts[4]));
-				master.processEvent(ev, true);
+				master.processEvent(parseEventLine(line), true);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (SQLiteException e) {
-			e.printStackTrace();
 		} finally {  // Clean up
 			if (writer != null)
 				writer.terminate();
@@ -92,7 +93,7 @@ final class ConnectorReaderThread extends Thread {
 	}
 	
 	
-	private LineReader init() throws IOException, SQLiteException {
+	private LineReader init() throws IOException {
 		// Connect and authenticate
 		if (socket != null)
 			throw new IllegalStateException();
@@ -101,7 +102,7 @@ final class ConnectorReaderThread extends Thread {
 		master.attachConnectorWriter(writer);
 		writer.start();
 		writer.postWrite(new CleanLine(configuration.getConnectorPassword(), false));
-		writer.postWrite(new CleanLine("attach"));
+		writer.postWrite(new CleanLine("attach binary tail"));
 		
 		// Read first line
 		LineReader reader = new LineReader(socket.getInputStream());
@@ -112,47 +113,110 @@ final class ConnectorReaderThread extends Thread {
 			throw new RuntimeException("Invalid data format");
 		
 		// Get set of current connections
-		Map<Integer,Integer> connectionSequences = new HashMap<>();
+		Map<Integer,Integer> tailSequences = new HashMap<>();
 		while (true) {
 			line = readStringLine(reader);
 			if (line.equals("end-list"))
 				break;
-			String[] parts = line.split(" ", 2);  // Connection ID, next (unused) sequence number
-			connectionSequences.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+			String[] parts = line.split(" ", 3);  // Connection ID, next (unused) sequence number, first sequence in the tail
+			tailSequences.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[2]));
 		}
-		line = readStringLine(reader);
-		if (!line.equals("live-events"))
-			throw new RuntimeException("Invalid data format");
 		
-		// Read archived events from database and process them
-		SQLiteConnection database = new SQLiteConnection(configuration.connectorDatabaseFile);
-		try {
-			database.open(false);
-			SQLiteStatement query = database.prepare("SELECT sequence, timestamp, type, data FROM events WHERE connectionId=? AND sequence<? ORDER BY sequence ASC");
-			for (int conId : connectionSequences.keySet()) {
-				int nextSeq = connectionSequences.get(conId);
-				query.bind(1, conId);
-				query.bind(2, nextSeq);
-				while (query.step()) {
-					Event ev = new Event(conId, query.columnInt(0), query.columnLong(1), Event.Type.fromOrdinal(query.columnInt(2)), new CleanLine(query.columnBlob(3), false));
+		// Read archived events (the ones before each tail) from database and process them
+		try (EventStore store = EventStore.open(configuration, false)) {
+			EventStore.Visitor visitor = new EventStore.Visitor() {
+				public void visit(Event ev) {
 					master.processEvent(ev, false);  // Non-real-time
 				}
-				query.reset();
+			};
+			for (int conId : tailSequences.keySet()) {
+				int tailSeq = tailSequences.get(conId);
+				if (tailSeq > 0)  // Else entirely in memory
+					store.readConnection(conId, 0, tailSeq, visitor);
 			}
-		} finally {
-			database.dispose();  // Automatically disposes its associated statements
 		}
 		
+		// Process the recent events from the Connector's tails, which continue where the database left off
+		// (parsed from the raw bytes, so that payloads that are not valid UTF-8 arrive exactly as archived)
+		while (true) {
+			byte[] raw = reader.readLine();
+			if (raw == LineReader.BLANK_EOF || raw == null)
+				throw new EOFException();
+			if (Arrays.equals(raw, END_TAIL))
+				break;
+			master.processEvent(parseEventLine(raw), false);  // Non-real-time
+		}
+		line = readStringLine(reader);
+		if (line.equals("live-events binary"))
+			binaryFraming = true;
+		else if (!line.equals("live-events"))
+			throw new RuntimeException("Invalid data format");
+		
 		master.finishCatchup();  // Fire off queued actions just before starting real-time processing
 		return reader;
 	}
 	
 	
+	// Reads and processes binary event frames (as defined in EventEncoder) until the end of stream.
+	private void readFrames(DataInputStream in) throws IOException {
+		while (true) {
+			int conId;
+			try {
+				conId = in.readInt();
+			} catch (EOFException e) {
+				break;
+			}
+			int seq = in.readInt();
+			long time = in.readLong();
+			int type = in.readUnsignedByte();
+			int len = in.readInt();
+			if (len < 0 || len > MAX_FRAME_PAYLOAD || type >= NUM_EVENT_TYPES)
+				throw new IOException("Invalid event frame");
+			byte[] payload = new byte[len];
+			in.readFully(payload);
+			master.processEvent(new Event(conId, seq, time, Event.Type.fromOrdinal(type), new CleanLine(payload, false)), true);
+		}
+	}
+	
+	
+	private static final int MAX_FRAME_PAYLOAD = 1 << 20;
+	
+	private static final int NUM_EVENT_TYPES = Event.Type.values().length;
+	
+	
 	public void terminate() throws IOException {
 		socket.close();
 	}
 	
 	
+	// Parses a text event line from the Connector (see EventEncoder). The payload keeps its bytes exactly, even if
+	// they are not valid UTF-8. Throws IllegalArgumentException if the line is malformed.
+	static Event parseEventLine(byte[] line) {
+		// Find the space after the 4 numeric fields
+		int end = -1;
+		for (int i = 0; i < 4; i++) {
+			end++;
+			while (end < line.length && line[end] != ' ')
+				end++;
+			if (end == line.length)
+				throw new IllegalArgumentException("Invalid event line");
+		}
+		String[] parts = Utils.fromUtf8(Arrays.copyOf(line, end)).split(" ", -1);
+		int type = Integer.parseInt(parts[3]);
+		if (type < 0 || type >= NUM_EVENT_TYPES)
+			throw new IllegalArgumentException("Invalid event line");
+		return new Event(
+			Integer.parseInt(parts[0]),
+			Integer.parseInt(parts[1]),
+			Long.parseLong(parts[2]),
+			Event.Type.fromOrdinal(type),
+			new CleanLine(Arrays.copyOfRange(line, end + 1, line.length), false));
+	}
+	
+	
+	private static final byte[] END_TAIL = Utils.toUtf8("end-tail");
+	
+	
 	// Returns the next line from the given reader decoded as UTF-8, or null if the end of stream is reached.
 	private static String readStringLine(LineReader reader) throws IOException {
 		byte[] line = reader.readLine();
@@ -0,0 +1,51 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventEncoder;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class ConnectorReaderThreadTest {
+	
+	@Test public void testParseEventLine() {
+		byte[][] payloads = {
+			{':', 'a', ' ', 'P', 'R', 'I', 'V', 'M', 'S', 'G', ' ', '#', 'x', ' ', ':', (byte)0xE9, 't', (byte)0xE9},  // Latin-1, not UTF-8
+			{(byte)0xFF, (byte)0xC3, '(', ' ', ' '},
+			{},
+		};
+		for (byte[] payload : payloads) {
+			Event ev = new Event(5, 123, 1449104543985L, Event.Type.RECEIVE, new CleanLine(payload));
+			Event parsed = ConnectorReaderThread.parseEventLine(EventEncoder.encodeLine(ev).getData());
+			assertEquals(5, parsed.connectionId);
+			assertEquals(123, parsed.sequence);
+			assertEquals(1449104543985L, parsed.timestamp);
+			assertEquals(Event.Type.RECEIVE, parsed.type);
+			assertArrayEquals(payload, parsed.line.getDataNoCopy());
+		}
+	}
+	
+	
+	@Test public void testParseEventLineInvalid() {
+		String[] cases = {"", "1 2 3", "1 2 3 1", "1 2 x 1 a", "1 2 3 7 a", "-1 2 3 1 a"};
+		for (String cs : cases) {
+			try {
+				ConnectorReaderThread.parseEventLine(Utils.toUtf8(cs));
+				fail();
+			} catch (IllegalArgumentException e) {}  // Pass
+		}
+	}
+	
+}
@@ -13,11 +13,10 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeSet;
 import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
+import io.nayuki.mamirc.common.HashedWheelTimer;
 import io.nayuki.mamirc.common.OutputWriterThread;
 
 
@@ -177,12 +176,12 @@ final class IrcSession {
 	}
 	
 	
-	public void handleThrottledSendLine(String rawLine, final Timer timer, final Lock lock, final OutputWriterThread writer) {
+	public void handleThrottledSendLine(String rawLine, final HashedWheelTimer timer, final Lock lock, final OutputWriterThread writer) {
 		if (rawLine == null || timer == null || lock == null || writer == null)
 			throw new NullPointerException();
 		
 		if (numBurstLines >= maxBurstLines) {
-			timer.schedule(new TimerTask() {
+			timer.schedule(new HashedWheelTimer.Task() {
 				public void run() {
 					lock.lock();
 					try {
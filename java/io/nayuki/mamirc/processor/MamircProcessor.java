@@ -19,8 +19,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -30,8 +28,10 @@ import java.util.logging.Logger;
 import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.HashedWheelTimer;
 import io.nayuki.mamirc.common.LockHelper;
 import io.nayuki.mamirc.common.OutputWriterThread;
+import io.nayuki.mamirc.common.Utils;
 import io.nayuki.mamirc.processor.IrcSession.RegState;
 import io.nayuki.mamirc.processor.UserConfiguration.IrcNetwork;
 
@@ -52,7 +52,10 @@ public final class MamircProcessor {
 		}
 		
 		Logger.getLogger("com.almworks.sqlite4java").setLevel(Level.OFF);  // Prevent sqlite4java module from polluting stderr with debug messages
-		new MamircProcessor(new BackendConfiguration(new File(args[0])), new File(args[1]));
+		BackendConfiguration config = new BackendConfiguration(new File(args[0]));
+		Utils.setUseVirtualThreads(config.useVirtualThreads);
+		OutputWriterThread.setBatching(config.writerBatchBytes, config.writerLingerMillis);
+		new MamircProcessor(config, new File(args[1]));
 		// The main thread returns, while other threads live on
 	}
 	
@@ -64,7 +67,8 @@ public final class MamircProcessor {
 	private ConnectorReaderThread reader;
 	private OutputWriterThread writer;
 	private MessageHttpServer server;
-	private Timer timer;
+	private SearchIndexerThread searchIndexer;  // Null if search is disabled
+	private HashedWheelTimer timer;
 	
 	// Mutable current state
 	private final Map<Integer,IrcSession> ircSessions;
@@ -112,9 +116,14 @@ public final class MamircProcessor {
 			reader = new ConnectorReaderThread(this, backendConfig);
 			reader.start();
 			// Initialize HTTP server
-			server = new MessageHttpServer(this, backendConfig.webServerPort, backendConfig.webUiPassword);
+			server = new MessageHttpServer(this, backendConfig.webServerPort, backendConfig.webUiPassword, backendConfig.processorSearchIndexFile);
+			// Initialize search indexer, if configured
+			if (backendConfig.processorSearchIndexFile != null) {
+				searchIndexer = new SearchIndexerThread(backendConfig);
+				searchIndexer.start();
+			}
 			// Initialize asynchronous event executor
-			timer = new Timer("MamircProcessor.timer");
+			timer = new HashedWheelTimer("MamircProcessor.timer");
 		} catch (IOException e) {
 			e.printStackTrace();
 			terminate();
@@ -124,7 +133,7 @@ public final class MamircProcessor {
 		}
 		
 		// Refresh all channel names on all connections once a day
-		timer.schedule(new TimerTask() {
+		timer.schedule(new HashedWheelTimer.Task() {
 			public void run() {
 				try (LockHelper lh = locker.enter()) {
 					for (Map.Entry<Integer,IrcSession> entry : ircSessions.entrySet()) {
@@ -180,8 +189,11 @@ public final class MamircProcessor {
 			
 		} else if (line.startsWith("opened ")) {
 			state.setRegistrationState(RegState.OPENED);
-			if (realtime)
+			if (realtime) {
+				if (state.profile.deadLinkTimeout != 0)
+					writer.postWrite("keepalive " + conId + " " + state.profile.deadLinkTimeout);
 				sendIrcLine(conId, "NICK", state.profile.nicknames.get(0));
+			}
 			addUpdate("CONNECTED", state.profile.name);
 			windows.addConnectedLine(state.profile.name, ev.timestamp, line.split(" ", 2)[1]);
 			
@@ -574,7 +586,7 @@ public final class MamircProcessor {
 		} else
 			delay = connectionAttemptState.get(net)[1];
 		
-		timer.schedule(new TimerTask() {
+		timer.schedule(new HashedWheelTimer.Task() {
 			public void run() {
 				try (LockHelper lh = locker.enter()) {
 					if (isTerminating)
@@ -636,7 +648,7 @@ public final class MamircProcessor {
 			// Send QUIT line, delay a bit for the write to flush, then
 			// close connection forcefully if server hasn't done so already
 			sendIrcLine(conId, "QUIT", "MamIRC, the headless IRC client");
-			timer.schedule(new TimerTask() {
+			timer.schedule(new HashedWheelTimer.Task() {
 				public void run() {
 					try (LockHelper lh = locker.enter()) {
 						if (ircSessions.containsKey(conId))
@@ -664,8 +676,10 @@ public final class MamircProcessor {
 				reader.terminate();
 			if (server != null)
 				server.terminate();
+			if (searchIndexer != null)
+				searchIndexer.terminate();
 			if (timer != null)
-				timer.cancel();
+				timer.stop();
 			isTerminating = true;
 			condTerminate.signalAll();
 			condNewUpdates.signalAll();
@@ -829,6 +843,7 @@ public final class MamircProcessor {
 				outProfile.put("realname", inProfile.realname);
 				outProfile.put("nickservPassword", inProfile.nickservPassword);
 				outProfile.put("channels", new ArrayList<>(inProfile.channels));
+				outProfile.put("deadLinkTimeout", inProfile.deadLinkTimeout);
 				List<Map<String,Object>> outServers = new ArrayList<>();
 				for (IrcNetwork.Server inServer : inProfile.servers) {
 					Map<String,Object> outServer = new HashMap<>();
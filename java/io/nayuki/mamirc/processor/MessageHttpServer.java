@@ -25,7 +25,6 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.zip.DeflaterOutputStream;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -43,6 +42,7 @@ final class MessageHttpServer {
 	private final HttpServer server;
 	private final ExecutorService executor;
 	private final String password;
+	private final File searchIndexFile;  // Null if search is disabled
 	
 	private String csrfToken;
 	private Set<String> knownStaticFilenames;
@@ -54,8 +54,9 @@ final class MessageHttpServer {
 	
 	/*---- Constructor ----*/
 	
-	public MessageHttpServer(final MamircProcessor master, int port, String pswd) throws IOException {
+	public MessageHttpServer(final MamircProcessor master, int port, String pswd, File searchIndexFile) throws IOException {
 		this.password = pswd;
+		this.searchIndexFile = searchIndexFile;
 		
 		Random rand = new SecureRandom();
 		csrfToken = "";
@@ -158,6 +159,11 @@ final class MessageHttpServer {
 						break;
 					}
 					
+					case "/search.json": {
+						writeJsonResponse(search(reqData), he);
+						break;
+					}
+					
 					case "/do-actions.json": {
 						String result;
 						if (!equalsTimingSafe(Json.getString(reqData, "csrfToken"), csrfToken)) {
@@ -223,9 +229,10 @@ final class MessageHttpServer {
 		server.createContext("/get-time.json", apiHandler);
 		server.createContext("/get-updates.json", apiHandler);
 		server.createContext("/do-actions.json", apiHandler);
+		server.createContext("/search.json", apiHandler);
 		
 		// Start the server
-		executor = Executors.newFixedThreadPool(10);
+		executor = Utils.newExecutor(10);  // Long-polling requests each occupy a thread, so virtual threads help here
 		server.setExecutor(executor);
 		server.start();
 	}
@@ -300,6 +307,40 @@ final class MessageHttpServer {
 	}
 	
 	
+	// Returns a page of search results (see SearchIndex.search()) for the given request, or an error string.
+	// Request fields: "query" (required), "profile", "party", "since" and "until" (Unix milliseconds),
+	// "sort" ("relevance" or "time"), "offset", "limit" (at most MAX_SEARCH_LIMIT).
+	private Object search(Object reqData) throws IOException {
+		if (searchIndexFile == null)
+			return "Search is disabled";
+		Map<String,Object> req = Json.getMap(reqData);
+		String query = Json.getString(reqData, "query");
+		String profile = req.containsKey("profile") ? Json.getString(reqData, "profile") : null;
+		String party = req.containsKey("party") ? Json.getString(reqData, "party") : null;
+		long since = req.containsKey("since") ? ((Number)Json.getObject(reqData, "since")).longValue() : Long.MIN_VALUE;
+		long until = req.containsKey("until") ? ((Number)Json.getObject(reqData, "until")).longValue() : Long.MAX_VALUE;
+		String sort = req.containsKey("sort") ? Json.getString(reqData, "sort") : "relevance";
+		int offset = req.containsKey("offset") ? Json.getInt(reqData, "offset") : 0;
+		int limit = req.containsKey("limit") ? Json.getInt(reqData, "limit") : 50;
+		if (!sort.matches("relevance|time") || offset < 0 || limit < 1 || limit > MAX_SEARCH_LIMIT)
+			return "Invalid search parameters";
+		if (!searchIndexFile.isFile())
+			return "Search index not created yet";
+		
+		SearchIndex index = new SearchIndex(searchIndexFile, false);
+		try {
+			return index.search(query, profile, party, since, until, sort.equals("relevance"), offset, limit);
+		} catch (IllegalArgumentException e) {
+			return "Invalid search query";
+		} finally {
+			index.close();
+		}
+	}
+	
+	
+	private static final int MAX_SEARCH_LIMIT = 200;
+	
+	
 	private static Map<String,IrcNetwork> convertProfiles(Map<String,Object> inData) {
 		Map<String,IrcNetwork> outData = new HashMap<>();
 		for (Map.Entry<String,Object> entry : inData.entrySet()) {
@@ -335,7 +376,8 @@ final class MessageHttpServer {
 				Json.getString(inProfile, "username"),
 				Json.getString(inProfile, "realname"),
 				(String)Json.getObject(inProfile, "nickservPassword"),
-				outChannels);
+				outChannels,
+				inProfile.containsKey("deadLinkTimeout") ? Json.getInt(inProfile, "deadLinkTimeout") : 0);
 			outData.put(name, outProfile);
 		}
 		return outData;
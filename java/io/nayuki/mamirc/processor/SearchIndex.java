@@ -0,0 +1,334 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * The full-text search index of archived PRIVMSG and NOTICE lines, in an SQLite database file separate from the archive
+ * (see doc/processor.markdown). A table of messages holds the profile, party (channel or private message partner),
+ * nickname and timestamp of each line, and an external-content FTS4 table indexes the text (the bundled SQLite predates
+ * FTS5). The SearchIndexerThread is the only writer; each search opens a read-only instance of its own, because an
+ * SQLite connection is confined to the thread that opened it, and the index is in WAL mode so that searches and
+ * indexing never block each other. Results are ranked with BM25, computed here from FTS4's matchinfo().
+ */
+final class SearchIndex {
+	
+	/*---- Fields ----*/
+	
+	private SQLiteConnection database;
+	private final boolean writable;
+	private SQLiteStatement insertMessage;
+	private SQLiteStatement insertText;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// Opens the index at the given file. If writable, the file and tables are created if nonexistent.
+	public SearchIndex(File file, boolean writable) throws IOException {
+		if (file == null)
+			throw new NullPointerException();
+		this.writable = writable;
+		database = new SQLiteConnection(file);
+		try {
+			database.open(writable);
+			database.setBusyTimeout(60000);
+			if (writable) {
+				database.exec("PRAGMA journal_mode = WAL");
+				database.exec("PRAGMA synchronous = NORMAL");  // The index can always be rebuilt from the archive
+				database.exec("CREATE TABLE IF NOT EXISTS messages(id INTEGER PRIMARY KEY, "
+					+ "connectionId INTEGER NOT NULL, sequence INTEGER NOT NULL, timestamp INTEGER NOT NULL, profile TEXT NOT NULL, "
+					+ "party TEXT NOT NULL, nickname TEXT NOT NULL, command TEXT NOT NULL, text TEXT NOT NULL)");
+				database.exec("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts4(content=\"messages\", text, tokenize=unicode61)");
+				database.exec("CREATE TABLE IF NOT EXISTS sources(name TEXT PRIMARY KEY, lastRowId INTEGER NOT NULL)");
+				database.exec("CREATE TABLE IF NOT EXISTS connections("
+					+ "connectionId INTEGER PRIMARY KEY, profile TEXT NOT NULL, nickname TEXT, registered INTEGER NOT NULL)");
+				insertMessage = database.prepare("INSERT INTO messages VALUES(NULL,?,?,?,?,?,?,?,?)");
+				insertText = database.prepare("INSERT INTO messages_fts(docid, text) VALUES(?,?)");
+			}
+		} catch (SQLiteException e) {
+			database.dispose();
+			throw new IOException(e);
+		}
+	}
+	
+	
+	
+	/*---- Methods for the indexer ----*/
+	
+	public void begin() throws IOException {
+		exec("BEGIN TRANSACTION");
+	}
+	
+	
+	public void commit() throws IOException {
+		exec("COMMIT TRANSACTION");
+	}
+	
+	
+	// Adds the given message, which came from the given event. Must be called in a transaction.
+	public void addMessage(Event ev, String profile, String party, String nickname, String command, String text) throws IOException {
+		if (!writable)
+			throw new IllegalStateException("Read-only index");
+		try {
+			insertMessage.bind(1, ev.connectionId);
+			insertMessage.bind(2, ev.sequence);
+			insertMessage.bind(3, ev.timestamp);
+			insertMessage.bind(4, profile);
+			insertMessage.bind(5, party);
+			insertMessage.bind(6, nickname);
+			insertMessage.bind(7, command);
+			insertMessage.bind(8, text);
+			Utils.stepStatement(insertMessage, false);
+			insertMessage.reset();
+			insertText.bind(1, database.getLastInsertId());
+			insertText.bind(2, text);
+			Utils.stepStatement(insertText, false);
+			insertText.reset();
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Returns the row ID up to which the given archive file has been indexed, or 0 if none.
+	public long getLastRowId(String source) throws IOException {
+		try {
+			SQLiteStatement query = database.prepare("SELECT lastRowId FROM sources WHERE name=?");
+			try {
+				query.bind(1, source);
+				return query.step() ? query.columnLong(0) : 0;
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Must be called in the same transaction as the messages of the rows up to the given one.
+	public void setLastRowId(String source, long rowId) throws IOException {
+		try {
+			SQLiteStatement update = database.prepare("INSERT OR REPLACE INTO sources VALUES(?,?)");
+			try {
+				update.bind(1, source);
+				update.bind(2, rowId);
+				Utils.stepStatement(update, false);
+			} finally {
+				update.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Returns the saved state of every connection seen so far, keyed by connection ID.
+	public Map<Integer,ConnectionState> getConnections() throws IOException {
+		Map<Integer,ConnectionState> result = new HashMap<>();
+		try {
+			SQLiteStatement query = database.prepare("SELECT connectionId, profile, nickname, registered FROM connections");
+			try {
+				while (query.step()) {
+					ConnectionState st = new ConnectionState(query.columnString(1));
+					st.nickname = query.columnNull(2) ? null : query.columnString(2);
+					st.registered = query.columnInt(3) != 0;
+					result.put(query.columnInt(0), st);
+				}
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+		return result;
+	}
+	
+	
+	// Must be called in a transaction.
+	public void setConnection(int conId, ConnectionState st) throws IOException {
+		try {
+			SQLiteStatement update = database.prepare("INSERT OR REPLACE INTO connections VALUES(?,?,?,?)");
+			try {
+				update.bind(1, conId);
+				update.bind(2, st.profile);
+				if (st.nickname != null)
+					update.bind(3, st.nickname);
+				else
+					update.bindNull(3);
+				update.bind(4, st.registered ? 1 : 0);
+				Utils.stepStatement(update, false);
+			} finally {
+				update.dispose();
+			}
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	
+	/*---- Method for searching ----*/
+	
+	// Returns one page of the messages that match the given FTS4 query (e.g. "hello world", "\"exact phrase\"",
+	// "foo OR bar", "pref*"), optionally restricted to a profile and a party (null for any) and to timestamps in
+	// [since, until). If byRelevance, the most recent MAX_RANKED matches are ranked by BM25, and otherwise all
+	// matches are in reverse order of indexing (newest first). The result has "results" (a list of maps) and
+	// "nextOffset" (null if this is the last page). Throws IllegalArgumentException if the query is malformed.
+	public Map<String,Object> search(String query, String profile, String party, long since, long until,
+			boolean byRelevance, int offset, int limit) throws IOException {
+		if (query == null)
+			throw new NullPointerException();
+		if (offset < 0 || limit < 1)
+			throw new IllegalArgumentException();
+		String sql = "SELECT m.connectionId, m.sequence, m.timestamp, m.profile, m.party, m.nickname, m.command, m.text, "
+			+ "matchinfo(messages_fts, 'pcnalx') FROM messages_fts JOIN messages m ON m.id = messages_fts.docid "
+			+ "WHERE messages_fts MATCH ? AND m.timestamp >= ? AND m.timestamp < ?"
+			+ (profile != null ? " AND m.profile = ?" : "")
+			+ (party != null ? " AND m.party = ? COLLATE NOCASE" : "")
+			+ " ORDER BY messages_fts.docid DESC LIMIT ? OFFSET ?";
+		
+		List<Map<String,Object>> rows = new ArrayList<>();
+		try {
+			SQLiteStatement stat = database.prepare(sql);
+			try {
+				int i = 1;
+				stat.bind(i++, query);
+				stat.bind(i++, since);
+				stat.bind(i++, until);
+				if (profile != null)
+					stat.bind(i++, profile);
+				if (party != null)
+					stat.bind(i++, party);
+				stat.bind(i++, byRelevance ? MAX_RANKED : limit + 1);
+				stat.bind(i++, byRelevance ? 0 : offset);
+				while (stat.step()) {
+					Map<String,Object> row = new HashMap<>();
+					row.put("connectionId", stat.columnInt(0));
+					row.put("sequence", stat.columnInt(1));
+					row.put("timestamp", stat.columnLong(2));
+					row.put("profile", stat.columnString(3));
+					row.put("party", stat.columnString(4));
+					row.put("nickname", stat.columnString(5));
+					row.put("command", stat.columnString(6));
+					row.put("text", stat.columnString(7));
+					row.put("score", bm25(stat.columnBlob(8)));
+					rows.add(row);
+				}
+			} finally {
+				stat.dispose();
+			}
+		} catch (SQLiteException e) {
+			if (e.getMessage() != null && e.getMessage().contains("MATCH"))
+				throw new IllegalArgumentException("Invalid search query", e);
+			throw new IOException(e);
+		}
+		
+		if (byRelevance) {
+			Collections.sort(rows, new Comparator<Map<String,Object>>() {
+				public int compare(Map<String,Object> x, Map<String,Object> y) {
+					return Double.compare((Double)y.get("score"), (Double)x.get("score"));  // Stable, so ties stay newest first
+				}
+			});
+			rows = rows.subList(Math.min(offset, rows.size()), rows.size());
+		}
+		Map<String,Object> result = new HashMap<>();
+		boolean more = rows.size() > limit;
+		result.put("results", new ArrayList<Object>(rows.subList(0, Math.min(limit, rows.size()))));
+		result.put("nextOffset", more ? offset + limit : null);
+		return result;
+	}
+	
+	
+	// Returns the Okapi BM25 score (k1 = 1.2, b = 0.75) of one row, given FTS4's matchinfo(..., 'pcnalx')
+	// of it: 32-bit integers in native byte order, which are the number of phrases, the number of columns,
+	// the number of rows, the average and this row's token count of each column, and then for each
+	// phrase and column, the hits in this row, the hits in all rows, and the rows with hits.
+	static double bm25(byte[] matchinfo) {
+		ByteBuffer bb = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+		int phrases = bb.getInt(0);
+		int columns = bb.getInt(4);
+		long rows = bb.getInt(8) & 0xFFFFFFFFL;
+		double result = 0;
+		for (int c = 0; c < columns; c++) {
+			double avgLength = Math.max(bb.getInt(12 + c * 4), 1);
+			double length = bb.getInt(12 + (columns + c) * 4);
+			for (int p = 0; p < phrases; p++) {
+				int base = 12 + (columns * 2 + (p * columns + c) * 3) * 4;
+				double hits = bb.getInt(base);
+				double rowsWithHits = bb.getInt(base + 8);
+				double idf = Math.max(Math.log((rows - rowsWithHits + 0.5) / (rowsWithHits + 0.5)), 1e-6);
+				result += idf * hits * (BM25_K1 + 1) / (hits + BM25_K1 * (1 - BM25_B + BM25_B * length / avgLength));
+			}
+		}
+		return result;
+	}
+	
+	
+	public void close() {
+		if (database != null) {
+			database.dispose();  // Automatically disposes its associated statements
+			database = null;
+		}
+	}
+	
+	
+	private void exec(String sql) throws IOException {
+		try {
+			database.exec(sql);
+		} catch (SQLiteException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	
+	// Relevance ranking only considers this many of the most recent matches, which bounds the cost of a query for a common word.
+	public static final int MAX_RANKED = 1000;
+	
+	private static final double BM25_K1 = 1.2;
+	private static final double BM25_B = 0.75;
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	// The indexer's knowledge of one connection, which it needs to attribute messages.
+	public static final class ConnectionState {
+		
+		public final String profile;  // From the connect event
+		public String nickname;  // Our current nickname, or null if not known yet
+		public boolean registered;  // Whether the server has welcomed us, after which only it can change our nickname
+		
+		
+		public ConnectionState(String profile) {
+			if (profile == null)
+				throw new NullPointerException();
+			this.profile = profile;
+		}
+		
+	}
+	
+}
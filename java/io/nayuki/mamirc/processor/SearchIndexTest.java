@@ -0,0 +1,56 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+
+public final class SearchIndexTest {
+	
+	@Test public void testBm25MoreHits() {
+		// One phrase in 1000 rows, 10 of which have it; rows of average length
+		double once  = SearchIndex.bm25(matchinfo(1000, 10, 10, 1, 20, 10));
+		double twice = SearchIndex.bm25(matchinfo(1000, 10, 10, 2, 20, 10));
+		assertTrue(once > 0);
+		assertTrue(twice > once);
+	}
+	
+	
+	@Test public void testBm25RarerAndShorter() {
+		double common = SearchIndex.bm25(matchinfo(1000, 10, 10, 1, 500, 400));
+		double rare   = SearchIndex.bm25(matchinfo(1000, 10, 10, 1, 5, 5));
+		assertTrue(rare > common);
+		double longRow  = SearchIndex.bm25(matchinfo(1000, 10, 40, 1, 20, 10));
+		double shortRow = SearchIndex.bm25(matchinfo(1000, 10, 5, 1, 20, 10));
+		assertTrue(shortRow > longRow);
+	}
+	
+	
+	@Test public void testBm25TwoPhrases() {
+		ByteBuffer bb = ByteBuffer.allocate(4 * 11).order(ByteOrder.nativeOrder());
+		bb.putInt(2).putInt(1).putInt(1000).putInt(10).putInt(10);
+		bb.putInt(1).putInt(20).putInt(10);
+		bb.putInt(0).putInt(30).putInt(20);  // Second phrase absent from this row
+		assertEquals(SearchIndex.bm25(matchinfo(1000, 10, 10, 1, 20, 10)), SearchIndex.bm25(bb.array()), 1e-9);
+	}
+	
+	
+	// Returns matchinfo(..., 'pcnalx') for one phrase and one column.
+	private static byte[] matchinfo(int rows, int avgLen, int len, int hits, int allHits, int rowsWithHits) {
+		ByteBuffer bb = ByteBuffer.allocate(4 * 8).order(ByteOrder.nativeOrder());
+		bb.putInt(1).putInt(1).putInt(rows).putInt(avgLen).putInt(len);
+		bb.putInt(hits).putInt(allHits).putInt(rowsWithHits);
+		return bb.array();
+	}
+	
+}
@@ -0,0 +1,215 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.EventStore;
+import io.nayuki.mamirc.common.PartitionedEventStore;
+import io.nayuki.mamirc.common.SqliteEventStore;
+import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.common.WorkerThread;
+
+
+/* 
+ * A worker thread that keeps the SearchIndex up to date by tailing the Connector's SQLite archive in insertion
+ * order (every partition of it, if partitioned, each one caught up before the next one), with read-only connections
+ * of its own. Each step reads a bounded batch of events in one short read, which never blocks the Connector's
+ * commits in WAL mode, and writes the PRIVMSG and NOTICE lines among them to the index file in one transaction,
+ * together with how far the archive has been indexed, so indexing resumes where it left off after a restart. When
+ * caught up, it polls the archive once per second. Like the Processor, it tracks each connection's profile (from
+ * the connect event) and our nickname, to attribute sent lines and private messages. An I/O error disables indexing
+ * but not searching what is already indexed.
+ */
+final class SearchIndexerThread extends WorkerThread {
+	
+	/*---- Fields ----*/
+	
+	private final BackendConfiguration config;
+	private final File indexFile;
+	private volatile boolean terminateRequested;
+	
+	// Only accessed by this worker
+	private SearchIndex index;
+	private Map<Integer,SearchIndex.ConnectionState> connections;
+	private final Set<Integer> changedConnections;
+	private final Map<File,SqliteEventStore> archives;  // Open read-only connections to the archive files
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// This constructor performs no I/O.
+	public SearchIndexerThread(BackendConfiguration config) {
+		super("SearchIndexerThread", false);  // Every SQLite call is native code, which would pin a virtual thread
+		if (config == null)
+			throw new NullPointerException();
+		if (config.processorSearchIndexFile == null)
+			throw new IllegalArgumentException();
+		this.config = config;
+		indexFile = config.processorSearchIndexFile;
+		terminateRequested = false;
+		changedConnections = new HashSet<>();
+		archives = new HashMap<>();
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	protected void runInner() {
+		try {
+			index = new SearchIndex(indexFile, true);
+			connections = index.getConnections();
+			while (!terminateRequested) {
+				// Partitions are indexed strictly in chronological order, starting over from the first one after each
+				// batch, so that a connection open across a rollover is indexed in order, starting with its connect event
+				boolean caughtUp = true;
+				for (File file : getArchiveFiles()) {
+					if (!indexBatch(file)) {
+						caughtUp = false;
+						break;
+					}
+				}
+				if (caughtUp)
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL));
+			}
+		} catch (IOException e) {
+			Utils.logger.log(Level.WARNING, "Search indexing error; indexing is disabled", e);
+		} finally {
+			for (SqliteEventStore store : archives.values())
+				store.close();
+			if (index != null)
+				index.close();
+		}
+	}
+	
+	
+	// Makes this worker stop soon. Can be called from any thread.
+	public void terminate() {
+		terminateRequested = true;
+		unpark();
+	}
+	
+	
+	private List<File> getArchiveFiles() {
+		if (config.connectorArchivePartitions.equals("none"))
+			return Collections.singletonList(config.connectorDatabaseFile);
+		else
+			return PartitionedEventStore.listPartitionFiles(config.connectorDatabaseFile);
+	}
+	
+	
+	// Indexes the next batch of events of the given archive file, and returns whether it was caught up.
+	private boolean indexBatch(File file) throws IOException {
+		SqliteEventStore store = archives.get(file);
+		if (store == null) {
+			if (!file.isFile())
+				return true;  // The Connector hasn't created it yet
+			store = new SqliteEventStore(file, false, null, null, false);
+			archives.put(file, store);
+		}
+		String source = file.getName();
+		long lastRowId = index.getLastRowId(source);
+		final List<Event> events = new ArrayList<>();
+		long rowId = store.readInserted(lastRowId, BATCH_EVENTS, new EventStore.Visitor() {
+			public void visit(Event ev) {
+				events.add(ev);
+			}
+		});
+		if (events.isEmpty())
+			return true;
+		
+		index.begin();
+		for (Event ev : events)
+			processEvent(ev);
+		for (int conId : changedConnections)
+			index.setConnection(conId, connections.get(conId));
+		changedConnections.clear();
+		index.setLastRowId(source, rowId);
+		index.commit();
+		return events.size() < BATCH_EVENTS;
+	}
+	
+	
+	// Updates the connection's state from the given event, and adds it to the index if it is a message.
+	private void processEvent(Event ev) throws IOException {
+		int conId = ev.connectionId;
+		String line = ev.line.getString();
+		if (ev.type == Event.Type.CONNECTION) {
+			if (line.startsWith("connect ")) {
+				String[] parts = line.split(" ", 5);
+				connections.put(conId, new SearchIndex.ConnectionState(parts.length == 5 ? parts[4] : ""));
+				changedConnections.add(conId);
+			}
+			return;
+		}
+		SearchIndex.ConnectionState state = connections.get(conId);
+		if (state == null)
+			return;  // Started before the index was created, and its connect event was not seen
+		IrcLine msg;
+		try {
+			msg = new IrcLine(line);
+		} catch (IrcSyntaxException e) {
+			return;
+		}
+		String cmd = msg.command.toUpperCase();
+		int numParams = msg.parameters.size();
+		
+		if (ev.type == Event.Type.RECEIVE) {
+			if (cmd.equals("001") && numParams >= 1) {  // RPL_WELCOME
+				state.nickname = msg.getParameter(0);
+				state.registered = true;
+				changedConnections.add(conId);
+			} else if (cmd.equals("NICK") && numParams >= 1 && msg.prefixName != null && msg.prefixName.equals(state.nickname)) {
+				state.nickname = msg.getParameter(0);
+				changedConnections.add(conId);
+			} else if ((cmd.equals("PRIVMSG") || cmd.equals("NOTICE")) && numParams >= 2 && msg.prefixName != null) {
+				String party = msg.getParameter(0);
+				if (!isChannel(party))  // A private message to me
+					party = msg.prefixName;
+				index.addMessage(ev, state.profile, party, msg.prefixName, cmd, msg.getParameter(1));
+			}
+		} else if (ev.type == Event.Type.SEND) {
+			if (cmd.equals("NICK") && numParams >= 1 && !state.registered) {
+				state.nickname = msg.getParameter(0);
+				changedConnections.add(conId);
+			} else if ((cmd.equals("PRIVMSG") || cmd.equals("NOTICE")) && numParams >= 2) {
+				String party = msg.getParameter(0);
+				String text = msg.getParameter(1);
+				if (party.equalsIgnoreCase("NickServ") && text.toUpperCase().startsWith("IDENTIFY "))
+					return;  // Never index a password
+				index.addMessage(ev, state.profile, party, state.nickname != null ? state.nickname : "", cmd, text);
+			}
+		}
+	}
+	
+	
+	private static boolean isChannel(String party) {
+		return party.startsWith("#") || party.startsWith("&");
+	}
+	
+	
+	// Each step indexes at most this many events, which bounds how long each read of the archive takes.
+	private static final int BATCH_EVENTS = 2000;
+	private static final int POLL_INTERVAL = 1000;  // In milliseconds, when caught up
+	
+}
@@ -100,6 +100,8 @@ final class UserConfiguration {
 			sb.append("],\n");
 			sb.append("\t\t\t\"username\": \"").append(profile.username).append("\",\n");
 			sb.append("\t\t\t\"realname\": \"").append(profile.realname).append("\",\n");
+			if (profile.deadLinkTimeout != 0)
+				sb.append("\t\t\t\"dead-link-timeout-seconds\": ").append(profile.deadLinkTimeout).append(",\n");
 			sb.append("\t\t\t\"channels\": [");
 			head = true;
 			for (String chan : profile.channels) {
@@ -133,6 +135,7 @@ final class UserConfiguration {
 		String username = Json.getString(netIn, "username");
 		String realname = Json.getString(netIn, "realname");
 		String nspass = netIn.containsKey("nickserv-password") ? Json.getString(netIn, "nickserv-password") : null;
+		int deadLink = netIn.containsKey("dead-link-timeout-seconds") ? Json.getInt(netIn, "dead-link-timeout-seconds") : 0;
 		
 		List<Object> nicksIn = Json.getList(netIn, "nicknames");
 		List<String> nicksOut = new ArrayList<>();
@@ -149,7 +152,7 @@ final class UserConfiguration {
 		for (Object servIn : serversIn)
 			serversOut.add(convertServer(servIn));
 		
-		return new IrcNetwork(name, connect, serversOut, nicksOut, username, realname, nspass, chansOut);
+		return new IrcNetwork(name, connect, serversOut, nicksOut, username, realname, nspass, chansOut, deadLink);
 	}
 	
 	
@@ -180,10 +183,12 @@ final class UserConfiguration {
 		public final String nickservPassword;
 		// Names of channels to join when processor starts. Not null; immutable, size at least 0, elements not null.
 		public final Set<String> channels;
+		// Seconds of silence after which the Connector closes a connection as a dead link. At least 0, where 0 means the Connector's default.
+		public final int deadLinkTimeout;
 		
 		
 		public IrcNetwork(String name, boolean connect, List<Server> servers, List<String> nicknames,
-				String username, String realname, String nickservPassword, Set<String> channels) {
+				String username, String realname, String nickservPassword, Set<String> channels, int deadLinkTimeout) {
 			if (name == null || servers == null || nicknames == null || username == null
 					|| realname == null || channels == null)
 				throw new NullPointerException();
@@ -191,6 +196,8 @@ final class UserConfiguration {
 				throw new IllegalArgumentException("Empty list of servers");
 			if (nicknames.isEmpty())
 				throw new IllegalArgumentException("Empty list of nicknames");
+			if (deadLinkTimeout < 0)
+				throw new IllegalArgumentException("Negative dead link timeout");
 			this.name = name;
 			this.connect = connect;
 			this.servers = Collections.unmodifiableList(servers);
@@ -199,6 +206,7 @@ final class UserConfiguration {
 			this.realname = realname;
 			this.nickservPassword = nickservPassword;
 			this.channels = Collections.unmodifiableSet(channels);
+			this.deadLinkTimeout = deadLinkTimeout;
 		}
 		
 		
@@ -2,7 +2,11 @@
 # Check integrity of MamIRC archive database
 # 
 # Usage: python check-archive-database.py MamircArchive.sqlite
-# This program reads from the given database file and prints a bunch of info/warning/error messages to standard error.
+#    or: python check-archive-database.py MamircArchiveDirectory
+# This program reads from the given database file, or from every partition of the given partitioned archive
+# directory (following catalog.sqlite, see doc/connector.markdown), and prints a bunch of info/warning/error messages
+# to standard error. Connections that span a partition rollover are checked as one sequence of events.
+# Given a single partition file, connections that started in an earlier partition are checked from where they resume.
 # This exits with status code 0 if and only if no known forms of corruption are found in the database.
 # 
 # It is semi-safe to run this on a database that is actively being used by a MamIRC Connector process.
@@ -15,7 +19,7 @@
 # https://github.com/nayuki/MamIRC
 # 
 
-import contextlib, pathlib, sqlite3, sys
+import contextlib, pathlib, re, sqlite3, sys, zlib
 if sys.version_info[ : 3] < (3, 4, 0):
 	raise RuntimeError("Requires Python 3.4+")
 
@@ -23,58 +27,116 @@ if sys.version_info[ : 3] < (3, 4, 0):
 def main(argv):
 	# Check command line arguments
 	if len(argv) != 2:
-		sys.exit("Usage: python {} MamircArchive.sqlite".format(argv[0]))
-	filepath = pathlib.Path(argv[1])
-	if not filepath.is_file():
-		sys.exit("[ERROR] File does not exist: {}".format(filepath))
+		sys.exit("Usage: python {} MamircArchive.sqlite|MamircArchiveDirectory".format(argv[0]))
+	path = pathlib.Path(argv[1])
+	if not path.exists():
+		sys.exit("[ERROR] File does not exist: {}".format(path))
 	
-	# Open database file
-	print("[INFO] Database file: {}".format(filepath.resolve()), file=sys.stderr)
-	with contextlib.closing(sqlite3.connect("file:{}?mode=ro".format(filepath), uri=True)) as con:
-		cur = con.cursor()
-		
-		# Perform SQLite's built-in data structure check
-		cur.execute("PRAGMA integrity_check")
-		if cur.fetchone()[0] != "ok":
-			sys.exit("[ERROR] SQLite integrity check failed. Aborting")
+	# Open database files
+	partitions = _open_archive(path)
+	try:
+		if len(partitions) == 0:
+			sys.exit("[ERROR] No partitions in archive directory: {}".format(path))
+		for (filepath, con) in partitions:
+			print("[INFO] Database file: {}".format(filepath.resolve()), file=sys.stderr)
+			
+			# Perform SQLite's built-in data structure check
+			if con.execute("PRAGMA integrity_check").fetchone()[0] != "ok":
+				sys.exit("[ERROR] SQLite integrity check failed. Aborting")
 		print("[INFO] SQLite integrity check passed", file=sys.stderr)
 		
 		# Print basic statistics
-		cur.execute("SELECT count(*) FROM events")
-		print("[INFO] Number of events: {}".format(cur.fetchone()[0]), file=sys.stderr)
-		cur.execute("SELECT max(connectionId) FROM events")
-		print("[INFO] Highest connection ID: {}".format(cur.fetchone()[0]), file=sys.stderr)
+		print("[INFO] Number of events: {}".format(sum(
+			con.execute("SELECT count(*) FROM events").fetchone()[0] for (_, con) in partitions)), file=sys.stderr)
+		print("[INFO] Highest connection ID: {}".format(max(
+			(con.execute("SELECT max(connectionId) FROM events").fetchone()[0] for (_, con) in partitions),
+			key=lambda x: -1 if x is None else x)), file=sys.stderr)
 		
-		# Check all events for each connection ID
-		conidcur = con.cursor()
-		conidcur.execute("SELECT DISTINCT connectionId FROM events ORDER BY connectionId ASC")
+		# Check all events for each connection ID, across partitions in chronological order
+		conids = set()
+		removed = {}
+		for (_, con) in partitions:
+			conids.update(row[0] for row in _row_iterator(con.execute("SELECT DISTINCT connectionId FROM events")))
+			for (conid, count) in _removed_events(con).items():
+				removed[conid] = removed.get(conid, 0) + count
 		haserror = False
-		for (conid,) in _row_iterator(conidcur):
-			haserror = _check_connection_id(conid, cur) or haserror
+		sources = [(con, _dictionary_column(con), {}) for (_, con) in partitions]
+		resumable = path.is_file() and _PARTITION_FILE_REGEX.fullmatch(path.name) is not None
+		for conid in sorted(conids):
+			haserror = _check_connection_id(conid, sources, removed.get(conid, 0), resumable) or haserror
 		
 		# Print final summary
 		if haserror:
 			sys.exit("[ERROR] Some integrity checks failed for this MamIRC archive database")
 		else:
 			print("[INFO] Integrity checks passed for this MamIRC archive database", file=sys.stderr)
+	finally:
+		for (_, con) in partitions:
+			con.close()
+
+
+# Returns a list of (path, connection) pairs to read in chronological order: just the given file, or for a
+# partitioned archive directory, every partition in catalog.sqlite plus any partition file not cataloged yet.
+def _open_archive(path):
+	if not path.is_dir():
+		return [(path, _connect_read_only(path))]
+	names = set()
+	catalog = path / "catalog.sqlite"
+	if catalog.is_file():
+		with contextlib.closing(_connect_read_only(catalog)) as con:
+			names.update(row[0] for row in con.execute("SELECT name FROM partitions"))
+	else:
+		print("[WARNING] Archive directory has no catalog", file=sys.stderr)
+	for f in path.iterdir():
+		if _PARTITION_FILE_REGEX.fullmatch(f.name) is not None:
+			names.add(f.name[ : -7])
+	result = []
+	for name in sorted(names):  # Partition names sort chronologically
+		filepath = path / (name + ".sqlite")
+		if filepath.is_file():  # A new partition is cataloged before its file is written
+			result.append((filepath, _connect_read_only(filepath)))
+	return result
+
+
+def _connect_read_only(filepath):
+	return sqlite3.connect("file:{}?mode=ro".format(filepath), uri=True)
+
+
+_PARTITION_FILE_REGEX = re.compile(r"[0-9]{4}-[0-9]{2}(-[0-9]{2})?\.sqlite")
 
 
-def _check_connection_id(conid, dbcur):
+# Checks the given connection's events across the given (connection, dictionary column, dictionary cache) sources.
+# If resumable is true, the events may begin after the connection's start, which lies in an earlier partition.
+def _check_connection_id(conid, sources, removed, resumable):
+	haserror = False
+	
 	# Check negative connection ID
 	if conid < 0:
 		print("[ERROR] Negative connection ID: {}".format(conid), file=sys.stderr)
 		haserror = True
 	
 	# Check all events for this connection in sequential order
-	dbcur.execute("SELECT sequence, type, data FROM events WHERE connectionId=? ORDER BY sequence ASC", (conid,))
-	state = 0  # 0 = init, 1 = connecting, 2 = opened, 3 = closed
+	state = 0  # 0 = init, 1 = connecting, 2 = opened, 3 = closed, 4 = resumed in an unknown state
 	nextseq = 0
-	haserror = False
-	for (seq, type, data) in _row_iterator(dbcur):
-		# Handle sequence number
-		if seq != nextseq:
-			print("[ERROR] Connection ID {} has a sequence number gap at {}".format(conid, nextseq), file=sys.stderr)
+	gapevents = 0
+	for (seq, type, data) in _connection_events(conid, sources):
+		if data is None:
+			print("[ERROR] Undecodable event data on connection ID {} at sequence number {}".format(conid, seq), file=sys.stderr)
 			haserror = True
+			continue
+		
+		# A connection that started before the given partition is checked from its first event here
+		if state == 0 and seq > 0 and resumable and not (type == 0 and data.startswith(b"connect")):
+			print("[INFO] Connection ID {} continues from an earlier partition at sequence number {}".format(conid, seq), file=sys.stderr)
+			state = 4
+			nextseq = seq
+		
+		# Handle sequence number; gaps are allowed where the retention engine removed events
+		if seq != nextseq:
+			gapevents += seq - nextseq
+			if seq < nextseq or gapevents > removed:
+				print("[ERROR] Connection ID {} has a sequence number gap at {}".format(conid, nextseq), file=sys.stderr)
+				haserror = True
 		nextseq = seq + 1
 		
 		# Check characters
@@ -131,11 +193,65 @@ def _check_connection_id(conid, dbcur):
 		elif state == 3:
 			print("[ERROR] Invalid event occurred on connection ID {} at sequence number {} based on the connection state".format(conid, seq), file=sys.stderr)
 			haserror = True
+		elif state == 4:
+			if type == 0 and len(data) == 5:
+				print("[ERROR] Invalid event occurred on connection ID {} at sequence number {} based on the connection state".format(conid, seq), file=sys.stderr)
+				haserror = True
+			elif type == 0 and data[0] == "opened":
+				state = 2
+			elif type == 0 and data[0] == "closed":
+				state = 3
 		else:
 			raise AssertionError("Invalid state")
 	return haserror
 
 
+# Generates a (sequence, type, payload) tuple for each event of the given connection, in order across the given
+# sources, where the payload is None if it cannot be decompressed. A connection's events are appended to the
+# partition of the current period, so a connection that spans a rollover continues in a later partition.
+def _connection_events(conid, sources):
+	for (con, dictcol, dictcache) in sources:
+		cur = con.execute("SELECT sequence, type, data, {} FROM events WHERE connectionId=? ORDER BY sequence ASC".format(dictcol), (conid,))
+		for (seq, type, data, dictid) in _row_iterator(cur):
+			try:
+				data = _decompress_payload(con, data, dictid, dictcache)
+			except (ValueError, zlib.error):
+				data = None
+			yield (seq, type, data)
+
+
+# Returns the given event payload, decompressing it if the given dictionary ID is not None.
+# Compressed payloads are in the zlib format with a preset dictionary (see doc/connector.markdown).
+def _decompress_payload(con, data, dictid, cache):
+	if dictid is None:
+		return data
+	if dictid not in cache:
+		row = con.execute("SELECT data FROM dictionaries WHERE id=?", (dictid,)).fetchone()
+		if row is None:
+			raise ValueError("Missing dictionary {}".format(dictid))
+		cache[dictid] = row[0]
+	dec = zlib.decompressobj(zdict=cache[dictid])
+	result = dec.decompress(data) + dec.flush()
+	if not dec.eof or len(dec.unused_data) > 0:
+		raise ValueError("Invalid compressed payload")
+	return result
+
+
+# Returns a dict from connection ID to the number of events removed by the Connector's retention engine,
+# which is empty for archives that never had retention enabled.
+def _removed_events(con):
+	if con.execute("SELECT count(*) FROM sqlite_master WHERE type='table' AND name='retention'").fetchone()[0] == 0:
+		return {}
+	result = dict(con.execute("SELECT connectionId, removedEvents FROM retention"))
+	print("[INFO] Events removed by retention: {}".format(sum(result.values())), file=sys.stderr)
+	return result
+
+
+# Returns the SQL expression for the dictionary ID column, which archives from before compression lack.
+def _dictionary_column(con):
+	return "dictionary" if any(row[1] == "dictionary" for row in con.execute("PRAGMA table_info(events)")) else "NULL"
+
+
 # Generates a row tuple for each fetchone() call that doesn't return None.
 def _row_iterator(dbcur):
 	while True:
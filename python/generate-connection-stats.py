@@ -2,7 +2,11 @@
 # Generate connection statistics
 # 
 # Usage: python generate-connection-stats.py MamircArchive.sqlite Output.html
-# This program reads from the given database file and writes to the given HTML file.
+#    or: python generate-connection-stats.py MamircArchiveDirectory Output.html
+# This program reads from the given database file, or from every partition of the given partitioned archive
+# directory (following catalog.sqlite, see doc/connector.markdown), and writes to the given HTML file.
+# A connection that spans a partition rollover is one row. Given a single partition file, a connection
+# that started in an earlier partition is shown from its first event in that file.
 # 
 # It is safe to run this on a database that is actively being used by a MamIRC Connector
 # process. The reader won't block the writer, and no corrupt data will be read or written.
@@ -13,14 +17,14 @@
 # https://github.com/nayuki/MamIRC
 # 
 
-import contextlib, datetime, sqlite3, sys
-if sys.version_info[ : 3] < (3, 2, 0):
-	sys.exit("Error: Python 3.2+ required")
+import contextlib, datetime, pathlib, re, sqlite3, sys, zlib
+if sys.version_info[ : 3] < (3, 4, 0):
+	sys.exit("Error: Python 3.4+ required")
 
 
 def main(argv):
 	if len(argv) != 3:
-		sys.exit("Usage: python {} MamircArchive.sqlite Output.html".format(argv[0]))
+		sys.exit("Usage: python {} MamircArchive.sqlite|MamircArchiveDirectory Output.html".format(argv[0]))
 	
 	with open(argv[2], "wt", encoding="UTF-8") as fout:
 		fout.write(
@@ -70,42 +74,56 @@ def main(argv):
 			<tbody>
 """)
 		
-		with contextlib.closing(sqlite3.connect("file:" + argv[1] + "?mode=ro", uri=True)) as con:
-			cur = con.cursor()
+		cons = _open_archive(pathlib.Path(argv[1]))
+		try:
+			dictcols = [_dictionary_column(con) for con in cons]
+			dictcaches = [{} for con in cons]
 			nextconid = 0
 			while True:
 				
-				cur.execute("""SELECT connectionId FROM events
-					WHERE connectionId>=? ORDER BY connectionId ASC LIMIT 1""", (nextconid,))
-				row = cur.fetchone()
-				if row is None:
+				# The lowest connection ID not yet listed, in any partition
+				conid = None
+				for con in cons:
+					row = con.execute("""SELECT connectionId FROM events
+						WHERE connectionId>=? ORDER BY connectionId ASC LIMIT 1""", (nextconid,)).fetchone()
+					if row is not None and (conid is None or row[0] < conid):
+						conid = row[0]
+				if conid is None:
 					break
-				conid = row[0]
 				
-				cur.execute("""SELECT timestamp, type, data FROM events
-					WHERE connectionId=? AND sequence=0""", (conid,))
-				row = cur.fetchone()
-				if row is None or row[1] != 0:
-					raise ValueError("Invalid data in database")
-				starttimestamp = UNIX_EPOCH + datetime.timedelta(milliseconds=row[0])
+				# The first event is in the earliest partition with events of this connection, and the last
+				# event in the latest one, because a connection spanning a rollover continues in the next partition
+				for i in range(len(cons)):
+					row = cons[i].execute("""SELECT sequence, timestamp, type, data, {} FROM events
+						WHERE connectionId=? ORDER BY sequence ASC LIMIT 1""".format(dictcols[i]), (conid,)).fetchone()
+					if row is not None:
+						break
+				starttimestamp = UNIX_EPOCH + datetime.timedelta(milliseconds=row[1])
 				
-				datastr = row[2].decode("UTF-8")
-				parts = datastr.split(" ", 4)
-				if parts[0] != "connect":
-					raise ValueError("Invalid data in database")
+				if row[0] == 0:
+					if row[2] != 0:
+						raise ValueError("Invalid data in database")
+					datastr = _decompress_payload(cons[i], row[3], row[4], dictcaches[i]).decode("UTF-8")
+					parts = datastr.split(" ", 4)
+					if parts[0] != "connect":
+						raise ValueError("Invalid data in database")
+					profile = parts[4]
+					server = " ".join(parts[1 : 4])
+				else:  # Only a single partition file can lack the start of a connection
+					profile = server = "(earlier partition)"
 				
-				cur.execute("""SELECT sequence, timestamp FROM events WHERE connectionId=?
-					AND sequence=(SELECT max(sequence) FROM events WHERE connectionId=?)""", (conid, conid))
-				row = cur.fetchone()
-				if row is None:
-					raise AssertionError()
+				for con in reversed(cons):
+					row = con.execute("""SELECT sequence, timestamp FROM events
+						WHERE connectionId=? ORDER BY sequence DESC LIMIT 1""", (conid,)).fetchone()
+					if row is not None:
+						break
 				lastsequence = row[0]
 				endtimestamp = UNIX_EPOCH + datetime.timedelta(milliseconds=row[1])
 				
 				cells = [
 					group_digits(conid),
-					parts[4],
-					" ".join(parts[1 : 4]),
+					profile,
+					server,
 					group_digits(lastsequence + 1) + " events",
 					starttimestamp.strftime(TIMESTAMP_FORMAT),
 					endtimestamp  .strftime(TIMESTAMP_FORMAT),
@@ -114,6 +132,9 @@ def main(argv):
 				fout.write("				<tr>" + "".join("<td>{}</td>".format(c) for c in cells) + "</tr>\n")
 				
 				nextconid = conid + 1
+		finally:
+			for con in cons:
+				con.close()
 		
 		fout.write(
 """			</tbody>
@@ -123,6 +144,52 @@ def main(argv):
 """)
 
 
+# Returns a read-only connection to each database file to read, in chronological order: just the given file,
+# or for a partitioned archive directory, every partition in catalog.sqlite plus any partition file not cataloged yet.
+def _open_archive(path):
+	if not path.is_dir():
+		return [_connect_read_only(path)]
+	names = set()
+	catalog = path / "catalog.sqlite"
+	if catalog.is_file():
+		with contextlib.closing(_connect_read_only(catalog)) as con:
+			names.update(row[0] for row in con.execute("SELECT name FROM partitions"))
+	for f in path.iterdir():
+		if _PARTITION_FILE_REGEX.fullmatch(f.name) is not None:
+			names.add(f.name[ : -7])
+	# Partition names sort chronologically, and a new partition is cataloged before its file is written
+	return [_connect_read_only(path / (name + ".sqlite")) for name in sorted(names) if (path / (name + ".sqlite")).is_file()]
+
+
+def _connect_read_only(filepath):
+	return sqlite3.connect("file:{}?mode=ro".format(filepath), uri=True)
+
+
+_PARTITION_FILE_REGEX = re.compile(r"[0-9]{4}-[0-9]{2}(-[0-9]{2})?\.sqlite")
+
+
+# Returns the given event payload, decompressing it if the given dictionary ID is not None.
+# Compressed payloads are in the zlib format with a preset dictionary (see doc/connector.markdown).
+def _decompress_payload(con, data, dictid, cache):
+	if dictid is None:
+		return data
+	if dictid not in cache:
+		row = con.execute("SELECT data FROM dictionaries WHERE id=?", (dictid,)).fetchone()
+		if row is None:
+			raise ValueError("Missing dictionary {}".format(dictid))
+		cache[dictid] = row[0]
+	dec = zlib.decompressobj(zdict=cache[dictid])
+	result = dec.decompress(data) + dec.flush()
+	if not dec.eof or len(dec.unused_data) > 0:
+		raise ValueError("Invalid compressed payload")
+	return result
+
+
+# Returns the SQL expression for the dictionary ID column, which archives from before compression lack.
+def _dictionary_column(con):
+	return "dictionary" if any(row[1] == "dictionary" for row in con.execute("PRAGMA table_info(events)")) else "NULL"
+
+
 def group_digits(n):
 	temp = str(n)
 	result = ""
@@ -1750,6 +1750,7 @@ const profileConfigModule = new function() {
 		realname: "",
 		nickservPassword: null,
 		channels: [],
+		deadLinkTimeout: 0,
 	};
 	
 	/* Initialization */
@@ -1821,10 +1822,11 @@ const profileConfigModule = new function() {
 	
 	// Types: i is integer, name is string/null, profile is object{connect:boolean,
 	// servers:list<object{hostname:string, port:integer, ssl:boolean}>, nicknames:list<string>,
-	// username:string, realname:string, nickservPassword:string/null, channels:list<string>},
+	// username:string, realname:string, nickservPassword:string/null, channels:list<string>, deadLinkTimeout:integer},
 	// result is HTMLElement. Pure function.
 	function createProfileForm(i, name, profile) {
 		var form = document.createElement("form");
+		form.setAttribute("data-dead-link-timeout", profile.deadLinkTimeout.toString());  // Not editable here, but preserved
 		var table = document.createElement("table");
 		var tbody = document.createElement("tbody");
 		appendTextBoxRow(tbody, "Profile name:", "profile" + i + "-name", "text",
@@ -1959,6 +1961,7 @@ const profileConfigModule = new function() {
 					realname: inputs[end - 3].value.trim(),
 					nickservPassword: inputs[end - 2].value,
 					channels: splitByComma(inputs[end - 1].value.trim()),
+					deadLinkTimeout: parseInt(form.getAttribute("data-dead-link-timeout"), 10),
 				};
 				if (profile.nickservPassword == "")  // A bit of postprocessing
 					profile.nickservPassword = null;